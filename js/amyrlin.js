@@ -119,37 +119,41 @@
          bot.oldTopics = new Object();
       }
 
-      bot.onJoin = chain(bot.onJoin,
-         function(channelName, name)
+      // The topic is only known once the channel has synced.
+      bot.addEventListener("synced",
+         function(channelName)
          {
             var channel = bot.channels[channelName];
-            var topic   = channel.topic;
-            var nick    = mask2Nick(name);
 
-            if (nick == bot.name)
+            if (channel.topic == null)
             {
-                if (channel.topic == null)
-                {
-                   var oldTopic = bot.oldTopics[channelName];
+               var oldTopic = bot.oldTopics[channelName];
 
-                   if (oldTopic != null && oldTopic != undefined)
-                   {
-                      channel.topic = oldTopic;
-                   }
-                   else
-                   {
-                      channel.topic = "Somebody set up us the topic!!";
-                   }
-                }
+               if (oldTopic != null && oldTopic != undefined)
+               {
+                  channel.topic = oldTopic;
+               }
+               else
+               {
+                  channel.topic = "Somebody set up us the topic!!";
+               }
             }
-            else
+         }
+      );
+
+      bot.addEventListener("join",
+         function(channelName, name)
+         {
+            var channel = bot.channels[channelName];
+
+            if (mask2Nick(name) != bot.name && channel.synced)
             {
-               bot.oldTopics[channelName] = topic;
+               bot.oldTopics[channelName] = channel.topic;
             }
          }
       );
 
-      bot.onTopic = chain(bot.onTopic,
+      bot.addEventListener("topic",
          function(channelName, topic, changer)
          {
             bot.oldTopics[channelName] = topic;
@@ -95,7 +95,7 @@
         },
         500, "Loads the saved word net.");
 
-     bot.onPrivMsg = chain(bot.onPrivMsg,
+     bot.addEventListener("privMsg",
         function(sender, target, text)
         {
             if (text.length > 0 && mask2Nick(sender) != bot.name && text.charAt(0) != '!')
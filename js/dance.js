@@ -11,7 +11,7 @@
 	    bot.danceText[4] = "and DANCE";
 	    bot.danceSender = "";
 	
-	    bot.onPrivMsg = chain(bot.onPrivMsg,
+	    bot.addEventListener("privMsg",
 	       function(sender, target, text)
 	       {
 	          if(sender != bot.danceSender)
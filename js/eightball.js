@@ -26,7 +26,7 @@
          bot.eightBall[19] = "As I See It, Yes";
          bot.eightBall[20] = "I don't know if Velveeta *can* go bad.";
 
-         bot.onAction = chain(bot.onAction,
+         bot.addEventListener("action",
             function(sender, target, action)
             {
                var match = action.match(bot.eightBallRE);
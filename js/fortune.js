@@ -50,14 +50,11 @@
       }, 100, "Spout a delicious pearl of wisdom.");
       
       // Auto-kick when "kick me" shows up anywhere.
-      bot.onPrivMsg = chain(bot.onPrivMsg,
+      bot.addTrigger("kick me",
          function(sender, target, text)
          {
-            if (text.match(/.*kick me.*/gi) != null)
-            {
-               var fortune = bot.getFortune(150);
-               bot.write("KICK " + target + " " + mask2Nick(sender) + " :" + fortune);
-            }
+            var fortune = bot.getFortune(150);
+            bot.write("KICK " + target + " " + mask2Nick(sender) + " :" + fortune);
          }
       );
 
@@ -5,62 +5,10 @@
    // This file implements core JackBot command routing. //
    ////////////////////////////////////////////////////////
 
-   ////////////////////////////////////////////////////////////////////////////
-   // Class: BotCommand
-   // Purpose: Represents a command for the bot.  The constructor takes
-   //          a net.ardvaark.jackbot.IRCMessage object.
-   // Properties: sender      - The hostmask of the sender of the command.
-   //             target      - The target of the command. This could be a
-   //                           channel or a name.
-   //             msg         - The ???.
-   //             cmd         - The command to be executed.
-   //             paramString - The unparsed string of parameters.
-   //             params      - An Array of the parsed parameters.
-   ////////////////////////////////////////////////////////////////////////////
-   function BotCommand(ircMsg)
-   {
-      this.sender = String(ircMsg.getPrefix());
-      this.target = String(ircMsg.getParam(0));
-      this.msg = String(ircMsg.getParam(1));
-
-      var matches = /\!(\w+)\s*(.*)/.exec(this.msg);
-
-      this.cmd = matches[1].toLowerCase();
-      this.paramString = matches[2];
-      this.params = this.paramString.split(" ");
-      this.level = 100;
-      
-      this.toString =
-      function()
-      {
-         return "Cmd:" + this.cmd + ", From:" + this.sender + ", Target:" + this.target + ", Params:" + this.paramString;
-      }
-
-      this.targetsChannel =
-      function()
-      {
-         return (this.target.charAt(0) == '#');
-      }
-      
-      this.targetsName =
-      function()
-      {
-         return !this.targetsChannel();
-      }
-      
-      this.respond =
-      function(msg, respondAsPrivMsg)
-      {
-         if (respondAsPrivMsg == undefined)
-         {
-            bot.respond(this.sender, this.target, msg);
-         }
-         else
-         {
-            bot.respond(this.sender, this.target, msg, respondAsPrivMsg);
-         }
-      }      
-   }
+   // Commands are routed by the bot itself.  Their handlers are passed a
+   // Command object, which has the properties sender, target, msg, cmd,
+   // paramString, params and level, and the functions respond(),
+   // targetsChannel() and targetsName().
    
    ////////////////////////////////////////////////////////////////////////////
    // Class: BotUser
@@ -105,26 +53,6 @@
    }
    
    
-   ////////////////////////////////////////////////////////////////////////////
-   // Class: BotCmdListener
-   // Purpose: Represents a CmdListener.
-   // Properties: callback - The callback function to use when the command
-   //                        is executed.
-   //             level    - The level required of a user to execute the
-   //                        command listener.
-   ////////////////////////////////////////////////////////////////////////////
-   function BotCmdListener(callback, level)
-   {
-      this.callback = callback;
-      this.level = level;
-   }
-   
-
-   // The cmdHandlers object will hold the command handlers
-   // for the bot.
-   bot.cmdHandlers = new Object();
-   bot.cmdHelp = new Object();
-   
    // The users object will hold all of the known users, indexed by their username.
    // The username is a unique ID to the bot.  It will probably typically be their
    // nick, but that is not necessary.
@@ -145,6 +73,7 @@
       if (users[username] == undefined)
       {
          users[username] = new BotUser(username, hostmask, autoOp, level);
+         bot.setUser(username, hostmask, level);
          success = true;
       }
       
@@ -164,6 +93,7 @@
       if (users[username] != undefined)
       {
          delete users[username];
+         bot.removeUser(username);
          success = true;
       }
       
@@ -173,26 +103,15 @@
    ////////////////////////////////////////////////////////////////////////////
    // Function: findUser()
    // Purpose: Finds and returns a BotUser object matching the given mask.
+   //          The bot remembers which user each mask belongs to until the
+   //          users change.
    ////////////////////////////////////////////////////////////////////////////
    bot.findUser =
    function(hostmask)
    {
-      var theUser = null;
-      var users = bot.users;
-      var curUser;
-      
-      for (var username in users)
-      {
-         curUser = users[username];
-         
-         if (curUser.matchesMask(hostmask))
-         {
-            theUser = curUser;
-            break;
-         }
-      }
+      var username = bot.findUsername(hostmask);
       
-      return theUser;
+      return username != null ? bot.users[username] : null;
    }
    
    ////////////////////////////////////////////////////////////////////////////
@@ -213,101 +132,15 @@
    bot.checkLevel =
    function(hostMask, level)
    {
-      var theUser = this.findUser(hostMask);
-      
       if (level == undefined)
       {
          level = 100;
       }
       
-      return theUser != null && theUser.level >= level;
+      return bot.getUserLevel(hostMask) >= level;
    }
    
    
-   // Set up a handler for the onMessage event.
-   // If the message is a PRIVMSG, this creates a new BotCommand
-   // object and then calls dispatchCommand().
-   bot.onMessage = chain(bot.onMessage,
-      function(msg)
-      {
-         if (msg.getCommand() == "PRIVMSG")
-         {
-            if (msg.getParamCount() >= 2)
-            {
-               var target = msg.getParam(0);
-               var text = msg.getParam(1);
-   
-               if (text.length() > 1 && text.substring(0, 1) == "!")
-               {
-                  var cmd = new BotCommand(msg);
-                  bot.dispatchCommand(cmd);
-               }
-            }
-         }
-      }
-   );
-   
-   // Dispatches a command to anybody listening for it.
-   // For internal use only.
-   bot.dispatchCommand =
-   function(cmd)
-   {
-      var cmdName = cmd.cmd;
-      var f;
-      var botCmdHandler = null;
-      var secFunc = null;
-      var canRun = false;
-      var cmdHandlers = bot.cmdHandlers;
-      
-      if (bot.securityCheck == undefined || bot.securityCheck == null)
-      {
-         // Install a simple security function if none is defined.
-         bot.securityCheck =
-         function(cmd, f)
-         {
-            return bot.validateUser(cmd.sender) && bot.checkLevel(cmd.sender, cmd.level);
-         }
-      }
-      
-      secFunc = bot.securityCheck;
-
-      if (cmdHandlers[cmdName] != undefined)
-      {
-         for (var i = 0; i < cmdHandlers[cmdName].length; i++)
-         {
-            botCmdHandler = cmdHandlers[cmdName][i];
-            f = botCmdHandler.callback;
-            cmd.level = botCmdHandler.level;
-            
-            try
-            {
-               canRun = true; //secFunc(cmd, f);
-            }
-            catch (e)
-            {
-               bot.log("An exception occured while performing the security check for handler #" + i + " for command \"" + cmdName + "\".  The command will not be allowed to execute: " + e);
-               cmd.respond("An exception occured while performing the security check for handler #" + i + " for command \"" + cmdName + "\".  The command will not be allowed to execute: " + e);
-               canRun = false;
-            }
-
-            if (canRun)
-            {
-               bot.log("Executing command: " + cmd.toString());
-               
-               try
-               {
-                  f(cmd);
-               }
-               catch (e)
-               {
-                  bot.log("Caught exception running handler #" + i + " for command \"" + cmdName + "\": " + e);
-                  cmd.respond("Caught exception running handler #" + i + " for command \"" + cmdName + "\": " + e);
-               }
-            }
-         }
-      }
-   }
-   
    ////////////////////////////////////////////////////////////////////////////
    // Function: loadUsers()
    // Purpose: Loads the users from the given filename.  Returns true on
@@ -384,31 +217,13 @@
    
    ////////////////////////////////////////////////////////////////////////////
    // Function: addCmdListener()
-   // Purpose: Adds a command listener to the bot.
+   // Purpose: Adds a command listener to the bot.  Kept for older scripts;
+   //          it is the same as bot.addCommand().
    ////////////////////////////////////////////////////////////////////////////
    bot.addCmdListener =
    function(cmdName, l, level, help)
    {
-      var cmdHandlers = bot.cmdHandlers;
-      var cmdHelp = bot.cmdHelp;
-      
-      if (help == undefined)
-      {
-         help = "No help available.";
-      }
-      
-      if (cmdHandlers[cmdName] == undefined)
-      {
-         cmdHandlers[cmdName] = new Array();
-         cmdHelp[cmdName] = new Array();
-         cmdHandlers[cmdName][0] = new BotCmdListener(l, level);
-         cmdHelp[cmdName][0] = help;
-      }
-      else
-      {
-         cmdHandlers[cmdName][cmdHandlers[cmdName].length] = new BotCmdListener(l, level);
-         cmdHelp[cmdName][cmdHelp[cmdName].length] = help;
-      }
+      bot.addCommand(cmdName, l, level, help);
    }
    
    ////////////////////////////
@@ -500,35 +315,27 @@
       {
          if (cmd.params.length == 0 || (cmd.params.length > 0 && cmd.params[0] == ""))
          {
-            cmd.respond("Registered commands are:");
-   
-            var i = 0;
-            var cmdHandlers = bot.cmdHandlers;
+            var cmdNames = bot.getCommandNames();
             var out = "";
             
-            for (var curCmd in cmdHandlers)
-            {
-               out += (curCmd.toString() + " ");
-               
-               if (++i == 7)
-               {
-                  cmd.respond(out);
-                  i = 0;
-                  out = "";
-               }
-            }
-            
-            if (out.length > 0)
+            // The bot splits the line if it is too long for the server.
+            for (var i = 0; i < cmdNames.length; i++)
             {
-               cmd.respond(out);
+               out += (" " + cmdNames[i]);
             }
    
-            cmd.respond("End Command List");
+            cmd.respond("Registered commands are:" + out);
          }
          else
          {
-            cmdName = cmd.params[0];
-            helpArray = bot.cmdHelp[cmdName];
+            var cmdName = cmd.params[0];
+            var helpArray = bot.getCommandHelp(cmdName);
+            
+            if (helpArray.length == 0)
+            {
+               cmd.respond("No such command: " + cmdName);
+               return;
+            }
             
             cmd.respond("Help for " + cmdName + ":");
             
@@ -550,7 +357,7 @@
    );
    
    // Provide the auto-op capability.
-   bot.onJoin = chain(bot.onJoin,
+   bot.addEventListener("join",
       function(channel, name)
       {
          var user = bot.findUser(name);
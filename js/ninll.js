@@ -140,7 +140,7 @@
       }
 
    // The onPrivMsg event.
-   bot.onPrivMsg = chain(bot.onPrivMsg,
+   bot.addEventListener("privMsg",
       function(sender, target, text)
       {
          if (String(text).charAt(0) == '!' || mask2Nick(sender) == bot.name)
@@ -167,7 +167,7 @@
       }
    );
 
-   bot.onPrivMsg = chain(bot.onPrivMsg,
+   bot.addEventListener("privMsg",
       function(sender, target, text)
       {
          if (bot.lang.chatEnabled)
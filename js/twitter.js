@@ -332,34 +332,38 @@
 			);
 	   	};
 	    
-	   	this.checkTimelineForChannel = function(timeout) {
+	   	this.checkTimelineForChannel = function() {
+	   		// The interval timer fires on schedule; skip this tick if the
+	   		// previous request has not come back yet.
+	   		if (twitter.checkingTimeline) return;
+	   		twitter.checkingTimeline = true;
+
 			twitter.checkTimeline(
 			    function(statuses) { // Success
+			        twitter.checkingTimeline = false;
 			        twitter.timelineFailureCount = 0;
 
                     for (var i = statuses.length - 1; i >= 0; i--) {
                         var status = statuses[i];
 
                         if (status.user.screen_name != twitter.username) {
-                            bot.say(twitter.channel, status.user.screen_name + ": " + status.text, true);
+                            bot.announce(twitter.channel, status.user.screen_name + ": " + status.text);
                         }
                     }
-
-	   				bot.setTimeout("twitter-" + twitter.channel, function() { twitter.checkTimelineForChannel(timeout); }, timeout);
 			    },
 
 			    function(data) { // Failure
+			        twitter.checkingTimeline = false;
+
 			        if (++twitter.timelineFailureCount % 37 == 0) {
 			            bot.notice(twitter.channel, "I haven't been able to successfully check Twitter in a while.");
 			        }
-
-	   				bot.setTimeout("twitter-" + twitter.channel, function() { twitter.checkTimelineForChannel(timeout); }, timeout);
 			    }
 			);
 
 	   	};
 	   	
-		bot.onTopic = chain(bot.onTopic,
+		bot.addEventListener("topic",
 		        function(channelName, topic, changer)
 		        {
 		            if (channelName == twitter.channel && topic != ".")
@@ -399,7 +403,7 @@
 	    bot.addCmdListener("authorize",    this.cmdAuthorize,               50, "Authorize me with Twitter.");
 	    bot.addCmdListener("authpin",      this.cmdCompleteAuthorization,   50, "Complete my Twitter authorization.");
 
-	    bot.setTimeout("twitter-" + this.channel, function() { twitter.checkTimelineForChannel(29 * 1000); }, (1 + Math.floor(Math.random() * 29)) * 1000);
+	    bot.setInterval("twitter-" + this.channel, function() { twitter.checkTimelineForChannel(); }, 29 * 1000, 29 * 1000);
 	}
 
 	]]>
@@ -1,5 +1,8 @@
 <script name="JackBot Utility Library"><![CDATA[
 
+   // Kept for older scripts.  Host objects have addEventListener(), which
+   // calls each listener on its own, so one that throws does not stop the
+   // rest.
    function chain(func1, func2)
    {
       if (func1 == null)
@@ -19,6 +19,8 @@ package net.ardvaark.jackbot;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -27,6 +29,7 @@ import net.ardvaark.jackbot.logging.Log;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
@@ -103,6 +106,38 @@ public class Config
         return ret;
     }
 
+    /**
+     * Gets every element directly under the root node that has one of the
+     * given names, in document order.
+     *
+     * @param nodeNames The names of the nodes to fetch.
+     * @return The matching elements. The list is empty if there are none.
+     */
+    public List<Element> getConfigElements(String... nodeNames)
+    {
+        List<Element> ret = new ArrayList<Element>();
+        NodeList children = this.configDoc.getDocumentElement().getChildNodes();
+
+        for (int i = 0; i < children.getLength(); i++)
+        {
+            Node child = children.item(i);
+
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+            {
+                for (String nodeName : nodeNames)
+                {
+                    if (child.getNodeName().equals(nodeName))
+                    {
+                        ret.add((Element) child);
+                        break;
+                    }
+                }
+            }
+        }
+
+        return ret;
+    }
+
     /**
      * The loaded XML document.
      */
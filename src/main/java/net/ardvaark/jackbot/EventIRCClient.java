@@ -19,10 +19,11 @@ package net.ardvaark.jackbot;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import net.ardvaark.jackbot.io.IRCInputQueue;
 import net.ardvaark.jackbot.logging.Log;
 
 /**
@@ -45,6 +46,12 @@ import net.ardvaark.jackbot.logging.Log;
 public class EventIRCClient extends UtilityIRCClient
 {
     private static final Log log = Log.getLogger(EventIRCClient.class);
+
+    /**
+     * The number of lines the input queue can hold. Reading from the server
+     * pauses when it is full, leaving the rest in the socket.
+     */
+    public static final int INPUT_QUEUE_CAPACITY = 4096;
     
     /**
      * Constructs an EventIRCClient with the give name and description.
@@ -57,12 +64,16 @@ public class EventIRCClient extends UtilityIRCClient
     {
         super(name, desc);
 
-        this.ircMessageListeners = new ArrayList<IRCMessageListener>(4);
-        this.inputQueue = Collections.synchronizedList(new LinkedList<String>());
+        this.registrations = new ArrayList<Registration>(4);
+        this.dispatchTable = new DispatchTable(this.registrations);
+        this.inputQueue = new IRCInputQueue<String>(EventIRCClient.INPUT_QUEUE_CAPACITY, IRCInputQueue.OverflowPolicy.BLOCK);
+        this.lagProbe = new LagProbe(this);
+        this.setLineObserver(this.lagProbe);
     }
 
     /**
-     * Implements the basic run loop of an IRC client.
+     * Implements the basic run loop of an IRC client. The
+     * {@link LagProbe lag probe} runs for as long as the loop does.
      * 
      * @throws IRCConnectionLostException if the connection to the server is
      *         lost for any reason.
@@ -71,54 +82,89 @@ public class EventIRCClient extends UtilityIRCClient
     {
         String ircString;
 
-        while (this.getRunning())
-        {
-            this.waitForIrcInput();
+        this.lagProbe.start();
 
-            while (this.inputQueue.size() > 0)
+        try
+        {
+            while (this.getRunning())
             {
-                ircString = this.ircRead();
+                this.waitForIrcInput();
 
-                if (ircString == null || ircString.length() == 0)
+                while ((ircString = this.ircRead()) != null)
                 {
-                    continue;
-                }
+                    if (ircString.length() == 0)
+                    {
+                        continue;
+                    }
 
-                IRCMessage msg = IRCMessage.parseMessage(ircString);
-                this.dispatchMessage(msg);
+                    IRCMessage msg = IRCMessage.parseMessage(ircString);
+                    this.dispatchMessage(msg);
+                }
             }
         }
+        finally
+        {
+            this.lagProbe.stop();
+        }
     }
 
+    /**
+     * Gets the probe that measures the lag to the server.
+     * 
+     * @return The lag probe.
+     */
+    public LagProbe getLagProbe()
+    {
+        return this.lagProbe;
+    }
+
+    /**
+     * Takes the next line from the input queue, without waiting.
+     * 
+     * @return The next line, or <code>null</code> if the queue is empty.
+     */
     @Override
     public String ircRead()
     {
-        String msg = this.inputQueue.remove(0);
-        // Logger.getLogger("net.ardvaark.jackbot").finest("Message removed from
-        // queue: " + msg.toString());
-        return msg;
+        return this.inputQueue.poll();
     }
 
+    /**
+     * Reads at least one line from the server into the input queue, and then
+     * keeps reading for as long as that can be done without blocking and the
+     * queue has room.
+     * 
+     * @throws IRCConnectionLostException if the connection to the server is
+     *         lost.
+     */
     public void waitForIrcInput() throws IOException, IRCConnectionLostException
     {
         do
         {
             String line = super.ircRead();
-            this.inputQueue.add(line);
 
-        } while (!super.willBlock());
+
+
+            // This thread is also the queue's consumer, so the queue must
+            // never be allowed to fill up here.
+            if (!this.inputQueue.offer(line))
+            {
+                throw new IllegalStateException("The input queue is full.");
+            }
+
+        } while (this.inputQueue.remainingCapacity() > 0 && !super.willBlock());
     }
 
     /**
      * Dispatches a message to any listeners registered with the client for that
-     * message. This method also does a little bit of special case handling for
-     * the PONG message.
+     * message. The listeners are found with a single lookup in the dispatch
+     * table, so listeners that did not ask for the message are never called.
      * 
      * @param msg The message to dispatch.
      */
     private void dispatchMessage(IRCMessage msg)
     {
-        for (IRCMessageListener listener : this.ircMessageListeners)
+        for (IRCMessageListener listener : this.dispatchTable.getListeners(msg))
         {
             try
             {
@@ -132,15 +178,64 @@ public class EventIRCClient extends UtilityIRCClient
     }
 
     /**
-     * Adds a message listener to the collection of listeners.
+     * Adds a message listener to the collection of listeners. If the listener
+     * is a {@link SelectiveIRCMessageListener SelectiveIRCMessageListener}, it
+     * only receives the commands it asks for; otherwise it receives every
+     * message.
      * 
      * @param l The listener to add.
      */
     public void addMessageListener(IRCMessageListener l)
+    {
+        if (l instanceof SelectiveIRCMessageListener)
+        {
+            this.addMessageListener(l, ((SelectiveIRCMessageListener) l).getMessageCommands());
+        }
+        else
+        {
+            this.addMessageListener(l, (String[]) null);
+        }
+    }
+
+    /**
+     * Adds a message listener that only receives the given commands.
+     * Listeners are always called in the order in which they were added.
+     * 
+     * @param l The listener to add.
+     * @param commands The commands or numerics the listener wants, such as
+     *        {@link IRC#CMD_PRIVMSG}. Case does not matter. If this is
+     *        <code>null</code>, the listener receives every message.
+     */
+    public void addMessageListener(IRCMessageListener l, String... commands)
     {
         if (l != null)
         {
-            this.ircMessageListeners.add(l);
+            synchronized (this.registrations)
+            {
+                this.registrations.add(new Registration(l, commands));
+                this.dispatchTable = new DispatchTable(this.registrations);
+            }
+        }
+    }
+
+    /**
+     * Removes a message listener, however it was added.
+     * 
+     * @param l The listener to remove.
+     */
+    public void removeMessageListener(IRCMessageListener l)
+    {
+        synchronized (this.registrations)
+        {
+            for (int i = this.registrations.size() - 1; i >= 0; i--)
+            {
+                if (this.registrations.get(i).listener == l)
+                {
+                    this.registrations.remove(i);
+                }
+            }
+
+            this.dispatchTable = new DispatchTable(this.registrations);
         }
     }
 
@@ -166,29 +261,270 @@ public class EventIRCClient extends UtilityIRCClient
     }
 
     /**
-     * Gets the input queue. IRC messages are added to this queue by the
-     * InputThread. Note that these are not <code>IRCMessage</code> objects,
-     * but are simply the strings received from the server.
+     * Gets the input queue. IRC messages are added to this queue by
+     * {@link #waitForIrcInput() waitForIrcInput()}. Note that these are not
+     * <code>IRCMessage</code> objects, but are simply the strings received
+     * from the server. Only the thread running the client may take lines from
+     * the queue or push them back.
      * 
      * @return the queue to which IRC messages are added.
      */
-    public List<String> getInputQueue()
+    public IRCInputQueue<String> getInputQueue()
     {
         return this.inputQueue;
     }
 
+    /**
+     * Measures the lag to the server while the client is running.
+     */
+    private final LagProbe                lagProbe;
+
     /**
      * The running flag.
      */
     private boolean                       running = true;
 
     /**
-     * The collection of IRCMessageListeners.
+     * A listener and the commands it was added for.
+     */
+    private static final class Registration
+    {
+        /**
+         * Constructs a registration.
+         * 
+         * @param listener The listener.
+         * @param commands The commands the listener wants, or
+         *        <code>null</code> for every message.
+         */
+        Registration(IRCMessageListener listener, String[] commands)
+        {
+            this.listener = listener;
+
+            if (commands != null)
+            {
+                this.commands = new IRCCommand[commands.length];
+                this.commandNames = new String[commands.length];
+
+                for (int i = 0; i < commands.length; i++)
+                {
+                    this.commands[i] = IRCCommand.lookup(commands[i]);
+                    this.commandNames[i] = commands[i].toUpperCase();
+                }
+            }
+            else
+            {
+                this.commands = null;
+                this.commandNames = null;
+            }
+        }
+
+        /**
+         * Determines if this registration wants the given known command.
+         * 
+         * @param command The command.
+         * @return <code>true</code> if the listener should receive it.
+         */
+        boolean wants(IRCCommand command)
+        {
+            if (this.commands == null)
+            {
+                return true;
+            }
+
+            for (IRCCommand c : this.commands)
+            {
+                if (c == command)
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Determines if this registration wants the given unknown command.
+         * 
+         * @param commandName The upper-case command.
+         * @return <code>true</code> if the listener should receive it.
+         */
+        boolean wants(String commandName)
+        {
+            if (this.commandNames == null)
+            {
+                return true;
+            }
+
+            for (int i = 0; i < this.commandNames.length; i++)
+            {
+                if (this.commands[i] == IRCCommand.UNKNOWN && this.commandNames[i].equals(commandName))
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * The listener.
+         */
+        final IRCMessageListener listener;
+
+        /**
+         * The commands the listener wants, or <code>null</code> for every
+         * message.
+         */
+        final IRCCommand[]       commands;
+
+        /**
+         * The upper-case names of the commands the listener wants, parallel
+         * to <code>commands</code>. Only used for commands that are
+         * {@link IRCCommand#UNKNOWN UNKNOWN}.
+         */
+        final String[]           commandNames;
+    }
+
+    /**
+     * An immutable table from each command to the listeners that want it, in
+     * the order in which they were added. A new table is built whenever a
+     * listener is added or removed, so dispatching never has to lock.
+     */
+    private static final class DispatchTable
+    {
+        /**
+         * Builds the table from a list of registrations.
+         * 
+         * @param registrations The registrations, in the order they were
+         *        made.
+         */
+        DispatchTable(List<Registration> registrations)
+        {
+            IRCCommand[] allCommands = IRCCommand.values();
+            this.byCommand = new IRCMessageListener[allCommands.length][];
+
+            for (IRCCommand command : allCommands)
+            {
+                if (command != IRCCommand.UNKNOWN)
+                {
+                    ArrayList<IRCMessageListener> listeners = new ArrayList<IRCMessageListener>();
+
+                    for (Registration r : registrations)
+                    {
+                        if (r.wants(command))
+                        {
+                            listeners.add(r.listener);
+                        }
+                    }
+
+                    this.byCommand[command.ordinal()] = listeners.toArray(new IRCMessageListener[listeners.size()]);
+                }
+            }
+
+            // Listeners for every message, used for any unknown command that
+            // nobody asked for by name.
+            ArrayList<IRCMessageListener> catchAll = new ArrayList<IRCMessageListener>();
+
+            for (Registration r : registrations)
+            {
+                if (r.commands == null)
+                {
+                    catchAll.add(r.listener);
+                }
+            }
+
+            this.catchAll = catchAll.toArray(new IRCMessageListener[catchAll.size()]);
+
+            // Unknown commands that somebody asked for by name.
+            this.byName = new HashMap<String, IRCMessageListener[]>();
+
+            for (Registration r : registrations)
+            {
+                if (r.commands == null)
+                {
+                    continue;
+                }
+
+                for (int i = 0; i < r.commands.length; i++)
+                {
+                    String name = r.commandNames[i];
+
+                    if (r.commands[i] == IRCCommand.UNKNOWN && !this.byName.containsKey(name))
+                    {
+                        ArrayList<IRCMessageListener> listeners = new ArrayList<IRCMessageListener>();
+
+                        for (Registration r2 : registrations)
+                        {
+                            if (r2.wants(name))
+                            {
+                                listeners.add(r2.listener);
+                            }
+                        }
+
+                        this.byName.put(name, listeners.toArray(new IRCMessageListener[listeners.size()]));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the listeners that want a message.
+         * 
+         * @param msg The message.
+         * @return The listeners, in the order in which they were added.
+         */
+        IRCMessageListener[] getListeners(IRCMessage msg)
+        {
+            IRCCommand command = msg.getCommandCode();
+
+            if (command != IRCCommand.UNKNOWN)
+            {
+                return this.byCommand[command.ordinal()];
+            }
+
+            if (!this.byName.isEmpty())
+            {
+                IRCMessageListener[] listeners = this.byName.get(msg.getCommand());
+
+                if (listeners != null)
+                {
+                    return listeners;
+                }
+            }
+
+            return this.catchAll;
+        }
+
+        /**
+         * The listeners for each known command, indexed by ordinal.
+         */
+        private final IRCMessageListener[][]            byCommand;
+
+        /**
+         * The listeners for every message.
+         */
+        private final IRCMessageListener[]              catchAll;
+
+        /**
+         * The listeners for unknown commands that were asked for by name.
+         */
+        private final Map<String, IRCMessageListener[]> byName;
+    }
+
+    /**
+     * Every listener added to the client, with the commands each one wants.
+     * Also serves as the lock for changes to the listeners.
+     */
+    private final List<Registration>      registrations;
+
+    /**
+     * The table used to dispatch messages. Replaced whenever the listeners
+     * change.
      */
-    private ArrayList<IRCMessageListener> ircMessageListeners;
+    private volatile DispatchTable        dispatchTable;
 
     /**
      * The input queue of unparsed messages from the server.
      */
-    private List<String>                  inputQueue;
+    private IRCInputQueue<String>         inputQueue;
 }
@@ -18,7 +18,7 @@
 package net.ardvaark.jackbot;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.List;
 
 import net.ardvaark.jackbot.logging.Log;
 
@@ -28,19 +28,18 @@ import net.ardvaark.jackbot.logging.Log;
  * control.
  * </p>
  * <p>
- * Flood control is implemented using a seperate thread to actually send
- * messages to the server. The <code>ircWrite()</code> method does not write
- * to the server immediately, instead adding the message to a queue of outgoing
- * messages. It then wakes up the send thread to send the message, in order to
- * minimize latency.
+ * The <code>ircWrite()</code> method does not write to the server
+ * immediately, instead handing the message to a {@link FloodController
+ * FloodController}. The controller sends it as soon as its token bucket
+ * allows, which is straight away unless the client has been sending quickly.
+ * Thus, the goal of limiting the client to sending no more than x messages in
+ * n seconds is achieved.
  * </p>
  * <p>
- * The flood control thread assigns a weight value to every message sent, and
- * adds that value to an internal counter. If the counter passes some threshold,
- * then the message is not sent. Every second, another thread decrements that
- * weight value and signals the send thread to check to see if it can send now.
- * Thus, the goal of limiting the client to sending no more than x messages in n
- * seconds is achieved.
+ * Messages written with plain <code>ircWrite()</code> go in the
+ * {@link FloodController.Priority#INTERACTIVE interactive} lane. Use
+ * {@link #ircWrite(String, FloodController.Priority)} to send protocol
+ * traffic ahead of the queue or to push bulk output behind it.
  * </p>
  * 
  * @author Brian Vargas
@@ -51,7 +50,8 @@ public class FloodControlIRCClient extends IRCClient
     private static final Log log = Log.getLogger(FloodControlIRCClient.class);
     
     /**
-     * Basic constructor. Creates and starts the send thread.
+     * Basic constructor. Creates the flood controller with its default
+     * limits.
      * 
      * @param name The name of the client.
      * @param desc The description of the client.
@@ -60,8 +60,7 @@ public class FloodControlIRCClient extends IRCClient
     public FloodControlIRCClient(String name, String desc)
     {
         super(name, desc);
-        this.workerThread = new OutputThread(this);
-        this.workerThread.start();
+        this.floodController = new FloodController(this);
     }
 
     /**
@@ -77,6 +76,19 @@ public class FloodControlIRCClient extends IRCClient
         super.ircWrite(msg);
     }
 
+    /**
+     * Writes several messages to the IRC server at once, bypassing the flood
+     * queue. This method is thread-safe.
+     * 
+     * @param msgs The raw IRC messages to write to the server.
+     * @throws IOException Thrown if the underlying IO operations fail.
+     */
+    public void ircWriteNow(List<String> msgs) throws IOException
+    {
+        log.trace("Writing {0} message(s)", msgs.size());
+        super.ircWriteLines(msgs);
+    }
+
     /**
      * Writes to the IRC server using flood control.
      * 
@@ -85,215 +97,44 @@ public class FloodControlIRCClient extends IRCClient
     @Override
     public void ircWrite(String msg)
     {
-        this.workerThread.ircWrite(msg);
+        this.floodController.submit(msg, FloodController.Priority.INTERACTIVE);
     }
 
     /**
-     * The worker thread that actually sends stuff to the server.
+     * Writes to the IRC server using flood control, in the given lane.
+     * 
+     * @param msg The message to send.
+     * @param priority The lane in which to send it.
      */
-    private OutputThread workerThread;
+    public void ircWrite(String msg, FloodController.Priority priority)
+    {
+        this.floodController.submit(msg, priority);
+    }
 
     /**
-     * This inner class is the thread that actually sends messages to the
-     * server. It implements the weighting algorithm. This thread runs as a
-     * daemon thread.
+     * Sends the keep-alive <code>PING</code> in the protocol lane, so that a
+     * backlog of queued messages cannot make the connection look dead.
+     * 
+     * @param msg The <code>PING</code> message.
      */
-    private class OutputThread extends Thread
+    @Override
+    protected void ircWriteKeepAlive(String msg)
     {
-        /**
-         * Constructs the output thread for the client. Creates and starts
-         * another child thread that decrements its internal flood weight
-         * counter.
-         * 
-         * @param client The client that has created the thread.
-         */
-        OutputThread(FloodControlIRCClient client)
-        {
-            super("FloodControlIRCClient Output Thread");
-
-            this.client = client;
-            this.outputQueue = new LinkedList<String>();
-            this.floodWeight = 0.0;
-            this.setDaemon(true);
-            this.floodThreshhold = 3.9;
-            this.weightThread = new WeightDecrementThread(this);
-            this.weightThread.start();
-        }
-
-        /**
-         * The action of the thread. This runs an infinite loop that performs
-         * the follwing checks, aborting if any of them fail:
-         * <ol>
-         * <li>Is the flood weight less than the threshold?</li>
-         * <li>Are there messages to be sent?</li>
-         * <li>Send messages until there are no more to send, or until the
-         * flood weight exceeds the threshold.</li>
-         * <li>Sleep for 10 seconds.</li>
-         * </ol>
-         */
-        @Override
-        public void run()
-        {
-            try
-            {
-                int queueLength;
-                String msg;
-
-                while (true)
-                {
-                    synchronized (this.outputQueue)
-                    {
-                        while (this.outputQueue.size() <= 0)
-                        {
-                            this.outputQueue.wait();
-                        }
-
-                        queueLength = this.outputQueue.size();
-                    }
-
-                    synchronized (this)
-                    {
-                        while (queueLength-- > 0)
-                        {
-                            if (this.floodWeight >= this.floodThreshhold)
-                            {
-                                while (!this.outputSignaled)
-                                {
-                                    this.wait();
-                                }
-
-                                this.outputSignaled = false;
-                            }
-
-                            synchronized (this.outputQueue)
-                            {
-                                if (this.outputQueue.size() > 0)
-                                {
-                                    msg = this.outputQueue.remove(0);
-                                }
-                                else
-                                {
-                                    msg = null;
-                                }
-                            }
-
-                            if (msg != null)
-                            {
-                                this.client.ircWriteNow(msg);
-                                this.floodWeight++;
-                            }
-                        }
-                    }
-                }
-            }
-            catch (Exception e)
-            {
-            }
-        }
-
-        /**
-         * Places the given message in the outgoing queue.
-         * 
-         * @param msg The message to be sent to the server.
-         */
-        public void ircWrite(String msg)
-        {
-            synchronized (this.outputQueue)
-            {
-                this.outputQueue.add(msg);
-                this.outputQueue.notify();
-            }
-        }
-
-        /**
-         * A link back to the client.
-         */
-        private FloodControlIRCClient client;
-
-        /**
-         * The queue of outgoing messages to be sent to the IRC server.
-         */
-        private LinkedList<String>    outputQueue;
-
-        /**
-         * The current flood weight of the client.
-         */
-        private double                floodWeight;
-
-        /**
-         * The threshold value at which the implementation will stop sending
-         * messages because it is flooding the server.
-         */
-        public double                 floodThreshhold;
-
-        /**
-         * The thread that decremements the weight value.
-         */
-        private WeightDecrementThread weightThread;
-
-        /**
-         * Whether or not the output has been signaled.
-         */
-        private boolean               outputSignaled;
-
-        /**
-         * This class is a thread that decrements the flood weight counter of
-         * the output thread. It runs an infinite loop that decrements its
-         * parent's weight counter every 1 second. This thread runs as a daemon
-         * thread.
-         */
-        private class WeightDecrementThread extends Thread
-        {
-            /**
-             * Constructs the thread.
-             * 
-             * @param outputThread The output thread for which this thread has
-             *        been created.
-             */
-            public WeightDecrementThread(OutputThread outputThread)
-            {
-                super("FloodControlIRCClient Weight Decrement Thread");
-
-                this.outputThread = outputThread;
-                this.setDaemon(true);
-            }
-
-            /**
-             * The thread entry point. Sleeps for 1 second, decrememnts the
-             * counter, and wakes up its conatining output thread.
-             */
-            @Override
-            public void run()
-            {
-                try
-                {
-                    while (true)
-                    {
-                        Thread.sleep(1000);
-
-                        synchronized (this.outputThread)
-                        {
-                            this.outputThread.floodWeight -= 0.33;
-
-                            if (this.outputThread.floodWeight < 0.0)
-                            {
-                                this.outputThread.floodWeight = 0.0;
-                            }
-
-                            this.outputThread.outputSignaled = true;
-                            this.outputThread.notify();
-                        }
-                    }
-                }
-                catch (Exception e)
-                {
-                }
-            }
+        this.ircWrite(msg, FloodController.Priority.PROTOCOL);
+    }
 
-            /**
-             * Reference to the output thread for which this thread is working.
-             */
-            private OutputThread outputThread;
-        }
+    /**
+     * Gets the flood controller that limits this client's output.
+     * 
+     * @return The flood controller.
+     */
+    public FloodController getFloodController()
+    {
+        return this.floodController;
     }
+
+    /**
+     * The flood controller that sends stuff to the server.
+     */
+    private final FloodController floodController;
 }
@@ -0,0 +1,834 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot;
+
+import net.ardvaark.jackbot.logging.Log;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A token-bucket limiter for the messages a client sends to the server. The
+ * bucket holds up to <i>burst</i> tokens and refills at <i>refillRate</i>
+ * tokens per second. Each message costs one token, plus one token for every
+ * <i>bytesPerToken</i> bytes if a per-byte cost is configured, much like the
+ * penalty rules servers apply. A message is sent as soon as the bucket holds
+ * enough tokens for it.
+ * </p>
+ * <p>
+ * The controller has no thread of its own. Queued messages are drained by a
+ * task on the {@link SharedExecutors#getScheduler() shared scheduler}. When
+ * the bucket runs dry, the task is scheduled for the moment enough tokens
+ * will have accumulated for the next message, worked out from
+ * <code>System.nanoTime()</code>. An idle client costs nothing. Every message
+ * released in one pass of the task goes to the client as a single batch, so
+ * a burst costs one write to the server rather than one per line. The batch
+ * is written after the controller's lock is released, so callers queueing
+ * messages never wait for the socket.
+ * </p>
+ * <p>
+ * Every message is sent with a {@link Priority Priority}. Protocol messages,
+ * such as the <code>PONG</code> that keeps the connection alive, are charged
+ * to the bucket but never wait. Interactive messages are always sent before
+ * bulk messages, so a command reply is not stuck behind a long run of
+ * announcements. Within a lane, messages are queued per target, and the
+ * targets take turns, so one busy channel cannot starve another. Messages to
+ * the same target are always sent in the order they were queued.
+ * </p>
+ * <p>
+ * Queued <code>PRIVMSG</code> and <code>NOTICE</code> messages that would not
+ * fit in one line are first split by a {@link MessageSplitter
+ * MessageSplitter}. If coalescing is turned on, a short message is joined
+ * onto the one waiting ahead of it for the same target, when the two fit on
+ * one line, so that a run of short replies costs a single token.
+ * </p>
+ * <p>
+ * It is configured from a <code>&lt;flood-control&gt;</code> element:
+ * </p>
+ * <pre>
+ * &lt;flood-control burst="4" refillRate="0.33" bytesPerToken="0"
+ *                prefixReserve="" coalesce="false" coalesceSeparator=" | " /&gt;
+ * </pre>
+ * <p>
+ * The defaults allow a burst of four messages and then one message about every
+ * three seconds, which is what the old weight-counting threads allowed.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public class FloodController implements Configurable
+{
+    private static final Log log = Log.getLogger(FloodController.class);
+
+    /**
+     * The default number of tokens the bucket can hold.
+     */
+    public static final double DEFAULT_BURST           = 4.0;
+
+    /**
+     * The default number of tokens added to the bucket each second.
+     */
+    public static final double DEFAULT_REFILL_RATE     = 0.33;
+
+    /**
+     * The default number of bytes that cost one extra token. Zero means the
+     * length of a message does not affect its cost.
+     */
+    public static final int    DEFAULT_BYTES_PER_TOKEN = 0;
+
+    /**
+     * The default text put between coalesced messages.
+     */
+    public static final String DEFAULT_COALESCE_SEPARATOR = " | ";
+
+    /**
+     * The classes of outbound message, from most to least urgent.
+     */
+    public enum Priority
+    {
+        /**
+         * Messages the connection depends on, such as <code>PONG</code>.
+         * They are charged to the bucket but sent immediately.
+         */
+        PROTOCOL,
+
+        /**
+         * Replies to users and other messages someone is waiting for. This is
+         * the default.
+         */
+        INTERACTIVE,
+
+        /**
+         * Announcements and relays that can wait until the interactive lane
+         * is empty.
+         */
+        BULK
+    }
+
+    /**
+     * Constructs a flood controller for the given client, using the default
+     * settings.
+     *
+     * @param client The client whose messages are to be limited.
+     */
+    public FloodController(FloodControlIRCClient client)
+    {
+        this.client = client;
+        this.scheduler = SharedExecutors.getScheduler();
+        this.lanes = new Lane[Priority.values().length];
+
+        for (Priority priority : Priority.values())
+        {
+            this.lanes[priority.ordinal()] = new Lane();
+        }
+
+        this.queued = new AtomicInteger();
+        this.drainScheduled = new AtomicBoolean();
+        this.drainTask = new Runnable() {
+            public void run()
+            {
+                drain();
+            }
+        };
+
+        this.setLimits(FloodController.DEFAULT_BURST, FloodController.DEFAULT_REFILL_RATE, FloodController.DEFAULT_BYTES_PER_TOKEN);
+        this.prefixReserve = -1;
+        this.coalesceSeparator = FloodController.DEFAULT_COALESCE_SEPARATOR;
+    }
+
+    /**
+     * Configures the limits from the <code>burst</code>,
+     * <code>refillRate</code>, and <code>bytesPerToken</code> attributes of
+     * the given element, and line handling from the
+     * <code>prefixReserve</code>, <code>coalesce</code>, and
+     * <code>coalesceSeparator</code> attributes. Missing attributes keep
+     * their current values.
+     *
+     * @param root The <code>&lt;flood-control&gt;</code> element.
+     */
+    public void configure(Element root)
+    {
+        double newBurst = this.burst;
+        double newRefillRate = this.refillRate;
+        int newBytesPerToken = this.bytesPerToken;
+
+        if (!root.getAttribute("burst").isEmpty())
+        {
+            newBurst = Double.parseDouble(root.getAttribute("burst"));
+        }
+
+        if (!root.getAttribute("refillRate").isEmpty())
+        {
+            newRefillRate = Double.parseDouble(root.getAttribute("refillRate"));
+        }
+
+        if (!root.getAttribute("bytesPerToken").isEmpty())
+        {
+            newBytesPerToken = Integer.parseInt(root.getAttribute("bytesPerToken"));
+        }
+
+        if (!root.getAttribute("prefixReserve").isEmpty())
+        {
+            this.setPrefixReserve(Integer.parseInt(root.getAttribute("prefixReserve")));
+        }
+
+        if (!root.getAttribute("coalesce").isEmpty())
+        {
+            this.coalesce = Boolean.parseBoolean(root.getAttribute("coalesce"));
+        }
+
+        if (root.hasAttribute("coalesceSeparator"))
+        {
+            this.coalesceSeparator = root.getAttribute("coalesceSeparator");
+        }
+
+        this.setLimits(newBurst, newRefillRate, newBytesPerToken);
+        log.info("Flood control: burst {0}, refill {1}/sec, {2} bytes per token.", newBurst, newRefillRate, newBytesPerToken);
+    }
+
+    /**
+     * Sets the number of bytes left on each line for the prefix the server
+     * puts in front of relayed messages.
+     *
+     * @param prefixReserve The number of bytes, or -1 to work it out from the
+     *        client's nick.
+     */
+    public void setPrefixReserve(int prefixReserve)
+    {
+        if (prefixReserve < -1)
+        {
+            throw new IllegalArgumentException("prefixReserve: " + prefixReserve);
+        }
+
+        this.prefixReserve = prefixReserve;
+    }
+
+    /**
+     * Turns coalescing of queued messages to the same target on or off.
+     *
+     * @param coalesce Whether to coalesce messages.
+     * @param separator The text put between coalesced messages.
+     */
+    public void setCoalescing(boolean coalesce, String separator)
+    {
+        this.coalesceSeparator = separator;
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * Sets the limits. The bucket starts out full.
+     *
+     * @param burst The number of tokens the bucket can hold. Must be at least
+     *        one.
+     * @param refillRate The number of tokens added each second. Must be
+     *        positive.
+     * @param bytesPerToken The number of bytes that cost one extra token, or
+     *        zero if the length of a message should not matter.
+     */
+    public synchronized void setLimits(double burst, double refillRate, int bytesPerToken)
+    {
+        if (burst < 1.0)
+        {
+            throw new IllegalArgumentException("burst: " + burst);
+        }
+
+        if (refillRate <= 0.0)
+        {
+            throw new IllegalArgumentException("refillRate: " + refillRate);
+        }
+
+        if (bytesPerToken < 0)
+        {
+            throw new IllegalArgumentException("bytesPerToken: " + bytesPerToken);
+        }
+
+        this.burst = burst;
+        this.refillRate = refillRate;
+        this.bytesPerToken = bytesPerToken;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Queues an interactive message to be sent as soon as the limits allow.
+     *
+     * @param msg The raw IRC message.
+     */
+    public void submit(String msg)
+    {
+        this.submit(msg, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Queues a message in the given lane. Protocol messages are sent
+     * straight away on the calling thread.
+     *
+     * @param msg The raw IRC message.
+     * @param priority The lane in which to send the message.
+     */
+    public void submit(String msg, Priority priority)
+    {
+        if (priority == Priority.PROTOCOL)
+        {
+            this.sendProtocol(msg);
+            return;
+        }
+
+        int reserve = this.prefixReserve;
+
+        if (reserve < 0)
+        {
+            reserve = MessageSplitter.getPrefixReserve(this.client.getName());
+        }
+
+        MessageSplitter splitter = new MessageSplitter(reserve);
+        String target = FloodController.getTarget(msg);
+        long now = System.nanoTime();
+
+        synchronized (this)
+        {
+            Lane lane = this.lanes[priority.ordinal()];
+
+            for (String line : splitter.split(msg))
+            {
+                Entry last = this.coalesce ? lane.last(target) : null;
+                String joined = last == null ? null : splitter.join(last.msg, line, this.coalesceSeparator);
+
+                if (joined != null)
+                {
+                    last.msg = joined;
+                }
+                else
+                {
+                    lane.add(target, line, now);
+                    this.queued.incrementAndGet();
+                }
+            }
+        }
+
+        this.scheduleDrain();
+    }
+
+    /**
+     * Gets the number of messages waiting to be sent.
+     *
+     * @return The number of queued messages.
+     */
+    public int getQueueLength()
+    {
+        return this.queued.get();
+    }
+
+    /**
+     * Gets the number of messages waiting in a lane.
+     *
+     * @param priority The lane.
+     * @return The number of messages queued in the lane.
+     */
+    public synchronized int getQueueLength(Priority priority)
+    {
+        return this.lanes[priority.ordinal()].depth;
+    }
+
+    /**
+     * Gets the number of messages that have been sent from a lane.
+     *
+     * @param priority The lane.
+     * @return The number of messages sent.
+     */
+    public synchronized long getSentCount(Priority priority)
+    {
+        return this.lanes[priority.ordinal()].sent;
+    }
+
+    /**
+     * Gets the average time the messages sent from a lane spent in the queue.
+     *
+     * @param priority The lane.
+     * @return The average wait in milliseconds, or zero if nothing has been
+     *         sent.
+     */
+    public synchronized double getAverageWaitMillis(Priority priority)
+    {
+        Lane lane = this.lanes[priority.ordinal()];
+        return lane.sent == 0 ? 0.0 : lane.totalWaitNanos / 1e6 / lane.sent;
+    }
+
+    /**
+     * Gets the longest time a message sent from a lane spent in the queue.
+     *
+     * @param priority The lane.
+     * @return The longest wait in milliseconds.
+     */
+    public synchronized double getMaximumWaitMillis(Priority priority)
+    {
+        return this.lanes[priority.ordinal()].maxWaitNanos / 1e6;
+    }
+
+    /**
+     * Gets how long the oldest message in a lane has been waiting.
+     *
+     * @param priority The lane.
+     * @return The age of the oldest queued message in milliseconds, or zero
+     *         if the lane is empty.
+     */
+    public synchronized double getOldestWaitMillis(Priority priority)
+    {
+        long oldest = this.lanes[priority.ordinal()].oldestEnqueued();
+        return oldest == 0 ? 0.0 : (System.nanoTime() - oldest) / 1e6;
+    }
+
+    /**
+     * Throws away any messages waiting to be sent.
+     */
+    public synchronized void clear()
+    {
+        for (Lane lane : this.lanes)
+        {
+            this.queued.addAndGet(-lane.depth);
+            lane.clear();
+        }
+    }
+
+    /**
+     * Gets the number of tokens a message costs.
+     *
+     * @param msg The message.
+     * @return The cost, never more than the bucket can hold.
+     */
+    protected double cost(String msg)
+    {
+        double cost = 1.0;
+
+        if (this.bytesPerToken > 0)
+        {
+            cost += (double) msg.length() / this.bytesPerToken;
+        }
+
+        return Math.min(cost, this.burst);
+    }
+
+    /**
+     * Hands messages to the client to be written to the server together. It
+     * is called without the controller's lock held, and the list is not used
+     * again afterwards.
+     *
+     * @param msgs The messages, in the order they are to be sent.
+     * @throws IOException Thrown if the write fails.
+     */
+    protected void send(List<String> msgs) throws IOException
+    {
+        this.client.ircWriteNow(msgs);
+    }
+
+    /**
+     * Gets the target of a message for the purpose of taking turns: the first
+     * parameter, which is the channel or nick for <code>PRIVMSG</code>,
+     * <code>NOTICE</code>, <code>MODE</code>, and the like. Messages without
+     * parameters share a single target.
+     *
+     * @param msg The raw IRC message.
+     * @return The lower-cased target, or an empty string.
+     */
+    static String getTarget(String msg)
+    {
+        int start = msg.indexOf(' ');
+
+        if (start < 0 || start + 1 >= msg.length() || msg.charAt(start + 1) == ':')
+        {
+            return "";
+        }
+
+        start++;
+        int end = msg.indexOf(' ', start);
+
+        if (end < 0)
+        {
+            end = msg.length();
+        }
+
+        return msg.substring(start, end).toLowerCase();
+    }
+
+    /**
+     * Charges a protocol message to the bucket and sends it at once. The
+     * bucket may go into debt, but never by more than it can hold, so a burst
+     * of protocol traffic delays the other lanes without starving them.
+     *
+     * @param msg The message.
+     */
+    private void sendProtocol(String msg)
+    {
+        synchronized (this)
+        {
+            this.refill();
+            this.tokens = Math.max(this.tokens - this.cost(msg), -this.burst);
+            this.lanes[Priority.PROTOCOL.ordinal()].sent++;
+        }
+
+        this.write(Collections.singletonList(msg));
+    }
+
+    /**
+     * Sends messages that have already been charged to the bucket, logging
+     * rather than throwing any failure. This is the only way messages leave
+     * the controller: both the protocol lane and the drain task take their
+     * messages and tokens while holding the lock, and call this only after
+     * releasing it, so callers queueing messages never wait for the socket.
+     * The list must not be used by anything else once it is handed over.
+     *
+     * @param msgs The messages, possibly none.
+     */
+    private void write(List<String> msgs)
+    {
+        if (msgs.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            this.send(msgs);
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to send {0} message(s): {1}", e, msgs.size(), msgs.get(0));
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("Unable to send {0} message(s): {1}", e, msgs.size(), msgs.get(0));
+        }
+    }
+
+    /**
+     * Runs the drain task straight away, unless it is already pending.
+     */
+    private void scheduleDrain()
+    {
+        if (this.drainScheduled.compareAndSet(false, true))
+        {
+            this.scheduler.execute(this.drainTask);
+        }
+    }
+
+    /**
+     * Sends as many queued messages as the bucket allows, taking them from
+     * the most urgent non-empty lane, as one batch. If any are left, the task
+     * reschedules itself for when the next one can be sent. Only one drain
+     * task runs at a time, guarded by <code>drainScheduled</code>, so batches
+     * are written in order.
+     */
+    private void drain()
+    {
+        List<String> batch = new ArrayList<String>();
+        long delayNanos;
+
+        synchronized (this)
+        {
+            delayNanos = this.takeBatch(batch);
+        }
+
+        this.write(batch);
+
+        if (delayNanos > 0)
+        {
+            this.scheduler.schedule(this.drainTask, delayNanos, TimeUnit.NANOSECONDS);
+            return;
+        }
+
+        this.drainScheduled.set(false);
+
+        // A message may have been queued after the queue was found empty but
+        // before the flag was cleared.
+        if (this.queued.get() > 0)
+        {
+            this.scheduleDrain();
+        }
+    }
+
+    /**
+     * Takes as many queued messages as the bucket allows, charging each to
+     * the bucket. Must be called while holding the lock.
+     *
+     * @param batch The list to which the messages are added.
+     * @return The time until the next message can be sent, in nanoseconds,
+     *         or zero if the queue is now empty.
+     */
+    private long takeBatch(List<String> batch)
+    {
+        this.refill();
+
+        Lane lane;
+
+        while ((lane = this.nextLane()) != null)
+        {
+            String msg = lane.peek();
+            double cost = this.cost(msg);
+
+            if (this.tokens < cost)
+            {
+                return (long) Math.ceil((cost - this.tokens) / this.refillRate * 1e9);
+            }
+
+            lane.take(System.nanoTime());
+            this.queued.decrementAndGet();
+            this.tokens -= cost;
+
+            batch.add(msg);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Gets the most urgent lane that has messages waiting. Must be called
+     * while holding the lock.
+     *
+     * @return The lane, or <code>null</code> if every lane is empty.
+     */
+    private Lane nextLane()
+    {
+        for (Lane lane : this.lanes)
+        {
+            if (lane.depth > 0)
+            {
+                return lane;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds the tokens earned since the last refill. Must be called while
+     * holding the lock.
+     */
+    private void refill()
+    {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.burst, this.tokens + (now - this.lastRefill) / 1e9 * this.refillRate);
+        this.lastRefill = now;
+    }
+
+    /**
+     * A queued message and the time it was queued.
+     */
+    private static final class Entry
+    {
+        Entry(String msg, long enqueued)
+        {
+            this.msg = msg;
+            this.enqueued = enqueued;
+        }
+
+        String     msg;
+        final long enqueued;
+    }
+
+    /**
+     * One priority lane. Each target has its own queue, and the targets with
+     * messages waiting take turns in <code>rotation</code>. Lanes are guarded
+     * by the controller's lock.
+     */
+    private static final class Lane
+    {
+        /**
+         * Queues a message for a target.
+         */
+        void add(String target, String msg, long now)
+        {
+            LinkedList<Entry> queue = this.byTarget.get(target);
+
+            if (queue == null)
+            {
+                queue = new LinkedList<Entry>();
+                this.byTarget.put(target, queue);
+                this.rotation.addLast(target);
+            }
+
+            queue.addLast(new Entry(msg, now));
+            this.depth++;
+        }
+
+        /**
+         * Gets the last message queued for a target, or <code>null</code> if
+         * none is waiting.
+         */
+        Entry last(String target)
+        {
+            LinkedList<Entry> queue = this.byTarget.get(target);
+            return queue == null ? null : queue.getLast();
+        }
+
+        /**
+         * Gets the message whose turn it is, without removing it.
+         */
+        String peek()
+        {
+            return this.byTarget.get(this.rotation.getFirst()).getFirst().msg;
+        }
+
+        /**
+         * Removes the message whose turn it is, records how long it waited,
+         * and moves its target to the back of the rotation.
+         */
+        void take(long now)
+        {
+            String target = this.rotation.removeFirst();
+            LinkedList<Entry> queue = this.byTarget.get(target);
+            Entry entry = queue.removeFirst();
+
+            if (queue.isEmpty())
+            {
+                this.byTarget.remove(target);
+            }
+            else
+            {
+                this.rotation.addLast(target);
+            }
+
+            long wait = now - entry.enqueued;
+            this.depth--;
+            this.sent++;
+            this.totalWaitNanos += wait;
+            this.maxWaitNanos = Math.max(this.maxWaitNanos, wait);
+        }
+
+        /**
+         * Gets the time the oldest waiting message was queued, or zero.
+         */
+        long oldestEnqueued()
+        {
+            long oldest = 0;
+
+            for (LinkedList<Entry> queue : this.byTarget.values())
+            {
+                long enqueued = queue.getFirst().enqueued;
+
+                if (oldest == 0 || enqueued - oldest < 0)
+                {
+                    oldest = enqueued;
+                }
+            }
+
+            return oldest;
+        }
+
+        /**
+         * Throws away every waiting message.
+         */
+        void clear()
+        {
+            this.byTarget.clear();
+            this.rotation.clear();
+            this.depth = 0;
+        }
+
+        final Map<String, LinkedList<Entry>> byTarget = new HashMap<String, LinkedList<Entry>>();
+        final LinkedList<String>              rotation = new LinkedList<String>();
+        int                                   depth;
+        long                                  sent;
+        long                                  totalWaitNanos;
+        long                                  maxWaitNanos;
+    }
+
+    /**
+     * The client whose messages are limited.
+     */
+    private final FloodControlIRCClient         client;
+
+    /**
+     * The scheduler that runs the drain task.
+     */
+    private final ScheduledExecutorService      scheduler;
+
+    /**
+     * The lanes, indexed by {@link Priority#ordinal()}.
+     */
+    private final Lane[]                        lanes;
+
+    /**
+     * The number of messages waiting in every lane, readable without the
+     * lock.
+     */
+    private final AtomicInteger                 queued;
+
+    /**
+     * Whether the drain task is running or scheduled. Only the thread that
+     * sets it may drain the queue, which keeps writes in order.
+     */
+    private final AtomicBoolean                 drainScheduled;
+
+    /**
+     * The drain task.
+     */
+    private final Runnable                      drainTask;
+
+    /**
+     * The number of bytes left for the sender prefix, or -1 to work it out
+     * from the client's nick.
+     */
+    private volatile int                        prefixReserve;
+
+    /**
+     * Whether short queued messages to the same target are joined.
+     */
+    private volatile boolean                    coalesce;
+
+    /**
+     * The text put between coalesced messages.
+     */
+    private volatile String                     coalesceSeparator;
+
+    /**
+     * The number of tokens the bucket can hold.
+     */
+    private double                              burst;
+
+    /**
+     * The number of tokens added each second.
+     */
+    private double                              refillRate;
+
+    /**
+     * The number of bytes that cost one extra token, or zero.
+     */
+    private int                                 bytesPerToken;
+
+    /**
+     * The number of tokens in the bucket as of the last refill.
+     */
+    private double                              tokens;
+
+    /**
+     * The <code>System.nanoTime()</code> of the last refill.
+     */
+    private long                                lastRefill;
+}
@@ -32,6 +32,9 @@ public final class IRC
     /** Parameters: <server1> [<server2>] */
     public static final String CMD_PING          = "PING";
 
+    /** Parameters: <server> [<server2>] */
+    public static final String CMD_PONG          = "PONG";
+
     /**
      * Parameters: ( <channel> *( "," <channel> ) [ <key> *( "," <key> ) ] ) /
      * "0"
@@ -17,13 +17,18 @@
 
 package net.ardvaark.jackbot;
 
+import net.ardvaark.jackbot.io.IRCReactor;
+import net.ardvaark.jackbot.io.IRCTransport;
+import net.ardvaark.jackbot.io.NioTransport;
+import net.ardvaark.jackbot.io.SocketTransport;
 import net.ardvaark.jackbot.logging.Log;
 
-import javax.net.SocketFactory;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Implements an IRC client with minimal functionality. This includes:
@@ -43,11 +48,42 @@ public class IRCClient
      */
     public static final int DEFAULT_SOCKET_TIMEOUT             = 60000 * 3;
 
+    /**
+     * The default connect timeout in milliseconds.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT            = 10000;
+
     /**
      * The minimum size of the receive buffer in the socket.
      */
     public static final int MINIMUM_SOCKET_RECEIVE_BUFFER_SIZE = 1024 * 8;
 
+    /**
+     * Transport type: a blocking <code>Socket</code> per connection.
+     * 
+     * @see SocketTransport
+     */
+    public static final String TRANSPORT_SOCKET                = "socket";
+
+    /**
+     * Transport type: a non-blocking channel serviced by the shared
+     * {@link IRCReactor IRCReactor}.
+     * 
+     * @see NioTransport
+     */
+    public static final String TRANSPORT_NIO                   = "nio";
+
+    /**
+     * The default character set used on the wire.
+     */
+    public static final String DEFAULT_CHARSET                 = "UTF-8";
+
+    /**
+     * The default character set used to decode lines that are not valid in
+     * the wire character set. Most clients that don't send UTF-8 send this.
+     */
+    public static final String DEFAULT_FALLBACK_CHARSET        = "ISO-8859-1";
+
     /**
      * Constructs a IRCClient with the given name and description.
      * 
@@ -66,55 +102,105 @@ public class IRCClient
     {
         // Set the timeout.
         this.socketTimeout = IRCClient.DEFAULT_SOCKET_TIMEOUT;
+        this.connectTimeout = IRCClient.DEFAULT_CONNECT_TIMEOUT;
 
         // Set the receive buffer.
         this.socketReceiveBufferMinimumSize = IRCClient.MINIMUM_SOCKET_RECEIVE_BUFFER_SIZE;
 
         // Initialize the ping state variable.
         this.waitingForPong = false;
+
+        this.transportType = IRCClient.TRANSPORT_SOCKET;
+        this.charset = Charset.forName(IRCClient.DEFAULT_CHARSET);
+        this.fallbackCharset = Charset.forName(IRCClient.DEFAULT_FALLBACK_CHARSET);
     }
 
     /**
      * Connects the client to the specified server. This method does the work of
-     * connecting to the actual server host. It sets constructs a socket
-     * connection and creates buffered readers and writers for that connection.
+     * connecting to the actual server host. It creates a transport of the
+     * configured type and connects it.
      * 
      * @param hostname The name of the host server to which to connect.
      * @param port The port number to which to connect.
      * @param useSsl Whether the connection should be made over SSL.
      * @throws IOException Thrown if any errors occur in the underlying IO
      *         classes.
+     * @see #setTransportType(String)
      */
     public void connect(String hostname, int port, boolean useSsl) throws IOException
     {
-        SocketFactory socketFactory;
-        
-        if (useSsl) {
-            socketFactory = SSLSocketFactory.getDefault();
-        }
-        else {
-            socketFactory = SocketFactory.getDefault();
-        }
+        this.attachTransport(this.openTransport(new InetSocketAddress(hostname, port), useSsl));
+    }
 
-        // Create a channel to the server.
-        this.socket = socketFactory.createSocket(hostname, port);
+    /**
+     * Creates a transport of the configured type, sets it up with this
+     * client's settings, and connects it, without making it the client's
+     * connection. Used by {@link ServerConnector ServerConnector} to try
+     * several servers at once.
+     * 
+     * @param address The address of the server.
+     * @param useSsl Whether the connection should be made over SSL.
+     * @return The connected transport.
+     * @throws IOException Thrown if the connection cannot be made.
+     */
+    IRCTransport openTransport(InetSocketAddress address, boolean useSsl) throws IOException
+    {
+        IRCTransport newTransport = this.createTransport(useSsl);
 
-        // Set the timeout on the socket read.
-        this.socket.setSoTimeout(this.socketTimeout);
+        newTransport.setConnectTimeout(this.connectTimeout);
+        newTransport.setReadTimeout(this.socketTimeout);
+        newTransport.setReceiveBufferMinimumSize(this.socketReceiveBufferMinimumSize);
+        newTransport.setCharsets(this.charset, this.fallbackCharset);
+        newTransport.setLineObserver(this.lineObserver);
+        newTransport.connect(address, useSsl);
+
+        return newTransport;
+    }
+
+    /**
+     * Sets the observer given to every transport opened from now on, which
+     * sees each line as soon as the transport reads it, before the client
+     * does.
+     * 
+     * @param observer The observer, or <code>null</code> for none.
+     */
+    protected void setLineObserver(IRCTransport.LineObserver observer)
+    {
+        this.lineObserver = observer;
+    }
 
-        // Set the buffer size, if necessary.
-        int receiveBufferSize = this.socket.getReceiveBufferSize();
+    /**
+     * Makes a connected transport the client's connection to the server.
+     * 
+     * @param connected The connected transport.
+     */
+    void attachTransport(IRCTransport connected)
+    {
+        this.transport = connected;
+    }
 
-        if (receiveBufferSize < this.socketReceiveBufferMinimumSize)
+    /**
+     * Creates a new, unconnected transport of the configured type.
+     * 
+     * @param useSsl Whether the connection will be made over SSL.
+     * @return The new transport.
+     * @throws IOException Thrown if the transport cannot be created.
+     */
+    protected IRCTransport createTransport(boolean useSsl) throws IOException
+    {
+        if (IRCClient.TRANSPORT_NIO.equals(this.transportType))
         {
-            this.socket.setReceiveBufferSize(this.socketReceiveBufferMinimumSize);
-        }
+            if (!useSsl)
+            {
+                return new NioTransport(IRCReactor.getDefault());
+            }
 
-        // Set up the reader.
-        this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+            log.info("The {0} transport does not support SSL.  Using the {1} transport instead.",
+                    IRCClient.TRANSPORT_NIO,
+                    IRCClient.TRANSPORT_SOCKET);
+        }
 
-        // Set up the writer.
-        this.out = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream()));
+        return new SocketTransport();
     }
 
     /**
@@ -143,8 +229,8 @@ public class IRCClient
     {
         log.info("Logging in as {0}", this.name);
 
-        this.writeString("USER " + this.name + " host irc :" + this.desc + IRC.NEWLINE);
-        this.writeString("NICK " + this.name + IRC.NEWLINE);
+        this.ircWriteLines(Arrays.asList("USER " + this.name + " host irc :" + this.desc,
+                                         "NICK " + this.name));
 
         log.info("Login complete");
     }
@@ -158,7 +244,7 @@ public class IRCClient
     public void logoff(String quitMsg) throws IOException
     {
         log.info("Quitting IRC ({0})", quitMsg);
-        this.writeString("QUIT :" + quitMsg + "\r\n");
+        this.transport.writeLine("QUIT :" + quitMsg);
     }
 
     /**
@@ -178,7 +264,7 @@ public class IRCClient
     public void disconnect() throws IOException
     {
         log.info("Disconnecting from server.");
-        this.socket.close();
+        this.transport.close();
     }
 
     /**
@@ -190,7 +276,33 @@ public class IRCClient
      */
     public void ircWrite(String msg) throws IOException
     {
-        this.writeString(msg + IRC.NEWLINE);
+        this.transport.writeLine(msg);
+    }
+
+    /**
+     * Writes several messages to the IRC server at once. The transport sends
+     * them with as few writes as it can.
+     * 
+     * @param msgs The raw IRC messages to write to the server.
+     * @throws IOException Thrown if the underlying write to the socket
+     *         encounters any errors.
+     */
+    public void ircWriteLines(List<String> msgs) throws IOException
+    {
+        this.transport.writeLines(msgs);
+    }
+
+    /**
+     * Writes the keep-alive <code>PING</code> sent when the server has been
+     * quiet for too long. Subclasses that queue their output can override
+     * this to send it ahead of the queue.
+     * 
+     * @param msg The <code>PING</code> message.
+     * @throws IOException Thrown if the write fails.
+     */
+    protected void ircWriteKeepAlive(String msg) throws IOException
+    {
+        this.ircWrite(msg);
     }
 
     /**
@@ -225,7 +337,7 @@ public class IRCClient
                     throw new IRCConnectionLostException("The connection to the IRC server has timed out.", e);
                 }
 
-                this.ircWrite("PING :" + this.name);
+                this.ircWriteKeepAlive("PING :" + this.name);
                 this.waitingForPong = true;
             }
             catch (IOException e)
@@ -249,7 +361,7 @@ public class IRCClient
      */
     public boolean willBlock() throws IOException
     {
-        return !this.in.ready();
+        return !this.transport.ready();
     }
 
     /**
@@ -292,6 +404,110 @@ public class IRCClient
         this.socketTimeout = timeout;
     }
 
+    /**
+     * Gets the connect timeout.
+     * 
+     * @return The connect timeout in milliseconds.
+     */
+    public int getConnectTimeout()
+    {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Sets the connect timeout. Takes effect on the next connection attempt.
+     * 
+     * @param timeout The connect timeout in milliseconds.
+     */
+    public void setConnectTimeout(int timeout)
+    {
+        this.connectTimeout = timeout;
+    }
+
+    /**
+     * Gets the type of transport used for new connections.
+     * 
+     * @return One of {@link #TRANSPORT_SOCKET} or {@link #TRANSPORT_NIO}.
+     */
+    public String getTransportType()
+    {
+        return this.transportType;
+    }
+
+    /**
+     * Sets the type of transport used for new connections. Takes effect on the
+     * next call to {@link #connect(String, int, boolean) connect()}.
+     * 
+     * @param transportType One of {@link #TRANSPORT_SOCKET} or
+     *        {@link #TRANSPORT_NIO}.
+     */
+    public void setTransportType(String transportType)
+    {
+        if (!IRCClient.TRANSPORT_SOCKET.equals(transportType) && !IRCClient.TRANSPORT_NIO.equals(transportType))
+        {
+            throw new IllegalArgumentException("Unknown transport type: " + transportType);
+        }
+
+        this.transportType = transportType;
+    }
+
+    /**
+     * Gets the character set used on the wire.
+     * 
+     * @return The character set.
+     */
+    public Charset getCharset()
+    {
+        return this.charset;
+    }
+
+    /**
+     * Sets the character set used on the wire. Takes effect on the next call
+     * to {@link #connect(String, int, boolean) connect()}.
+     * 
+     * @param charsetName The name of the character set.
+     * @throws java.nio.charset.UnsupportedCharsetException Thrown if the
+     *         character set is not available.
+     */
+    public void setCharset(String charsetName)
+    {
+        this.charset = Charset.forName(charsetName);
+    }
+
+    /**
+     * Gets the character set used to decode lines that are not valid in the
+     * wire character set.
+     * 
+     * @return The fallback character set, or <code>null</code> if invalid
+     *         bytes are replaced instead.
+     */
+    public Charset getFallbackCharset()
+    {
+        return this.fallbackCharset;
+    }
+
+    /**
+     * Sets the character set used to decode lines that are not valid in the
+     * wire character set. Takes effect on the next call to
+     * {@link #connect(String, int, boolean) connect()}.
+     * 
+     * @param charsetName The name of the character set, or <code>null</code>
+     *        or an empty string to replace invalid bytes instead.
+     * @throws java.nio.charset.UnsupportedCharsetException Thrown if the
+     *         character set is not available.
+     */
+    public void setFallbackCharset(String charsetName)
+    {
+        if (charsetName == null || charsetName.isEmpty())
+        {
+            this.fallbackCharset = null;
+        }
+        else
+        {
+            this.fallbackCharset = Charset.forName(charsetName);
+        }
+    }
+
     /**
      * Gets the real name of the client.
      * 
@@ -339,34 +555,15 @@ public class IRCClient
      */
 
     /**
-     * Writes the given string to the socket.
+     * Reads a line from the transport. This method will block if there is no
+     * line to be read.
      * 
-     * @param stringToWrite The string to write to the socket.
-     * @throws IOException Thrown by the underlying socket operations.
-     */
-    private void writeString(String stringToWrite) throws IOException
-    {
-        this.out.write(stringToWrite);
-        this.out.flush();
-    }
-
-    /**
-     * Reads a string fron the socket's input stream. This method will block if
-     * there is no line to be read.
-     * 
-     * @return The string that was read from the input stream.
-     * @throws IOException Thrown by the underlying socket implementation.
+     * @return The string that was read from the server.
+     * @throws IOException Thrown by the underlying transport.
      */
     private String readString() throws IOException
     {
-        String line = this.in.readLine();
-
-        if (line == null)
-        {
-            throw new EOFException("End of stream received from server.");
-        }
-
-        return line;
+        return this.transport.readLine();
     }
 
     /**
@@ -377,7 +574,7 @@ public class IRCClient
      */
     public boolean isConnected()
     {
-        return this.socket.isConnected();
+        return this.transport != null && this.transport.isConnected();
     }
 
     /**
@@ -400,25 +597,40 @@ public class IRCClient
      */
     private int            socketTimeout;
 
+    /**
+     * The amount of time to wait for a connection to be made.
+     */
+    private int            connectTimeout;
+
     /**
      * The minimum size of the socket's receive buffer.
      */
     private int            socketReceiveBufferMinimumSize;
 
     /**
-     * The socket with which to connect to the IRC server.
+     * The type of transport to create for new connections.
+     */
+    private String         transportType;
+
+    /**
+     * The character set used on the wire.
+     */
+    private Charset        charset;
+
+    /**
+     * The character set used to decode invalid lines, or <code>null</code>.
      */
-    private Socket         socket;
+    private Charset        fallbackCharset;
 
     /**
-     * The input reader.
+     * The transport connected to the IRC server.
      */
-    private BufferedReader in;
+    private IRCTransport   transport;
 
     /**
-     * The output writer.
+     * Sees the lines read by each new transport, or <code>null</code>.
      */
-    private BufferedWriter out;
+    private IRCTransport.LineObserver lineObserver;
 
     /**
      * Whether or not a ping has been sent to the server.
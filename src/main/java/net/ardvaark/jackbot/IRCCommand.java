@@ -0,0 +1,170 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot;
+
+/**
+ * The IRC commands and numeric replies that JackBot understands. Every parsed
+ * {@link IRCMessage IRCMessage} is tagged with one of these, so listeners can
+ * compare commands by identity or <code>switch</code> on them rather than
+ * comparing strings. Any command not listed here is {@link #UNKNOWN UNKNOWN}.
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ * @see IRC
+ */
+public enum IRCCommand
+{
+    PING(IRC.CMD_PING),
+    PONG(IRC.CMD_PONG),
+    JOIN(IRC.CMD_JOIN),
+    PART(IRC.CMD_PART),
+    KICK(IRC.CMD_KICK),
+    QUIT(IRC.CMD_QUIT),
+    TOPIC(IRC.CMD_TOPIC),
+    NICK(IRC.CMD_NICK),
+    PRIVMSG(IRC.CMD_PRIVMSG),
+    NOTICE(IRC.CMD_NOTICE),
+    MODE(IRC.CMD_MODE),
+    INVITE("INVITE"),
+    ERROR("ERROR"),
+    RPL_WELCOME(IRC.RPL_WELCOME),
+    RPL_YOURHOST(IRC.RPL_YOURHOST),
+    RPL_CREATED(IRC.RPL_CREATED),
+    RPL_MYINFO(IRC.RPL_MYINFO),
+    RPL_NOTOPIC(IRC.RPL_NOTOPIC),
+    RPL_TOPIC(IRC.RPL_TOPIC),
+    RPL_NAMEREPLY(IRC.RPL_NAMEREPLY),
+    RPL_ENDOFNAMES(IRC.RPL_ENDOFNAMES),
+    ERR_NICKNAMEINUSE(IRC.ERR_NICKNAMEINUSE),
+
+    /**
+     * Any command that is not otherwise listed.
+     */
+    UNKNOWN(null);
+
+    /**
+     * Looks up the command spelled by a range of characters, ignoring case.
+     * No objects are created.
+     *
+     * @param s The characters holding the command.
+     * @param start The index of the first character of the command.
+     * @param end The index one past the last character of the command.
+     * @return The command, or {@link #UNKNOWN UNKNOWN} if it is not one that
+     *         JackBot understands.
+     */
+    public static IRCCommand lookup(String s, int start, int end)
+    {
+        int length = end - start;
+
+        if (length < IRCCommand.byLength.length)
+        {
+            for (IRCCommand command : IRCCommand.byLength[length])
+            {
+                if (s.regionMatches(true, start, command.token, 0, length))
+                {
+                    return command;
+                }
+            }
+        }
+
+        return IRCCommand.UNKNOWN;
+    }
+
+    /**
+     * Looks up a command by name, ignoring case.
+     *
+     * @param command The name of the command.
+     * @return The command, or {@link #UNKNOWN UNKNOWN} if it is not one that
+     *         JackBot understands.
+     */
+    public static IRCCommand lookup(String command)
+    {
+        return IRCCommand.lookup(command, 0, command.length());
+    }
+
+    /**
+     * Constructs a command.
+     *
+     * @param token The command as it is sent on the wire.
+     */
+    private IRCCommand(String token)
+    {
+        this.token = token;
+    }
+
+    /**
+     * Gets the command as it is sent on the wire.
+     *
+     * @return The upper-case command, or <code>null</code> for
+     *         {@link #UNKNOWN UNKNOWN}.
+     */
+    public String getToken()
+    {
+        return this.token;
+    }
+
+    /**
+     * The commands, grouped by the length of their tokens, for fast lookup.
+     */
+    private static final IRCCommand[][] byLength;
+
+    static
+    {
+        int maxLength = 0;
+
+        for (IRCCommand command : IRCCommand.values())
+        {
+            if (command.token != null)
+            {
+                maxLength = Math.max(maxLength, command.token.length());
+            }
+        }
+
+        int[] counts = new int[maxLength + 1];
+
+        for (IRCCommand command : IRCCommand.values())
+        {
+            if (command.token != null)
+            {
+                counts[command.token.length()]++;
+            }
+        }
+
+        byLength = new IRCCommand[maxLength + 1][];
+
+        for (int i = 0; i <= maxLength; i++)
+        {
+            IRCCommand.byLength[i] = new IRCCommand[counts[i]];
+            counts[i] = 0;
+        }
+
+        for (IRCCommand command : IRCCommand.values())
+        {
+            if (command.token != null)
+            {
+                int length = command.token.length();
+                IRCCommand.byLength[length][counts[length]++] = command;
+            }
+        }
+    }
+
+    /**
+     * The command as it is sent on the wire.
+     */
+    private final String token;
+}
@@ -18,11 +18,19 @@
 package net.ardvaark.jackbot;
 
 import java.util.ArrayList;
-import java.util.StringTokenizer;
-import java.util.Vector;
 
 /**
+ * <p>
  * A message from the IRC server.
+ * </p>
+ * <p>
+ * Parsing only records where each part of the message lies in the raw line.
+ * The prefix, parameters, and so on are only copied out into strings when
+ * they are asked for, and each one is copied at most once. The command is
+ * matched against the known {@link IRCCommand commands} while parsing, so it
+ * can be tested with {@link #getCommandCode() getCommandCode()} without
+ * creating any strings at all.
+ * </p>
  * 
  * @author Brian Vargas
  * @version $Revision: 55 $ $Date: 2008-04-13 14:36:35 -0400 (Sun, 13 Apr 2008) $
@@ -40,9 +48,9 @@ public final class IRCMessage
      * 
      * @param msg The message to be parsed. This is usally directly from the IRC
      *        server.
-     * @return A parsed IRCMessage. If <code>msg</code> is <code>null</code>,
-     *         then <code>parseMessage(String)</code> will return
-     *         <code>null</code>.
+     * @return A parsed IRCMessage.
+     * @throws IllegalArgumentException If <code>msg</code> is
+     *         <code>null</code> or empty.
      */
     public static final IRCMessage parseMessage(String msg)
     {
@@ -51,56 +59,51 @@ public final class IRCMessage
             throw new IllegalArgumentException("msg: " + msg);
         }
 
-        IRCMessage newMsg = null;
-
-        if (msg != null)
-        {
-            String prefix = null;
-            String command = null;
-            String params = null;
-            int nSpaceIndex = 0;
-
-            if (msg.charAt(0) == ':')
-            {
-                nSpaceIndex = msg.indexOf(' ');
-                prefix = msg.substring(1, nSpaceIndex);
-                msg = msg.substring(nSpaceIndex + 1);
-            }
-
-            nSpaceIndex = msg.indexOf(' ');
-            command = msg.substring(0, nSpaceIndex);
-            params = msg.substring(nSpaceIndex + 1);
-
-            newMsg = new IRCMessage(prefix, command, params);
-
-            if (command.equalsIgnoreCase(IRC.CMD_PRIVMSG) || command.equalsIgnoreCase(IRC.CMD_NOTICE))
-            {
-                if (params.indexOf(IRC.CTCP_DELIM) >= 0)
-                {
-                    StringBuffer paramsBuffer = new StringBuffer(params);
-                    newMsg.ctcpMessages = CTCPMessage.parseMessages(prefix, command, paramsBuffer);
-                    newMsg.paramsString = paramsBuffer.toString();
-                }
-            }
-        }
-
-        return newMsg;
+        return new IRCMessage(msg);
     }
 
     /**
-     * Constructs a new IRCMessage.
+     * Constructs a new IRCMessage by finding the bounds of the prefix,
+     * command, and parameters in the given line.
      * 
-     * @param prefix The prefix.
-     * @param command The command.
-     * @param params The parameters string, whitespace seperated.
+     * @param line The raw line from the server.
      */
-    protected IRCMessage(String prefix, String command, String params)
+    private IRCMessage(String line)
     {
-        this.prefix = prefix;
-        this.command = command.toUpperCase();
-        this.paramsString = params;
-        this.ctcpMessages = new ArrayList<CTCPMessage>();
+        int length = line.length();
+        int pos = 0;
+
+        this.line = line;
         this.messageType = IRCMessage.MSG_TYPE_IRCMESSAGE;
+
+        if (line.charAt(0) == ':')
+        {
+            int space = IRCMessage.indexOfSpace(line, 1);
+            this.prefixStart = 1;
+            this.prefixEnd = space;
+            pos = IRCMessage.skipSpaces(line, space);
+        }
+        else
+        {
+            this.prefixStart = -1;
+        }
+
+        int space = IRCMessage.indexOfSpace(line, pos);
+        this.commandStart = pos;
+        this.commandEnd = space;
+        this.commandCode = IRCCommand.lookup(line, pos, space);
+        this.paramsSource = line;
+        this.paramsStart = Math.min(space + 1, length);
+
+        if ((this.commandCode == IRCCommand.PRIVMSG || this.commandCode == IRCCommand.NOTICE)
+            && line.indexOf(IRC.CTCP_DELIM, this.paramsStart) >= 0)
+        {
+            StringBuffer paramsBuffer = new StringBuffer(line.length() - this.paramsStart);
+            paramsBuffer.append(line, this.paramsStart, line.length());
+            this.ctcpMessages = CTCPMessage.parseMessages(this.getPrefix(), this.getCommand(), paramsBuffer);
+            this.paramsSource = paramsBuffer.toString();
+            this.paramsStart = 0;
+        }
     }
 
     /**
@@ -111,10 +114,11 @@ public final class IRCMessage
      */
     public IRCMessage(int messageType)
     {
-        this.prefix = "";
+        this.line = "";
+        this.prefixStart = -1;
+        this.commandCode = IRCCommand.UNKNOWN;
         this.command = "";
-        this.paramsString = "";
-        this.ctcpMessages = new ArrayList<CTCPMessage>();
+        this.paramsSource = "";
         this.messageType = messageType;
     }
 
@@ -135,19 +139,51 @@ public final class IRCMessage
      */
     public String getPrefix()
     {
+        if (this.prefix == null && this.prefixStart >= 0)
+        {
+            this.prefix = this.line.substring(this.prefixStart, this.prefixEnd);
+        }
+
         return this.prefix;
     }
 
     /**
-     * Gets the command.
+     * Gets the command. Known commands are returned as the shared constant
+     * strings in {@link IRC IRC}; any other command is returned in upper
+     * case.
      * 
      * @return The command.
+     * @see #getCommandCode()
      */
     public String getCommand()
     {
+        if (this.command == null)
+        {
+            if (this.commandCode != IRCCommand.UNKNOWN)
+            {
+                this.command = this.commandCode.getToken();
+            }
+            else
+            {
+                this.command = this.line.substring(this.commandStart, this.commandEnd).toUpperCase();
+            }
+        }
+
         return this.command;
     }
 
+    /**
+     * Gets the command as one of the known {@link IRCCommand commands}. This
+     * is the cheapest way to test which command a message holds.
+     * 
+     * @return The command, or {@link IRCCommand#UNKNOWN UNKNOWN} if it is not
+     *         one that JackBot understands.
+     */
+    public IRCCommand getCommandCode()
+    {
+        return this.commandCode;
+    }
+
     /**
      * Gets the unparsed parameter string.
      * 
@@ -155,6 +191,11 @@ public final class IRCMessage
      */
     public String getParams()
     {
+        if (this.paramsString == null)
+        {
+            this.paramsString = this.paramsSource.substring(this.paramsStart);
+        }
+
         return this.paramsString;
     }
 
@@ -168,12 +209,25 @@ public final class IRCMessage
      */
     public String getParam(int index)
     {
-        if (this.params == null)
+        if (this.paramBounds == null)
         {
             this.parseParams();
         }
 
-        return this.params.get(index);
+        if (index < 0 || index >= this.paramCount)
+        {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+
+        String param = this.paramValues[index];
+
+        if (param == null)
+        {
+            param = this.paramsSource.substring(this.paramBounds[index * 2], this.paramBounds[index * 2 + 1]);
+            this.paramValues[index] = param;
+        }
+
+        return param;
     }
 
     /**
@@ -186,12 +240,7 @@ public final class IRCMessage
      */
     public String getLastParam()
     {
-        if (this.params == null)
-        {
-            this.parseParams();
-        }
-
-        return this.params.get(this.params.size() - 1);
+        return this.getParam(this.getParamCount() - 1);
     }
 
     /**
@@ -202,12 +251,12 @@ public final class IRCMessage
      */
     public int getParamCount()
     {
-        if (this.params == null)
+        if (this.paramBounds == null)
         {
             this.parseParams();
         }
 
-        return this.params.size();
+        return this.paramCount;
     }
 
     /**
@@ -244,69 +293,178 @@ public final class IRCMessage
     @Override
     public String toString()
     {
-        return "prefix:" + this.prefix + " command:" + this.command + " params:" + this.paramsString;
+        return "prefix:" + this.getPrefix() + " command:" + this.getCommand() + " params:" + this.getParams();
     }
 
     /**
-     * Parses the parameter string.
+     * Finds the bounds of each parameter. Parameters are separated by spaces,
+     * and a parameter that starts with a colon is the last one and runs to the
+     * end of the line. No strings are created.
      */
     private void parseParams()
     {
-        if (this.params == null)
-        {
-            this.params = new Vector<String>();
+        String source = this.paramsSource;
+        int length = source.length();
+        int pos = IRCMessage.skipSpaces(source, this.paramsStart);
+        int[] bounds = new int[IRCMessage.INITIAL_PARAM_CAPACITY * 2];
+        int count = 0;
 
-            String lastParam = null;
-            String ps = this.paramsString;
-            int colonIndex = ps.indexOf(':');
+        while (pos < length)
+        {
+            int start = pos;
+            int end;
 
-            if (colonIndex >= 0)
+            if (source.charAt(pos) == ':')
             {
-                lastParam = colonIndex < 0 ? null : ps.substring(colonIndex + 1);
-                ps = ps.substring(0, colonIndex);
+                start = pos + 1;
+                end = length;
             }
-
-            StringTokenizer tok = new StringTokenizer(ps, " ");
-
-            while (tok.hasMoreTokens())
+            else
             {
-                this.params.addElement(tok.nextToken());
+                end = IRCMessage.indexOfSpace(source, pos);
             }
 
-            if (lastParam != null)
+            if (count * 2 == bounds.length)
             {
-                this.params.addElement(lastParam);
+                int[] newBounds = new int[bounds.length * 2];
+                System.arraycopy(bounds, 0, newBounds, 0, bounds.length);
+                bounds = newBounds;
             }
+
+            bounds[count * 2] = start;
+            bounds[count * 2 + 1] = end;
+            count++;
+
+            pos = IRCMessage.skipSpaces(source, end);
         }
+
+        this.paramCount = count;
+        this.paramValues = new String[count];
+        this.paramBounds = bounds;
+    }
+
+    /**
+     * Finds the next space in a string.
+     * 
+     * @param s The string to search.
+     * @param from The index from which to search.
+     * @return The index of the next space, or the length of the string if
+     *         there is none.
+     */
+    private static int indexOfSpace(String s, int from)
+    {
+        int index = s.indexOf(' ', from);
+        return index < 0 ? s.length() : index;
     }
 
     /**
-     * The prefix.
+     * Skips over spaces in a string.
+     * 
+     * @param s The string.
+     * @param from The index from which to skip.
+     * @return The index of the first character at or after <code>from</code>
+     *         that is not a space, or the length of the string.
+     */
+    private static int skipSpaces(String s, int from)
+    {
+        int length = s.length();
+
+        while (from < length && s.charAt(from) == ' ')
+        {
+            from++;
+        }
+
+        return from;
+    }
+
+    /**
+     * The number of parameters for which room is made before any are found.
+     * Most messages have no more than this.
+     */
+    private static final int       INITIAL_PARAM_CAPACITY = 4;
+
+    /**
+     * The raw line from the server.
+     */
+    private final String           line;
+
+    /**
+     * The index in the line of the first character of the prefix, or -1 if
+     * there is no prefix.
+     */
+    private final int              prefixStart;
+
+    /**
+     * The index in the line one past the end of the prefix.
+     */
+    private int                    prefixEnd;
+
+    /**
+     * The index in the line of the first character of the command.
+     */
+    private int                    commandStart;
+
+    /**
+     * The index in the line one past the end of the command.
+     */
+    private int                    commandEnd;
+
+    /**
+     * The command, matched against the known commands.
+     */
+    private final IRCCommand       commandCode;
+
+    /**
+     * The string holding the parameters. This is the line itself unless CTCP
+     * messages had to be cut out of the parameters.
+     */
+    private String                 paramsSource;
+
+    /**
+     * The index in <code>paramsSource</code> at which the parameters start.
+     */
+    private int                    paramsStart;
+
+    /**
+     * The prefix. Copied out of the line when first asked for.
      */
     private String                 prefix;
 
     /**
-     * The command.
+     * The command. Copied out of the line when first asked for.
      */
     private String                 command;
 
     /**
-     * The unparsed parameter string.
+     * The unparsed parameter string. Copied out of the line when first asked
+     * for.
      */
     private String                 paramsString;
 
     /**
-     * The collection of unparsed parameters.
+     * The start and end index of each parameter, in pairs, or
+     * <code>null</code> if the parameters have not been parsed.
+     */
+    private int[]                  paramBounds;
+
+    /**
+     * The number of parameters.
+     */
+    private int                    paramCount;
+
+    /**
+     * The parameters that have been copied out of the line so far.
      */
-    private Vector<String>         params       = null;
+    private String[]               paramValues;
 
     /**
-     * A collection of all the CTCP messages in this message.
+     * A collection of all the CTCP messages in this message, or
+     * <code>null</code> if there are none.
      */
-    private ArrayList<CTCPMessage> ctcpMessages = null;
+    private ArrayList<CTCPMessage> ctcpMessages;
 
     /**
      * The type of the message.
      */
-    private int                    messageType;
+    private final int              messageType;
 }
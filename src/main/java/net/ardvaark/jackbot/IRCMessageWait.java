@@ -18,7 +18,8 @@
 package net.ardvaark.jackbot;
 
 import java.io.IOException;
-import java.util.List;
+
+import net.ardvaark.jackbot.io.IRCInputQueue;
 
 /**
  * <p>
@@ -108,7 +109,7 @@ public class IRCMessageWait
      * 
      * @return The input queue.
      */
-    protected List<String> getInputQueue()
+    protected IRCInputQueue<String> getInputQueue()
     {
         return this.inputQueue;
     }
@@ -121,5 +122,5 @@ public class IRCMessageWait
     /**
      * The input queue.
      */
-    private List<String>   inputQueue;
+    private IRCInputQueue<String> inputQueue;
 }
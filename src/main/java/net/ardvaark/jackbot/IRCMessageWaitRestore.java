@@ -18,8 +18,7 @@
 package net.ardvaark.jackbot;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.ArrayList;
 
 /**
  * Like the {@link IRCMessageWait IRCMessageWait} class, the
@@ -42,7 +41,7 @@ public class IRCMessageWaitRestore extends IRCMessageWait
     public IRCMessageWaitRestore(EventIRCClient client)
     {
         super(client);
-        this.queueRestore = new LinkedList<String>();
+        this.queueRestore = new ArrayList<String>();
     }
 
     /**
@@ -57,21 +56,28 @@ public class IRCMessageWaitRestore extends IRCMessageWait
     public String nextMsgString() throws IOException, IRCConnectionLostException
     {
         String msg = super.nextMsgString();
-        this.queueRestore.addLast(msg);
+
+        if (msg != null)
+        {
+            this.queueRestore.add(msg);
+        }
+
         return msg;
     }
 
     /**
-     * Restores the saved messages to the input queue of the client.
+     * Restores the saved messages to the front of the input queue of the
+     * client, in the order in which they were read. This must be called on
+     * the thread that runs the client.
      */
     public void restore()
     {
-        List<String> inputQueue = this.getInputQueue();
-        inputQueue.addAll(0, this.queueRestore);
+        this.getInputQueue().unreadAll(this.queueRestore);
+        this.queueRestore.clear();
     }
 
     /**
      * The list of messages to be restored.
      */
-    private LinkedList<String> queueRestore;
+    private ArrayList<String> queueRestore;
 }
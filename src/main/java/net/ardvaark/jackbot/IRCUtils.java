@@ -54,6 +54,60 @@ public final class IRCUtils
         return nick;
     }
 
+    /**
+     * Lowercases a nick or channel name using the RFC 1459 case mapping, in
+     * which <code>[]\~</code> are the uppercase forms of <code>{}|^</code>.
+     * Two names are the same to the server if and only if this gives the
+     * same result for both.
+     * 
+     * @param name The nick or channel name.
+     * @return The lowercased name.
+     */
+    public final static String toLowerCase(String name)
+    {
+        char[] chars = null;
+
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            char lower;
+
+            if (c >= 'A' && c <= 'Z')
+            {
+                lower = (char) (c + ('a' - 'A'));
+            }
+            else if (c == '[')
+            {
+                lower = '{';
+            }
+            else if (c == ']')
+            {
+                lower = '}';
+            }
+            else if (c == '\\')
+            {
+                lower = '|';
+            }
+            else if (c == '~')
+            {
+                lower = '^';
+            }
+            else
+            {
+                continue;
+            }
+
+            if (chars == null)
+            {
+                chars = name.toCharArray();
+            }
+
+            chars[i] = lower;
+        }
+
+        return chars == null ? name : new String(chars);
+    }
+
     /**
      * Escapes a string in CTCP message delimiters.
      * 
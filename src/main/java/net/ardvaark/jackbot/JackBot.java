@@ -18,8 +18,6 @@
 package net.ardvaark.jackbot;
 
 import net.ardvaark.jackbot.logging.Log;
-import net.ardvaark.jackbot.plugin.BasicIRCFunctions;
-import net.ardvaark.jackbot.scripting.ScriptingEngine;
 import org.apache.commons.io.FilenameUtils;
 import org.codehaus.classworlds.ClassRealm;
 import org.codehaus.classworlds.ClassWorld;
@@ -29,10 +27,10 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import java.io.File;
-import java.io.IOException;
 import java.net.URL;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The main class of the JackBot IRC Bot.
@@ -93,13 +91,8 @@ public class JackBot
 
         log.info("Starting JackBot...");
 
-        EventIRCClient bot = null;
-        Server currentServer = null;
         String configFileName = "jackbot.xml";
-        Element logonScript = null;
-        ScriptingEngine scriptEngine = null;
-        NodeList scriptElements = null;
-        ArrayList<Server> servers = new ArrayList<Server>();
+        SessionManager sessionManager = new SessionManager();
 
         try
         {
@@ -122,201 +115,80 @@ public class JackBot
             // First open the config file and get some important info.
             log.info("Reading configuration file \"" + configFileName + "\".");
             Config config = new Config(configFileName);
-            Element root = config.getConfigElement("JackBot");
-            String nick = root.getAttribute("nick");
-            String desc = root.getAttribute("description");
-            
-            // Initialize the logging.
-            configureLogging(root.getAttribute("logLevel"));
-            
-            // Set up the classworlds.
-            NodeList classworldsElements = root.getElementsByTagName("load");
-            this.initPluginRealm(classworldsElements);
+            List<Element> sessionElements = config.getConfigElements("JackBot", "network");
 
-            // Get the servers the bot will connect to.
-            NodeList serverNodes = root.getElementsByTagName("server");
-
-            for (int i = 0; i < serverNodes.getLength(); i++)
+            if (sessionElements.isEmpty())
             {
-                String serverName = ((Element) serverNodes.item(i)).getAttribute("name");
-                String serverPort = ((Element) serverNodes.item(i)).getAttribute("port");
-                String useSsl = ((Element) serverNodes.item(i)).getAttribute("ssl");
-                
-
-                if (serverPort == null || serverPort.isEmpty()) {
-                    serverPort = "6667";
-                }
-                
-                if (useSsl == null || useSsl.isEmpty()) {
-                    useSsl = Boolean.FALSE.toString();
-                }
-
-                servers.add(new Server(serverName, serverPort, useSsl));
-            }
-
-            if (servers.isEmpty()) {
-                log.fatal("No servers were specified in the configuration file.  Exiting.");
+                log.fatal("No JackBot or network elements were found in the configuration file.  Exiting.");
                 System.exit(JackBot.ERROR_BAD_CONFIG);
             }
 
-            // Create the bot.
-            bot = new EventIRCClient(nick, desc);
-
-            // Load the plugins for the EventIRCClient.
-            NodeList pluginNodes = root.getElementsByTagName("plugin");
-            ClassRealm pluginRealm = this.world.getRealm("jackbot.plugins");
-            PluginLoader pluginLoader = new PluginLoader(pluginRealm.getClassLoader(), pluginNodes);
-            
-            for (JackBotPlugin plugin : pluginLoader.getPlugins()) {
-                bot.addMessageListener(plugin);
-            }
-            
-            // Add the default Basic IRC Functions.
-            bot.addMessageListener(new BasicIRCFunctions());
-
-            // Get any script includes.
-            scriptElements = root.getElementsByTagName("script");
-
-            // Get the login script. If there is more than one,
-            // just take the first one.
-            NodeList nodes = root.getElementsByTagName("logon-script");
-
-            if (nodes.getLength() > 0)
-            {
-                logonScript = (Element) nodes.item(0);
-            }
-
-            try
+            // Initialize the logging.  The first session to give a level
+            // sets it for the whole process.
+            for (Element root : sessionElements)
             {
-                // Load the scripting engine.
-                nodes = root.getElementsByTagName("script-engine");
+                String logLevel = root.getAttribute("logLevel");
 
-                if (nodes.getLength() > 1)
+                if (!logLevel.isEmpty())
                 {
-                    log.warn("Multiple script-engine tags were found in the configuration file.  No script engine was initialized.");
+                    configureLogging(logLevel);
+                    break;
                 }
-                else if (nodes.getLength() == 1)
-                {
-                    Element engineElement = (Element) nodes.item(0);
-                    String className = engineElement.getAttribute("class");
-                    Object newObject = bot.getClass().getClassLoader().loadClass(className).newInstance();
-
-                    if (newObject instanceof ScriptingEngine)
-                    {
-                        scriptEngine = (ScriptingEngine) newObject;
-                        scriptEngine.setClient(bot);
-                        log.info("Script engine \"" + className + "\" initialized.");
-                    }
-                    else
-                    {
-                        log.warn("The class \"" + className + "\" does not implement the ScriptingEngine interface.");
-                    }
-                }
-            }
-            catch (Exception e)
-            {
-                log.error("An exception occurred while initializing the scripting engine.", e);
-                scriptEngine = null;
             }
-        }
-        catch (Exception e)
-        {
-            log.fatal("Unhandled exception during startup.", e);
-            System.exit(ERROR_STARTUP_EXCEPTION);
-        }
 
-        try
-        {
-            if (scriptEngine != null)
+            // Set up the classworlds.  There is one plugin realm for the
+            // whole process, holding the JARs asked for by every session.
+            List<Element> loadElements = new ArrayList<Element>();
+
+            for (Element root : sessionElements)
             {
-                for (int i = 0; i < scriptElements.getLength(); i++)
+                NodeList classworldsElements = root.getElementsByTagName("load");
+
+                for (int i = 0; i < classworldsElements.getLength(); i++)
                 {
-                    scriptEngine.executeScript((Element) scriptElements.item(i));
+                    loadElements.add((Element) classworldsElements.item(i));
                 }
-
-                bot.addMessageListener(scriptEngine);
             }
 
-            int currentServerIndex = 0;
+            this.initPluginRealm(loadElements);
+            ClassRealm pluginRealm = this.world.getRealm("jackbot.plugins");
 
-            // Here is the main run loop.
-            while (bot.getRunning())
+            // Create a session for each network.  A network that is badly
+            // configured is skipped rather than stopping the others.
+            for (Element root : sessionElements)
             {
-                log.trace("Starting main run loop.");
-
                 try
                 {
-                    currentServer = servers.get(currentServerIndex++);
-                    currentServerIndex %= servers.size();
-
-                    bot.connect(currentServer.getName(), currentServer.getPort(), currentServer.getUseSsl());
-                    bot.logon();
-
-                    this.ensureValidNick(bot);
-
-                    if (scriptEngine != null)
-                    {
-                        log.trace("Executing logon script...");
-                        scriptEngine.executeScript(logonScript);
-                        log.trace("Logon script complete.");
-                    }
-
-                    log.trace("Entering bot event loop.");
-                    bot.run();
+                    sessionManager.addSession(new NetworkSession(root, pluginRealm.getClassLoader()));
                 }
-                catch (IOException e)
+                catch (JackBotConfigurationException e)
                 {
-                    JackBot.onConnectionLost(e);
+                    log.error("Skipping misconfigured network.", e);
                 }
-                catch (IRCConnectionLostException e)
-                {
-                    JackBot.onConnectionLost(e);
-                }
-            }
-        }
-        catch (Exception e)
-        {
-            log.fatal("Unhandled exception.", e);
-        }
-        finally
-        {
-            try
-            {
-                bot.logoff();
-            }
-            catch (IOException e)
-            {
             }
 
-            try
-            {
-                bot.disconnect();
-            }
-            catch (IOException e)
+            if (sessionManager.getSessions().isEmpty())
             {
+                log.fatal("No usable networks were specified in the configuration file.  Exiting.");
+                System.exit(JackBot.ERROR_BAD_CONFIG);
             }
-
-            scriptEngine.cleanup();
         }
-    }
+        catch (Exception e)
+        {
+            log.fatal("Unhandled exception during startup.", e);
+            System.exit(ERROR_STARTUP_EXCEPTION);
+        }
 
-    /**
-     * Helper method called when the connection is lost from the main run loop.
-     * This will wait for 5 seconds before trying again.
-     * 
-     * @param e The exception that was caught signifying that the connection was
-     *        lost.
-     */
-    private static void onConnectionLost(Exception e)
-    {
-        log.info("Connection lost. (" + e.getMessage() + ") Retrying in 5 seconds...");
+        sessionManager.start();
 
         try
         {
-            Thread.sleep(5000);
+            sessionManager.awaitTermination();
         }
-        catch (InterruptedException e2)
+        catch (InterruptedException e)
         {
+            log.info("Interrupted.  Stopping all sessions.");
+            sessionManager.stop();
         }
     }
 
@@ -330,16 +202,15 @@ public class JackBot
         Log.initLogging();
     }
     
-    private void initPluginRealm(NodeList loadNodes) throws JackBotConfigurationException, NoSuchRealmException, DuplicateRealmException
+    private void initPluginRealm(List<Element> loadNodes) throws JackBotConfigurationException, NoSuchRealmException, DuplicateRealmException
     {
         log.trace("Creating class realm: jackbot.plugins");
         ClassRealm realm = this.world.getRealm("jackbot.core").createChildRealm("jackbot.plugins");
         
-        if (loadNodes.getLength() > 0)
+        if (loadNodes.size() > 0)
         {
-            for (int i = 0; i < loadNodes.getLength(); i++)
+            for (Element element : loadNodes)
             {
-                Element element = (Element)loadNodes.item(i);
                 String path = element.getAttribute("path");
                 
                 log.trace("Examining path: {0}", path);
@@ -402,46 +273,4 @@ public class JackBot
     {
         Log.configureLogging(logLevel);
     }
-
-    private void ensureValidNick(EventIRCClient bot) throws IOException, IRCConnectionLostException
-    {
-        log.trace("Checking for accepted nickname.");
-        IRCMessageWaitRestore waiter = new IRCMessageWaitRestore(bot);
-        IRCMessage curMessage = waiter.nextMsg();
-        String curCmd = null;
-
-        while (curMessage != null)
-        {
-            log.trace("Current message: " + curMessage.toString());
-
-            curCmd = curMessage.getCommand();
-
-            if (curCmd.equalsIgnoreCase(IRC.ERR_NICKNAMEINUSE))
-            {
-                log.info("Nickname rejected.");
-
-                if (bot.getName().endsWith("___"))
-                {
-                    bot.setName(bot.getName().substring(bot.getName().lastIndexOf("___")));
-                }
-                else
-                {
-                    bot.setName(bot.getName() + "_");
-                }
-
-                log.info("Logging in as " + bot.getName());
-                bot.ircWrite(IRC.CMD_NICK + " " + bot.getName());
-            }
-            else if (curCmd.equalsIgnoreCase(IRC.RPL_WELCOME))
-            {
-                break;
-            }
-
-            curMessage = waiter.nextMsg();
-        }
-
-        waiter.restore();
-
-        log.trace("Nickname accepted.");
-    }
 }
@@ -0,0 +1,399 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot;
+
+import net.ardvaark.jackbot.io.IRCTransport;
+import net.ardvaark.jackbot.logging.Log;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures the round-trip lag to the server and notices a dead connection
+ * quickly. While the client is running, the probe sends
+ * <code>PING :JB-LAG-</code><i>timestamp</i> every <i>interval</i>
+ * milliseconds from the {@link SharedExecutors#getScheduler() shared
+ * scheduler}, and times the matching <code>PONG</code> from the moment the
+ * transport reads it. If the <code>PONG</code> has not come back within
+ * <i>deadline</i> milliseconds, the connection is taken to be dead and is
+ * closed, which makes the client's run loop fail so that the session
+ * reconnects. This does not wait for the socket's read timeout.
+ * </p>
+ * <p>
+ * The pings are sent in the {@link FloodController.Priority#PROTOCOL
+ * protocol} lane, and the replies are timed by the transport, before they
+ * wait to be read by the client, so a backlog of queued output or input
+ * does not count as lag. With the NIO transport, whose reactor reads on its
+ * own thread, neither does a slow listener; the socket transport only reads
+ * when the client asks, so there a slow listener still delays the reply.
+ * Only one probe is outstanding at a time.
+ * </p>
+ * <p>
+ * It is configured from a <code>&lt;lag-probe&gt;</code> element. An interval
+ * of zero turns the probe off.
+ * </p>
+ * <pre>
+ * &lt;lag-probe interval="30000" deadline="30000" /&gt;
+ * </pre>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public class LagProbe implements IRCTransport.LineObserver, Configurable
+{
+    private static final Log log = Log.getLogger(LagProbe.class);
+
+    /**
+     * The default time between probes, in milliseconds.
+     */
+    public static final int    DEFAULT_INTERVAL = 30000;
+
+    /**
+     * The default time to wait for a <code>PONG</code>, in milliseconds.
+     */
+    public static final int    DEFAULT_DEADLINE = 30000;
+
+    /**
+     * The text at the start of every probe's token.
+     */
+    public static final String TOKEN_PREFIX     = "JB-LAG-";
+
+    /**
+     * The weight given to each new sample in the smoothed lag.
+     */
+    private static final double SMOOTHING       = 0.25;
+
+    /**
+     * Constructs a probe for the given client, using the default settings.
+     * The probe does nothing until it is started.
+     *
+     * @param client The client whose connection is to be probed.
+     */
+    public LagProbe(FloodControlIRCClient client)
+    {
+        this.client = client;
+        this.scheduler = SharedExecutors.getScheduler();
+        this.interval = LagProbe.DEFAULT_INTERVAL;
+        this.deadline = LagProbe.DEFAULT_DEADLINE;
+        this.tickTask = new Runnable() {
+            public void run()
+            {
+                tick();
+            }
+        };
+        this.deadlineTask = new Runnable() {
+            public void run()
+            {
+                checkDeadline();
+            }
+        };
+    }
+
+    /**
+     * Configures the probe from the <code>interval</code> and
+     * <code>deadline</code> attributes of the given element. Missing
+     * attributes keep their current values. Takes effect the next time the
+     * probe is started.
+     *
+     * @param root The <code>&lt;lag-probe&gt;</code> element.
+     */
+    public void configure(Element root)
+    {
+        if (!root.getAttribute("interval").isEmpty())
+        {
+            this.interval = Integer.parseInt(root.getAttribute("interval"));
+        }
+
+        if (!root.getAttribute("deadline").isEmpty())
+        {
+            this.deadline = Integer.parseInt(root.getAttribute("deadline"));
+        }
+
+        log.info("Lag probe: every {0} ms, deadline {1} ms.", this.interval, this.deadline);
+    }
+
+
+    /**
+     * Starts probing. The measurements from any earlier connection are
+     * cleared.
+     */
+    public synchronized void start()
+    {
+        this.stop();
+
+        this.currentNanos = -1;
+        this.smoothedNanos = -1;
+        this.maxNanos = -1;
+
+        if (this.interval > 0)
+        {
+            this.tickFuture = this.scheduler.scheduleWithFixedDelay(this.tickTask, this.interval, this.interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops probing. Any outstanding probe is forgotten.
+     */
+    public synchronized void stop()
+    {
+        if (this.tickFuture != null)
+        {
+            this.tickFuture.cancel(false);
+            this.tickFuture = null;
+        }
+
+        this.clearOutstanding();
+    }
+
+    /**
+     * Matches a line read from the server against the outstanding probe. The
+     * transport calls this for every line as soon as it has read it, so
+     * time spent waiting to be dispatched is not counted. Lines without a
+     * probe's token are passed over after a single search.
+     *
+     * @param line The line read from the server.
+     */
+    public void lineRead(String line)
+    {
+        long now = System.nanoTime();
+
+        if (line.indexOf(LagProbe.TOKEN_PREFIX) < 0)
+        {
+            return;
+        }
+
+        IRCMessage msg = IRCMessage.parseMessage(line);
+
+        if (!IRC.CMD_PONG.equalsIgnoreCase(msg.getCommand()) || msg.getParamCount() == 0)
+        {
+            return;
+        }
+
+        String token = msg.getParam(msg.getParamCount() - 1);
+
+        if (!token.startsWith(LagProbe.TOKEN_PREFIX))
+        {
+            return;
+        }
+
+        long sentAt;
+
+        try
+        {
+            sentAt = Long.parseLong(token.substring(LagProbe.TOKEN_PREFIX.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (!this.outstanding || sentAt != this.sentAt)
+            {
+                // A reply to a probe from an earlier connection.
+                return;
+            }
+
+            long rtt = now - sentAt;
+            this.clearOutstanding();
+            this.currentNanos = rtt;
+            this.smoothedNanos = this.smoothedNanos < 0 ? rtt : this.smoothedNanos + (long) (LagProbe.SMOOTHING * (rtt - this.smoothedNanos));
+            this.maxNanos = Math.max(this.maxNanos, rtt);
+        }
+
+        log.trace("Lag: {0} ms", (now - sentAt) / 1000000);
+    }
+
+    /**
+     * Gets the lag measured by the last probe.
+     *
+     * @return The lag in milliseconds, or -1 if no probe has been answered.
+     */
+    public synchronized double getCurrentLagMillis()
+    {
+        return LagProbe.toMillis(this.currentNanos);
+    }
+
+    /**
+     * Gets the smoothed lag: a moving average of the answered probes.
+     *
+     * @return The lag in milliseconds, or -1 if no probe has been answered.
+     */
+    public synchronized double getSmoothedLagMillis()
+    {
+        return LagProbe.toMillis(this.smoothedNanos);
+    }
+
+    /**
+     * Gets the highest lag measured since the probe was started.
+     *
+     * @return The lag in milliseconds, or -1 if no probe has been answered.
+     */
+    public synchronized double getMaximumLagMillis()
+    {
+        return LagProbe.toMillis(this.maxNanos);
+    }
+
+    /**
+     * Sends a probe, unless one is still outstanding.
+     */
+    private void tick()
+    {
+        long now;
+
+        synchronized (this)
+        {
+            if (this.outstanding || this.tickFuture == null)
+            {
+                return;
+            }
+
+            now = System.nanoTime();
+            this.outstanding = true;
+            this.sentAt = now;
+            this.deadlineFuture = this.scheduler.schedule(this.deadlineTask, this.deadline, TimeUnit.MILLISECONDS);
+        }
+
+        this.client.ircWrite(IRC.CMD_PING + " :" + LagProbe.TOKEN_PREFIX + now, FloodController.Priority.PROTOCOL);
+    }
+
+    /**
+     * Closes the connection if the outstanding probe has not been answered in
+     * time.
+     */
+    private void checkDeadline()
+    {
+        synchronized (this)
+        {
+            if (!this.outstanding || System.nanoTime() - this.sentAt < TimeUnit.MILLISECONDS.toNanos(this.deadline))
+            {
+                return;
+            }
+
+            this.clearOutstanding();
+        }
+
+        log.warn("No reply to the lag probe in {0} ms. Closing the connection.", this.deadline);
+
+        try
+        {
+            this.client.disconnect();
+        }
+        catch (IOException e)
+        {
+            log.trace("Error closing the connection.", e);
+        }
+    }
+
+    /**
+     * Forgets the outstanding probe and cancels its deadline. Must be called
+     * while holding the lock.
+     */
+    private void clearOutstanding()
+    {
+        this.outstanding = false;
+
+        if (this.deadlineFuture != null)
+        {
+            this.deadlineFuture.cancel(false);
+            this.deadlineFuture = null;
+        }
+    }
+
+    /**
+     * Converts nanoseconds to milliseconds, keeping -1 as -1.
+     *
+     * @param nanos The time in nanoseconds, or -1.
+     * @return The time in milliseconds, or -1.
+     */
+    private static double toMillis(long nanos)
+    {
+        return nanos < 0 ? -1.0 : nanos / 1e6;
+    }
+
+    /**
+     * The client whose connection is probed.
+     */
+    private final FloodControlIRCClient    client;
+
+    /**
+     * The scheduler that runs the probes.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The task that sends each probe.
+     */
+    private final Runnable                 tickTask;
+
+    /**
+     * The task that checks each probe's deadline.
+     */
+    private final Runnable                 deadlineTask;
+
+    /**
+     * The time between probes in milliseconds, or zero if probing is off.
+     */
+    private volatile int                   interval;
+
+    /**
+     * The time to wait for a reply in milliseconds.
+     */
+    private volatile int                   deadline;
+
+    /**
+     * The repeating probe task, while the probe is started.
+     */
+    private ScheduledFuture<?>             tickFuture;
+
+    /**
+     * The deadline check for the outstanding probe.
+     */
+    private ScheduledFuture<?>             deadlineFuture;
+
+    /**
+     * Whether a probe has been sent and not answered.
+     */
+    private boolean                        outstanding;
+
+    /**
+     * The <code>System.nanoTime()</code> at which the outstanding probe was
+     * sent. It is also the probe's token.
+     */
+    private long                           sentAt;
+
+    /**
+     * The lag measured by the last probe, in nanoseconds, or -1.
+     */
+    private long                           currentNanos = -1;
+
+    /**
+     * The smoothed lag in nanoseconds, or -1.
+     */
+    private long                           smoothedNanos = -1;
+
+    /**
+     * The highest lag since the probe was started, in nanoseconds, or -1.
+     */
+    private long                           maxNanos = -1;
+}
@@ -0,0 +1,322 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * Splits outgoing <code>PRIVMSG</code> and <code>NOTICE</code> messages so
+ * that every line fits within the 512 bytes an IRC server will relay. The
+ * server puts the sender's <code>:nick!user@host</code> prefix in front of
+ * each line it relays, so room is left for that as well as for the command,
+ * the target, and the trailing CR LF.
+ * </p>
+ * <p>
+ * Lengths are counted in UTF-8 bytes, not characters. Text is broken at the
+ * last space that fits; a word too long for one line is broken between
+ * characters, never inside one. CTCP messages are never split, since each
+ * piece would no longer be a valid CTCP request.
+ * </p>
+ * <p>
+ * This class is immutable and thread-safe.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public final class MessageSplitter
+{
+    /**
+     * The longest line, in bytes and including the CR LF, that a server will
+     * accept.
+     */
+    public static final int MAXIMUM_LINE_BYTES = 512;
+
+    /**
+     * The room left for the sender prefix beyond the nick itself: the colon,
+     * the <code>!</code> and <code>@</code>, a ten-character user name, a
+     * 63-character host name, and the space that follows.
+     */
+    public static final int PREFIX_OVERHEAD    = 1 + 1 + 10 + 1 + 63 + 1;
+
+    /**
+     * The fewest bytes of text that will be put on each line, however large
+     * the reserve.
+     */
+    private static final int MINIMUM_TEXT_BYTES = 32;
+
+    /**
+     * Constructs a splitter that leaves the given number of bytes for the
+     * sender prefix.
+     *
+     * @param prefixReserve The number of bytes the server's prefix may take.
+     */
+    public MessageSplitter(int prefixReserve)
+    {
+        if (prefixReserve < 0)
+        {
+            throw new IllegalArgumentException("prefixReserve: " + prefixReserve);
+        }
+
+        this.prefixReserve = prefixReserve;
+    }
+
+    /**
+     * Gets the prefix reserve for a client with the given nick.
+     *
+     * @param nick The client's nick.
+     * @return The number of bytes to reserve.
+     */
+    public static int getPrefixReserve(String nick)
+    {
+        return MessageSplitter.utf8Length(nick) + MessageSplitter.PREFIX_OVERHEAD;
+    }
+
+    /**
+     * Splits a raw message into lines that each fit within the limit.
+     * Messages other than <code>PRIVMSG</code> and <code>NOTICE</code>, CTCP
+     * messages, and messages that already fit are returned unchanged.
+     *
+     * @param msg The raw message, without the CR LF.
+     * @return The lines to send, in order.
+     */
+    public List<String> split(String msg)
+    {
+        int textStart = MessageSplitter.getTextStart(msg);
+
+        if (textStart < 0 || MessageSplitter.isCtcp(msg, textStart))
+        {
+            return Collections.singletonList(msg);
+        }
+
+        String header = msg.substring(0, textStart);
+        int budget = this.getTextBudget(header);
+
+        if (MessageSplitter.utf8Length(msg, textStart, msg.length()) <= budget)
+        {
+            return Collections.singletonList(msg);
+        }
+
+        List<String> lines = new ArrayList<String>();
+        int start = textStart;
+        int length = msg.length();
+
+        while (start < length)
+        {
+            int bytes = 0;
+            int end = start;
+            int lastSpace = -1;
+
+            while (end < length)
+            {
+                int cp = msg.codePointAt(end);
+                int cpBytes = MessageSplitter.utf8Length(cp);
+
+                if (bytes + cpBytes > budget)
+                {
+                    break;
+                }
+
+                if (cp == ' ')
+                {
+                    lastSpace = end;
+                }
+
+                bytes += cpBytes;
+                end += Character.charCount(cp);
+            }
+
+            int next = end;
+
+            if (end < length && lastSpace > start)
+            {
+                end = lastSpace;
+                next = lastSpace + 1;
+            }
+
+            lines.add(header + msg.substring(start, end));
+
+            // Don't start the next line with the spaces at the break.
+            while (next < length && msg.charAt(next) == ' ')
+            {
+                next++;
+            }
+
+            start = next;
+        }
+
+        return lines;
+    }
+
+    /**
+     * Joins two messages to the same target into one line, if they have the
+     * same command and target, neither is CTCP, and the result fits.
+     *
+     * @param first The message queued first.
+     * @param second The message queued after it.
+     * @param separator The text to put between the two.
+     * @return The joined message, or <code>null</code> if they cannot be
+     *         joined.
+     */
+    public String join(String first, String second, String separator)
+    {
+        int firstText = MessageSplitter.getTextStart(first);
+        int secondText = MessageSplitter.getTextStart(second);
+
+        if (firstText < 0 || firstText != secondText
+            || !first.regionMatches(0, second, 0, firstText)
+            || MessageSplitter.isCtcp(first, firstText)
+            || MessageSplitter.isCtcp(second, secondText))
+        {
+            return null;
+        }
+
+        String header = first.substring(0, firstText);
+        int bytes = MessageSplitter.utf8Length(first, firstText, first.length())
+                    + MessageSplitter.utf8Length(separator, 0, separator.length())
+                    + MessageSplitter.utf8Length(second, secondText, second.length());
+
+        if (bytes > this.getTextBudget(header))
+        {
+            return null;
+        }
+
+        return first + separator + second.substring(secondText);
+    }
+
+    /**
+     * Counts the bytes a string takes when encoded in UTF-8.
+     *
+     * @param s The string.
+     * @return The number of bytes.
+     */
+    public static int utf8Length(String s)
+    {
+        return MessageSplitter.utf8Length(s, 0, s.length());
+    }
+
+    /**
+     * Counts the bytes part of a string takes when encoded in UTF-8.
+     *
+     * @param s The string.
+     * @param start The index of the first character.
+     * @param end The index one past the last character.
+     * @return The number of bytes.
+     */
+    private static int utf8Length(String s, int start, int end)
+    {
+        int bytes = 0;
+
+        for (int i = start; i < end; )
+        {
+            int cp = s.codePointAt(i);
+            bytes += MessageSplitter.utf8Length(cp);
+            i += Character.charCount(cp);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Counts the bytes a code point takes when encoded in UTF-8.
+     *
+     * @param cp The code point.
+     * @return The number of bytes, from one to four.
+     */
+    private static int utf8Length(int cp)
+    {
+        if (cp < 0x80)
+        {
+            return 1;
+        }
+        else if (cp < 0x800)
+        {
+            return 2;
+        }
+        else if (cp < 0x10000)
+        {
+            return 3;
+        }
+
+        return 4;
+    }
+
+    /**
+     * Finds where the text of a <code>PRIVMSG</code> or <code>NOTICE</code>
+     * begins.
+     *
+     * @param msg The raw message.
+     * @return The index just past the <code>" :"</code> that follows the
+     *         target, or -1 if the message is not a <code>PRIVMSG</code> or
+     *         <code>NOTICE</code> with trailing text.
+     */
+    private static int getTextStart(String msg)
+    {
+        int commandEnd = msg.indexOf(' ');
+
+        if (commandEnd < 0)
+        {
+            return -1;
+        }
+
+        IRCCommand command = IRCCommand.lookup(msg, 0, commandEnd);
+
+        if (command != IRCCommand.PRIVMSG && command != IRCCommand.NOTICE)
+        {
+            return -1;
+        }
+
+        int textStart = msg.indexOf(" :", commandEnd + 1);
+        return textStart < 0 ? -1 : textStart + 2;
+    }
+
+    /**
+     * Determines whether a message's text is a CTCP request or reply.
+     *
+     * @param msg The raw message.
+     * @param textStart The index at which the text begins.
+     * @return <code>true</code> if the text starts with the CTCP delimiter.
+     */
+    private static boolean isCtcp(String msg, int textStart)
+    {
+        return msg.startsWith(IRC.CTCP_DELIM, textStart);
+    }
+
+    /**
+     * Gets the number of bytes of text that fit on a line after the given
+     * header.
+     *
+     * @param header The command, target, and <code>" :"</code>.
+     * @return The number of bytes available for text.
+     */
+    private int getTextBudget(String header)
+    {
+        int budget = MessageSplitter.MAXIMUM_LINE_BYTES - IRC.NEWLINE.length()
+                     - MessageSplitter.utf8Length(header) - this.prefixReserve;
+
+        return Math.max(budget, MessageSplitter.MINIMUM_TEXT_BYTES);
+    }
+
+    /**
+     * The number of bytes left for the sender prefix the server adds.
+     */
+    private final int prefixReserve;
+}
@@ -0,0 +1,541 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot;
+
+import net.ardvaark.jackbot.logging.Log;
+import net.ardvaark.jackbot.plugin.BasicIRCFunctions;
+import net.ardvaark.jackbot.scripting.ScriptingEngine;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * One bot connected to one IRC network. A session is configured by a single
+ * <code>&lt;JackBot&gt;</code> or <code>&lt;network&gt;</code> element, and
+ * owns its own {@link EventIRCClient EventIRCClient}, plugins, and scripting
+ * engine, so nothing a script does on one network is visible on another.
+ * </p>
+ * <p>
+ * The session's {@link #run() run()} method is the main run loop that used to
+ * live in {@link JackBot JackBot}: it connects to the best of the configured
+ * servers with a {@link ServerConnector ServerConnector}, logs on, and
+ * dispatches messages until the bot is stopped, backing off between
+ * reconnects. The scripting engine is created on the thread that calls
+ * <code>run()</code>, because the engine's script context is bound to the
+ * thread that creates it.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public class NetworkSession implements Runnable
+{
+    private static final Log log = Log.getLogger(NetworkSession.class);
+
+    /**
+     * How long a connection must last, in milliseconds, before losing it
+     * starts the reconnect backoff over.
+     */
+    public static final long STABLE_CONNECTION_TIME = 60000;
+
+    /**
+     * Constructs a session from its configuration element. The element is
+     * checked here so that a bad configuration is reported before any
+     * session starts.
+     *
+     * @param root The <code>&lt;JackBot&gt;</code> or
+     *        <code>&lt;network&gt;</code> element that configures the
+     *        session.
+     * @param pluginLoader The class loader from which plugins and the
+     *        scripting engine are loaded.
+     * @throws JackBotConfigurationException Thrown if the element does not
+     *         describe a usable session.
+     */
+    public NetworkSession(Element root, ClassLoader pluginLoader) throws JackBotConfigurationException
+    {
+        this.root = root;
+        this.pluginLoader = pluginLoader;
+        this.servers = new ArrayList<Server>();
+        this.connector = new ServerConnector();
+
+        // Get the servers the bot will connect to.
+        NodeList serverNodes = root.getElementsByTagName("server");
+
+        for (int i = 0; i < serverNodes.getLength(); i++)
+        {
+            String serverName = ((Element) serverNodes.item(i)).getAttribute("name");
+            String serverPort = ((Element) serverNodes.item(i)).getAttribute("port");
+            String useSsl = ((Element) serverNodes.item(i)).getAttribute("ssl");
+
+            if (serverPort == null || serverPort.isEmpty()) {
+                serverPort = "6667";
+            }
+
+            if (useSsl == null || useSsl.isEmpty()) {
+                useSsl = Boolean.FALSE.toString();
+            }
+
+            try
+            {
+                this.servers.add(new Server(serverName, serverPort, useSsl));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new JackBotConfigurationException("Bad port number for server " + serverName + ": " + serverPort, e);
+            }
+        }
+
+        String name = root.getAttribute("name");
+
+        if (name.isEmpty() && !this.servers.isEmpty())
+        {
+            name = this.servers.get(0).getName();
+        }
+
+        this.name = name;
+
+        if (this.servers.isEmpty())
+        {
+            throw new JackBotConfigurationException("No servers were specified for the network \"" + name + "\".");
+        }
+    }
+
+    /**
+     * Gets the name of the session. This is the <code>name</code> attribute
+     * of the configuration element, or the first server's name if there is no
+     * such attribute.
+     *
+     * @return The name of the session.
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Gets the session's client.
+     *
+     * @return The client, or <code>null</code> if the session has not
+     *         started.
+     */
+    public EventIRCClient getClient()
+    {
+        return this.bot;
+    }
+
+    /**
+     * Asks the session to stop. The client is disconnected so that the run
+     * loop wakes up and exits.
+     */
+    public void stop()
+    {
+        this.stopped = true;
+        EventIRCClient client = this.bot;
+
+        if (client != null)
+        {
+            client.setRunning(false);
+
+            try
+            {
+                client.disconnect();
+            }
+            catch (Exception e)
+            {
+                log.trace("Error disconnecting session {0}.", e, this.name);
+            }
+        }
+    }
+
+    /**
+     * Creates the client, plugins, and scripting engine, and then runs the
+     * session until it is stopped. Any error is logged and ends only this
+     * session.
+     */
+    public void run()
+    {
+        Thread.currentThread().setName("JackBot Session: " + this.name);
+        log.info("Starting session {0}...", this.name);
+
+        try
+        {
+            this.initialize();
+        }
+        catch (Exception e)
+        {
+            log.fatal("Unhandled exception starting session " + this.name + ".", e);
+            this.cleanup();
+            return;
+        }
+
+        try
+        {
+            // Here is the main run loop.
+            while (this.bot.getRunning() && !this.stopped)
+            {
+                log.trace("Starting main run loop.");
+
+                try
+                {
+                    this.connector.connect(this.servers, this.bot);
+                    this.bot.logon();
+
+                    this.ensureValidNick(this.bot);
+                    this.connectedAt = System.nanoTime();
+
+                    if (this.scriptEngine != null && this.logonScript != null)
+                    {
+                        log.trace("Executing logon script...");
+                        this.scriptEngine.executeScript(this.logonScript);
+                        log.trace("Logon script complete.");
+                    }
+
+                    log.trace("Entering bot event loop.");
+                    this.bot.run();
+                }
+                catch (IOException e)
+                {
+                    this.onConnectionLost(e);
+                }
+                catch (IRCConnectionLostException e)
+                {
+                    this.onConnectionLost(e);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    this.stopped = true;
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            log.fatal("Unhandled exception in session " + this.name + ".", e);
+        }
+        finally
+        {
+            this.cleanup();
+        }
+
+        log.info("Session {0} has ended.", this.name);
+    }
+
+    /**
+     * Creates the client and loads its plugins and scripts.
+     *
+     * @throws Exception Thrown if the session cannot be created.
+     */
+    private void initialize() throws Exception
+    {
+        String nick = this.root.getAttribute("nick");
+        String desc = this.root.getAttribute("description");
+
+        // Create the bot.
+        EventIRCClient client = new EventIRCClient(nick, desc);
+        String transport = this.root.getAttribute("transport");
+
+        if (!transport.isEmpty())
+        {
+            client.setTransportType(transport);
+        }
+
+        if (!this.root.getAttribute("charset").isEmpty())
+        {
+            client.setCharset(this.root.getAttribute("charset"));
+        }
+
+        if (this.root.hasAttribute("fallbackCharset"))
+        {
+            client.setFallbackCharset(this.root.getAttribute("fallbackCharset"));
+        }
+
+        NodeList connectNodes = this.root.getElementsByTagName("connect");
+
+        if (connectNodes.getLength() > 0)
+        {
+            Element connectElement = (Element) connectNodes.item(0);
+            this.connector.configure(connectElement);
+
+            if (!connectElement.getAttribute("timeout").isEmpty())
+            {
+                client.setConnectTimeout(Integer.parseInt(connectElement.getAttribute("timeout")));
+            }
+        }
+
+        NodeList lagNodes = this.root.getElementsByTagName("lag-probe");
+
+        if (lagNodes.getLength() > 0)
+        {
+            client.getLagProbe().configure((Element) lagNodes.item(0));
+        }
+
+        NodeList floodNodes = this.root.getElementsByTagName("flood-control");
+
+        if (floodNodes.getLength() > 0)
+        {
+            client.getFloodController().configure((Element) floodNodes.item(0));
+        }
+
+        this.bot = client;
+
+
+        // Load the plugins for the EventIRCClient.
+        NodeList pluginNodes = this.root.getElementsByTagName("plugin");
+        PluginLoader plugins = new PluginLoader(this.pluginLoader, pluginNodes);
+
+        for (JackBotPlugin plugin : plugins.getPlugins()) {
+            client.addMessageListener(plugin);
+        }
+
+        // Add the default Basic IRC Functions.
+        client.addMessageListener(new BasicIRCFunctions());
+
+        // Get the login script. If there is more than one,
+        // just take the first one.
+        NodeList nodes = this.root.getElementsByTagName("logon-script");
+
+        if (nodes.getLength() > 0)
+        {
+            this.logonScript = (Element) nodes.item(0);
+        }
+
+        try
+        {
+            // Load the scripting engine.
+            nodes = this.root.getElementsByTagName("script-engine");
+
+            if (nodes.getLength() > 1)
+            {
+                log.warn("Multiple script-engine tags were found in the configuration file.  No script engine was initialized.");
+            }
+            else if (nodes.getLength() == 1)
+            {
+                Element engineElement = (Element) nodes.item(0);
+                String className = engineElement.getAttribute("class");
+                Object newObject = client.getClass().getClassLoader().loadClass(className).newInstance();
+
+                if (newObject instanceof ScriptingEngine)
+                {
+                    this.scriptEngine = (ScriptingEngine) newObject;
+                    this.scriptEngine.setClient(client);
+
+                    if (newObject instanceof Configurable)
+                    {
+                        ((Configurable) newObject).configure(engineElement);
+                    }
+
+                    log.info("Script engine \"" + className + "\" initialized.");
+                }
+                else
+                {
+                    log.warn("The class \"" + className + "\" does not implement the ScriptingEngine interface.");
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            log.error("An exception occurred while initializing the scripting engine.", e);
+            this.scriptEngine = null;
+        }
+
+        if (this.scriptEngine != null)
+        {
+            // Run any script includes.
+            NodeList scriptElements = this.root.getElementsByTagName("script");
+
+            for (int i = 0; i < scriptElements.getLength(); i++)
+            {
+                this.scriptEngine.executeScript((Element) scriptElements.item(i));
+            }
+
+            client.addMessageListener(this.scriptEngine);
+        }
+    }
+
+    /**
+     * Logs off, disconnects, and cleans up the scripting engine.
+     */
+    private void cleanup()
+    {
+        if (this.bot != null && this.bot.isConnected())
+        {
+            try
+            {
+                this.bot.logoff();
+            }
+            catch (IOException e)
+            {
+            }
+
+            try
+            {
+                this.bot.disconnect();
+            }
+            catch (IOException e)
+            {
+            }
+        }
+
+        if (this.scriptEngine != null)
+        {
+            this.scriptEngine.cleanup();
+        }
+    }
+
+    /**
+     * Helper method called when the connection is lost from the main run loop.
+     * This waits for the connector's backoff delay before trying again. The
+     * backoff starts over if the connection that was lost had been up for a
+     * while.
+     * 
+     * @param e The exception that was caught signifying that the connection was
+     *        lost.
+     */
+    private void onConnectionLost(Exception e)
+    {
+        if (this.stopped)
+        {
+            return;
+        }
+
+        if (this.connectedAt != 0
+            && System.nanoTime() - this.connectedAt >= TimeUnit.MILLISECONDS.toNanos(NetworkSession.STABLE_CONNECTION_TIME))
+        {
+            this.reconnectAttempts = 0;
+        }
+
+        this.connectedAt = 0;
+
+        long delay = this.connector.getReconnectDelay(this.reconnectAttempts++);
+        log.info("Connection lost. ({0}) Retrying in {1} ms...", e.getMessage(), delay);
+
+        try
+        {
+            Thread.sleep(delay);
+        }
+        catch (InterruptedException e2)
+        {
+            Thread.currentThread().interrupt();
+            this.stopped = true;
+        }
+    }
+
+    private void ensureValidNick(EventIRCClient bot) throws IOException, IRCConnectionLostException
+    {
+        log.trace("Checking for accepted nickname.");
+        IRCMessageWaitRestore waiter = new IRCMessageWaitRestore(bot);
+        IRCMessage curMessage = waiter.nextMsg();
+        IRCCommand curCmd = null;
+
+        while (curMessage != null)
+        {
+            log.trace("Current message: " + curMessage.toString());
+
+            curCmd = curMessage.getCommandCode();
+
+            if (curCmd == IRCCommand.ERR_NICKNAMEINUSE)
+            {
+                log.info("Nickname rejected.");
+
+                if (bot.getName().endsWith("___"))
+                {
+                    bot.setName(bot.getName().substring(bot.getName().lastIndexOf("___")));
+                }
+                else
+                {
+                    bot.setName(bot.getName() + "_");
+                }
+
+                log.info("Logging in as " + bot.getName());
+                bot.ircWrite(IRC.CMD_NICK + " " + bot.getName());
+            }
+            else if (curCmd == IRCCommand.RPL_WELCOME)
+            {
+                break;
+            }
+
+            curMessage = waiter.nextMsg();
+        }
+
+        waiter.restore();
+
+        log.trace("Nickname accepted.");
+    }
+
+    /**
+     * The element that configures the session.
+     */
+    private final Element         root;
+
+    /**
+     * The class loader for plugins and the scripting engine.
+     */
+    private final ClassLoader     pluginLoader;
+
+    /**
+     * The servers to which the session can connect, in the order in which
+     * they are tried.
+     */
+    private final List<Server>    servers;
+
+    /**
+     * The name of the session.
+     */
+    private final String          name;
+
+    /**
+     * The session's client. Set once the session starts.
+     */
+    private volatile EventIRCClient bot;
+
+    /**
+     * The session's scripting engine, if it has one.
+     */
+    private ScriptingEngine       scriptEngine;
+
+    /**
+     * The script to run after logging on.
+     */
+    private Element               logonScript;
+
+    /**
+     * Picks the server for each connection and the delay between them.
+     */
+    private final ServerConnector connector;
+
+    /**
+     * The number of reconnects since the connection was last stable.
+     */
+    private int                   reconnectAttempts;
+
+    /**
+     * The <code>System.nanoTime()</code> at which the current connection
+     * finished logging on, or zero if it has not.
+     */
+    private long                  connectedAt;
+
+    /**
+     * Whether the session has been asked to stop.
+     */
+    private volatile boolean      stopped;
+}
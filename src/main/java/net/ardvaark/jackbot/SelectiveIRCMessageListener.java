@@ -0,0 +1,40 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot;
+
+/**
+ * A listener that only wants to hear about certain commands. When one is
+ * added to an {@link EventIRCClient EventIRCClient} with
+ * {@link EventIRCClient#addMessageListener(IRCMessageListener)
+ * addMessageListener()}, it is only called for the commands it names, and
+ * never sees the rest.
+ * 
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public interface SelectiveIRCMessageListener extends IRCMessageListener
+{
+    /**
+     * Gets the commands this listener wants to receive. This is called once,
+     * when the listener is added.
+     * 
+     * @return The commands or numerics, such as {@link IRC#CMD_PRIVMSG} or
+     *         {@link IRC#RPL_WELCOME}. Case does not matter.
+     */
+    public String[] getMessageCommands();
+}
@@ -19,7 +19,9 @@ package net.ardvaark.jackbot;
 
 /**
  * A server to which the bot can connect. These are read from the configuration
- * file.
+ * file. Each server also remembers how its recent connection attempts went,
+ * so that {@link ServerConnector ServerConnector} can try the best servers
+ * first.
  * 
  * @author Brian Vargas
  * @since JackBot v1.1
@@ -38,6 +40,7 @@ final class Server
     {
         this.name = name;
         this.port = port;
+        this.useSsl = useSsl;
     }
 
     /**
@@ -84,7 +87,94 @@ final class Server
         return useSsl;
     }
 
+    /**
+     * Records a successful connection, folding its latency into the average
+     * and clearing the failure count.
+     *
+     * @param latencyNanos How long the connection took to make.
+     */
+    public synchronized void recordSuccess(long latencyNanos)
+    {
+        if (this.latencyNanos < 0)
+        {
+            this.latencyNanos = latencyNanos;
+        }
+        else
+        {
+            this.latencyNanos += (long) (Server.LATENCY_WEIGHT * (latencyNanos - this.latencyNanos));
+        }
+
+        this.consecutiveFailures = 0;
+    }
+
+    /**
+     * Records a failed connection attempt.
+     */
+    public synchronized void recordFailure()
+    {
+        this.consecutiveFailures++;
+        this.lastFailure = System.nanoTime();
+    }
+
+    /**
+     * Gets the moving average of the time taken to connect.
+     *
+     * @return The average latency in nanoseconds, or -1 if no connection has
+     *         been made.
+     */
+    public synchronized long getLatencyNanos()
+    {
+        return this.latencyNanos;
+    }
+
+    /**
+     * Gets the number of attempts that have failed since the last success.
+     *
+     * @return The number of consecutive failures.
+     */
+    public synchronized int getConsecutiveFailures()
+    {
+        return this.consecutiveFailures;
+    }
+
+    /**
+     * Gets the time of the last failed attempt.
+     *
+     * @return The <code>System.nanoTime()</code> of the last failure. Only
+     *         meaningful if there have been failures.
+     */
+    public synchronized long getLastFailure()
+    {
+        return this.lastFailure;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.name + ":" + this.port + (this.useSsl ? " (ssl)" : "");
+    }
+
+    /**
+     * The weight given to each new latency sample in the moving average.
+     */
+    private static final double LATENCY_WEIGHT = 0.3;
+
     private String  name;
     private int     port;
     private boolean useSsl;
+
+    /**
+     * The moving average of the connect latency in nanoseconds, or -1.
+     */
+    private long    latencyNanos = -1;
+
+    /**
+     * The number of failed attempts since the last success.
+     */
+    private int     consecutiveFailures;
+
+    /**
+     * The <code>System.nanoTime()</code> of the last failure.
+     */
+    private long    lastFailure;
 }
@@ -0,0 +1,638 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot;
+
+import net.ardvaark.jackbot.io.IRCTransport;
+import net.ardvaark.jackbot.logging.Log;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Connects a client to the best of a list of servers by racing connection
+ * attempts, in the manner of the "happy eyeballs" algorithm. The servers are
+ * put in order: servers that have recently failed go last, and of the rest,
+ * the ones that have connected fastest before go first. Each server name is
+ * resolved to all of its addresses, alternating IPv6 and IPv4. An attempt is
+ * started on the first address; if it has not succeeded after the attempt
+ * delay, or as soon as it fails, an attempt is started on the next one, and
+ * so on, with the earlier attempts left running. The first connection made
+ * wins; any that complete later are closed.
+ * </p>
+ * <p>
+ * The connector also works out how long to wait between reconnects, using
+ * exponential backoff with full jitter: the <i>n</i>th delay is chosen at
+ * random between zero and the smaller of <i>backoffBase</i> &times;
+ * 2<sup><i>n</i></sup> and <i>backoffMax</i>. The same schedule keeps a
+ * failed server at the back of the list until it has had time to recover.
+ * </p>
+ * <p>
+ * It is configured from a <code>&lt;connect&gt;</code> element:
+ * </p>
+ * <pre>
+ * &lt;connect attemptDelay="250" timeout="10000" backoffBase="1000" backoffMax="120000" /&gt;
+ * </pre>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+final class ServerConnector implements Configurable
+{
+    private static final Log log = Log.getLogger(ServerConnector.class);
+
+    /**
+     * The default time, in milliseconds, to wait for an attempt before
+     * starting the next.
+     */
+    public static final int DEFAULT_ATTEMPT_DELAY = 250;
+
+    /**
+     * The default base of the reconnect backoff, in milliseconds.
+     */
+    public static final int DEFAULT_BACKOFF_BASE  = 1000;
+
+    /**
+     * The default longest reconnect delay, in milliseconds.
+     */
+    public static final int DEFAULT_BACKOFF_MAX   = 120000;
+
+    /**
+     * Constructs a connector with the default settings.
+     */
+    public ServerConnector()
+    {
+        this.attemptDelay = ServerConnector.DEFAULT_ATTEMPT_DELAY;
+        this.backoffBase = ServerConnector.DEFAULT_BACKOFF_BASE;
+        this.backoffMax = ServerConnector.DEFAULT_BACKOFF_MAX;
+        this.random = new Random();
+    }
+
+    /**
+     * Configures the connector from the <code>attemptDelay</code>,
+     * <code>backoffBase</code>, and <code>backoffMax</code> attributes of the
+     * given element. The <code>timeout</code> attribute is read by the
+     * session and applied to the client. Missing attributes keep their
+     * current values.
+     *
+     * @param root The <code>&lt;connect&gt;</code> element.
+     */
+    public void configure(Element root)
+    {
+        if (!root.getAttribute("attemptDelay").isEmpty())
+        {
+            this.attemptDelay = Integer.parseInt(root.getAttribute("attemptDelay"));
+        }
+
+        if (!root.getAttribute("backoffBase").isEmpty())
+        {
+            this.backoffBase = Integer.parseInt(root.getAttribute("backoffBase"));
+        }
+
+        if (!root.getAttribute("backoffMax").isEmpty())
+        {
+            this.backoffMax = Integer.parseInt(root.getAttribute("backoffMax"));
+        }
+    }
+
+    /**
+     * Races connections to the given servers and makes the first one that
+     * succeeds the client's connection.
+     *
+     * @param servers The servers, in configured order.
+     * @param client The client to connect.
+     * @return The server to which the client was connected.
+     * @throws IOException Thrown if no server could be reached.
+     * @throws InterruptedException Thrown if the calling thread is
+     *         interrupted while waiting.
+     */
+    public Server connect(List<Server> servers, IRCClient client) throws IOException, InterruptedException
+    {
+        CompletionService<Attempt> completions = new ExecutorCompletionService<Attempt>(SharedExecutors.getWorkerPool());
+        Set<Server> reported = Collections.newSetFromMap(new ConcurrentHashMap<Server, Boolean>());
+        Iterator<Candidate> candidates = new CandidateIterator(this.order(servers), reported);
+        AtomicBoolean won = new AtomicBoolean();
+        IOException lastError = null;
+        int running = 0;
+
+        try
+        {
+            while (true)
+            {
+                if (candidates.hasNext())
+                {
+                    Candidate next = candidates.next();
+                    log.info("Trying {0} at {1}...", next.server, next.address.getAddress().getHostAddress());
+                    completions.submit(new Attempt(next, client, won, reported));
+                    running++;
+                }
+                else if (running == 0)
+                {
+                    break;
+                }
+
+                // Wait for an attempt to finish, but only for the attempt
+                // delay if there is another candidate to start. A failure
+                // goes round the loop at once to start the next candidate.
+                Future<Attempt> done = candidates.hasNext()
+                                       ? completions.poll(this.attemptDelay, TimeUnit.MILLISECONDS)
+                                       : completions.take();
+
+                for ( ; done != null; done = completions.poll())
+                {
+                    running--;
+                    Attempt attempt = ServerConnector.getAttempt(done);
+
+                    if (attempt == null)
+                    {
+                        continue;
+                    }
+
+                    if (attempt.winner)
+                    {
+                        log.info("Connected to {0} in {1} ms.", attempt.candidate.server, attempt.latencyNanos / 1000000);
+                        client.attachTransport(attempt.transport);
+                        return attempt.candidate.server;
+                    }
+
+                    if (attempt.error != null)
+                    {
+                        log.info("Unable to connect to {0}: {1}", attempt.candidate.server, attempt.error.getMessage());
+                        lastError = attempt.error;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            // If we are giving up, make any attempt still running close its
+            // connection instead of winning.
+            won.set(true);
+        }
+
+        IOException e = new IOException("Unable to connect to any server.");
+
+        if (lastError != null)
+        {
+            e.initCause(lastError);
+        }
+
+        throw e;
+    }
+
+    /**
+     * Gets the delay before the next reconnect.
+     *
+     * @param attempt The number of reconnects made since the connection was
+     *        last stable, starting at zero.
+     * @return The delay in milliseconds.
+     */
+    public long getReconnectDelay(int attempt)
+    {
+        long cap = this.getBackoffCap(attempt);
+
+        synchronized (this.random)
+        {
+            return (long) (this.random.nextDouble() * cap);
+        }
+    }
+
+    /**
+     * Gets the upper bound of the backoff after the given number of failures.
+     *
+     * @param attempt The number of failures, starting at zero.
+     * @return The bound in milliseconds.
+     */
+    private long getBackoffCap(int attempt)
+    {
+        return Math.min((long) this.backoffMax, (long) this.backoffBase << Math.min(attempt, 30));
+    }
+
+    /**
+     * Puts the servers in the order in which they should be tried. Servers
+     * that failed recently enough to still be backing off go last, fewest
+     * failures first. The rest go first: those with a known latency, fastest
+     * first, then the others in configured order.
+     *
+     * @param servers The servers in configured order.
+     * @return The servers in the order to try them.
+     */
+    private List<Server> order(List<Server> servers)
+    {
+        long now = System.nanoTime();
+        List<Rank> ranks = new ArrayList<Rank>(servers.size());
+
+        // Score every server before sorting. Attempts left over from an
+        // earlier race can still update a server's statistics, and a
+        // comparator that read them as it went could contradict itself.
+        for (Server server : servers)
+        {
+            ranks.add(this.rank(server, now));
+        }
+
+        Collections.sort(ranks, Rank.ORDER);
+
+        List<Server> ordered = new ArrayList<Server>(ranks.size());
+
+        for (Rank rank : ranks)
+        {
+            ordered.add(rank.server);
+        }
+
+        return ordered;
+    }
+
+    /**
+     * Takes a consistent snapshot of a server's statistics.
+     *
+     * @param server The server.
+     * @param now The current <code>System.nanoTime()</code>.
+     * @return The server's rank.
+     */
+    private Rank rank(Server server, long now)
+    {
+        int failures;
+        long lastFailure;
+        long latencyNanos;
+
+        // The server's statistics are guarded by its own lock.
+        synchronized (server)
+        {
+            failures = server.getConsecutiveFailures();
+            lastFailure = server.getLastFailure();
+            latencyNanos = server.getLatencyNanos();
+        }
+
+        return new Rank(server, this.isBackingOff(failures, lastFailure, now), failures, latencyNanos);
+    }
+
+    /**
+     * Determines whether a server failed recently enough that it should be
+     * tried after the others.
+     *
+     * @param failures The server's consecutive failures.
+     * @param lastFailure The <code>System.nanoTime()</code> of its last
+     *        failure.
+     * @param now The current <code>System.nanoTime()</code>.
+     * @return <code>true</code> if the server is backing off.
+     */
+    private boolean isBackingOff(int failures, long lastFailure, long now)
+    {
+        if (failures == 0)
+        {
+            return false;
+        }
+
+        long window = TimeUnit.MILLISECONDS.toNanos(this.getBackoffCap(failures - 1));
+        return now - lastFailure < window;
+    }
+
+    /**
+     * Records a failure against a server unless its outcome has already been
+     * recorded in this race, so that a server with several addresses is
+     * counted as failing once per outage rather than once per address, and
+     * a server that has already connected is not marked as failed.
+     *
+     * @param server The server.
+     * @param reported The servers whose outcome has been recorded in this
+     *        race.
+     */
+    private static void recordFailure(Server server, Set<Server> reported)
+    {
+        if (reported.add(server))
+        {
+            server.recordFailure();
+        }
+    }
+
+    /**
+     * Gets the result of a finished attempt. Attempts catch their own
+     * exceptions, so a future that failed can only have hit an error; it is
+     * logged, and the race goes on without it.
+     *
+     * @param done The finished attempt.
+     * @return The attempt, or <code>null</code> if it failed unexpectedly.
+     */
+    private static Attempt getAttempt(Future<Attempt> done)
+    {
+        try
+        {
+            return done.get();
+        }
+        catch (InterruptedException e)
+        {
+            // The future is already done, so this cannot happen.
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e)
+        {
+            log.error("Connection attempt failed unexpectedly.", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * A snapshot of the statistics by which a server is ordered.
+     */
+    private static final class Rank
+    {
+        Rank(Server server, boolean backingOff, int failures, long latencyNanos)
+        {
+            this.server = server;
+            this.backingOff = backingOff;
+            this.failures = failures;
+            this.latencyNanos = latencyNanos;
+        }
+
+        /**
+         * Servers that are backing off go last, fewest failures first; the
+         * rest go first, known latencies before unknown, fastest first.
+         * Ties keep their order, since the sort is stable.
+         */
+        static final Comparator<Rank> ORDER = new Comparator<Rank>() {
+            public int compare(Rank a, Rank b)
+            {
+                if (a.backingOff != b.backingOff)
+                {
+                    return a.backingOff ? 1 : -1;
+                }
+
+                if (a.backingOff)
+                {
+                    return a.failures - b.failures;
+                }
+
+                if (a.latencyNanos < 0 || b.latencyNanos < 0)
+                {
+                    // Known latencies before unknown; unknowns keep their order.
+                    return (a.latencyNanos < 0 ? 1 : 0) - (b.latencyNanos < 0 ? 1 : 0);
+                }
+
+                return a.latencyNanos < b.latencyNanos ? -1 : (a.latencyNanos == b.latencyNanos ? 0 : 1);
+            }
+        };
+
+        final Server  server;
+        final boolean backingOff;
+        final int     failures;
+        final long    latencyNanos;
+    }
+
+    /**
+     * One address of one server.
+     */
+    private static final class Candidate
+    {
+        Candidate(Server server, InetSocketAddress address)
+        {
+            this.server = server;
+            this.address = address;
+        }
+
+        final Server            server;
+        final InetSocketAddress address;
+    }
+
+    /**
+     * Produces the candidates for a list of servers, resolving each server's
+     * name only when its addresses are needed, so that a slow lookup for one
+     * server does not hold up attempts on the servers before it.
+     */
+    private static final class CandidateIterator implements Iterator<Candidate>
+    {
+        CandidateIterator(List<Server> servers, Set<Server> reported)
+        {
+            this.servers = servers.iterator();
+            this.pending = new LinkedList<Candidate>();
+            this.reported = reported;
+        }
+
+        public boolean hasNext()
+        {
+            while (this.pending.isEmpty() && this.servers.hasNext())
+            {
+                this.resolve(this.servers.next());
+            }
+
+            return !this.pending.isEmpty();
+        }
+
+        public Candidate next()
+        {
+            if (!this.hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+
+            return this.pending.removeFirst();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Resolves a server's addresses and queues them, alternating between
+         * address families and starting with the family the resolver put
+         * first.
+         */
+        private void resolve(Server server)
+        {
+            InetAddress[] addresses;
+
+            try
+            {
+                addresses = InetAddress.getAllByName(server.getName());
+            }
+            catch (UnknownHostException e)
+            {
+                log.info("Unable to resolve {0}: {1}", server, e.getMessage());
+                ServerConnector.recordFailure(server, this.reported);
+                return;
+            }
+
+            LinkedList<InetAddress> first = new LinkedList<InetAddress>();
+            LinkedList<InetAddress> second = new LinkedList<InetAddress>();
+            boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+
+            for (InetAddress address : addresses)
+            {
+                if ((address instanceof Inet6Address) == firstIsV6)
+                {
+                    first.add(address);
+                }
+                else
+                {
+                    second.add(address);
+                }
+            }
+
+            while (!first.isEmpty() || !second.isEmpty())
+            {
+                if (!first.isEmpty())
+                {
+                    this.add(server, first.removeFirst());
+                }
+
+                if (!second.isEmpty())
+                {
+                    this.add(server, second.removeFirst());
+                }
+            }
+        }
+
+        /**
+         * Queues one address, keeping the server's name with it so that SSL
+         * can verify the certificate.
+         */
+        private void add(Server server, InetAddress address)
+        {
+            try
+            {
+                InetAddress named = InetAddress.getByAddress(server.getName(), address.getAddress());
+                this.pending.add(new Candidate(server, new InetSocketAddress(named, server.getPort())));
+            }
+            catch (UnknownHostException e)
+            {
+                // Only thrown for an address of illegal length.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private final Iterator<Server>        servers;
+        private final LinkedList<Candidate>   pending;
+        private final Set<Server>             reported;
+    }
+
+    /**
+     * A single connection attempt, run on the shared worker pool. An attempt
+     * that connects after another has already won closes its connection.
+     */
+    private static final class Attempt implements Callable<Attempt>
+    {
+        Attempt(Candidate candidate, IRCClient client, AtomicBoolean won, Set<Server> reported)
+        {
+            this.candidate = candidate;
+            this.client = client;
+            this.won = won;
+            this.reported = reported;
+        }
+
+        public Attempt call()
+        {
+            long start = System.nanoTime();
+
+            try
+            {
+                this.transport = this.client.openTransport(this.candidate.address, this.candidate.server.getUseSsl());
+            }
+            catch (IOException e)
+            {
+                this.error = e;
+                ServerConnector.recordFailure(this.candidate.server, this.reported);
+                return this;
+            }
+            catch (RuntimeException e)
+            {
+                // Channels report some failures, such as an unresolved
+                // address, with unchecked exceptions. They only mean that
+                // this address cannot be reached.
+                this.error = new IOException(e.toString());
+                this.error.initCause(e);
+                ServerConnector.recordFailure(this.candidate.server, this.reported);
+                return this;
+            }
+
+            this.latencyNanos = System.nanoTime() - start;
+            this.reported.add(this.candidate.server);
+            this.candidate.server.recordSuccess(this.latencyNanos);
+
+            if (this.won.compareAndSet(false, true))
+            {
+                this.winner = true;
+            }
+            else
+            {
+                log.trace("Closing late connection to {0}.", this.candidate.server);
+
+                try
+                {
+                    this.transport.close();
+                }
+                catch (IOException e)
+                {
+                    log.trace("Error closing late connection.", e);
+                }
+            }
+
+            return this;
+        }
+
+        final Candidate     candidate;
+        final IRCClient     client;
+        final AtomicBoolean won;
+        final Set<Server>   reported;
+        IRCTransport        transport;
+        IOException         error;
+        long                latencyNanos;
+        boolean             winner;
+    }
+
+    /**
+     * The time to wait for an attempt before starting the next, in
+     * milliseconds.
+     */
+    private volatile int  attemptDelay;
+
+    /**
+     * The base of the reconnect backoff, in milliseconds.
+     */
+    private volatile int  backoffBase;
+
+    /**
+     * The longest reconnect delay, in milliseconds.
+     */
+    private volatile int  backoffMax;
+
+    /**
+     * The source of the backoff jitter.
+     */
+    private final Random  random;
+}
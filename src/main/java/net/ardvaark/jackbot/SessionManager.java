@@ -0,0 +1,149 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot;
+
+import net.ardvaark.jackbot.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Runs any number of {@link NetworkSession NetworkSessions} side by side in
+ * one JVM. Each session gets its own thread for its run loop, while I/O and
+ * background work go to the reactor and pools that every session shares (see
+ * {@link net.ardvaark.jackbot.io.IRCReactor IRCReactor} and
+ * {@link SharedExecutors SharedExecutors}).
+ * </p>
+ * <p>
+ * A session that fails only ends itself; the others carry on.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public class SessionManager
+{
+    private static final Log log = Log.getLogger(SessionManager.class);
+
+    /**
+     * Constructs an empty session manager.
+     */
+    public SessionManager()
+    {
+        this.sessions = new ArrayList<NetworkSession>();
+    }
+
+    /**
+     * Adds a session to the manager. Sessions must be added before the
+     * manager is started.
+     *
+     * @param session The session to add.
+     */
+    public synchronized void addSession(NetworkSession session)
+    {
+        if (this.executor != null)
+        {
+            throw new IllegalStateException("Sessions cannot be added after the manager has started.");
+        }
+
+        this.sessions.add(session);
+    }
+
+    /**
+     * Gets the sessions managed by this manager.
+     *
+     * @return An unmodifiable list of the sessions.
+     */
+    public synchronized List<NetworkSession> getSessions()
+    {
+        return Collections.unmodifiableList(new ArrayList<NetworkSession>(this.sessions));
+    }
+
+    /**
+     * Starts every session, each on its own thread.
+     */
+    public synchronized void start()
+    {
+        if (this.executor != null)
+        {
+            throw new IllegalStateException("The session manager has already been started.");
+        }
+
+        log.info("Starting {0} session(s).", this.sessions.size());
+
+        // The session threads are not daemons, so they keep the JVM alive.
+        this.executor = Executors.newFixedThreadPool(Math.max(1, this.sessions.size()));
+
+        for (NetworkSession session : this.sessions)
+        {
+            this.executor.execute(session);
+        }
+
+        this.executor.shutdown();
+    }
+
+    /**
+     * Waits for every session to end.
+     *
+     * @throws InterruptedException Thrown if the calling thread is
+     *         interrupted while waiting.
+     */
+    public void awaitTermination() throws InterruptedException
+    {
+        ExecutorService service;
+
+        synchronized (this)
+        {
+            service = this.executor;
+        }
+
+        if (service != null)
+        {
+            while (!service.awaitTermination(1, TimeUnit.MINUTES))
+            {
+                // Keep waiting.
+            }
+        }
+    }
+
+    /**
+     * Asks every session to stop.
+     */
+    public void stop()
+    {
+        for (NetworkSession session : this.getSessions())
+        {
+            session.stop();
+        }
+    }
+
+    /**
+     * The managed sessions.
+     */
+    private final List<NetworkSession> sessions;
+
+    /**
+     * Runs the sessions. Set when the manager is started.
+     */
+    private ExecutorService            executor;
+}
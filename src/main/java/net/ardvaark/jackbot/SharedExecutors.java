@@ -0,0 +1,126 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread pools shared by every {@link NetworkSession NetworkSession} in
+ * the JVM. Background work is handed to these pools rather than to pools
+ * owned by each session, so the number of threads does not grow with the
+ * number of networks. All of the threads are daemon threads.
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public final class SharedExecutors
+{
+    /**
+     * Gets the pool used for short-lived background work, such as
+     * asynchronous script tasks.
+     *
+     * @return The shared worker pool.
+     */
+    public static ExecutorService getWorkerPool()
+    {
+        return SharedExecutors.workerPool;
+    }
+
+    /**
+     * Gets the timing wheel used for large numbers of one-shot timers, such
+     * as script timeouts. Its tasks run on a fixed-size pool of their own,
+     * apart from the worker pool and the scheduler.
+     *
+     * @return The shared timing wheel.
+     */
+    public static TimingWheel getTimingWheel()
+    {
+        return SharedExecutors.timingWheel;
+    }
+
+    /**
+     * Gets the executor used for delayed and periodic work, such as lag
+     * probes.
+     *
+     * @return The shared scheduler.
+     */
+    public static ScheduledExecutorService getScheduler()
+    {
+        return SharedExecutors.scheduler;
+    }
+
+    /**
+     * Creates a factory for daemon threads with the given name prefix.
+     *
+     * @param prefix The prefix of each thread's name.
+     * @return The thread factory.
+     */
+    static ThreadFactory newThreadFactory(final String prefix)
+    {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, prefix + "-" + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private SharedExecutors()
+    {
+    }
+
+    /**
+     * The shared worker pool.
+     */
+    private static final ExecutorService          workerPool = Executors.newCachedThreadPool(SharedExecutors.newThreadFactory("JackBot Worker"));
+
+    /**
+     * The shared scheduler.
+     */
+    private static final ScheduledExecutorService scheduler  = Executors.newScheduledThreadPool(
+                                                                   Math.max(2, Runtime.getRuntime().availableProcessors()),
+                                                                   SharedExecutors.newThreadFactory("JackBot Scheduler"));
+
+    /**
+     * The shared timing wheel: 512 ticks of 10 milliseconds each, so one
+     * turn covers a little over five seconds. Due tasks queue for a
+     * fixed number of threads rather than blocking the timer thread.
+     */
+    private static final TimingWheel              timingWheel = new TimingWheel(
+                                                                   "JackBot Timer", 10, TimeUnit.MILLISECONDS, 512,
+                                                                   new ThreadPoolExecutor(
+                                                                       Math.max(2, Runtime.getRuntime().availableProcessors()),
+                                                                       Math.max(2, Runtime.getRuntime().availableProcessors()),
+                                                                       0L, TimeUnit.MILLISECONDS,
+                                                                       new LinkedBlockingQueue<Runnable>(),
+                                                                       SharedExecutors.newThreadFactory("JackBot Timer Worker")));
+}
@@ -0,0 +1,543 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot;
+
+import net.ardvaark.jackbot.logging.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * <p>
+ * A hashed timing wheel for large numbers of one-shot timers. Time is cut
+ * into ticks, and the wheel is a ring of buckets, one per tick. A timer goes
+ * into the bucket for the tick in which it falls due, along with the number
+ * of full turns of the wheel still to go. Scheduling and cancelling are
+ * O(1), however many timers are pending; the price is that a timer fires up
+ * to one tick late.
+ * </p>
+ * <p>
+ * A single timer thread turns the wheel. It never runs the timers' tasks
+ * itself: each task that falls due is handed to an executor, so a slow task
+ * delays nothing but itself. New and cancelled timers are queued by the
+ * calling thread and picked up by the timer thread on its next tick, so the
+ * buckets are only ever touched by the timer thread and need no locking.
+ * </p>
+ * <p>
+ * The wheel reports how late tasks start running, measured from the time they
+ * were due to the time the executor starts them.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public final class TimingWheel
+{
+    private static final Log log = Log.getLogger(TimingWheel.class);
+
+    /**
+     * Constructs and starts a wheel.
+     *
+     * @param name The name of the timer thread.
+     * @param tickDuration The length of a tick.
+     * @param unit The unit of <code>tickDuration</code>.
+     * @param ticksPerWheel The number of buckets. Rounded up to a power of
+     *        two.
+     * @param executor The executor that runs the tasks that fall due.
+     */
+    public TimingWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor)
+    {
+        if (tickDuration <= 0)
+        {
+            throw new IllegalArgumentException("tickDuration: " + tickDuration);
+        }
+
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 20))
+        {
+            throw new IllegalArgumentException("ticksPerWheel: " + ticksPerWheel);
+        }
+
+        int size = 1;
+
+        while (size < ticksPerWheel)
+        {
+            size <<= 1;
+        }
+
+        this.wheel = new Bucket[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            this.wheel[i] = new Bucket();
+        }
+
+        this.mask = size - 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.executor = executor;
+        this.added = new ConcurrentLinkedQueue<Timeout>();
+        this.cancelled = new ConcurrentLinkedQueue<Timeout>();
+        this.pending = new AtomicInteger();
+        this.startTime = System.nanoTime();
+
+        this.thread = new Thread(new Runnable() {
+            public void run()
+            {
+                turn();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Schedules a task to be run once after the given delay.
+     *
+     * @param task The task.
+     * @param delay The delay.
+     * @param unit The unit of <code>delay</code>.
+     * @return The timer, which can be used to cancel the task.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit)
+    {
+        if (task == null)
+        {
+            throw new NullPointerException();
+        }
+
+        long deadline = System.nanoTime() - this.startTime + unit.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(this, task, deadline);
+
+        this.pending.incrementAndGet();
+        this.added.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Gets the number of timers that have been scheduled and have neither
+     * fired nor been cancelled.
+     *
+     * @return The number of pending timers.
+     */
+    public int getPendingCount()
+    {
+        return this.pending.get();
+    }
+
+    /**
+     * Gets the number of tasks that have been started.
+     *
+     * @return The number of tasks run.
+     */
+    public synchronized long getFiredCount()
+    {
+        return this.fired;
+    }
+
+    /**
+     * Gets how late, on average, tasks have started.
+     *
+     * @return The average lateness in milliseconds, or zero if no task has
+     *         run.
+     */
+    public synchronized double getAverageLatenessMillis()
+    {
+        return this.fired == 0 ? 0.0 : this.totalLatenessNanos / 1e6 / this.fired;
+    }
+
+    /**
+     * Gets the latest any task has started.
+     *
+     * @return The greatest lateness in milliseconds.
+     */
+    public synchronized double getMaximumLatenessMillis()
+    {
+        return this.maxLatenessNanos / 1e6;
+    }
+
+    /**
+     * Records how late a task started.
+     *
+     * @param latenessNanos The lateness in nanoseconds.
+     */
+    private synchronized void recordLateness(long latenessNanos)
+    {
+        this.fired++;
+        this.totalLatenessNanos += latenessNanos;
+        this.maxLatenessNanos = Math.max(this.maxLatenessNanos, latenessNanos);
+    }
+
+    /**
+     * The timer thread's loop. Each tick, it drops cancelled timers, files
+     * new ones into their buckets, and expires the current bucket.
+     */
+    private void turn()
+    {
+        long tick = 0;
+
+        while (true)
+        {
+            long deadline = this.tickNanos * (tick + 1);
+
+            try
+            {
+                this.sleepUntil(deadline);
+            }
+            catch (InterruptedException e)
+            {
+                log.error("Timer thread interrupted; timers will no longer fire.", e);
+                return;
+            }
+
+            this.removeCancelled();
+            this.transferAdded(tick);
+
+            try
+            {
+                this.wheel[(int) (tick & this.mask)].expire(deadline);
+            }
+            catch (RuntimeException e)
+            {
+                log.error("Error expiring timers.", e);
+            }
+
+            tick++;
+        }
+    }
+
+    /**
+     * Sleeps until the given time since the wheel started.
+     *
+     * @param deadline The time to wake, in nanoseconds since the start.
+     * @throws InterruptedException Thrown if the thread is interrupted.
+     */
+    private void sleepUntil(long deadline) throws InterruptedException
+    {
+        long remaining;
+
+        while ((remaining = deadline - (System.nanoTime() - this.startTime)) > 0)
+        {
+            long millis = TimeUnit.NANOSECONDS.toMillis(remaining + 999999);
+            Thread.sleep(millis);
+        }
+    }
+
+    /**
+     * Files newly scheduled timers into their buckets. Timers that are
+     * already due go into the current bucket.
+     *
+     * @param tick The current tick.
+     */
+    private void transferAdded(long tick)
+    {
+        Timeout timeout;
+
+        while ((timeout = this.added.poll()) != null)
+        {
+            if (timeout.state != Timeout.PENDING)
+            {
+                continue;
+            }
+
+            long due = timeout.deadline / this.tickNanos;
+            timeout.remainingRounds = (due - tick) / this.wheel.length;
+            this.wheel[(int) (Math.max(due, tick) & this.mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Takes cancelled timers out of their buckets.
+     */
+    private void removeCancelled()
+    {
+        Timeout timeout;
+
+        while ((timeout = this.cancelled.poll()) != null)
+        {
+            if (timeout.bucket != null)
+            {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * A scheduled task. Returned by
+     * {@link TimingWheel#newTimeout(Runnable, long, TimeUnit) newTimeout()}.
+     */
+    public static final class Timeout implements Runnable
+    {
+        private static final int PENDING   = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED   = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        Timeout(TimingWheel wheel, Runnable task, long deadline)
+        {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, if it has not yet been handed to the executor.
+         *
+         * @return <code>true</code> if the task was cancelled.
+         */
+        public boolean cancel()
+        {
+            if (!STATE.compareAndSet(this, Timeout.PENDING, Timeout.CANCELLED))
+            {
+                return false;
+            }
+
+            this.wheel.pending.decrementAndGet();
+            this.wheel.cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Gets whether the task was cancelled.
+         *
+         * @return <code>true</code> if the task was cancelled.
+         */
+        public boolean isCancelled()
+        {
+            return this.state == Timeout.CANCELLED;
+        }
+
+        /**
+         * Gets whether the task has been handed to the executor.
+         *
+         * @return <code>true</code> if the timer has fired.
+         */
+        public boolean isExpired()
+        {
+            return this.state == Timeout.EXPIRED;
+        }
+
+        /**
+         * Runs the task on the executor, recording how late it started.
+         */
+        public void run()
+        {
+            this.wheel.recordLateness(Math.max(0, System.nanoTime() - this.wheel.startTime - this.deadline));
+
+            try
+            {
+                this.task.run();
+            }
+            catch (RuntimeException e)
+            {
+                log.error("Error running timer task.", e);
+            }
+        }
+
+        /**
+         * Hands the task to the executor, unless it was cancelled first.
+         * Timer thread only.
+         */
+        void expire()
+        {
+            if (!STATE.compareAndSet(this, Timeout.PENDING, Timeout.EXPIRED))
+            {
+                return;
+            }
+
+            this.wheel.pending.decrementAndGet();
+            this.wheel.executor.execute(this);
+        }
+
+        private final TimingWheel wheel;
+        private final Runnable    task;
+
+        /**
+         * When the task is due, in nanoseconds since the wheel started.
+         */
+        final long                deadline;
+
+        /**
+         * The number of turns of the wheel left before the task is due.
+         * Timer thread only.
+         */
+        long                      remainingRounds;
+
+        /**
+         * The bucket holding the timer, and its neighbours there. Timer
+         * thread only.
+         */
+        Bucket                    bucket;
+        Timeout                   next;
+        Timeout                   prev;
+
+        /**
+         * One of <code>PENDING</code>, <code>CANCELLED</code>, or
+         * <code>EXPIRED</code>.
+         */
+        volatile int              state;
+    }
+
+    /**
+     * One slot of the wheel: a doubly-linked list of timers, so that a
+     * cancelled timer can be unlinked in constant time. Timer thread only.
+     */
+    private static final class Bucket
+    {
+        void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+
+            if (this.head == null)
+            {
+                this.head = this.tail = timeout;
+            }
+            else
+            {
+                this.tail.next = timeout;
+                timeout.prev = this.tail;
+                this.tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout)
+        {
+            if (timeout.prev != null)
+            {
+                timeout.prev.next = timeout.next;
+            }
+            else
+            {
+                this.head = timeout.next;
+            }
+
+            if (timeout.next != null)
+            {
+                timeout.next.prev = timeout.prev;
+            }
+            else
+            {
+                this.tail = timeout.prev;
+            }
+
+            timeout.bucket = null;
+            timeout.next = null;
+            timeout.prev = null;
+        }
+
+        /**
+         * Fires every timer in the bucket that is due in this turn of the
+         * wheel, and counts down the rest.
+         *
+         * @param deadline The end of the current tick.
+         */
+        void expire(long deadline)
+        {
+            Timeout timeout = this.head;
+
+            while (timeout != null)
+            {
+                Timeout next = timeout.next;
+
+                if (timeout.remainingRounds <= 0)
+                {
+                    this.remove(timeout);
+                    timeout.expire();
+                }
+                else if (timeout.state == Timeout.CANCELLED)
+                {
+                    this.remove(timeout);
+                }
+                else
+                {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+
+        private Timeout head;
+        private Timeout tail;
+    }
+
+    /**
+     * The buckets.
+     */
+    private final Bucket[]                       wheel;
+
+    /**
+     * The mask that turns a tick into a bucket index.
+     */
+    private final int                            mask;
+
+    /**
+     * The length of a tick in nanoseconds.
+     */
+    private final long                           tickNanos;
+
+    /**
+     * Runs the tasks that fall due.
+     */
+    private final Executor                       executor;
+
+    /**
+     * Timers scheduled since the last tick.
+     */
+    private final ConcurrentLinkedQueue<Timeout> added;
+
+    /**
+     * Timers cancelled since the last tick.
+     */
+    private final ConcurrentLinkedQueue<Timeout> cancelled;
+
+    /**
+     * The number of timers neither fired nor cancelled.
+     */
+    private final AtomicInteger                  pending;
+
+    /**
+     * The <code>System.nanoTime()</code> at which the wheel started. Every
+     * deadline is relative to this.
+     */
+    private final long                           startTime;
+
+    /**
+     * The timer thread.
+     */
+    private final Thread                         thread;
+
+    /**
+     * The number of tasks run.
+     */
+    private long                                 fired;
+
+    /**
+     * The total lateness of the tasks run, in nanoseconds.
+     */
+    private long                                 totalLatenessNanos;
+
+    /**
+     * The greatest lateness of any task run, in nanoseconds.
+     */
+    private long                                 maxLatenessNanos;
+}
@@ -0,0 +1,545 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * A bounded queue of inbound lines or messages, with any number of producers
+ * and exactly one consumer. The queue is a fixed ring of slots. Producers
+ * claim slots with a compare-and-set, so adding an item never takes a lock
+ * or allocates.
+ * </p>
+ * <p>
+ * The consumer can push items back with {@link #unread(Object) unread()}, so
+ * that the next read sees them again in their original order. This supports
+ * code that looks ahead in the input and then puts back what it has read, as
+ * {@link net.ardvaark.jackbot.IRCMessageWaitRestore IRCMessageWaitRestore}
+ * does. Pushed-back items are kept apart from the ring and do not count
+ * against its capacity.
+ * </p>
+ * <p>
+ * When the ring is full, {@link #put(Object) put()} either waits for room or
+ * drops the item, according to the queue's {@link OverflowPolicy policy}.
+ * Producers that must never block can call {@link #offer(Object) offer()}
+ * and apply their own backpressure. The queue counts drops and full events
+ * and records its high-water mark.
+ * </p>
+ * <p>
+ * Every method that takes items out of the queue, or pushes them back, must
+ * only be called from the consumer thread.
+ * </p>
+ *
+ * @param <E> The type of the queued items.
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public final class IRCInputQueue<E>
+{
+    /**
+     * What {@link IRCInputQueue#put(Object) put()} does when the queue is
+     * full.
+     */
+    public static enum OverflowPolicy
+    {
+        /**
+         * Wait for the consumer to make room.
+         */
+        BLOCK,
+
+        /**
+         * Throw the new item away and count it as dropped.
+         */
+        DROP
+    }
+
+    /**
+     * How long a blocked producer sleeps between attempts, in nanoseconds.
+     */
+    private static final long PRODUCER_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Constructs a queue.
+     *
+     * @param capacity The number of items the ring can hold. This is rounded
+     *        up to a power of two.
+     * @param policy What to do when the ring is full.
+     */
+    public IRCInputQueue(int capacity, OverflowPolicy policy)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+
+        int size = 1;
+
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.policy = policy;
+        this.slots = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.tail = new AtomicLong();
+        this.unread = new ArrayList<E>();
+        this.droppedCount = new AtomicLong();
+        this.fullCount = new AtomicLong();
+        this.highWaterMark = new AtomicInteger();
+
+        for (int i = 0; i < size; i++)
+        {
+            this.sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an item to the queue if there is room, without waiting.
+     *
+     * @param item The item to add.
+     * @return <code>true</code> if the item was added, or <code>false</code>
+     *         if the queue is full or closed.
+     */
+    public boolean offer(E item)
+    {
+        if (item == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if (this.closed)
+        {
+            return false;
+        }
+
+        while (true)
+        {
+            long t = this.tail.get();
+            int index = (int) (t & this.mask);
+            long diff = this.sequences.get(index) - t;
+
+            if (diff == 0)
+            {
+                if (this.tail.compareAndSet(t, t + 1))
+                {
+                    this.slots.set(index, item);
+                    this.sequences.set(index, t + 1);
+                    this.recordSize((int) (t + 1 - this.head));
+                    this.signalConsumer();
+                    return true;
+                }
+            }
+            else if (diff < 0)
+            {
+                this.fullCount.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds an item to the queue. If the queue is full, this either waits for
+     * room or drops the item, according to the queue's policy.
+     *
+     * @param item The item to add.
+     * @return <code>true</code> if the item was added, or <code>false</code>
+     *         if it was dropped.
+     * @throws InterruptedException Thrown if the thread is interrupted while
+     *         waiting for room.
+     */
+    public boolean put(E item) throws InterruptedException
+    {
+        if (this.offer(item))
+        {
+            return true;
+        }
+
+        if (this.policy == OverflowPolicy.BLOCK)
+        {
+            while (!this.closed)
+            {
+                LockSupport.parkNanos(IRCInputQueue.PRODUCER_BACKOFF_NANOS);
+
+                if (Thread.interrupted())
+                {
+                    throw new InterruptedException();
+                }
+
+                if (this.offer(item))
+                {
+                    return true;
+                }
+            }
+        }
+
+        this.droppedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Takes the next item, without waiting. Items that were pushed back with
+     * {@link #unread(Object) unread()} come first. Consumer thread only.
+     *
+     * @return The next item, or <code>null</code> if the queue is empty.
+     */
+    public E poll()
+    {
+        int unreadSize = this.unread.size();
+
+        if (unreadSize > 0)
+        {
+            return this.unread.remove(unreadSize - 1);
+        }
+
+        long h = this.head;
+        int index = (int) (h & this.mask);
+
+        if (this.sequences.get(index) != h + 1)
+        {
+            return null;
+        }
+
+        E item = this.slots.get(index);
+        this.slots.set(index, null);
+        this.sequences.set(index, h + this.capacity);
+        this.head = h + 1;
+
+        return item;
+    }
+
+    /**
+     * Takes the next item, waiting for one if necessary. Consumer thread
+     * only.
+     *
+     * @return The next item, or <code>null</code> if the queue is empty and
+     *         has been {@link #close() closed}.
+     * @throws InterruptedException Thrown if the thread is interrupted while
+     *         waiting.
+     */
+    public E take() throws InterruptedException
+    {
+        return this.await(false, 0);
+    }
+
+    /**
+     * Takes the next item, waiting up to the given time for one. Consumer
+     * thread only.
+     *
+     * @param timeout How long to wait.
+     * @param unit The unit of <code>timeout</code>.
+     * @return The next item, or <code>null</code> if none arrived in time or
+     *         the queue is empty and has been {@link #close() closed}.
+     * @throws InterruptedException Thrown if the thread is interrupted while
+     *         waiting.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return this.await(true, unit.toNanos(timeout));
+    }
+
+    /**
+     * Pushes an item back onto the front of the queue, so that it is the next
+     * one taken. Consumer thread only.
+     *
+     * @param item The item to push back.
+     */
+    public void unread(E item)
+    {
+        if (item == null)
+        {
+            throw new NullPointerException();
+        }
+
+        this.unread.add(item);
+    }
+
+    /**
+     * Pushes a list of items back onto the front of the queue. The first item
+     * in the list will be the next one taken, and the rest follow in order.
+     * Consumer thread only.
+     *
+     * @param items The items to push back.
+     */
+    public void unreadAll(List<? extends E> items)
+    {
+        for (int i = items.size() - 1; i >= 0; i--)
+        {
+            this.unread(items.get(i));
+        }
+    }
+
+    /**
+     * Gets the number of items in the queue, including any that were pushed
+     * back. This is exact on the consumer thread and a snapshot on any other.
+     *
+     * @return The number of items.
+     */
+    public int size()
+    {
+        return (int) (this.tail.get() - this.head) + this.unread.size();
+    }
+
+    /**
+     * Determines if the queue is empty. Consumer thread only.
+     *
+     * @return <code>true</code> if there is nothing to take.
+     */
+    public boolean isEmpty()
+    {
+        return this.size() == 0;
+    }
+
+    /**
+     * Gets the number of items that can be added to the ring before it is
+     * full.
+     *
+     * @return The number of free slots.
+     */
+    public int remainingCapacity()
+    {
+        return this.capacity - (int) (this.tail.get() - this.head);
+    }
+
+    /**
+     * Gets the number of items the ring can hold.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity()
+    {
+        return this.capacity;
+    }
+
+    /**
+     * Closes the queue. Nothing more can be added, and a consumer waiting on
+     * an empty queue wakes up. Items already in the queue can still be taken.
+     */
+    public void close()
+    {
+        this.closed = true;
+        this.signalConsumer();
+    }
+
+    /**
+     * Determines if the queue has been closed.
+     *
+     * @return <code>true</code> if the queue is closed.
+     */
+    public boolean isClosed()
+    {
+        return this.closed;
+    }
+
+    /**
+     * Gets the number of items dropped because the queue was full.
+     *
+     * @return The number of dropped items.
+     */
+    public long getDroppedCount()
+    {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * Gets the number of times an item could not be added straight away
+     * because the queue was full.
+     *
+     * @return The number of full events.
+     */
+    public long getFullCount()
+    {
+        return this.fullCount.get();
+    }
+
+    /**
+     * Gets the most items the ring has held at once.
+     *
+     * @return The high-water mark.
+     */
+    public int getHighWaterMark()
+    {
+        return this.highWaterMark.get();
+    }
+
+    /**
+     * Waits for the next item.
+     *
+     * @param timed Whether to give up after <code>nanos</code>.
+     * @param nanos How long to wait, if timed.
+     * @return The item, or <code>null</code>.
+     * @throws InterruptedException Thrown if the thread is interrupted.
+     */
+    private E await(boolean timed, long nanos) throws InterruptedException
+    {
+        E item = this.poll();
+
+        if (item != null)
+        {
+            return item;
+        }
+
+        long deadline = timed ? System.nanoTime() + nanos : 0;
+        this.consumer = Thread.currentThread();
+
+        try
+        {
+            while (true)
+            {
+                // The consumer is published before checking again, so a
+                // producer that adds an item after this check will wake it.
+                item = this.poll();
+
+                if (item != null || this.closed)
+                {
+                    return item;
+                }
+
+                if (timed)
+                {
+                    long remaining = deadline - System.nanoTime();
+
+                    if (remaining <= 0)
+                    {
+                        return null;
+                    }
+
+                    LockSupport.parkNanos(remaining);
+                }
+                else
+                {
+                    LockSupport.park();
+                }
+
+                if (Thread.interrupted())
+                {
+                    throw new InterruptedException();
+                }
+            }
+        }
+        finally
+        {
+            this.consumer = null;
+        }
+    }
+
+    /**
+     * Wakes the consumer if it is waiting.
+     */
+    private void signalConsumer()
+    {
+        Thread waiter = this.consumer;
+
+        if (waiter != null)
+        {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Raises the high-water mark if the given size exceeds it.
+     *
+     * @param size The size of the ring after an item was added.
+     */
+    private void recordSize(int size)
+    {
+        int mark = this.highWaterMark.get();
+
+        while (size > mark && !this.highWaterMark.compareAndSet(mark, size))
+        {
+            mark = this.highWaterMark.get();
+        }
+    }
+
+    /**
+     * The number of slots in the ring. Always a power of two.
+     */
+    private final int                     capacity;
+
+    /**
+     * The mask that turns a position into a slot index.
+     */
+    private final int                     mask;
+
+    /**
+     * What to do when the ring is full.
+     */
+    private final OverflowPolicy          policy;
+
+    /**
+     * The slots of the ring.
+     */
+    private final AtomicReferenceArray<E> slots;
+
+    /**
+     * For each slot, the position at which it can next be written, or that
+     * position plus one once it has been written and can be read.
+     */
+    private final AtomicLongArray         sequences;
+
+    /**
+     * The next position to be claimed by a producer.
+     */
+    private final AtomicLong              tail;
+
+    /**
+     * The next position to be read. Only written by the consumer.
+     */
+    private volatile long                 head;
+
+    /**
+     * Items pushed back by the consumer, with the next one to be read at the
+     * end. Only touched by the consumer.
+     */
+    private final ArrayList<E>            unread;
+
+    /**
+     * The consumer, while it is waiting for an item.
+     */
+    private volatile Thread               consumer;
+
+    /**
+     * Whether the queue has been closed.
+     */
+    private volatile boolean              closed;
+
+    /**
+     * The number of dropped items.
+     */
+    private final AtomicLong              droppedCount;
+
+    /**
+     * The number of full events.
+     */
+    private final AtomicLong              fullCount;
+
+    /**
+     * The most items the ring has held at once.
+     */
+    private final AtomicInteger           highWaterMark;
+}
@@ -0,0 +1,247 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.io;
+
+import net.ardvaark.jackbot.logging.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>
+ * A single-threaded <code>Selector</code> loop that services any number of
+ * {@link NioTransport NioTransport} connections. The reactor thread does all
+ * of the socket reads, and finishes any writes that could not be completed by
+ * the writing thread without blocking.
+ * </p>
+ * <p>
+ * Changes to the selector's registrations are only ever made on the reactor
+ * thread. Other threads hand them over with {@link #execute(Runnable)
+ * execute()}, which queues the change and wakes the selector.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public final class IRCReactor implements Runnable
+{
+    private static final Log log = Log.getLogger(IRCReactor.class);
+
+    /**
+     * The size of the direct buffer into which the reactor reads.
+     */
+    public static final int READ_BUFFER_SIZE = 1024 * 16;
+
+    /**
+     * Gets the reactor shared by every connection in the JVM, starting it if
+     * it has not been started yet.
+     *
+     * @return The shared reactor.
+     * @throws IOException Thrown if the selector cannot be opened.
+     */
+    public static synchronized IRCReactor getDefault() throws IOException
+    {
+        if (IRCReactor.defaultReactor == null)
+        {
+            IRCReactor.defaultReactor = new IRCReactor("JackBot IRC Reactor");
+        }
+
+        return IRCReactor.defaultReactor;
+    }
+
+    /**
+     * Constructs and starts a reactor running on a daemon thread with the
+     * given name.
+     *
+     * @param threadName The name of the reactor thread.
+     * @throws IOException Thrown if the selector cannot be opened.
+     */
+    public IRCReactor(String threadName) throws IOException
+    {
+        this.selector = Selector.open();
+        this.pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+        this.readBuffer = ByteBuffer.allocateDirect(IRCReactor.READ_BUFFER_SIZE);
+        this.thread = new Thread(this, threadName);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Runs the given task on the reactor thread. If called from the reactor
+     * thread itself, the task is run immediately.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task)
+    {
+        if (Thread.currentThread() == this.thread)
+        {
+            task.run();
+        }
+        else
+        {
+            this.pendingTasks.add(task);
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a connected channel with the reactor. The channel is put into
+     * non-blocking mode and the transport is notified whenever it can be read.
+     *
+     * @param channel The connected channel.
+     * @param transport The transport that owns the channel.
+     * @throws IOException Thrown if the channel cannot be made non-blocking.
+     */
+    void register(final SocketChannel channel, final NioTransport transport) throws IOException
+    {
+        channel.configureBlocking(false);
+
+        this.execute(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, transport);
+                    transport.setKey(key);
+                }
+                catch (IOException e)
+                {
+                    transport.closed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets or clears an interest bit on a key. Must be run on the reactor
+     * thread.
+     *
+     * @param key The key to change.
+     * @param op The interest bit.
+     * @param on Whether the bit should be set or cleared.
+     */
+    static void setInterest(SelectionKey key, int op, boolean on)
+    {
+        if (key != null && key.isValid())
+        {
+            int ops = key.interestOps();
+            key.interestOps(on ? ops | op : ops & ~op);
+        }
+    }
+
+    /**
+     * The reactor loop. Waits for ready channels, and then runs any queued
+     * tasks and services the ready channels.
+     */
+    public void run()
+    {
+        log.trace("Reactor started.");
+
+        while (true)
+        {
+            try
+            {
+                this.selector.select();
+            }
+            catch (IOException e)
+            {
+                log.error("The reactor selector failed.", e);
+                return;
+            }
+
+            Runnable task;
+
+            while ((task = this.pendingTasks.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    log.error("Error running reactor task.", e);
+                }
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+
+            while (keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                NioTransport transport = (NioTransport) key.attachment();
+
+                try
+                {
+                    if (key.isReadable())
+                    {
+                        this.readBuffer.clear();
+                        transport.readable(this.readBuffer);
+                    }
+
+                    if (key.isValid() && key.isWritable())
+                    {
+                        transport.writable();
+                    }
+                }
+                catch (CancelledKeyException e)
+                {
+                    transport.closed(null);
+                }
+                catch (IOException e)
+                {
+                    transport.closed(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The reactor shared by every connection in the JVM.
+     */
+    private static IRCReactor                   defaultReactor;
+
+    /**
+     * The selector that watches every registered channel.
+     */
+    private Selector                            selector;
+
+    /**
+     * Tasks waiting to be run on the reactor thread.
+     */
+    private ConcurrentLinkedQueue<Runnable>     pendingTasks;
+
+    /**
+     * The direct buffer into which every read is made. Only the reactor
+     * thread touches it.
+     */
+    private ByteBuffer                          readBuffer;
+
+    /**
+     * The reactor thread.
+     */
+    private Thread                              thread;
+}
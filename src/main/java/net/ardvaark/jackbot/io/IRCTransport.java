@@ -0,0 +1,163 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * The line-oriented connection between an
+ * {@link net.ardvaark.jackbot.IRCClient IRCClient} and an IRC server. The
+ * client only ever deals in whole lines; how the bytes get to and from the
+ * server is up to the implementation.
+ *
+ * @see SocketTransport
+ * @see NioTransport
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public interface IRCTransport
+{
+    /**
+     * Connects the transport to the given server. The connection attempt,
+     * including any SSL handshake, gives up after the connect timeout.
+     *
+     * @param address The address of the server. If it was resolved from a
+     *        host name, the name is used to verify an SSL connection.
+     * @param useSsl Whether the connection should be made over SSL.
+     * @throws IOException Thrown if the connection cannot be made.
+     */
+    public void connect(InetSocketAddress address, boolean useSsl) throws IOException;
+
+    /**
+     * Sets the amount of time a call to
+     * {@link #connect(InetSocketAddress, boolean) connect()} will wait for the
+     * connection to be made.
+     *
+     * @param millis The connect timeout in milliseconds, or zero to wait for
+     *        as long as the operating system allows.
+     */
+    public void setConnectTimeout(int millis);
+
+    /**
+     * Sets the amount of time a call to {@link #readLine() readLine()} will
+     * wait for a line before timing out. Must be called before
+     * {@link #connect(InetSocketAddress, boolean) connect()}.
+     *
+     * @param millis The read timeout in milliseconds.
+     */
+    public void setReadTimeout(int millis);
+
+    /**
+     * Sets the minimum size of the socket's receive buffer. Must be called
+     * before {@link #connect(InetSocketAddress, boolean) connect()}.
+     *
+     * @param size The minimum receive buffer size in bytes.
+     */
+    public void setReceiveBufferMinimumSize(int size);
+
+    /**
+     * Sets the character sets used on the wire. Must be called before
+     * {@link #connect(InetSocketAddress, boolean) connect()}.
+     *
+     * @param charset The character set used to encode and decode lines.
+     * @param fallback The character set used to decode lines that are not
+     *        valid in <code>charset</code>, or <code>null</code>.
+     */
+    public void setCharsets(Charset charset, Charset fallback);
+
+    /**
+     * Sets the observer that sees each line as soon as the transport has read
+     * it, before the line waits for {@link #readLine() readLine()}. Must be
+     * called before the transport is connected.
+     *
+     * @param observer The observer, or <code>null</code> for none.
+     */
+    public void setLineObserver(LineObserver observer);
+
+    /**
+     * Reads the next line from the server, without the line terminator. This
+     * method blocks until a line is available or the read timeout expires.
+     *
+     * @return The next line from the server.
+     * @throws java.net.SocketTimeoutException Thrown if no line arrives
+     *         before the read timeout expires.
+     * @throws java.io.EOFException Thrown if the server has closed the
+     *         connection.
+     * @throws IOException Thrown if the underlying read fails.
+     */
+    public String readLine() throws IOException;
+
+    /**
+     * Determines whether a call to {@link #readLine() readLine()} can
+     * return without blocking.
+     *
+     * @return <code>true</code> if a line is known to be available.
+     * @throws IOException Thrown if the underlying channel fails.
+     */
+    public boolean ready() throws IOException;
+
+    /**
+     * Writes a line to the server. The line terminator is added by the
+     * transport.
+     *
+     * @param line The line to write, without a terminator.
+     * @throws IOException Thrown if the underlying write fails.
+     */
+    public void writeLine(String line) throws IOException;
+
+    /**
+     * Writes several lines to the server in a single write, where the
+     * transport allows it.
+     *
+     * @param lines The lines to write, without terminators.
+     * @throws IOException Thrown if the underlying write fails.
+     */
+    public void writeLines(List<String> lines) throws IOException;
+
+    /**
+     * Closes the connection to the server.
+     *
+     * @throws IOException Thrown if the underlying close fails.
+     */
+    public void close() throws IOException;
+
+    /**
+     * Gets whether the transport is connected to the server.
+     *
+     * @return <code>true</code> if the transport is connected.
+     */
+    public boolean isConnected();
+
+    /**
+     * Sees the lines a transport reads from the server as they arrive.
+     */
+    public interface LineObserver
+    {
+        /**
+         * Called with each line read from the server, in order. It may be
+         * called on the transport's own I/O thread, so it must return quickly
+         * and never block.
+         *
+         * @param line The line, without its terminator.
+         */
+        public void lineRead(String line);
+    }
+}
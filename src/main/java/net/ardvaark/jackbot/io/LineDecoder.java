@@ -0,0 +1,289 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * <p>
+ * Incrementally frames raw bytes from the server into lines. Bytes are fed in
+ * whatever chunks the network delivers them, and complete lines are pulled out
+ * with {@link #nextLine() nextLine()}. A partial line is kept until the rest
+ * of it arrives.
+ * </p>
+ * <p>
+ * Like <code>BufferedReader.readLine()</code>, a line may be terminated by a
+ * CR, an LF, or a CR LF pair, even when the pair is split across two reads.
+ * A line that grows past {@link #MAXIMUM_LINE_LENGTH} bytes without a
+ * terminator is handed out as-is, so a misbehaving server cannot make the
+ * buffer grow without bound.
+ * </p>
+ * <p>
+ * If a fallback character set is given, a line that is not valid in the
+ * server's character set is decoded with the fallback instead. This is the
+ * usual way to cope with clients that still send Latin-1 on a UTF-8 network.
+ * Lines made up entirely of ASCII, which are most of them, are never checked.
+ * </p>
+ * <p>
+ * This class is not synchronized.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public final class LineDecoder
+{
+    /**
+     * The longest line, in bytes, that will be buffered while waiting for a
+     * terminator.
+     */
+    public static final int MAXIMUM_LINE_LENGTH = 16384;
+
+    /**
+     * Constructs a decoder that turns bytes into strings with the given
+     * character set.
+     *
+     * @param charset The character set of the server.
+     */
+    public LineDecoder(Charset charset)
+    {
+        this(charset, null);
+    }
+
+    /**
+     * Constructs a decoder that turns bytes into strings with the given
+     * character set, falling back to another for lines that are not valid in
+     * the first.
+     *
+     * @param charset The character set of the server.
+     * @param fallback The character set to use for invalid lines, or
+     *        <code>null</code> to replace the invalid bytes instead.
+     */
+    public LineDecoder(Charset charset, Charset fallback)
+    {
+        this.charset = charset;
+        this.fallback = fallback;
+        this.buffer = new byte[1024];
+
+        if (fallback != null)
+        {
+            this.strictDecoder = charset.newDecoder()
+                                        .onMalformedInput(CodingErrorAction.REPORT)
+                                        .onUnmappableCharacter(CodingErrorAction.REPORT);
+        }
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer to the decoder. The
+     * buffer's position is advanced to its limit.
+     *
+     * @param data The bytes read from the server.
+     */
+    public void feed(ByteBuffer data)
+    {
+        int count = data.remaining();
+        this.ensureCapacity(count);
+        data.get(this.buffer, this.end, count);
+        this.end += count;
+    }
+
+    /**
+     * Appends bytes to the decoder.
+     *
+     * @param data The array holding the bytes.
+     * @param offset The offset of the first byte to append.
+     * @param length The number of bytes to append.
+     */
+    public void feed(byte[] data, int offset, int length)
+    {
+        this.ensureCapacity(length);
+        System.arraycopy(data, offset, this.buffer, this.end, length);
+        this.end += length;
+    }
+
+    /**
+     * Gets the next complete line from the decoder.
+     *
+     * @return The next line, without its terminator, or <code>null</code> if
+     *         no complete line has been received yet.
+     */
+    public String nextLine()
+    {
+        if (this.skipLF && this.start < this.end)
+        {
+            if (this.buffer[this.start] == '\n')
+            {
+                this.start++;
+            }
+
+            this.skipLF = false;
+        }
+
+        if (this.scan < this.start)
+        {
+            this.scan = this.start;
+        }
+
+        while (this.scan < this.end)
+        {
+            byte b = this.buffer[this.scan];
+
+            if (b == '\r' || b == '\n')
+            {
+                String line = this.decode(this.start, this.scan - this.start);
+
+                this.skipLF = (b == '\r');
+                this.start = this.scan + 1;
+                this.scan = this.start;
+
+                return line;
+            }
+
+            this.nonAscii |= b < 0;
+            this.scan++;
+        }
+
+        if (this.end - this.start >= LineDecoder.MAXIMUM_LINE_LENGTH)
+        {
+            String line = this.decode(this.start, this.end - this.start);
+            this.start = this.end;
+            return line;
+        }
+
+        return null;
+    }
+
+    /**
+     * Decodes a line from the buffer.
+     *
+     * @param offset The index of the first byte of the line.
+     * @param length The number of bytes in the line.
+     * @return The decoded line.
+     */
+    private String decode(int offset, int length)
+    {
+        boolean check = this.nonAscii && this.fallback != null;
+        this.nonAscii = false;
+
+        if (check)
+        {
+            try
+            {
+                return this.strictDecoder.decode(ByteBuffer.wrap(this.buffer, offset, length)).toString();
+            }
+            catch (CharacterCodingException e)
+            {
+                return new String(this.buffer, offset, length, this.fallback);
+            }
+        }
+
+        return new String(this.buffer, offset, length, this.charset);
+    }
+
+    /**
+     * Discards any buffered data.
+     */
+    public void reset()
+    {
+        this.start = 0;
+        this.end = 0;
+        this.scan = 0;
+        this.skipLF = false;
+        this.nonAscii = false;
+    }
+
+    /**
+     * Makes room in the buffer for the given number of bytes, first by sliding
+     * any unconsumed data to the front and then, if necessary, by growing the
+     * buffer.
+     *
+     * @param count The number of bytes about to be appended.
+     */
+    private void ensureCapacity(int count)
+    {
+        if (this.start > 0)
+        {
+            int pending = this.end - this.start;
+            System.arraycopy(this.buffer, this.start, this.buffer, 0, pending);
+            this.scan = Math.max(this.scan - this.start, 0);
+            this.end = pending;
+            this.start = 0;
+        }
+
+        if (this.end + count > this.buffer.length)
+        {
+            int newLength = Math.max(this.buffer.length * 2, this.end + count);
+            byte[] newBuffer = new byte[newLength];
+            System.arraycopy(this.buffer, 0, newBuffer, 0, this.end);
+            this.buffer = newBuffer;
+        }
+    }
+
+    /**
+     * The character set used to turn bytes into strings.
+     */
+    private final Charset charset;
+
+    /**
+     * The character set used for lines that are not valid in
+     * <code>charset</code>, or <code>null</code>.
+     */
+    private final Charset fallback;
+
+    /**
+     * A decoder for <code>charset</code> that reports invalid input. Only
+     * set when there is a fallback.
+     */
+    private CharsetDecoder strictDecoder;
+
+    /**
+     * The buffered bytes.
+     */
+    private byte[]        buffer;
+
+    /**
+     * The index of the first unconsumed byte.
+     */
+    private int           start;
+
+    /**
+     * The index one past the last buffered byte.
+     */
+    private int           end;
+
+    /**
+     * The index at which the search for the next terminator resumes, so that
+     * bytes are only ever scanned once.
+     */
+    private int           scan;
+
+    /**
+     * Whether the last line ended in a CR, in which case a leading LF belongs
+     * to that terminator.
+     */
+    private boolean       skipLF;
+
+    /**
+     * Whether the line being scanned has any bytes outside of ASCII.
+     */
+    private boolean       nonAscii;
+}
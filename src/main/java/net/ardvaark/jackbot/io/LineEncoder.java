@@ -0,0 +1,153 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.io;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+
+/**
+ * <p>
+ * Encodes outgoing lines straight into a reusable byte buffer, adding the CR
+ * LF terminator to each. Several lines can be encoded into the buffer at once
+ * so that they go to the server in a single write. No intermediate strings
+ * are built, and the buffer only grows when a batch is larger than any seen
+ * before.
+ * </p>
+ * <p>
+ * Characters the character set cannot represent are replaced rather than
+ * failing the write.
+ * </p>
+ * <p>
+ * This class is not synchronized.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public final class LineEncoder
+{
+    /**
+     * The initial size of the buffer, in bytes. Enough for a few full IRC
+     * lines.
+     */
+    public static final int INITIAL_BUFFER_SIZE = 2048;
+
+    /**
+     * Constructs an encoder for the given character set.
+     *
+     * @param charset The character set of the server.
+     */
+    public LineEncoder(Charset charset)
+    {
+        this.encoder = charset.newEncoder()
+                              .onMalformedInput(CodingErrorAction.REPLACE)
+                              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.buffer = ByteBuffer.allocate(LineEncoder.INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * Encodes one line into the buffer.
+     *
+     * @param line The line, without a terminator.
+     * @return The buffer, flipped and ready to be written. It is only valid
+     *         until the next call.
+     */
+    public ByteBuffer encode(CharSequence line)
+    {
+        this.buffer.clear();
+        this.append(line);
+        this.buffer.flip();
+        return this.buffer;
+    }
+
+    /**
+     * Encodes several lines into the buffer, one after the other.
+     *
+     * @param lines The lines, without terminators.
+     * @return The buffer, flipped and ready to be written. It is only valid
+     *         until the next call.
+     */
+    public ByteBuffer encode(List<? extends CharSequence> lines)
+    {
+        this.buffer.clear();
+
+        for (CharSequence line : lines)
+        {
+            this.append(line);
+        }
+
+        this.buffer.flip();
+        return this.buffer;
+    }
+
+    /**
+     * Appends a line and its terminator to the buffer, growing the buffer as
+     * needed.
+     *
+     * @param line The line.
+     */
+    private void append(CharSequence line)
+    {
+        CharBuffer in = CharBuffer.wrap(line);
+
+        this.encoder.reset();
+
+        while (this.encoder.encode(in, this.buffer, true).isOverflow())
+        {
+            this.grow();
+        }
+
+        while (this.encoder.flush(this.buffer).isOverflow())
+        {
+            this.grow();
+        }
+
+        if (this.buffer.remaining() < 2)
+        {
+            this.grow();
+        }
+
+        this.buffer.put((byte) '\r');
+        this.buffer.put((byte) '\n');
+    }
+
+    /**
+     * Doubles the size of the buffer, keeping what has been encoded so far.
+     */
+    private void grow()
+    {
+        ByteBuffer bigger = ByteBuffer.allocate(this.buffer.capacity() * 2);
+        this.buffer.flip();
+        bigger.put(this.buffer);
+        this.buffer = bigger;
+    }
+
+    /**
+     * The encoder for the server's character set.
+     */
+    private final CharsetEncoder encoder;
+
+    /**
+     * The reusable output buffer.
+     */
+    private ByteBuffer           buffer;
+}
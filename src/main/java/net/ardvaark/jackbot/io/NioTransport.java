@@ -0,0 +1,572 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.io;
+
+import net.ardvaark.jackbot.logging.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * A non-blocking transport built on a <code>SocketChannel</code> that is
+ * serviced by an {@link IRCReactor IRCReactor}. The reactor thread reads
+ * whatever the server sends, frames it into lines with a
+ * {@link LineDecoder LineDecoder}, and queues the lines for
+ * {@link #readLine() readLine()}. Many connections can share one reactor, so
+ * no thread sits blocked in a socket read for each connection.
+ * </p>
+ * <p>
+ * Writes are encoded by a {@link LineEncoder LineEncoder} into a reused
+ * buffer and attempted immediately on the calling thread, a batch of lines in
+ * one write. Anything the socket will not take right away is copied, kept in
+ * order, and finished by the reactor when the channel becomes writable.
+ * </p>
+ * <p>
+ * The line queue is bounded. When it fills up, the reactor stops reading from
+ * the channel, so a flood from the server waits in the socket buffers rather
+ * than in the heap. Reading resumes once the reader has drained the queue to
+ * half full.
+ * </p>
+ * <p>
+ * SSL is not supported by this transport.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public class NioTransport implements IRCTransport
+{
+    private static final Log log = Log.getLogger(NioTransport.class);
+
+    /**
+     * The number of lines that can be waiting to be read before the reactor
+     * stops reading from the channel.
+     */
+    public static final int LINE_QUEUE_CAPACITY = 4096;
+
+    /**
+     * Constructs a transport serviced by the given reactor.
+     *
+     * @param reactor The reactor that will service this transport's channel.
+     */
+    public NioTransport(IRCReactor reactor)
+    {
+        this.reactor = reactor;
+        this.charset = Charset.forName("UTF-8");
+        this.lines = new IRCInputQueue<String>(NioTransport.LINE_QUEUE_CAPACITY, IRCInputQueue.OverflowPolicy.DROP);
+        this.pendingWrites = new LinkedList<ByteBuffer>();
+        this.resumePending = new AtomicBoolean();
+    }
+
+    /**
+     * Opens the channel, connects it to the server, and hands it to the
+     * reactor.
+     *
+     * @param address The address of the server.
+     * @param useSsl Must be <code>false</code>.
+     * @throws IOException Thrown if the connection cannot be made.
+     */
+    public void connect(InetSocketAddress address, boolean useSsl) throws IOException
+    {
+        if (useSsl)
+        {
+            throw new IOException("SSL connections are not supported by the NIO transport.");
+        }
+
+        this.decoder = new LineDecoder(this.charset, this.fallback);
+        this.encoder = new LineEncoder(this.charset);
+        this.channel = SocketChannel.open();
+
+        if (this.channel.socket().getReceiveBufferSize() < this.receiveBufferMinimumSize)
+        {
+            this.channel.socket().setReceiveBufferSize(this.receiveBufferMinimumSize);
+        }
+
+        try
+        {
+            // The channel is still blocking here, so the socket's own connect
+            // can be used to get a timeout.
+            this.channel.socket().connect(address, this.connectTimeout);
+        }
+        catch (IOException e)
+        {
+            this.channel.close();
+            throw e;
+        }
+
+        this.reactor.register(this.channel, this);
+    }
+
+    public void setConnectTimeout(int millis)
+    {
+        this.connectTimeout = millis;
+    }
+
+    public void setReadTimeout(int millis)
+    {
+        this.readTimeout = millis;
+    }
+
+    public void setReceiveBufferMinimumSize(int size)
+    {
+        this.receiveBufferMinimumSize = size;
+    }
+
+    public void setCharsets(Charset charset, Charset fallback)
+    {
+        this.charset = charset;
+        this.fallback = fallback;
+    }
+
+    public void setLineObserver(LineObserver observer)
+    {
+        this.observer = observer;
+    }
+
+    /**
+     * Takes the next line that the reactor has read from the server, waiting
+     * up to the read timeout for one to arrive.
+     *
+     * @return The next line from the server.
+     * @throws SocketTimeoutException Thrown if no line arrives in time.
+     * @throws EOFException Thrown if the connection has been closed and every
+     *         line has been read.
+     */
+    public String readLine() throws IOException
+    {
+        String line;
+
+        try
+        {
+            if (this.readTimeout > 0)
+            {
+                line = this.lines.poll(this.readTimeout, TimeUnit.MILLISECONDS);
+            }
+            else
+            {
+                line = this.lines.take();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the server.");
+        }
+
+        if (line == null)
+        {
+            if (!this.lines.isClosed())
+            {
+                throw new SocketTimeoutException("Read timed out.");
+            }
+
+            if (this.closedCause != null)
+            {
+                IOException e = new EOFException("The connection to the server was closed.");
+                e.initCause(this.closedCause);
+                throw e;
+            }
+
+            throw new EOFException("End of stream received from server.");
+        }
+
+        if (this.readPaused
+            && this.lines.size() <= this.lines.getCapacity() / 2
+            && this.resumePending.compareAndSet(false, true))
+        {
+            this.reactor.execute(new Runnable() {
+                public void run()
+                {
+                    resumeReading();
+                }
+            });
+        }
+
+        return line;
+    }
+
+    public boolean ready()
+    {
+        return !this.lines.isEmpty();
+    }
+
+    /**
+     * Writes a line to the channel. As much as possible is written
+     * immediately; the rest is left for the reactor.
+     *
+     * @param line The line to write.
+     * @throws IOException Thrown if the channel is closed or the write fails.
+     */
+    public void writeLine(String line) throws IOException
+    {
+        synchronized (this.pendingWrites)
+        {
+            this.checkOpen();
+            this.send(this.encoder.encode(line));
+        }
+    }
+
+    /**
+     * Writes several lines to the channel in a single write. As much as
+     * possible is written immediately; the rest is left for the reactor.
+     *
+     * @param lines The lines to write.
+     * @throws IOException Thrown if the channel is closed or the write fails.
+     */
+    public void writeLines(List<String> lines) throws IOException
+    {
+        synchronized (this.pendingWrites)
+        {
+            this.checkOpen();
+            this.send(this.encoder.encode(lines));
+        }
+    }
+
+    public void close() throws IOException
+    {
+        this.closed(null);
+    }
+
+    public boolean isConnected()
+    {
+        return !this.closed && this.channel != null && this.channel.isConnected();
+    }
+
+    /**
+     * Called by the reactor once the channel has been registered.
+     *
+     * @param key The channel's selection key.
+     */
+    void setKey(SelectionKey key)
+    {
+        this.key = key;
+    }
+
+    /**
+     * Called by the reactor when the channel has data to be read.
+     *
+     * @param buffer The reactor's read buffer, cleared and ready for use.
+     * @throws IOException Thrown if the read fails.
+     */
+    void readable(ByteBuffer buffer) throws IOException
+    {
+        int count = this.channel.read(buffer);
+
+        if (count < 0)
+        {
+            this.closed(null);
+            return;
+        }
+
+        buffer.flip();
+        this.decoder.feed(buffer);
+        this.drainDecoder();
+    }
+
+    /**
+     * Called by the reactor when the channel can take more data.
+     *
+     * @throws IOException Thrown if the write fails.
+     */
+    void writable() throws IOException
+    {
+        synchronized (this.pendingWrites)
+        {
+            if (this.flushPendingWrites())
+            {
+                IRCReactor.setInterest(this.key, SelectionKey.OP_WRITE, false);
+            }
+        }
+    }
+
+    /**
+     * Closes the channel and wakes any reader. Safe to call more than once.
+     *
+     * @param cause The error that closed the connection, or <code>null</code>
+     *        if it was closed normally.
+     */
+    void closed(IOException cause)
+    {
+        synchronized (this.pendingWrites)
+        {
+            if (this.closed)
+            {
+                return;
+            }
+
+            this.closed = true;
+            this.closedCause = cause;
+            this.pendingWrites.clear();
+        }
+
+        if (cause != null)
+        {
+            log.info("Connection closed: {0}", cause.getMessage());
+        }
+
+        try
+        {
+            if (this.channel != null)
+            {
+                this.channel.close();
+            }
+        }
+        catch (IOException e)
+        {
+            log.trace("Error closing channel.", e);
+        }
+
+        this.lines.close();
+    }
+
+    /**
+     * Moves complete lines from the decoder to the line queue, showing each
+     * to the observer on the way. If the queue fills up, reading from the
+     * channel is paused. Reactor thread only.
+     */
+    private void drainDecoder()
+    {
+        String line;
+
+        while (this.lines.remainingCapacity() > 0 && (line = this.decoder.nextLine()) != null)
+        {
+            if (this.observer != null)
+            {
+                this.observer.lineRead(line);
+            }
+
+            this.lines.offer(line);
+        }
+
+        if (this.lines.remainingCapacity() == 0 && !this.readPaused)
+        {
+            log.info("Line queue is full; pausing reads.");
+            this.readPaused = true;
+            IRCReactor.setInterest(this.key, SelectionKey.OP_READ, false);
+        }
+    }
+
+    /**
+     * Resumes reading from the channel once the reader has caught up. Any
+     * lines still held in the decoder are queued first. Reactor thread only.
+     */
+    private void resumeReading()
+    {
+        this.resumePending.set(false);
+
+        if (this.readPaused && !this.closed)
+        {
+            this.readPaused = false;
+            this.drainDecoder();
+
+            if (!this.readPaused)
+            {
+                log.trace("Resuming reads.");
+                IRCReactor.setInterest(this.key, SelectionKey.OP_READ, true);
+            }
+        }
+    }
+
+    /**
+     * Throws if the connection has been closed. Must be called while holding
+     * the lock on <code>pendingWrites</code>.
+     *
+     * @throws EOFException Thrown if the connection is closed.
+     */
+    private void checkOpen() throws EOFException
+    {
+        if (this.closed)
+        {
+            throw new EOFException("The connection to the server is closed.");
+        }
+    }
+
+    /**
+     * Writes encoded lines to the channel, unless earlier data is still
+     * waiting. Whatever the channel does not take is copied out of the
+     * encoder's buffer and left for the reactor. Must be called while holding
+     * the lock on <code>pendingWrites</code>.
+     *
+     * @param bytes The encoded lines.
+     * @throws IOException Thrown if the write fails.
+     */
+    private void send(ByteBuffer bytes) throws IOException
+    {
+        if (this.pendingWrites.isEmpty())
+        {
+            this.channel.write(bytes);
+
+            if (!bytes.hasRemaining())
+            {
+                return;
+            }
+        }
+
+        ByteBuffer rest = ByteBuffer.allocate(bytes.remaining());
+        rest.put(bytes);
+        rest.flip();
+        this.pendingWrites.addLast(rest);
+
+        // Write interest is already on if earlier data was waiting.
+        if (this.pendingWrites.size() == 1)
+        {
+            this.requestWriteInterest();
+        }
+    }
+
+    /**
+     * Writes as much pending data as the channel will take without blocking.
+     * Must be called while holding the lock on <code>pendingWrites</code>.
+     *
+     * @return <code>true</code> if everything has been written.
+     * @throws IOException Thrown if the write fails.
+     */
+    private boolean flushPendingWrites() throws IOException
+    {
+        while (!this.pendingWrites.isEmpty())
+        {
+            ByteBuffer head = this.pendingWrites.getFirst();
+            this.channel.write(head);
+
+            if (head.hasRemaining())
+            {
+                return false;
+            }
+
+            this.pendingWrites.removeFirst();
+        }
+
+        return true;
+    }
+
+    /**
+     * Asks the reactor to tell us when the channel can take more data.
+     */
+    private void requestWriteInterest()
+    {
+        this.reactor.execute(new Runnable() {
+            public void run()
+            {
+                IRCReactor.setInterest(key, SelectionKey.OP_WRITE, true);
+            }
+        });
+    }
+
+    /**
+     * The reactor servicing this transport.
+     */
+    private final IRCReactor                  reactor;
+
+    /**
+     * The character set used on the wire.
+     */
+    private Charset                           charset;
+
+    /**
+     * The character set used to decode lines that are not valid in
+     * <code>charset</code>, or <code>null</code>.
+     */
+    private Charset                           fallback;
+
+    /**
+     * Lines read by the reactor and waiting to be consumed.
+     */
+    private final IRCInputQueue<String>       lines;
+
+    /**
+     * Encoded data that the channel has not yet accepted. Also serves as the
+     * lock for all write and close state.
+     */
+    private final LinkedList<ByteBuffer>      pendingWrites;
+
+    /**
+     * The channel to the server.
+     */
+    private SocketChannel                     channel;
+
+    /**
+     * The channel's registration with the reactor.
+     */
+    private volatile SelectionKey             key;
+
+    /**
+     * Frames the bytes read from the channel into lines. Only used by the
+     * reactor thread.
+     */
+    private LineDecoder                       decoder;
+
+    /**
+     * Encodes outgoing lines. Guarded by the lock on
+     * <code>pendingWrites</code>.
+     */
+    private LineEncoder                       encoder;
+
+    /**
+     * The connect timeout in milliseconds.
+     */
+    private int                               connectTimeout;
+
+    /**
+     * The read timeout in milliseconds.
+     */
+    private int                               readTimeout;
+
+    /**
+     * The minimum size of the socket's receive buffer.
+     */
+    private int                               receiveBufferMinimumSize;
+
+    /**
+     * Sees each line as the reactor decodes it, or <code>null</code>.
+     */
+    private LineObserver                      observer;
+
+
+    /**
+     * Whether the connection has been closed.
+     */
+    private volatile boolean                  closed;
+
+    /**
+     * The error that closed the connection, if any.
+     */
+    private volatile IOException              closedCause;
+
+    /**
+     * Whether the reactor has stopped reading because the line queue is
+     * full. Only written by the reactor thread.
+     */
+    private volatile boolean                  readPaused;
+
+    /**
+     * Whether a request to resume reading has been handed to the reactor and
+     * not yet run.
+     */
+    private final AtomicBoolean               resumePending;
+}
@@ -0,0 +1,323 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.io;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * The classic blocking transport. Each connection owns a <code>Socket</code>,
+ * and the reading thread blocks in the socket until a line arrives. Incoming
+ * bytes are framed into lines by a {@link LineDecoder LineDecoder}, and
+ * outgoing lines are encoded by a {@link LineEncoder LineEncoder} straight
+ * into a reused buffer, so a batch of lines costs a single socket write. This
+ * is the only transport that supports SSL.
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public class SocketTransport implements IRCTransport
+{
+    /**
+     * The size of the buffer into which the socket is read.
+     */
+    public static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * Constructs an unconnected transport that uses UTF-8.
+     */
+    public SocketTransport()
+    {
+        this.charset = Charset.forName("UTF-8");
+        this.writeLock = new Object();
+    }
+
+    /**
+     * Connects the transport to the specified server. It constructs a socket
+     * connection, layers SSL over it if asked, and sets up the line decoder
+     * and encoder for that connection.
+     *
+     * @param address The address of the server.
+     * @param useSsl Whether the connection should be made over SSL.
+     * @throws IOException Thrown if any errors occur in the underlying IO
+     *         classes.
+     */
+    public void connect(InetSocketAddress address, boolean useSsl) throws IOException
+    {
+        Socket plainSocket = new Socket();
+
+        try
+        {
+            // Set the buffer size, if necessary. This must be done before
+            // connecting for it to affect the TCP window.
+            if (plainSocket.getReceiveBufferSize() < this.receiveBufferMinimumSize)
+            {
+                plainSocket.setReceiveBufferSize(this.receiveBufferMinimumSize);
+            }
+
+            // Create a channel to the server.
+            plainSocket.connect(address, this.connectTimeout);
+
+            if (useSsl)
+            {
+                SSLSocketFactory sslFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+                SSLSocket sslSocket = (SSLSocket) sslFactory.createSocket(plainSocket, address.getHostName(), address.getPort(), true);
+
+                // The handshake counts as part of connecting.
+                sslSocket.setSoTimeout(this.connectTimeout);
+                sslSocket.startHandshake();
+                this.socket = sslSocket;
+            }
+            else
+            {
+                this.socket = plainSocket;
+            }
+        }
+        catch (IOException e)
+        {
+            plainSocket.close();
+            throw e;
+        }
+
+        // Set the timeout on the socket read.
+        this.socket.setSoTimeout(this.readTimeout);
+
+        // Set up the reader.
+        this.in = this.socket.getInputStream();
+        this.readBuffer = new byte[SocketTransport.READ_BUFFER_SIZE];
+        this.decoder = new LineDecoder(this.charset, this.fallback);
+
+        // Set up the writer.
+        this.out = this.socket.getOutputStream();
+        this.encoder = new LineEncoder(this.charset);
+    }
+
+    public void setConnectTimeout(int millis)
+    {
+        this.connectTimeout = millis;
+    }
+
+    public void setReadTimeout(int millis)
+    {
+        this.readTimeout = millis;
+    }
+
+    public void setReceiveBufferMinimumSize(int size)
+    {
+        this.receiveBufferMinimumSize = size;
+    }
+
+    public void setCharsets(Charset charset, Charset fallback)
+    {
+        this.charset = charset;
+        this.fallback = fallback;
+    }
+
+    public void setLineObserver(LineObserver observer)
+    {
+        this.observer = observer;
+    }
+
+    /**
+     * Reads a line from the socket's input stream. This method will block if
+     * there is no line to be read.
+     *
+     * @return The line that was read from the input stream.
+     * @throws IOException Thrown by the underlying socket implementation.
+     */
+    public String readLine() throws IOException
+    {
+        String line = this.pendingLine;
+        this.pendingLine = null;
+
+        while (line == null && (line = this.nextLine()) == null)
+        {
+            int count = this.in.read(this.readBuffer);
+
+            if (count < 0)
+            {
+                throw new EOFException("End of stream received from server.");
+            }
+
+            this.decoder.feed(this.readBuffer, 0, count);
+        }
+
+        return line;
+    }
+
+    public boolean ready() throws IOException
+    {
+        if (this.pendingLine == null)
+        {
+            this.pendingLine = this.nextLine();
+        }
+
+        return this.pendingLine != null || this.in.available() > 0;
+    }
+
+    /**
+     * Writes a line to the socket and flushes it.
+     *
+     * @param line The line to write to the socket.
+     * @throws IOException Thrown by the underlying socket operations.
+     */
+    public void writeLine(String line) throws IOException
+    {
+        synchronized (this.writeLock)
+        {
+            this.writeBuffer(this.encoder.encode(line));
+        }
+    }
+
+    /**
+     * Writes several lines to the socket with a single write and flush.
+     *
+     * @param lines The lines to write to the socket.
+     * @throws IOException Thrown by the underlying socket operations.
+     */
+    public void writeLines(List<String> lines) throws IOException
+    {
+        synchronized (this.writeLock)
+        {
+            this.writeBuffer(this.encoder.encode(lines));
+        }
+    }
+
+    public void close() throws IOException
+    {
+        this.socket.close();
+    }
+
+    public boolean isConnected()
+    {
+        return this.socket != null && this.socket.isConnected() && !this.socket.isClosed();
+    }
+
+    /**
+     * Writes an encoded buffer to the socket. Must be called while holding
+     * the write lock.
+     *
+     * @param bytes The encoded lines.
+     * @throws IOException Thrown by the underlying socket operations.
+     */
+    private void writeBuffer(ByteBuffer bytes) throws IOException
+    {
+        this.out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        this.out.flush();
+    }
+
+    /**
+     * Takes the next complete line from the decoder and shows it to the
+     * observer.
+     *
+     * @return The line, or <code>null</code> if no complete line has been
+     *         read.
+     */
+    private String nextLine()
+    {
+        String line = this.decoder.nextLine();
+
+        if (line != null && this.observer != null)
+        {
+            this.observer.lineRead(line);
+        }
+
+        return line;
+    }
+
+    /**
+     * The socket with which to connect to the IRC server.
+     */
+    private Socket         socket;
+
+    /**
+     * The socket's input stream.
+     */
+    private InputStream    in;
+
+    /**
+     * The buffer into which the socket is read.
+     */
+    private byte[]         readBuffer;
+
+    /**
+     * Frames the bytes read from the socket into lines.
+     */
+    private LineDecoder    decoder;
+
+    /**
+     * A line taken from the decoder by {@link #ready()} and not yet returned
+     * by {@link #readLine()}.
+     */
+    private String         pendingLine;
+
+    /**
+     * The socket's output stream.
+     */
+    private OutputStream   out;
+
+    /**
+     * Encodes outgoing lines. Guarded by <code>writeLock</code>.
+     */
+    private LineEncoder    encoder;
+
+    /**
+     * Serializes writes from different threads.
+     */
+    private final Object   writeLock;
+
+    /**
+     * The character set used on the wire.
+     */
+    private Charset        charset;
+
+    /**
+     * The character set used to decode lines that are not valid in
+     * <code>charset</code>, or <code>null</code>.
+     */
+    private Charset        fallback;
+
+    /**
+     * The connect timeout in milliseconds.
+     */
+    private int            connectTimeout;
+
+    /**
+     * The read timeout in milliseconds.
+     */
+    private int            readTimeout;
+
+    /**
+     * The minimum size of the socket's receive buffer.
+     */
+    private int            receiveBufferMinimumSize;
+
+    /**
+     * Sees each line as it is decoded, or <code>null</code>.
+     */
+    private LineObserver   observer;
+}
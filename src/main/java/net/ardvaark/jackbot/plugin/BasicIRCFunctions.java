@@ -17,12 +17,12 @@
 
 package net.ardvaark.jackbot.plugin;
 
-import java.io.IOException;
-
 import net.ardvaark.jackbot.EventIRCClient;
+import net.ardvaark.jackbot.FloodController;
 import net.ardvaark.jackbot.IRC;
 import net.ardvaark.jackbot.IRCMessage;
 import net.ardvaark.jackbot.JackBotPlugin;
+import net.ardvaark.jackbot.SelectiveIRCMessageListener;
 
 /**
  * A basic plugin for providing handling very basic IRC functions. Currently,
@@ -32,7 +32,7 @@ import net.ardvaark.jackbot.JackBotPlugin;
  * @author Brian Vargas
  * @version $Revision: 59 $ $Date: 2008-05-29 23:00:24 -0400 (Thu, 29 May 2008) $
  */
-public class BasicIRCFunctions implements JackBotPlugin
+public class BasicIRCFunctions implements JackBotPlugin, SelectiveIRCMessageListener
 {
     /**
      * Default constructor. Does nothing.
@@ -42,37 +42,32 @@ public class BasicIRCFunctions implements JackBotPlugin
     }
 
     /**
-     * Handles IRC events from the client. This currently handles the PING
-     * message, and does a special case PRIVMSG handling for the !quit command,
-     * causing the bot to exit. This !quit handling will eventually be done in a
-     * script, and this code will be removed.
+     * Subscribes to the PING message only.
+     * 
+     * @return The commands this plugin handles.
+     */
+    public String[] getMessageCommands()
+    {
+        return new String[] { IRC.CMD_PING };
+    }
+
+    /**
+     * Handles IRC events from the client. Since this plugin only subscribes
+     * to PING, every message is answered with the matching PONG, which is
+     * sent ahead of any queued output.
      * 
      * @param msg The message received from the server.
      * @param client The client that is connected to the server.
      */
     public void ircMessageReceived(IRCMessage msg, EventIRCClient client)
     {
-        if (msg.getCommand().equalsIgnoreCase(IRC.CMD_PING))
-        {
-            String arg = "";
+        String arg = "";
 
-            if (msg.getParamCount() > 0)
-            {
-                arg = " " + msg.getParam(0);
-            }
+        if (msg.getParamCount() > 0)
+        {
+            arg = " " + msg.getParam(0);
+        }
 
-            try
-            {
-                client.ircWriteNow("PONG" + arg);
-            }
-            catch (IOException e)
-            {
-            }
-        }/*
-             * else if (msg.getCommand().equalsIgnoreCase("PRIVMSG")) { if
-             * (msg.getParamCount() >= 2) { if
-             * (msg.getParam(1).equalsIgnoreCase("!quit")) {
-             * client.setRunning(false); } } }
-             */
+        client.ircWrite("PONG" + arg, FloodController.Priority.PROTOCOL);
     }
 }
@@ -28,10 +28,10 @@ import java.io.IOException;
 import net.ardvaark.jackbot.EventIRCClient;
 import net.ardvaark.jackbot.IRC;
 import net.ardvaark.jackbot.IRCMessage;
-import net.ardvaark.jackbot.IRCMessageListener;
 import net.ardvaark.jackbot.IRCUtils;
+import net.ardvaark.jackbot.SelectiveIRCMessageListener;
 
-public class CheddarBot implements IRCMessageListener
+public class CheddarBot implements SelectiveIRCMessageListener
 {
     public CheddarBot()
     {
@@ -39,14 +39,22 @@ public class CheddarBot implements IRCMessageListener
         this.keepLearning = true;
     }
     
+    /** Only PRIVMSG is of interest.
+     * @return The commands this listener wants.
+     */
+    public String[] getMessageCommands()
+    {
+        return new String[] { IRC.CMD_PRIVMSG };
+    }
+    
     /** Called when an IRC message is received from the server.
      * @param msg The message that was received.
      * @param client The client that sent the message.
      */
     public void ircMessageReceived(IRCMessage msg, EventIRCClient client)
     {
-        // Only process if this is a PRIVMSG and if it's not from me.
-        if (msg.getCommand().equalsIgnoreCase(IRC.CMD_PRIVMSG) && !IRCUtils.extractNickFromMask(msg.getPrefix()).equalsIgnoreCase(client.getName()))
+        // Only process if it's not from me.
+        if (!IRCUtils.extractNickFromMask(msg.getPrefix()).equalsIgnoreCase(client.getName()))
         {
             String text = msg.getLastParam();
 
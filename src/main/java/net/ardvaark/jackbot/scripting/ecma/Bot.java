@@ -17,15 +17,19 @@
 
 package net.ardvaark.jackbot.scripting.ecma;
 
+import net.ardvaark.jackbot.FloodController;
 import net.ardvaark.jackbot.IRC;
 import net.ardvaark.jackbot.IRCMessage;
 import net.ardvaark.jackbot.IRCUtils;
 import net.ardvaark.jackbot.logging.Log;
 import net.ardvaark.jackbot.scripting.ScriptException;
+import net.ardvaark.jackbot.scripting.ecma.async.CronExpression;
 import org.apache.commons.httpclient.URIException;
 import org.apache.commons.httpclient.util.URIUtil;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.w3c.dom.Document;
@@ -33,6 +37,10 @@ import org.w3c.dom.Document;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.text.MessageFormat;
+import java.util.List;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * ECMAScript host object <CODE>Bot</CODE>. The <code>Bot</code> class is
@@ -109,11 +117,72 @@ public class Bot extends HostObject
      */
     public static final String HANDLER_ON_ACTION  = "onAction";
 
+    /**
+     * The ECMAScript handler to be called once for each netsplit, with the
+     * two servers and an array of the users that quit.
+     */
+    public static final String HANDLER_ON_NETSPLIT = "onNetsplit";
+
+    /**
+     * The ECMAScript handler to be called once for each netjoin, with the two
+     * servers and an array of the users that came back.
+     */
+    public static final String HANDLER_ON_NETJOIN = "onNetjoin";
+
+    /**
+     * The ECMAScript handler to be called, with the channel name, once a
+     * channel's names and topic have been received after the bot joins it.
+     */
+    public static final String HANDLER_ON_SYNCED  = "onSynced";
+
+    /**
+     * The character that starts a command.
+     */
+    public static final char   COMMAND_PREFIX     = '!';
+
+    /**
+     * The events of a <CODE>Bot</CODE>, each with its own handler slot.
+     */
+    enum Event implements HostObject.EventSlot
+    {
+        MESSAGE(HANDLER_ON_MSG),
+        JOIN(HANDLER_ON_JOIN),
+        PART(HANDLER_ON_PART),
+        KICK(HANDLER_ON_KICK),
+        QUIT(HANDLER_ON_QUIT),
+        TOPIC(HANDLER_ON_TOPIC),
+        NICK(HANDLER_ON_NICK),
+        PRIVMSG(HANDLER_ON_PRIVMSG),
+        ACTION(HANDLER_ON_ACTION),
+        NETSPLIT(HANDLER_ON_NETSPLIT),
+        NETJOIN(HANDLER_ON_NETJOIN),
+        SYNCED(HANDLER_ON_SYNCED);
+
+        private Event(String handlerName)
+        {
+            this.handlerName = handlerName;
+        }
+
+        public String getHandlerName()
+        {
+            return this.handlerName;
+        }
+
+        private final String handlerName;
+    }
+
+    /**
+     * The handler slots of every <CODE>Bot</CODE>.
+     */
+    private static final EventTable EVENTS = new EventTable(Event.class);
+
     /**
      * Default constructor.
      */
     public Bot()
     {
+        super(Bot.EVENTS);
+        this.triggers = new TriggerSet.Trigger[0];
     }
 
     /**
@@ -159,6 +228,67 @@ public class Bot extends HostObject
         this.getEngine().getClient().ircWrite(IRC.CMD_NICK + " " + newName);
     }
 
+    /**
+     * ECMAScript property get <CODE>lag</CODE>. This is the smoothed
+     * round-trip lag to the server, as measured by the client's lag probe.
+     * 
+     * @return The lag in milliseconds, or -1 if it has not been measured.
+     */
+    public double jsGet_lag()
+    {
+        return this.getEngine().getClient().getLagProbe().getSmoothedLagMillis();
+    }
+
+    /**
+     * ECMAScript property get <CODE>individualSplitEvents</CODE>.
+     * 
+     * @return Whether the <CODE>onQuit</CODE> and <CODE>onJoin</CODE>
+     *         handlers fire for each user in a netsplit or netjoin.
+     * @see #jsSet_individualSplitEvents(boolean)
+     */
+    public boolean jsGet_individualSplitEvents()
+    {
+        return this.individualSplitEvents;
+    }
+
+    /**
+     * ECMAScript property set <CODE>individualSplitEvents</CODE>. By
+     * default the users in a netsplit or netjoin are only reported in one
+     * <CODE>onNetsplit</CODE> or <CODE>onNetjoin</CODE> event. Setting this
+     * also fires the <CODE>onQuit</CODE> and <CODE>onJoin</CODE> handlers
+     * for each of them, as before.
+     * 
+     * @param individualSplitEvents Whether to fire the individual handlers.
+     */
+    public void jsSet_individualSplitEvents(boolean individualSplitEvents)
+    {
+        this.individualSplitEvents = individualSplitEvents;
+    }
+
+    /**
+     * ECMAScript property get <CODE>enforceCommandLevels</CODE>.
+     * 
+     * @return Whether commands check the level of the user who sent them.
+     * @see #jsSet_enforceCommandLevels(boolean)
+     */
+    public boolean jsGet_enforceCommandLevels()
+    {
+        return this.enforceCommandLevels;
+    }
+
+    /**
+     * ECMAScript property set <CODE>enforceCommandLevels</CODE>. When set,
+     * a command's handler only runs if the sender matches a user whose level
+     * is at least the handler's. It is off by default, so that anyone may
+     * run any command.
+     * 
+     * @param enforceCommandLevels Whether to check users' levels.
+     */
+    public void jsSet_enforceCommandLevels(boolean enforceCommandLevels)
+    {
+        this.enforceCommandLevels = enforceCommandLevels;
+    }
+
     /**
      * ECMAScript function <CODE>join(channel)</CODE>. This will cause the
      * bot to join a channel.
@@ -226,6 +356,20 @@ public class Bot extends HostObject
         this.getEngine().getClient().ircWrite(IRC.CMD_PRIVMSG + " " + target + " :" + message);
     }
 
+    /**
+     * ECMAScript function <CODE>announce(target, msg)</CODE>. Like
+     * <CODE>say()</CODE>, but the message is sent in the bulk lane, so it
+     * waits behind any replies to users. Use it for relays and other output
+     * that may arrive in large batches.
+     * 
+     * @param target The target of the message.
+     * @param message The message to send to the target.
+     */
+    public void jsFunction_announce(String target, String message)
+    {
+        this.getEngine().getClient().ircWrite(IRC.CMD_PRIVMSG + " " + target + " :" + message, FloodController.Priority.BULK);
+    }
+
     /**
      * ECMAScript function <CODE>notice(target, msg)</CODE>. Causes the bot
      * to write a <CODE>NOTICE</CODE> to the given target with the given
@@ -342,25 +486,130 @@ public class Bot extends HostObject
     {
         long timeoutMills = Long.parseLong(millis);
 
-        Runnable funcRunner = new Runnable() {
+        this.getEngine().scheduleTimeout(key, this.newFunctionRunner(key, code), timeoutMills);
+        
+        return key;
+    }
+
+    /**
+     * ECMAScript function <CODE>setInterval(key, func, millis[, jitter])</CODE>.
+     * Calls the function every <CODE>millis</CODE> milliseconds until the key
+     * is cancelled with <CODE>cancelTimeout()</CODE>. The schedule does not
+     * drift, does not end if the function throws, and skips a run if the
+     * previous one has not finished. If <CODE>jitter</CODE> is given, the
+     * whole schedule is shifted by a random amount up to that many
+     * milliseconds, so that many keys with the same interval do not fire at
+     * once.
+     * 
+     * @param key The key of the interval.
+     * @param code The function to call.
+     * @param millis The interval in milliseconds.
+     * @param jitter The greatest random shift in milliseconds, or undefined.
+     * @return The key.
+     */
+    public Object jsFunction_setInterval(Object key, Function code, String millis, Object jitter)
+    {
+        this.getEngine().scheduleInterval(key, this.newFunctionRunner(key, code), Long.parseLong(millis), Bot.toJitter(jitter));
+        
+        return key;
+    }
+
+    /**
+     * ECMAScript function <CODE>schedule(key, cron, func[, jitter])</CODE>.
+     * Calls the function at every time matching a cron expression, such as
+     * <CODE>"*&#47;15 * * * *"</CODE> for every quarter hour, until the key is
+     * cancelled with <CODE>cancelTimeout()</CODE>. Runs behave as for
+     * <CODE>setInterval()</CODE>.
+     * 
+     * @param key The key of the schedule.
+     * @param cron The cron expression.
+     * @param code The function to call.
+     * @param jitter The greatest random shift in milliseconds, or undefined.
+     * @return The key.
+     * @throws ScriptException If the cron expression is malformed.
+     */
+    public Object jsFunction_schedule(Object key, String cron, Function code, Object jitter) throws ScriptException
+    {
+        CronExpression expression;
+        
+        try
+        {
+            expression = new CronExpression(cron);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new ScriptException(e);
+        }
+        
+        this.getEngine().scheduleCron(key, this.newFunctionRunner(key, code), expression, Bot.toJitter(jitter));
+        
+        return key;
+    }
+    
+    public void jsFunction_cancelTimeout(Object key)
+    {
+        this.getEngine().cancelTimeout(key);
+    }
+
+    /**
+     * Wraps a script function for the timeout scheduler.
+     * 
+     * @param key The key under which it is scheduled, for logging.
+     * @param code The function.
+     * @return A runnable that calls the function.
+     */
+    private Runnable newFunctionRunner(final Object key, final Function code)
+    {
+        return new Runnable() {
             public void run()
             {
                 log.trace("Executing task: {0}", key);
                 
                 // The getCurrentContext() call will pull the context
                 // from the scheduler.
-                code.call(Context.getCurrentContext(), code, Bot.this, new Object[]{});
+                Context cx = Context.getCurrentContext();
+                WatchdogContextFactory.Budget budget = getEngine().openHandlerBudget(cx, "Timer " + key);
+                
+                try
+                {
+                    code.call(cx, code, Bot.this, new Object[]{});
+                }
+                catch (WatchdogContextFactory.BudgetExceededError e)
+                {
+                    if (e.getBudget() != budget)
+                    {
+                        throw e;
+                    }
+                    
+                    if (getEngine().isDisablingRunaways())
+                    {
+                        log.error("Stopped and cancelled a runaway timer: {0}", e.getMessage());
+                        getEngine().cancelTimeout(key);
+                    }
+                    else
+                    {
+                        log.error("Stopped a runaway timer: {0}", e.getMessage());
+                    }
+                }
+                finally
+                {
+                    WatchdogContextFactory.close(cx, budget);
+                }
             }
         };
-        
-        this.getEngine().scheduleTimeout(key, funcRunner, timeoutMills);
-        
-        return key;
     }
-    
-    public void jsFunction_cancelTimeout(Object key)
+
+    /**
+     * Converts an optional script argument to a jitter in milliseconds.
+     * 
+     * @param jitter The argument, which may be undefined.
+     * @return The jitter, or zero.
+     */
+    private static long toJitter(Object jitter)
     {
-        this.getEngine().cancelTimeout(key);
+        double value = Context.toNumber(jitter);
+        
+        return Double.isNaN(value) || value <= 0 ? 0 : (long) value;
     }
 
     public String jsFunction_decodeURIComponent(String encodedUriComponent) throws ScriptException {
@@ -389,6 +638,186 @@ public class Bot extends HostObject
         return this.getEngine().retrieveData(key);
     }
 
+    /**
+     * ECMAScript function <CODE>addTrigger(pattern, function)</CODE>. Calls
+     * a function for each <CODE>PRIVMSG</CODE> whose text matches a pattern,
+     * as <CODE>function(sender, target, text, match)</CODE>. The pattern may
+     * be:
+     * <ul>
+     * <li>a <CODE>RegExp</CODE>, which may match anywhere in the text, and
+     * whose <CODE>match</CODE> is an array like that of
+     * <CODE>RegExp.exec()</CODE>. It is run by Java's regular expression
+     * engine, whose syntax is nearly the same;</li>
+     * <li>a string ending in <CODE>*</CODE>, such as <CODE>"!*"</CODE>,
+     * which matches when the text starts with the rest of the string;</li>
+     * <li>any other string, which is a keyword that matches anywhere in the
+     * text.</li>
+     * </ul>
+     * Keywords and prefixes ignore case, and their <CODE>match</CODE> is the
+     * text that matched. Every trigger is matched in one pass over the text,
+     * and the functions of those that match are called in the order they
+     * were added, after the <CODE>onPrivMsg</CODE> handlers. Adding the same
+     * pattern and function again does nothing.
+     * 
+     * @param pattern The pattern.
+     * @param function The function to call.
+     */
+    public void jsFunction_addTrigger(Object pattern, Function function)
+    {
+        TriggerSet.Trigger trigger = this.toTrigger(pattern, function);
+
+        synchronized (this)
+        {
+            for (TriggerSet.Trigger current : this.triggers)
+            {
+                if (current.sameAs(trigger))
+                {
+                    return;
+                }
+            }
+
+            TriggerSet.Trigger[] updated = new TriggerSet.Trigger[this.triggers.length + 1];
+            System.arraycopy(this.triggers, 0, updated, 0, this.triggers.length);
+            updated[this.triggers.length] = trigger;
+            this.triggers = updated;
+            this.compiledTriggers = null;
+        }
+    }
+
+    /**
+     * ECMAScript function <CODE>removeTrigger(pattern, function)</CODE>.
+     * Removes a trigger added with
+     * {@link #jsFunction_addTrigger(Object, Function)}.
+     * 
+     * @param pattern The pattern.
+     * @param function The function.
+     */
+    public void jsFunction_removeTrigger(Object pattern, Function function)
+    {
+        this.removeTrigger(this.toTrigger(pattern, function));
+    }
+
+    /**
+     * ECMAScript function <CODE>addCommand(name, function, level, help)</CODE>.
+     * Adds a handler for a command, which is sent as a <CODE>PRIVMSG</CODE>
+     * starting with <CODE>!</CODE> and the command's name, or any
+     * abbreviation of it that no other command starts with. The handler is
+     * called with a <CODE>Command</CODE>. A command may have several
+     * handlers, which run in the order they were added.
+     * 
+     * @param name The command's name.
+     * @param function The handler.
+     * @param level The level a user needs to run the handler, if
+     *        <CODE>enforceCommandLevels</CODE> is set. Defaults to 100.
+     * @param help The help text for the handler.
+     */
+    public void jsFunction_addCommand(String name, Function function, Object level, Object help)
+    {
+        if (function == null)
+        {
+            throw Context.reportRuntimeError("addCommand needs a function");
+        }
+
+        int requiredLevel = level != Context.getUndefinedValue() ? ScriptRuntime.toInt32(level) : 100;
+        String helpText = help != Context.getUndefinedValue() ? Context.toString(help) : "No help available.";
+
+        this.commands.add(name, new CommandRouter.Handler(function, requiredLevel, helpText));
+    }
+
+    /**
+     * ECMAScript function <CODE>removeCommand(name, function)</CODE>.
+     * Removes a handler added with
+     * {@link #jsFunction_addCommand(String, Function, Object, Object)}.
+     * 
+     * @param name The command's name.
+     * @param function The handler.
+     */
+    public void jsFunction_removeCommand(String name, Function function)
+    {
+        this.commands.remove(name, function);
+    }
+
+    /**
+     * ECMAScript function <CODE>getCommandNames()</CODE>.
+     * 
+     * @return An array of the names of the commands, in alphabetical order.
+     */
+    public Scriptable jsFunction_getCommandNames()
+    {
+        Object[] names = this.commands.getNames().toArray();
+        return Context.getCurrentContext().newArray(ScriptableObject.getTopLevelScope(this), names);
+    }
+
+    /**
+     * ECMAScript function <CODE>getCommandHelp(name)</CODE>.
+     * 
+     * @param name The command's name, or an abbreviation of it.
+     * @return An array of the help text of each of the command's handlers,
+     *         which is empty if there is no such command.
+     */
+    public Scriptable jsFunction_getCommandHelp(String name)
+    {
+        String resolved = this.commands.resolve(name);
+        CommandRouter.Handler[] handlers = resolved != null ? this.commands.getHandlers(resolved) : null;
+        Object[] help = new Object[handlers != null ? handlers.length : 0];
+
+        for (int i = 0; i < help.length; i++)
+        {
+            help[i] = handlers[i].help;
+        }
+
+        return Context.getCurrentContext().newArray(ScriptableObject.getTopLevelScope(this), help);
+    }
+
+    /**
+     * ECMAScript function <CODE>setUser(username, mask, level)</CODE>. Adds
+     * a user whose level commands can check, or replaces the user with the
+     * same username.
+     * 
+     * @param username The username.
+     * @param mask The user's mask, in which <CODE>*</CODE> matches anything.
+     * @param level The user's level.
+     */
+    public void jsFunction_setUser(String username, String mask, int level)
+    {
+        this.users.put(username, mask, level);
+    }
+
+    /**
+     * ECMAScript function <CODE>removeUser(username)</CODE>.
+     * 
+     * @param username The username.
+     * @return <CODE>true</CODE> if there was such a user.
+     */
+    public boolean jsFunction_removeUser(String username)
+    {
+        return this.users.remove(username);
+    }
+
+    /**
+     * ECMAScript function <CODE>findUsername(hostmask)</CODE>. The answer
+     * for each hostmask is remembered until the users change.
+     * 
+     * @param hostmask The hostmask.
+     * @return The username of the first user whose mask matches, or
+     *         <CODE>null</CODE> if none does.
+     */
+    public String jsFunction_findUsername(String hostmask)
+    {
+        return this.users.findUsername(hostmask);
+    }
+
+    /**
+     * ECMAScript function <CODE>getUserLevel(hostmask)</CODE>.
+     * 
+     * @param hostmask The hostmask.
+     * @return The level of the user whose mask matches, or -1 if none does.
+     */
+    public int jsFunction_getUserLevel(String hostmask)
+    {
+        return this.users.getLevel(hostmask);
+    }
+
     /**
      * Causes the bot to part all channels in which it is currently listening.
      * 
@@ -415,9 +844,7 @@ public class Bot extends HostObject
     void onMessage(IRCMessage msg) throws ScriptException
     {
         // Call the onMessage JavaScript handler.
-        Object[] args =
-        { msg };
-        this.fireHandler(Bot.HANDLER_ON_MSG, args);
+        this.fireHandler(Bot.Event.MESSAGE, msg);
     }
 
     /**
@@ -431,6 +858,11 @@ public class Bot extends HostObject
      * method will be called.</li>
      * <li>The Bot's <CODE>HANDLER_ON_JOIN</CODE> handler will be fired.</li>
      * </ol>
+     * If the join is by a user coming back from a netsplit, the user is just
+     * added to the channel, and the netjoin is reported later in one
+     * <CODE>HANDLER_ON_NETJOIN</CODE> event, unless
+     * {@link #jsSet_individualSplitEvents(boolean) individualSplitEvents} is
+     * set.
      * 
      * @param channel The name of the channel that was joined.
      * @param name The name that joined the channel.
@@ -447,10 +879,17 @@ public class Bot extends HostObject
         }
         else
         {
-            // First, call the channel's onJoin() so that it can set up
-            // its own state.
             Channel channelInstance = this.getChildChannel(channel);
 
+            if (channelInstance != null && this.splits.onJoin(name, channelInstance) && !this.individualSplitEvents)
+            {
+                // Part of a netjoin, which is reported all at once.
+                channelInstance.addName(nick);
+                return;
+            }
+
+            // First, call the channel's onJoin() so that it can set up
+            // its own state.
             if (channelInstance != null)
             {
                 channelInstance.onJoin(name);
@@ -458,9 +897,7 @@ public class Bot extends HostObject
         }
 
         // Then fire the JavaScript onJoin handler.
-        Object[] args =
-        { channel, name };
-        this.fireHandler(Bot.HANDLER_ON_JOIN, args);
+        this.fireHandler(Bot.Event.JOIN, channel, name);
     }
 
     /**
@@ -483,9 +920,7 @@ public class Bot extends HostObject
     {
         String nick = IRCUtils.extractNickFromMask(name);
 
-        Object[] args =
-        { channel, name, msg };
-        this.fireHandler(Bot.HANDLER_ON_PART, args);
+        this.fireHandler(Bot.Event.PART, channel, name, msg);
 
         Channel channelInstance = this.getChildChannel(channel);
 
@@ -496,7 +931,7 @@ public class Bot extends HostObject
 
         if (nick.equalsIgnoreCase(this.getEngine().getClient().getName()))
         {
-            ScriptableObject.deleteProperty(this.channels, channel);
+            this.removeChannel(channel, channelInstance);
         }
     }
 
@@ -522,9 +957,7 @@ public class Bot extends HostObject
     {
         String nick = IRCUtils.extractNickFromMask(name);
 
-        Object[] args =
-        { channel, name, kicker, msg };
-        this.fireHandler(Bot.HANDLER_ON_KICK, args);
+        this.fireHandler(Bot.Event.KICK, channel, name, kicker, msg);
 
         Channel channelInstance = this.getChildChannel(channel);
 
@@ -535,7 +968,7 @@ public class Bot extends HostObject
 
         if (nick.equalsIgnoreCase(this.getEngine().getClient().getName()))
         {
-            ScriptableObject.deleteProperty(this.channels, channel);
+            this.removeChannel(channel, channelInstance);
         }
     }
 
@@ -544,10 +977,14 @@ public class Bot extends HostObject
      * The following sequence of actions is performed:
      * <ol>
      * <li>The Bot's <CODE>HANDLER_ON_QUIT</CODE> handler will be fired.</li>
-     * <li>Each channel object will be checked. If the quitter exists in that
-     * channel, the channels {@link Channel#onQuit(String, String) onQuit()}
-     * will be called.</li>
+     * <li>The {@link Channel#onQuit(String, String) onQuit()} method of each
+     * channel the quitter was in will be called.</li>
      * </ol>
+     * If the quit is part of a netsplit, the quitter is just removed from
+     * its channels, and the netsplit is reported later in one
+     * <CODE>HANDLER_ON_NETSPLIT</CODE> event, unless
+     * {@link #jsSet_individualSplitEvents(boolean) individualSplitEvents} is
+     * set.
      * 
      * @param name The name of the quitter.
      * @param msg The reason for the quit.
@@ -555,31 +992,24 @@ public class Bot extends HostObject
      */
     void onQuit(String name, String msg) throws ScriptException
     {
-        Object[] args = { name, msg };
-        this.fireHandler(Bot.HANDLER_ON_QUIT, args);
-
-        Object[] ids = this.channels.getIds();
         String nick = IRCUtils.extractNickFromMask(name);
+        List<Channel> memberships = this.nicks.get(nick);
 
-        for (Object element : ids)
+        if (this.splits.onQuit(name, msg, memberships) && !this.individualSplitEvents)
         {
-            String curID = element.toString();
-            Object curObject = ScriptableObject.getProperty(this.channels, curID);
-
-            if (curObject instanceof Channel)
+            for (Channel curChannel : memberships)
             {
-                Channel curChannel = (Channel) curObject;
+                curChannel.removeName(nick);
+            }
 
-                if (ScriptableObject.hasProperty(curChannel.names, nick))
-                {
-                    curObject = ScriptableObject.getProperty(curChannel.names, nick);
+            return;
+        }
 
-                    if (curObject instanceof Name)
-                    {
-                        curChannel.onQuit(name, msg);
-                    }
-                }
-            }
+        this.fireHandler(Bot.Event.QUIT, name, msg);
+
+        for (Channel curChannel : memberships)
+        {
+            curChannel.onQuit(name, msg);
         }
     }
 
@@ -606,8 +1036,65 @@ public class Bot extends HostObject
             channelInstance.onTopic(newTopic, changer);
         }
 
-        Object[] args = { channel, newTopic, changer };
-        this.fireHandler(Bot.HANDLER_ON_TOPIC, args);
+        this.fireHandler(Bot.Event.TOPIC, channel, newTopic, changer);
+    }
+
+    /**
+     * Called when a <CODE>RPL_TOPIC</CODE> or <CODE>RPL_NOTOPIC</CODE> reply
+     * is received from the server.
+     * 
+     * @param channel The channel.
+     * @param newTopic The topic, or <CODE>null</CODE> if there is none.
+     * @throws ScriptException If any exceptions occur.
+     */
+    void onTopicReply(String channel, String newTopic) throws ScriptException
+    {
+        Channel channelInstance = this.getChildChannel(channel);
+
+        if (channelInstance != null)
+        {
+            channelInstance.onTopicReply(newTopic);
+        }
+    }
+
+    /**
+     * Called when a <CODE>RPL_NAMEREPLY</CODE> is received from the server.
+     * 
+     * @param channel The channel.
+     * @param nickList The space-separated nicks, with their status prefixes.
+     * @throws ScriptException If any exceptions occur.
+     */
+    void onNamesReply(String channel, String nickList) throws ScriptException
+    {
+        Channel channelInstance = this.getChildChannel(channel);
+
+        if (channelInstance != null)
+        {
+            channelInstance.onNamesReply(nickList);
+        }
+    }
+
+    /**
+     * Called when a <CODE>RPL_ENDOFNAMES</CODE> is received from the server.
+     * The following sequence of actions is performed:
+     * <ol>
+     * <li>The channel's {@link Channel#onEndOfNames() onEndOfNames()} method
+     * will be called.</li>
+     * <li>If that has synced the channel, the Bot's
+     * <CODE>HANDLER_ON_SYNCED</CODE> handler will be fired.</li>
+     * </ol>
+     * 
+     * @param channel The channel.
+     * @throws ScriptException If any exceptions occur during event firing.
+     */
+    void onEndOfNames(String channel) throws ScriptException
+    {
+        Channel channelInstance = this.getChildChannel(channel);
+
+        if (channelInstance != null && channelInstance.onEndOfNames())
+        {
+            this.fireHandler(Bot.Event.SYNCED, channel);
+        }
     }
 
     /**
@@ -625,32 +1112,17 @@ public class Bot extends HostObject
      */
     void onNick(String name, String newNick) throws ScriptException
     {
-        Object[] ids = this.channels.getIds();
-        Object curObject = null;
-        Channel curChannel = null;
         String oldNick = IRCUtils.extractNickFromMask(name);
 
         // Call the onNick method of
         // each channel in which the user changing their nick exists.
-        for (Object element : ids)
+        for (Channel curChannel : this.nicks.get(oldNick))
         {
-            curObject = ScriptableObject.getProperty(this.channels, element.toString());
-
-            if (curObject != null && curObject instanceof Channel)
-            {
-                curChannel = (Channel) curObject;
-
-                if (ScriptableObject.hasProperty(curChannel.names, oldNick))
-                {
-                    curChannel.onNick(name, newNick);
-                }
-            }
+            curChannel.onNick(name, newNick);
         }
 
         // Fire the Bot object's onNick handler.
-        Object[] args =
-        { name, newNick };
-        this.fireHandler(Bot.HANDLER_ON_NICK, args);
+        this.fireHandler(Bot.Event.NICK, name, newNick);
     }
 
     /**
@@ -661,6 +1133,8 @@ public class Bot extends HostObject
      * {@link Channel#onPrivMsg(String, String) onPrivMsg() method} of the
      * channel.</li>
      * <li>Fire the Bot object's <CODE>HANDLER_ON_PRIVMSG</CODE> handler.</li>
+     * <li>Run the handlers of the command in the text, if any.</li>
+     * <li>Call the functions of the triggers that match the text.</li>
      * </ol>
      * 
      * @param sender The sender of the message.
@@ -676,9 +1150,281 @@ public class Bot extends HostObject
             channelInstance.onPrivMsg(sender, text);
         }
 
-        Object[] args =
-        { sender, target, text };
-        this.fireHandler(Bot.HANDLER_ON_PRIVMSG, args);
+        this.fireHandler(Bot.Event.PRIVMSG, sender, target, text);
+        this.dispatchCommand(sender, target, text);
+        this.fireTriggers(sender, target, text);
+    }
+
+    /**
+     * Runs the handlers of the command in the text of a <CODE>PRIVMSG</CODE>,
+     * if it has one. A handler whose level the sender does not have is
+     * skipped if levels are being enforced. A handler that throws is
+     * reported to the sender, and one stopped by the watchdog is removed if
+     * runaways are being disabled.
+     * 
+     * @param sender The sender of the message.
+     * @param target The target of the message.
+     * @param text The text of the message.
+     * @throws ScriptException If the <CODE>Command</CODE> can not be made.
+     */
+    private void dispatchCommand(String sender, String target, String text) throws ScriptException
+    {
+        if (text.length() < 2 || text.charAt(0) != COMMAND_PREFIX || this.commands.isEmpty())
+        {
+            return;
+        }
+
+        int end = 1;
+
+        while (end < text.length() && Bot.isWordChar(text.charAt(end)))
+        {
+            end++;
+        }
+
+        String name = end > 1 ? this.commands.resolve(text.substring(1, end)) : null;
+        CommandRouter.Handler[] handlers = name != null ? this.commands.getHandlers(name) : null;
+
+        if (handlers == null)
+        {
+            return;
+        }
+
+        int start = end;
+
+        while (start < text.length() && Character.isWhitespace(text.charAt(start)))
+        {
+            start++;
+        }
+
+        Command command = HostObjectFactory.newCommand(this, sender, target, text, name, text.substring(start));
+        int userLevel = this.enforceCommandLevels ? this.users.getLevel(sender) : 0;
+
+        for (int i = 0; i < handlers.length; i++)
+        {
+            CommandRouter.Handler handler = handlers[i];
+
+            if (this.enforceCommandLevels && userLevel < handler.level)
+            {
+                log.info("Denied command to {0}, who needs level {1}: {2}", sender, String.valueOf(handler.level), command);
+                continue;
+            }
+
+            command.level = handler.level;
+            log.info("Executing command: {0}", command);
+
+            try
+            {
+                this.call("command " + name, handler.function, new Object[] { command });
+            }
+            catch (HostObject.RunawayHandler e)
+            {
+                this.commands.remove(name, handler.function);
+            }
+            catch (ScriptException e)
+            {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                String reason = cause instanceof RhinoException ? ((RhinoException) cause).details() : cause.getMessage();
+
+                log.error("Caught exception running handler #{0} for command \"{1}\"", e, Integer.valueOf(i), name);
+                command.jsFunction_respond("Caught exception running handler #" + i + " for command \"" + name + "\": " + reason, false);
+            }
+        }
+    }
+
+    /**
+     * Determines whether a character may be part of a command's name.
+     * 
+     * @param c The character.
+     * @return <CODE>true</CODE> for ASCII letters, digits and underscores.
+     */
+    private static boolean isWordChar(char c)
+    {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+
+    /**
+     * Calls the function of each trigger that matches the text of a
+     * <CODE>PRIVMSG</CODE>, each under its own watchdog budget. A trigger
+     * stopped by the watchdog is removed if runaways are being disabled.
+     * 
+     * @param sender The sender of the message.
+     * @param target The target of the message.
+     * @param text The text of the message.
+     * @throws ScriptException If a trigger's function throws. The other
+     *         functions are still called first.
+     */
+    private void fireTriggers(String sender, String target, String text) throws ScriptException
+    {
+        TriggerSet compiled = this.compiledTriggers;
+
+        if (compiled == null)
+        {
+            synchronized (this)
+            {
+                if (this.triggers.length == 0)
+                {
+                    return;
+                }
+
+                compiled = this.compiledTriggers;
+
+                if (compiled == null)
+                {
+                    compiled = new TriggerSet(this.triggers);
+                    this.compiledTriggers = compiled;
+                }
+            }
+        }
+
+        Object[] matches = compiled.match(text);
+
+        if (matches == null)
+        {
+            return;
+        }
+
+        ScriptException failure = null;
+
+        for (int i = 0; i < matches.length; i++)
+        {
+            if (matches[i] == null)
+            {
+                continue;
+            }
+
+            TriggerSet.Trigger trigger = compiled.get(i);
+            Object match = matches[i] instanceof MatchResult ? this.toScriptMatch((MatchResult) matches[i], text) : matches[i];
+
+            try
+            {
+                this.call(trigger.name, trigger.function, new Object[] { sender, target, text, match });
+            }
+            catch (HostObject.RunawayHandler e)
+            {
+                this.removeTrigger(trigger);
+            }
+            catch (ScriptException e)
+            {
+                if (failure == null)
+                {
+                    failure = e;
+                }
+                else
+                {
+                    log.error("Failed to run {0}", e, trigger.name);
+                }
+            }
+        }
+
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Makes a trigger from the arguments of <CODE>addTrigger()</CODE> or
+     * <CODE>removeTrigger()</CODE>.
+     * 
+     * @param pattern The pattern.
+     * @param function The function.
+     * @return The trigger.
+     */
+    private TriggerSet.Trigger toTrigger(Object pattern, Function function)
+    {
+        if (function == null)
+        {
+            throw Context.reportRuntimeError("addTrigger needs a function");
+        }
+
+        if (pattern instanceof Scriptable && "RegExp".equals(((Scriptable) pattern).getClassName()))
+        {
+            Scriptable regExp = (Scriptable) pattern;
+            int flags = 0;
+
+            if (Context.toBoolean(ScriptableObject.getProperty(regExp, "ignoreCase")))
+            {
+                flags |= Pattern.CASE_INSENSITIVE;
+            }
+
+            if (Context.toBoolean(ScriptableObject.getProperty(regExp, "multiline")))
+            {
+                flags |= Pattern.MULTILINE;
+            }
+
+            String source = Context.toString(ScriptableObject.getProperty(regExp, "source"));
+
+            try
+            {
+                return new TriggerSet.Trigger(Pattern.compile(source, flags), function);
+            }
+            catch (PatternSyntaxException e)
+            {
+                throw Context.reportRuntimeError("Unsupported trigger pattern /" + source + "/: " + e.getDescription());
+            }
+        }
+
+        String literal = Context.toString(pattern);
+        TriggerSet.Kind kind = TriggerSet.Kind.KEYWORD;
+
+        if (literal.endsWith("*"))
+        {
+            literal = literal.substring(0, literal.length() - 1);
+            kind = TriggerSet.Kind.PREFIX;
+        }
+
+        if (literal.length() == 0)
+        {
+            throw Context.reportRuntimeError("Trigger pattern may not be empty");
+        }
+
+        return new TriggerSet.Trigger(kind, literal, function);
+    }
+
+    /**
+     * Removes a trigger by copying the triggers without it.
+     * 
+     * @param trigger A trigger with the same pattern and function.
+     */
+    private synchronized void removeTrigger(TriggerSet.Trigger trigger)
+    {
+        for (int i = 0; i < this.triggers.length; i++)
+        {
+            if (this.triggers[i].sameAs(trigger))
+            {
+                TriggerSet.Trigger[] updated = new TriggerSet.Trigger[this.triggers.length - 1];
+                System.arraycopy(this.triggers, 0, updated, 0, i);
+                System.arraycopy(this.triggers, i + 1, updated, i, this.triggers.length - i - 1);
+                this.triggers = updated;
+                this.compiledTriggers = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Converts a regular expression match to the array that
+     * <CODE>RegExp.exec()</CODE> would have returned.
+     * 
+     * @param result The match.
+     * @param text The text that was matched.
+     * @return The array.
+     */
+    private Scriptable toScriptMatch(MatchResult result, String text)
+    {
+        Context cx = Context.getCurrentContext();
+        Object[] groups = new Object[result.groupCount() + 1];
+
+        for (int i = 0; i < groups.length; i++)
+        {
+            String group = result.group(i);
+            groups[i] = group != null ? group : Context.getUndefinedValue();
+        }
+
+        Scriptable match = cx.newArray(ScriptableObject.getTopLevelScope(this), groups);
+        ScriptableObject.putProperty(match, "index", Integer.valueOf(result.start()));
+        ScriptableObject.putProperty(match, "input", text);
+        return match;
     }
 
     /**
@@ -704,9 +1450,7 @@ public class Bot extends HostObject
             channelInstance.onAction(sender, action);
         }
 
-        Object[] args =
-        { sender, target, action };
-        this.fireHandler(Bot.HANDLER_ON_ACTION, args);
+        this.fireHandler(Bot.Event.ACTION, sender, target, action);
     }
 
     /**
@@ -731,8 +1475,70 @@ public class Bot extends HostObject
         return channelInstance;
     }
 
+    /**
+     * Removes a channel the bot has left from the <CODE>channels</CODE>
+     * collection, along with its members' entries in the nick index.
+     * 
+     * @param channel The name of the channel.
+     * @param channelInstance The <CODE>Channel</CODE>, or <CODE>null</CODE>
+     *        if there is none.
+     */
+    private void removeChannel(String channel, Channel channelInstance)
+    {
+        if (channelInstance != null)
+        {
+            this.nicks.removeChannel(channelInstance, channelInstance.getNicks());
+        }
+
+        ScriptableObject.deleteProperty(this.channels, channel);
+    }
+
     /**
      * The channels collection in which the bot is currently listening.
      */
     Scriptable channels;
+
+    /**
+     * The index of which channels each nick is in, shared with every
+     * <CODE>Channel</CODE>.
+     */
+    NickIndex nicks;
+
+    /**
+     * Gathers netsplits and netjoins into single events.
+     */
+    NetsplitTracker splits;
+
+    /**
+     * Whether the individual quit and join handlers fire during netsplits
+     * and netjoins.
+     */
+    private boolean individualSplitEvents;
+
+    /**
+     * The triggers added by scripts, in the order they were added. The array
+     * is replaced, not changed, when a trigger is added or removed.
+     */
+    private TriggerSet.Trigger[] triggers;
+
+    /**
+     * The triggers compiled for matching, or <CODE>null</CODE> if they have
+     * changed since they were last compiled.
+     */
+    private volatile TriggerSet compiledTriggers;
+
+    /**
+     * The commands added by scripts.
+     */
+    CommandRouter commands;
+
+    /**
+     * The users whose levels commands check.
+     */
+    UserRegistry users;
+
+    /**
+     * Whether commands check the level of the user who sent them.
+     */
+    private boolean enforceCommandLevels;
 }
@@ -21,8 +21,17 @@ import net.ardvaark.jackbot.IRC;
 import net.ardvaark.jackbot.IRCUtils;
 import net.ardvaark.jackbot.scripting.ScriptException;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
 import org.mozilla.javascript.Scriptable;
-import org.mozilla.javascript.ScriptableObject;
 
 /**
  * ECMAScript host object <CODE>Channel</CODE>. This represents a channel in
@@ -90,11 +99,67 @@ public class Channel extends HostObject
      */
     public static final String HANDLER_ON_ACTION  = "onAction";
 
+    /**
+     * The ECMAScript handler to be called once for each netsplit, with the
+     * two servers and an array of the users of this channel that quit.
+     */
+    public static final String HANDLER_ON_NETSPLIT = "onNetsplit";
+
+    /**
+     * The ECMAScript handler to be called once for each netjoin, with the two
+     * servers and an array of the users that came back to this channel.
+     */
+    public static final String HANDLER_ON_NETJOIN = "onNetjoin";
+
+    /**
+     * The ECMAScript handler to be called once the channel's names and topic
+     * have been received after the bot joins it.
+     */
+    public static final String HANDLER_ON_SYNCED = "onSynced";
+
+    /**
+     * The events of a <CODE>Channel</CODE>, each with its own handler slot.
+     */
+    enum Event implements HostObject.EventSlot
+    {
+        JOIN(HANDLER_ON_JOIN),
+        PART(HANDLER_ON_PART),
+        KICK(HANDLER_ON_KICK),
+        QUIT(HANDLER_ON_QUIT),
+        TOPIC(HANDLER_ON_TOPIC),
+        NICK(HANDLER_ON_NICK),
+        PRIVMSG(HANDLER_ON_PRIVMSG),
+        ACTION(HANDLER_ON_ACTION),
+        NETSPLIT(HANDLER_ON_NETSPLIT),
+        NETJOIN(HANDLER_ON_NETJOIN),
+        SYNCED(HANDLER_ON_SYNCED);
+
+        private Event(String handlerName)
+        {
+            this.handlerName = handlerName;
+        }
+
+        public String getHandlerName()
+        {
+            return this.handlerName;
+        }
+
+        private final String handlerName;
+    }
+
+    /**
+     * The handler slots of every <CODE>Channel</CODE>.
+     */
+    private static final EventTable EVENTS = new EventTable(Event.class);
+
     /**
      * Default constructor.
      */
     public Channel()
     {
+        super(Channel.EVENTS);
+        this.members = new HashMap<String, String>();
+        this.nameObjects = new HashMap<String, Name>();
     }
 
     /**
@@ -132,6 +197,18 @@ public class Channel extends HostObject
         return this.name;
     }
 
+    /**
+     * ECMAScript property get <CODE>synced</CODE>. Until the channel is
+     * synced, its <CODE>names</CODE> and <CODE>topic</CODE> may be
+     * incomplete.
+     * 
+     * @return Whether the channel's names and topic have been received.
+     */
+    public boolean jsGet_synced()
+    {
+        return this.synced;
+    }
+
     /**
      * ECMAScript property get <CODE>topic</CODE>. Gets the topic of the
      * channel.
@@ -158,8 +235,7 @@ public class Channel extends HostObject
      * Called when a <CODE>JOIN</CODE> message is received from the server.
      * The following sequence of actions is performed:
      * <ol>
-     * <li>A new <CODE>Name</CODE> object is created and added to the
-     * <CODE>names</CODE> collection.</li>
+     * <li>The joiner is added to the <CODE>names</CODE> collection.</li>
      * <li>The <CODE>HANDLER_ON_JOIN</CODE> handler is called.</li>
      * </ol>
      * 
@@ -172,13 +248,10 @@ public class Channel extends HostObject
 
         if (!nick.equalsIgnoreCase(this.getEngine().getClient().getName()))
         {
-            Name nameInstance = HostObjectFactory.newName(nick, this);
-            ScriptableObject.putProperty(this.names, nick, nameInstance);
+            this.addName(nick);
         }
 
-        Object[] args =
-        { name };
-        this.fireHandler(Channel.HANDLER_ON_JOIN, args);
+        this.fireHandler(Channel.Event.JOIN, name);
     }
 
     /**
@@ -198,13 +271,11 @@ public class Channel extends HostObject
     {
         String nick = IRCUtils.extractNickFromMask(name);
 
-        Object[] args =
-        { name, msg };
-        this.fireHandler(Channel.HANDLER_ON_PART, args);
+        this.fireHandler(Channel.Event.PART, name, msg);
 
         if (!nick.equalsIgnoreCase(this.getEngine().getClient().getName()))
         {
-            ScriptableObject.deleteProperty(this.names, nick);
+            this.removeName(nick);
         }
     }
 
@@ -226,13 +297,11 @@ public class Channel extends HostObject
     {
         String nick = IRCUtils.extractNickFromMask(name);
 
-        Object[] args =
-        { name, kicker, msg };
-        this.fireHandler(Channel.HANDLER_ON_KICK, args);
+        this.fireHandler(Channel.Event.KICK, name, kicker, msg);
 
         if (!nick.equalsIgnoreCase(this.getEngine().getClient().getName()))
         {
-            ScriptableObject.deleteProperty(this.names, name);
+            this.removeName(nick);
         }
     }
 
@@ -253,13 +322,11 @@ public class Channel extends HostObject
     {
         String nick = IRCUtils.extractNickFromMask(name);
 
-        Object[] args =
-        { name, msg };
-        this.fireHandler(Channel.HANDLER_ON_QUIT, args);
+        this.fireHandler(Channel.Event.QUIT, name, msg);
 
         if (!nick.equalsIgnoreCase(this.getEngine().getClient().getName()))
         {
-            ScriptableObject.deleteProperty(this.names, name);
+            this.removeName(nick);
         }
     }
 
@@ -279,9 +346,7 @@ public class Channel extends HostObject
     {
         this.topic = newTopic;
 
-        Object[] args =
-        { newTopic, changer };
-        this.fireHandler(Channel.HANDLER_ON_TOPIC, args);
+        this.fireHandler(Channel.Event.TOPIC, newTopic, changer);
     }
 
     /**
@@ -289,7 +354,7 @@ public class Channel extends HostObject
      * The following sequence of actions is performed:
      * <ol>
      * <li>Call the child Name object's
-     * {@link Name#onNick(String) onNick method}.</li>
+     * {@link Name#onNick(String) onNick method}, if a script has it.</li>
      * <li>Fire the Channel object's onNick handler.</li>
      * <li>Change the name of the property in the names collection from the old
      * nick to the new nick.</li>
@@ -301,8 +366,8 @@ public class Channel extends HostObject
      */
     void onNick(String name, String newNick) throws ScriptException
     {
-        String oldNick = IRCUtils.extractNickFromMask(name);
-        Name nameInstance = this.getChildName(oldNick);
+        String oldKey = IRCUtils.toLowerCase(IRCUtils.extractNickFromMask(name));
+        Name nameInstance = this.nameObjects.get(oldKey);
 
         // Call the child Name object's onNick method.
         if (nameInstance != null)
@@ -311,19 +376,125 @@ public class Channel extends HostObject
         }
 
         // Fire the Channel object's onNick handler.
-        Object[] args =
-        { name, newNick };
-        this.fireHandler(Channel.HANDLER_ON_NICK, args);
+        this.fireHandler(Channel.Event.NICK, name, newNick);
 
-        // hange the name of the property in the names collection from the
+        // Change the name of the property in the names collection from the
         // old nick to the new nick.
-        if (nameInstance != null)
+        if (this.members.containsKey(oldKey))
+        {
+            this.removeName(oldKey);
+            this.addName(newNick);
+
+            if (nameInstance != null)
+            {
+                this.nameObjects.put(IRCUtils.toLowerCase(newNick), nameInstance);
+            }
+        }
+    }
+
+    /**
+     * Called when a <CODE>RPL_TOPIC</CODE> or <CODE>RPL_NOTOPIC</CODE>
+     * reply is received for this channel.
+     * 
+     * @param newTopic The topic, or <CODE>null</CODE> if there is none.
+     */
+    void onTopicReply(String newTopic)
+    {
+        this.topic = newTopic;
+    }
+
+    /**
+     * Called when a <CODE>RPL_NAMEREPLY</CODE> is received for this channel.
+     * A long list of names is split over several replies, so the nicks are
+     * gathered until the <CODE>RPL_ENDOFNAMES</CODE>.
+     * 
+     * @param nickList The space-separated nicks, with their status prefixes.
+     */
+    void onNamesReply(String nickList)
+    {
+        if (this.pendingNames == null)
         {
-            ScriptableObject.deleteProperty(this.names, oldNick);
-            ScriptableObject.putProperty(this.names, newNick, nameInstance);
+            this.pendingNames = new ArrayList<String>();
+        }
+
+        StringTokenizer tok = new StringTokenizer(nickList, " ");
+
+        while (tok.hasMoreTokens())
+        {
+            String nick = Channel.stripNamePrefixes(tok.nextToken());
+
+            if (nick.length() > 0)
+            {
+                this.pendingNames.add(nick);
+            }
         }
     }
 
+    /**
+     * Called when a <CODE>RPL_ENDOFNAMES</CODE> is received for this
+     * channel. The following sequence of actions is performed:
+     * <ol>
+     * <li>If the channel is already synced, the names that were not in the
+     * reply are removed from the <CODE>names</CODE> collection.</li>
+     * <li>The names in the reply that are not in the <CODE>names</CODE>
+     * collection are added.</li>
+     * <li>If the channel was not synced, it is now, and the
+     * <CODE>HANDLER_ON_SYNCED</CODE> handler is fired. Servers send the
+     * topic before the names, and some broken ones send neither a
+     * <CODE>RPL_TOPIC</CODE> nor a <CODE>RPL_NOTOPIC</CODE>, so the end of
+     * the names is taken to mean the topic is in as well.</li>
+     * </ol>
+     * 
+     * @return <CODE>true</CODE> if the channel has just become synced.
+     * @throws ScriptException If an exception occurs during event firing.
+     */
+    boolean onEndOfNames() throws ScriptException
+    {
+        List<String> nickList = this.pendingNames;
+        this.pendingNames = null;
+
+        if (nickList == null)
+        {
+            nickList = Collections.emptyList();
+        }
+
+        if (this.synced)
+        {
+            Set<String> present = new HashSet<String>();
+
+            for (String nick : nickList)
+            {
+                present.add(IRCUtils.toLowerCase(nick));
+            }
+
+            for (String key : new ArrayList<String>(this.members.keySet()))
+            {
+                if (!present.contains(key))
+                {
+                    this.removeName(key);
+                }
+            }
+        }
+
+        for (String nick : nickList)
+        {
+            if (!this.members.containsKey(IRCUtils.toLowerCase(nick)))
+            {
+                this.addName(nick);
+            }
+        }
+
+        if (this.synced)
+        {
+            return false;
+        }
+
+        this.synced = true;
+        this.fireHandler(Channel.Event.SYNCED);
+
+        return true;
+    }
+
     /**
      * Called when a <CODE>PRIVMSG</CODE> message is received from the server.
      * The following sequence of actions is performed:
@@ -337,9 +508,7 @@ public class Channel extends HostObject
      */
     void onPrivMsg(String sender, String text) throws ScriptException
     {
-        Object[] args =
-        { sender, text };
-        this.fireHandler(Channel.HANDLER_ON_PRIVMSG, args);
+        this.fireHandler(Channel.Event.PRIVMSG, sender, text);
     }
 
     /**
@@ -357,52 +526,163 @@ public class Channel extends HostObject
      */
     void onAction(String sender, String action) throws ScriptException
     {
-        Name nameInstance = this.getChildName(IRCUtils.extractNickFromMask(sender));
+        Name nameInstance = this.nameObjects.get(IRCUtils.toLowerCase(IRCUtils.extractNickFromMask(sender)));
 
         if (nameInstance != null)
         {
             nameInstance.onAction(action);
         }
 
-        Object[] args =
-        { sender, action };
-        this.fireHandler(Channel.HANDLER_ON_ACTION, args);
+        this.fireHandler(Channel.Event.ACTION, sender, action);
     }
 
     /**
-     * Gets the child channel of the <CODE>Bot</CODE> object with the given
-     * name.
+     * Adds a nick to the members of the channel and to the bot's nick index.
      * 
-     * @param name The name of the <CODE>Name</CODE> to locate.
-     * @throws ScriptException If an exception occurs during the location.
-     * @return The <CODE>Name</CODE> corresponding to the passed name, or
-     *         <CODE>null</CODE> if it does not exist.
+     * @param nick The nick to add.
      */
-    private Name getChildName(String name) throws ScriptException
+    void addName(String nick)
     {
-        Name nameInstance = null;
-        Object childObject = ScriptableObject.getProperty(this.names, name);
+        this.members.put(IRCUtils.toLowerCase(nick), nick);
+        this.nicks.add(nick, this);
+    }
+
+    /**
+     * Removes a nick from the members of the channel and from the bot's nick
+     * index. The nick may differ in case from the one it was added under.
+     * 
+     * @param nick The nick to remove.
+     */
+    void removeName(String nick)
+    {
+        String key = IRCUtils.toLowerCase(nick);
+        String member = this.members.remove(key);
 
-        if (childObject != null && childObject instanceof Name)
+        if (member != null)
         {
-            nameInstance = (Name) childObject;
+            this.nameObjects.remove(key);
+            this.nicks.remove(member, this);
+        }
+    }
+
+    /**
+     * Gets the nicks of the members of the channel.
+     * 
+     * @return The nicks, as the server sent them.
+     */
+    Collection<String> getNicks()
+    {
+        return this.members.values();
+    }
+
+    /**
+     * Determines whether a nick is in the channel, ignoring case.
+     * 
+     * @param nick The nick.
+     * @return <CODE>true</CODE> if the nick is in the channel.
+     */
+    boolean hasName(String nick)
+    {
+        return this.members.containsKey(IRCUtils.toLowerCase(nick));
+    }
+
+    /**
+     * Gets the <CODE>Name</CODE> object for a member of the channel,
+     * ignoring case. Most members are never looked at by a script, so the
+     * object is only created the first time it is asked for, and then kept
+     * for as long as the user is in the channel so that any handlers set on
+     * it stay.
+     * 
+     * @param nick The nick.
+     * @throws ScriptException If the <CODE>Name</CODE> cannot be created.
+     * @return The <CODE>Name</CODE>, or <CODE>null</CODE> if the nick is not
+     *         in the channel.
+     */
+    Name getName(String nick) throws ScriptException
+    {
+        String key = IRCUtils.toLowerCase(nick);
+        Name nameInstance = this.nameObjects.get(key);
+
+        if (nameInstance == null)
+        {
+            String member = this.members.get(key);
+
+            if (member != null)
+            {
+                nameInstance = HostObjectFactory.newName(member, this);
+                this.nameObjects.put(key, nameInstance);
+            }
         }
 
         return nameInstance;
     }
 
+    /**
+     * Strips the channel status prefixes, such as <CODE>@</CODE> for an
+     * operator or <CODE>+</CODE> for a voiced user, from a nick in a
+     * <CODE>RPL_NAMEREPLY</CODE>. Servers that support multiple prefixes
+     * may send more than one.
+     * 
+     * @param nick The nick from the reply.
+     * @return The bare nick.
+     */
+    private static String stripNamePrefixes(String nick)
+    {
+        int start = 0;
+
+        while (start < nick.length() && Channel.NAME_PREFIXES.indexOf(nick.charAt(start)) >= 0)
+        {
+            start++;
+        }
+
+        return nick.substring(start);
+    }
+
+    /**
+     * The channel status prefixes that may precede a nick in a
+     * <CODE>RPL_NAMEREPLY</CODE>.
+     */
+    private static final String NAME_PREFIXES = "~&@%+";
+
     /**
      * The name of the channel.
      */
     String     name;
 
     /**
-     * The collection of names that are in this channel.
+     * The script's view of the names that are in this channel.
      */
     Scriptable names;
 
+    /**
+     * The nicks of the channel's members, keyed by the lowercased nick.
+     */
+    private final Map<String, String> members;
+
+    /**
+     * The <CODE>Name</CODE> objects that scripts have asked for, keyed by the
+     * lowercased nick.
+     */
+    private final Map<String, Name> nameObjects;
+
     /**
      * The topic of the channel.
      */
     String     topic;
+
+    /**
+     * The bot's index of which channels each nick is in.
+     */
+    NickIndex  nicks;
+
+    /**
+     * Whether the channel's names and topic have been received.
+     */
+    boolean    synced;
+
+    /**
+     * The nicks from the <CODE>RPL_NAMEREPLY</CODE>s received so far, or
+     * <CODE>null</CODE> if no names reply is in progress.
+     */
+    private List<String> pendingNames;
 }
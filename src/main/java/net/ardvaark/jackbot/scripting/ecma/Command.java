@@ -0,0 +1,245 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * ECMAScript host object <CODE>Command</CODE>. A <CODE>Command</CODE> is
+ * passed to the handlers of a command, such as <CODE>!help</CODE>, that
+ * was sent to the bot.
+ * 
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public class Command extends ScriptableObject
+{
+    private static final long  serialVersionUID = 1L;
+
+    /**
+     * The ECMAScript class name for this class. This is the name by which the
+     * script will refer to the class.
+     */
+    public static final String ECMA_CLASS_NAME  = "Command";
+
+    /**
+     * Default constructor.
+     */
+    public Command()
+    {
+    }
+
+    /**
+     * Gets the ECMAScript class name for this object.
+     * 
+     * @return The ECMAScript class name for this object.
+     */
+    @Override
+    public String getClassName()
+    {
+        return Command.ECMA_CLASS_NAME;
+    }
+
+    /**
+     * ECMAScript property get <CODE>sender</CODE>.
+     * 
+     * @return The hostmask of the sender of the command.
+     */
+    public String jsGet_sender()
+    {
+        return this.sender;
+    }
+
+    /**
+     * ECMAScript property get <CODE>target</CODE>.
+     * 
+     * @return The target of the command. This could be a channel or a name.
+     */
+    public String jsGet_target()
+    {
+        return this.target;
+    }
+
+    /**
+     * ECMAScript property get <CODE>msg</CODE>.
+     * 
+     * @return The text of the message that held the command.
+     */
+    public String jsGet_msg()
+    {
+        return this.msg;
+    }
+
+    /**
+     * ECMAScript property get <CODE>cmd</CODE>.
+     * 
+     * @return The full, lowercase name of the command, even if it was sent
+     *         abbreviated.
+     */
+    public String jsGet_cmd()
+    {
+        return this.cmd;
+    }
+
+    /**
+     * ECMAScript property get <CODE>paramString</CODE>.
+     * 
+     * @return The unparsed string of parameters.
+     */
+    public String jsGet_paramString()
+    {
+        return this.paramString;
+    }
+
+    /**
+     * ECMAScript property get <CODE>params</CODE>. The array is made the
+     * first time it is asked for.
+     * 
+     * @return An <CODE>Array</CODE> of the parameters, split on spaces.
+     */
+    public Scriptable jsGet_params()
+    {
+        if (this.params == null)
+        {
+            String[] split = this.paramString.split(" ", -1);
+            Object[] elements = new Object[split.length];
+            System.arraycopy(split, 0, elements, 0, split.length);
+            this.params = Context.getCurrentContext().newArray(ScriptableObject.getTopLevelScope(this), elements);
+        }
+
+        return this.params;
+    }
+
+    /**
+     * ECMAScript property get <CODE>level</CODE>.
+     * 
+     * @return The level needed to run the handler being called.
+     */
+    public int jsGet_level()
+    {
+        return this.level;
+    }
+
+    /**
+     * ECMAScript property set <CODE>level</CODE>.
+     * 
+     * @param level The level.
+     */
+    public void jsSet_level(int level)
+    {
+        this.level = level;
+    }
+
+    /**
+     * ECMAScript function <CODE>respond(message, respondAsPrivMsg)</CODE>.
+     * Responds to the sender of the command, as
+     * {@link Bot#jsFunction_respond(String, String, String, boolean)} does.
+     * 
+     * @param message The message.
+     * @param respondAsPrivMsg If <code>true</code>, the response will be
+     *        sent as a <code>PRIVMSG</code> instead of a <code>NOTICE</code>.
+     */
+    public void jsFunction_respond(String message, boolean respondAsPrivMsg)
+    {
+        this.bot.jsFunction_respond(this.sender, this.target, message, respondAsPrivMsg);
+    }
+
+    /**
+     * ECMAScript function <CODE>targetsChannel()</CODE>.
+     * 
+     * @return <CODE>true</CODE> if the command was sent to a channel.
+     */
+    public boolean jsFunction_targetsChannel()
+    {
+        return this.target.length() > 0 && this.target.charAt(0) == '#';
+    }
+
+    /**
+     * ECMAScript function <CODE>targetsName()</CODE>.
+     * 
+     * @return <CODE>true</CODE> if the command was sent to the bot itself.
+     */
+    public boolean jsFunction_targetsName()
+    {
+        return !this.jsFunction_targetsChannel();
+    }
+
+    /**
+     * ECMAScript function <CODE>toString()</CODE>.
+     * 
+     * @return A description of the command, for logs.
+     */
+    public String jsFunction_toString()
+    {
+        return this.toString();
+    }
+
+    /**
+     * Gets a description of the command, for logs.
+     * 
+     * @return The description.
+     */
+    @Override
+    public String toString()
+    {
+        return "Cmd:" + this.cmd + ", From:" + this.sender + ", Target:" + this.target + ", Params:" + this.paramString;
+    }
+
+    /**
+     * The bot that received the command.
+     */
+    Bot        bot;
+
+    /**
+     * The hostmask of the sender of the command.
+     */
+    String     sender;
+
+    /**
+     * The target of the command.
+     */
+    String     target;
+
+    /**
+     * The text of the message that held the command.
+     */
+    String     msg;
+
+    /**
+     * The full name of the command.
+     */
+    String     cmd;
+
+    /**
+     * The unparsed string of parameters.
+     */
+    String     paramString;
+
+    /**
+     * The parsed parameters, or <CODE>null</CODE> until they are asked for.
+     */
+    Scriptable params;
+
+    /**
+     * The level needed to run the handler being called.
+     */
+    int        level;
+}
@@ -0,0 +1,325 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import org.mozilla.javascript.Function;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The commands registered by scripts, kept in a trie of their names so that a
+ * command can also be run by any abbreviation that only one command starts
+ * with. Names are lowercase; a command may have several handlers, which run
+ * in the order they were added.
+ * 
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+final class CommandRouter
+{
+    /**
+     * Constructs a router with no commands.
+     */
+    CommandRouter()
+    {
+        this.root = new Node();
+    }
+
+    /**
+     * Adds a handler for a command.
+     * 
+     * @param name The command's name.
+     * @param handler The handler.
+     * @return <code>false</code> if the command already has a handler with
+     *         the same function.
+     */
+    synchronized boolean add(String name, Handler handler)
+    {
+        Node node = this.root;
+        String key = name.toLowerCase();
+
+        for (int i = 0; i < key.length(); i++)
+        {
+            Character c = Character.valueOf(key.charAt(i));
+            Node next = node.children.get(c);
+
+            if (next == null)
+            {
+                next = new Node();
+                node.children.put(c, next);
+            }
+
+            node = next;
+        }
+
+        Handler[] current = node.handlers;
+
+        if (current == null)
+        {
+            node.handlers = new Handler[] { handler };
+            this.count(key, 1);
+            return true;
+        }
+
+        for (Handler existing : current)
+        {
+            if (existing.function == handler.function)
+            {
+                return false;
+            }
+        }
+
+        Handler[] updated = new Handler[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = handler;
+        node.handlers = updated;
+        return true;
+    }
+
+    /**
+     * Removes a handler of a command.
+     * 
+     * @param name The command's name.
+     * @param function The handler's function.
+     * @return <code>true</code> if the handler was removed.
+     */
+    synchronized boolean remove(String name, Function function)
+    {
+        String key = name.toLowerCase();
+        Node node = this.find(key);
+        Handler[] current = node != null ? node.handlers : null;
+
+        if (current == null)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i].function == function)
+            {
+                if (current.length == 1)
+                {
+                    node.handlers = null;
+                    this.count(key, -1);
+                }
+                else
+                {
+                    Handler[] updated = new Handler[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    node.handlers = updated;
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Finds the command that a name refers to: the command with that name,
+     * or else the only command whose name starts with it.
+     * 
+     * @param name The name, or an abbreviation of it.
+     * @return The command's full name, or <code>null</code> if there is no
+     *         such command or the abbreviation is ambiguous.
+     */
+    synchronized String resolve(String name)
+    {
+        String key = name.toLowerCase();
+        Node node = this.find(key);
+
+        if (node == null || node.handlers == null && node.commands != 1)
+        {
+            return null;
+        }
+
+        StringBuilder resolved = new StringBuilder(key);
+
+        while (node.handlers == null)
+        {
+            for (Map.Entry<Character, Node> child : node.children.entrySet())
+            {
+                if (child.getValue().commands > 0)
+                {
+                    resolved.append(child.getKey().charValue());
+                    node = child.getValue();
+                    break;
+                }
+            }
+        }
+
+        return resolved.toString();
+    }
+
+    /**
+     * Gets the handlers of a command.
+     * 
+     * @param name The command's full name.
+     * @return The handlers, or <code>null</code> if there is no such
+     *         command. The array must not be changed.
+     */
+    synchronized Handler[] getHandlers(String name)
+    {
+        Node node = this.find(name.toLowerCase());
+        return node != null ? node.handlers : null;
+    }
+
+    /**
+     * Gets the names of all of the commands.
+     * 
+     * @return The names, in alphabetical order.
+     */
+    synchronized List<String> getNames()
+    {
+        List<String> names = new ArrayList<String>(this.root.commands);
+        this.collectNames(this.root, new StringBuilder(), names);
+        return names;
+    }
+
+    /**
+     * Determines whether there are any commands.
+     * 
+     * @return <code>true</code> if no command has a handler.
+     */
+    synchronized boolean isEmpty()
+    {
+        return this.root.commands == 0;
+    }
+
+    private Node find(String key)
+    {
+        Node node = this.root;
+
+        for (int i = 0; i < key.length() && node != null; i++)
+        {
+            node = node.children.get(Character.valueOf(key.charAt(i)));
+        }
+
+        return node;
+    }
+
+    /**
+     * Changes the command count of each node on the path to a command.
+     * 
+     * @param key The command's name.
+     * @param delta The change.
+     */
+    private void count(String key, int delta)
+    {
+        Node node = this.root;
+        node.commands += delta;
+
+        for (int i = 0; i < key.length(); i++)
+        {
+            node = node.children.get(Character.valueOf(key.charAt(i)));
+            node.commands += delta;
+        }
+    }
+
+    private void collectNames(Node node, StringBuilder prefix, List<String> names)
+    {
+        if (node.handlers != null)
+        {
+            names.add(prefix.toString());
+        }
+
+        for (Map.Entry<Character, Node> child : node.children.entrySet())
+        {
+            if (child.getValue().commands > 0)
+            {
+                prefix.append(child.getKey().charValue());
+                this.collectNames(child.getValue(), prefix, names);
+                prefix.setLength(prefix.length() - 1);
+            }
+        }
+    }
+
+    /**
+     * A function that handles a command.
+     */
+    static final class Handler
+    {
+        /**
+         * Constructs a handler.
+         * 
+         * @param function The function to call.
+         * @param level The level a user needs to run it.
+         * @param help The help text.
+         */
+        Handler(Function function, int level, String help)
+        {
+            this.function = function;
+            this.level = level;
+            this.help = help;
+        }
+
+        /**
+         * The function to call.
+         */
+        final Function function;
+
+        /**
+         * The level a user needs to run it.
+         */
+        final int      level;
+
+        /**
+         * The help text.
+         */
+        final String   help;
+    }
+
+    /**
+     * A node of the trie.
+     */
+    private static final class Node
+    {
+        Node()
+        {
+            this.children = new TreeMap<Character, Node>();
+        }
+
+        /**
+         * The nodes for the next character of the names, in order.
+         */
+        final TreeMap<Character, Node> children;
+
+        /**
+         * The handlers of the command whose name ends here, or
+         * <code>null</code> if there is none.
+         */
+        Handler[]                      handlers;
+
+        /**
+         * The number of commands whose names end here or below.
+         */
+        int                            commands;
+    }
+
+    /**
+     * The root of the trie.
+     */
+    private final Node root;
+}
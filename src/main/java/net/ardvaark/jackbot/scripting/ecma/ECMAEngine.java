@@ -18,27 +18,28 @@
 package net.ardvaark.jackbot.scripting.ecma;
 
 import net.ardvaark.jackbot.CTCPMessage;
+import net.ardvaark.jackbot.Configurable;
 import net.ardvaark.jackbot.EventIRCClient;
 import net.ardvaark.jackbot.IRC;
+import net.ardvaark.jackbot.IRCCommand;
 import net.ardvaark.jackbot.IRCMessage;
 import net.ardvaark.jackbot.logging.Log;
 import net.ardvaark.jackbot.scripting.ScriptException;
 import net.ardvaark.jackbot.scripting.ecma.async.AsyncTaskRunner;
+import net.ardvaark.jackbot.scripting.ecma.async.CronExpression;
 import net.ardvaark.jackbot.scripting.ecma.async.TimeoutScheduler;
-import org.apache.commons.io.IOUtils;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
-import org.xml.sax.SAXParseException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -50,7 +51,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * @since JackBot v1.1
  * @version $Revision: 70 $ $Date: 2008-08-05 12:02:51 -0400 (Tue, 05 Aug 2008) $
  */
-public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngine
+public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngine, Configurable
 {
     private static final Log log = Log.getLogger(ECMAEngine.class);
     
@@ -61,11 +62,19 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
      */
     public ECMAEngine() throws ScriptException
     {
+        if (!WatchdogContextFactory.install())
+        {
+            log.warn("Another Rhino context factory is installed; script budgets will not be enforced.");
+        }
+        
+        this.handlerMillis = ECMAEngine.DEFAULT_HANDLER_MILLIS;
+        this.scriptMillis = ECMAEngine.DEFAULT_SCRIPT_MILLIS;
         this.executedScripts = new ArrayList<Element>();
         this.executedFiles = Collections.synchronizedSet(new HashSet<String>());
+        this.scriptCache = new ScriptCache();
         this.timeoutScheduler = new TimeoutScheduler(this);
         this.asyncRunner = new AsyncTaskRunner(this);
-        this.loadPersistentDataStore();
+        ECMAEngine.loadPersistentDataStore();
         this.initializeEngine();
     }
 
@@ -98,8 +107,26 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
      * @param scriptElement The element containing the script to execute.
      * @return The return value of the execution.
      */
-    public Object executeScript(Element scriptElement)
+    public Object executeScript(final Element scriptElement)
     {
+        if (this.eventLoop != null && !this.eventLoop.inEventLoop())
+        {
+            try
+            {
+                return this.eventLoop.invokeAndWait(new Callable<Object>() {
+                    public Object call()
+                    {
+                        return executeScript(scriptElement);
+                    }
+                });
+            }
+            catch (Exception e)
+            {
+                log.error("Error running a script on the script event loop.", e);
+                return null;
+            }
+        }
+        
         Object retVal = null;
 
         try
@@ -172,7 +199,26 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
             Context cx = Context.getCurrentContext();
             
             log.trace("Executing script: {0}", scriptName);
-            retVal = cx.evaluateString(this.topLevelScope, script, scriptName, 1, null);
+            WatchdogContextFactory.Budget budget = WatchdogContextFactory.open(cx, "Script " + scriptName,
+                    this.scriptInstructions, this.scriptMillis);
+            
+            try
+            {
+                retVal = this.scriptCache.getScript(cx, script, scriptName).exec(cx, this.topLevelScope);
+            }
+            catch (WatchdogContextFactory.BudgetExceededError e)
+            {
+                if (e.getBudget() != budget)
+                {
+                    throw e;
+                }
+                
+                log.error("Stopped a runaway script: {0}", e.getMessage());
+            }
+            finally
+            {
+                WatchdogContextFactory.close(cx, budget);
+            }
         }
         else
         {
@@ -192,26 +238,7 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
      */
     Object executeFile(String fileName) throws Exception
     {
-        Element rootElement;
-        DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-
-        try {
-            Document doc = docBuilder.parse(fileName);
-            rootElement = doc.getDocumentElement();
-        }
-        catch (SAXParseException e) {
-            // If we're unable to parse this as an XML file,
-            // let's try wrapping the file in a made-up XML document, so we can cleanly load bare script files
-            // (i.e. with no XML wrapper).
-            String scriptText = IOUtils.toString(new FileInputStream(fileName), "UTF-8");
-
-            Document doc = docBuilder.newDocument();
-            rootElement = doc.createElement("script");
-            rootElement.setTextContent(scriptText);
-            rootElement.setAttribute("name", fileName);
-        }
-
-        return this.internalExecute(rootElement);
+        return this.internalExecute(this.scriptCache.getDocument(fileName));
     }
 
     /**
@@ -247,7 +274,7 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
     void reload() throws Exception
     {
         this.bot.partAllChannels();
-        this.cleanup();
+        this.cleanupScripts();
         this.initializeEngine();
 
         for (Element scriptElement : this.executedScripts)
@@ -261,7 +288,48 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
      */
     public void cleanup()
     {
+        if (this.eventLoop != null && !this.eventLoop.inEventLoop())
+        {
+            try
+            {
+                this.eventLoop.invokeAndWait(new Callable<Void>() {
+                    public Void call()
+                    {
+                        cleanup();
+                        return null;
+                    }
+                });
+            }
+            catch (Exception e)
+            {
+                log.error("Error cleaning up the script engine.", e);
+            }
+            
+            log.info("Script event loop: {0} tasks, wait avg {1,number,0.0} ms max {2,number,0.0} ms, run avg {3,number,0.0} ms max {4,number,0.0} ms",
+                    this.eventLoop.getTaskCount(),
+                    this.eventLoop.getAverageLatencyMillis(), this.eventLoop.getMaximumLatencyMillis(),
+                    this.eventLoop.getAverageRunMillis(), this.eventLoop.getMaximumRunMillis());
+            
+            this.eventLoop.shutdown();
+            return;
+        }
+        
+        for (AsyncTaskRunner.TaskStats stats : asyncRunner.getStats().values())
+        {
+            log.info("Async tasks: {0}", stats);
+        }
+        
         asyncRunner.destroy();
+        this.cleanupScripts();
+    }
+    
+    /**
+     * Cancels the scripts' timeouts and leaves the script context, ready for
+     * the engine to be initialized again.  Asynchronous tasks already
+     * running are left to finish.
+     */
+    private void cleanupScripts()
+    {
         timeoutScheduler.destroy();
         
         Context.exit();
@@ -270,52 +338,66 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
     }
 
     void persistData(String key, Object value) {
-        this.persistentDataStoreLock.writeLock().lock();
+        persistentDataStoreLock.writeLock().lock();
 
         try {
             log.info("Persisting data: {0} -> {1}", key, value);
-            this.persistentDataStore.put(key, value);
-            this.serializePersistentDataStore();
+            persistentDataStore.put(key, value);
+            serializePersistentDataStore();
         }
         finally {
-            this.persistentDataStoreLock.writeLock().unlock();
+            persistentDataStoreLock.writeLock().unlock();
         }
     }
 
     Object retrieveData(String key) {
-        this.persistentDataStoreLock.readLock().lock();
+        persistentDataStoreLock.readLock().lock();
 
         try {
-            return this.persistentDataStore.get(key);
+            return persistentDataStore.get(key);
         }
         finally {
-            this.persistentDataStoreLock.readLock().unlock();
+            persistentDataStoreLock.readLock().unlock();
         }
     }
 
-    private void loadPersistentDataStore() {
+    /**
+     * Loads the persistent data store, unless another engine in the JVM has
+     * already loaded it. Every engine shares the one store, so that sessions
+     * on different networks do not overwrite each other's data.
+     */
+    private static void loadPersistentDataStore() {
+        persistentDataStoreLock.writeLock().lock();
+
         try {
+            if (persistentDataStore != null) {
+                return;
+            }
+
             ObjectInputStream ois = new ObjectInputStream(new FileInputStream("persistent-data-store.bin"));
-            this.persistentDataStore = (HashMap<String, Object>)ois.readObject();
+            persistentDataStore = (HashMap<String, Object>)ois.readObject();
         }
         catch (FileNotFoundException e) {
             // New data store
-            this.persistentDataStore = new HashMap<String, Object>();
+            persistentDataStore = new HashMap<String, Object>();
         }
         catch (ClassNotFoundException e) {
             log.error("Persistent data store is corrupted.", e);
-            this.persistentDataStore = new HashMap<String, Object>();
+            persistentDataStore = new HashMap<String, Object>();
         }
         catch (IOException e) {
             log.error("Persistent data store is corrupted.", e);
-            this.persistentDataStore = new HashMap<String, Object>();
+            persistentDataStore = new HashMap<String, Object>();
+        }
+        finally {
+            persistentDataStoreLock.writeLock().unlock();
         }
     }
 
-    private void serializePersistentDataStore() {
+    private static void serializePersistentDataStore() {
         try {
             ObjectOutputStream ois = new ObjectOutputStream(new FileOutputStream("persistent-data-store.bin"));
-            ois.writeObject(this.persistentDataStore);
+            ois.writeObject(persistentDataStore);
         }
         catch (IOException e) {
             log.error("Unable to write persistent data store.", e);
@@ -328,50 +410,88 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
      * @param msg The message.
      * @param client The client from which the message was received.
      */
-    public void ircMessageReceived(IRCMessage msg, EventIRCClient client)
+    public void ircMessageReceived(final IRCMessage msg, EventIRCClient client)
+    {
+        if (this.eventLoop != null)
+        {
+            this.eventLoop.execute(new Runnable() {
+                public void run()
+                {
+                    dispatchMessage(msg);
+                }
+            });
+        }
+        else
+        {
+            this.dispatchMessage(msg);
+        }
+    }
+    
+    /**
+     * Hands an IRC message to the scripts.
+     * 
+     * @param msg The message.
+     */
+    private void dispatchMessage(IRCMessage msg)
     {
         try
         {
-            String cmd = msg.getCommand();
-
             this.bot.onMessage(msg);
 
-            if (cmd.equalsIgnoreCase(IRC.CMD_PRIVMSG))
-            {
-                this.onPrivMsg(msg);
-            }
-            else if (cmd.equalsIgnoreCase(IRC.CMD_NOTICE))
-            {
-                // BCV TODO
-                // this.onNotice()
-            }
-            else if (cmd.equalsIgnoreCase(IRC.CMD_JOIN))
-            {
-                this.onJoin(msg);
-            }
-            else if (cmd.equalsIgnoreCase(IRC.CMD_PART))
-            {
-                this.onPart(msg);
-            }
-            else if (cmd.equalsIgnoreCase(IRC.CMD_KICK))
-            {
-                this.onKick(msg);
-            }
-            else if (cmd.equalsIgnoreCase(IRC.CMD_QUIT))
-            {
-                this.onQuit(msg);
-            }
-            else if (cmd.equalsIgnoreCase(IRC.CMD_NICK))
-            {
-                this.onNick(msg);
-            }
-            else if (cmd.equalsIgnoreCase(IRC.CMD_TOPIC))
+            switch (msg.getCommandCode())
             {
-                this.onTopic(msg);
-            }
-            else if (cmd.equalsIgnoreCase(IRC.CMD_MODE))
-            {
-                this.onMode(msg);
+                case PRIVMSG:
+                    this.onPrivMsg(msg);
+                    break;
+
+                case NOTICE:
+                    // BCV TODO
+                    // this.onNotice()
+                    break;
+
+                case JOIN:
+                    this.onJoin(msg);
+                    break;
+
+                case PART:
+                    this.onPart(msg);
+                    break;
+
+                case KICK:
+                    this.onKick(msg);
+                    break;
+
+                case QUIT:
+                    this.onQuit(msg);
+                    break;
+
+                case NICK:
+                    this.onNick(msg);
+                    break;
+
+                case TOPIC:
+                    this.onTopic(msg);
+                    break;
+
+                case MODE:
+                    this.onMode(msg);
+                    break;
+
+                case RPL_TOPIC:
+                case RPL_NOTOPIC:
+                    this.onTopicReply(msg);
+                    break;
+
+                case RPL_NAMEREPLY:
+                    this.onNamesReply(msg);
+                    break;
+
+                case RPL_ENDOFNAMES:
+                    this.onEndOfNames(msg);
+                    break;
+
+                default:
+                    break;
             }
         }
         catch (ScriptException e)
@@ -401,6 +521,38 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
         return timeoutScheduler.scheduleTimeout(key, func, millis);
     }
     
+    /**
+     * Schedules code to run repeatedly at a fixed interval.  Runs are planned
+     * from the original schedule, so they do not drift.
+     * 
+     * @param key The key of the interval.  Must not be null.  It shares a
+     *            namespace with timeouts, and may be cancelled the same way
+     *            using the {@link #cancelTimeout(Object)} method.
+     * @param func The {@link Runnable} to run at each interval.
+     * @param millis The interval in milliseconds.
+     * @param jitter The most, in milliseconds, by which to offset the
+     *               schedule at random.
+     */
+    public Object scheduleInterval(Object key, Runnable func, long millis, long jitter)
+    {
+        return timeoutScheduler.scheduleInterval(key, func, millis, jitter);
+    }
+    
+    /**
+     * Schedules code to run at every time matching a cron expression.
+     * 
+     * @param key The key of the schedule.  Must not be null.  It may be
+     *            cancelled using the {@link #cancelTimeout(Object)} method.
+     * @param func The {@link Runnable} to run at each matching time.
+     * @param cron The schedule.
+     * @param jitter The most, in milliseconds, by which to offset the
+     *               schedule at random.
+     */
+    public Object scheduleCron(Object key, Runnable func, CronExpression cron, long jitter)
+    {
+        return timeoutScheduler.scheduleCron(key, func, cron, jitter);
+    }
+    
     /**
      * Cancels a timeout that has been previously scheduled.  If the timeout
      * does not exist, or is already running, nothing happens.
@@ -418,6 +570,230 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
     {
         asyncRunner.run(func);
     }
+    
+    /**
+     * Runs a task on the engine's asynchronous executor.
+     * 
+     * @param type The type of the task, under which its queue wait and run
+     *             time are counted.
+     * @param func The task.
+     * @throws java.util.concurrent.RejectedExecutionException Thrown if the
+     *         executor is full and configured to reject further tasks.
+     */
+    public void runAsync(String type, Runnable func)
+    {
+        asyncRunner.run(type, func);
+    }
+    
+    /**
+     * Runs a group of tasks that last as long as something outside the
+     * engine, such as a child process, each on a thread of its own rather
+     * than queued on the engine's asynchronous executor. The group is
+     * started whole or not at all.
+     * 
+     * @param type The type of the tasks, under which their run time is
+     *        counted.
+     * @param funcs The tasks.
+     * @throws java.util.concurrent.RejectedExecutionException Thrown if too
+     *         many such tasks are already running, or the engine no longer
+     *         accepts tasks.
+     */
+    public void runDedicated(String type, Runnable... funcs)
+    {
+        asyncRunner.runDedicated(type, funcs);
+    }
+    
+    /**
+     * Gets the statistics for each type of asynchronous task, by type.
+     * 
+     * @return The statistics.
+     */
+    public Map<String, AsyncTaskRunner.TaskStats> getAsyncStats()
+    {
+        return asyncRunner.getStats();
+    }
+    
+    /**
+     * Configures the engine from its <code>script-engine</code> element.
+     * An <code>async</code> child element configures the executor for
+     * asynchronous tasks; see {@link AsyncTaskRunner}.  A
+     * <code>compile</code> child element sets the Rhino
+     * <code>optimizationLevel</code> (-1 to interpret, or 0 to 9), and the
+     * <code>cacheDirectory</code> in which compiled scripts are kept between
+     * runs (empty to keep them only in memory); see {@link ScriptCache}.
+     * 
+     * @param root The <code>script-engine</code> element.
+     */
+    public void configure(Element root)
+    {
+        NodeList nodes = root.getElementsByTagName("async");
+        
+        if (nodes.getLength() > 0)
+        {
+            asyncRunner.configure((Element) nodes.item(0));
+        }
+        
+        nodes = root.getElementsByTagName("compile");
+        
+        if (nodes.getLength() > 0)
+        {
+            Element compile = (Element) nodes.item(0);
+            
+            if (compile.hasAttribute("optimizationLevel"))
+            {
+                try
+                {
+                    int level = Integer.parseInt(compile.getAttribute("optimizationLevel"));
+                    Context.checkOptimizationLevel(level);
+                    this.optimizationLevel = level;
+                    this.context.setOptimizationLevel(level);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    log.warn("Invalid script optimizationLevel \"{0}\"; using {1}.",
+                            compile.getAttribute("optimizationLevel"), this.optimizationLevel);
+                }
+            }
+            
+            if (compile.hasAttribute("cacheDirectory"))
+            {
+                String directory = compile.getAttribute("cacheDirectory");
+                this.scriptCache.setDirectory(directory.length() > 0 ? new File(directory) : null);
+            }
+        }
+        
+        nodes = root.getElementsByTagName("watchdog");
+        
+        if (nodes.getLength() > 0)
+        {
+            Element watchdog = (Element) nodes.item(0);
+            this.handlerInstructions = ECMAEngine.parseLimit(watchdog, "handlerInstructions", this.handlerInstructions);
+            this.handlerMillis = ECMAEngine.parseLimit(watchdog, "handlerMillis", this.handlerMillis);
+            this.scriptInstructions = ECMAEngine.parseLimit(watchdog, "scriptInstructions", this.scriptInstructions);
+            this.scriptMillis = ECMAEngine.parseLimit(watchdog, "scriptMillis", this.scriptMillis);
+            
+            if (watchdog.hasAttribute("disableHandlers"))
+            {
+                this.disablingRunaways = Boolean.parseBoolean(watchdog.getAttribute("disableHandlers"));
+            }
+        }
+        
+        nodes = root.getElementsByTagName("event-loop");
+        
+        if (nodes.getLength() > 0 && Boolean.parseBoolean(((Element) nodes.item(0)).getAttribute("enabled")))
+        {
+            this.startEventLoop();
+        }
+    }
+    
+    /**
+     * Reads a watchdog limit from an attribute.
+     * 
+     * @param element The element.
+     * @param name The attribute.
+     * @param defaultValue The value if the attribute is missing or bad.
+     * @return The limit, where 0 means none.
+     */
+    private static long parseLimit(Element element, String name, long defaultValue)
+    {
+        if (!element.hasAttribute(name))
+        {
+            return defaultValue;
+        }
+        
+        try
+        {
+            return Math.max(0, Long.parseLong(element.getAttribute(name)));
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn("Invalid watchdog {0} \"{1}\"; using {2}.", name, element.getAttribute(name), defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Opens the budget for an event handler or timer.  It must be closed
+     * with {@link WatchdogContextFactory#close(Context, WatchdogContextFactory.Budget)}.
+     * 
+     * @param cx The current context.
+     * @param what The handler, for messages.
+     * @return The budget, or <code>null</code> if handlers are unlimited.
+     */
+    WatchdogContextFactory.Budget openHandlerBudget(Context cx, String what)
+    {
+        return WatchdogContextFactory.open(cx, what, this.handlerInstructions, this.handlerMillis);
+    }
+    
+    /**
+     * Determines whether handlers that exceed their budget are removed.
+     * 
+     * @return <code>true</code> if runaway handlers are disabled.
+     */
+    boolean isDisablingRunaways()
+    {
+        return this.disablingRunaways;
+    }
+    
+    /**
+     * Moves the engine onto its own event loop.  The engine is initialized
+     * again on the loop's thread, so this must happen before any script
+     * runs.
+     */
+    private void startEventLoop()
+    {
+        if (this.eventLoop != null)
+        {
+            return;
+        }
+        
+        Context.exit();
+        this.context = null;
+        
+        ScriptEventLoop loop = new ScriptEventLoop(this, "JackBot Script-" + ECMAEngine.loopCount.incrementAndGet());
+        loop.start();
+        
+        try
+        {
+            loop.invokeAndWait(new Callable<Void>() {
+                public Void call() throws ScriptException
+                {
+                    initializeEngine();
+                    return null;
+                }
+            });
+            
+            this.eventLoop = loop;
+            log.info("Scripts run on an event loop.");
+        }
+        catch (Exception e)
+        {
+            log.error("Unable to start the script event loop; scripts run on the calling threads.", e);
+            loop.shutdown();
+            
+            try
+            {
+                this.initializeEngine();
+            }
+            catch (ScriptException e2)
+            {
+                log.error("Unable to initialize the script engine.", e2);
+            }
+        }
+    }
+    
+    /**
+     * Gets the event loop on which the engine's scripts run, if it has one.
+     * Code that calls into scripts from another thread must post the call
+     * to it.
+     * 
+     * @return The event loop, or <code>null</code> if scripts run on the
+     *         threads that call into them.
+     */
+    public Executor getEventLoop()
+    {
+        return this.eventLoop;
+    }
 
     /**
      * Gets the client associated with the engine.
@@ -442,6 +818,7 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
             // Create the script context and initialize the top level scope.
             Context cx = this.context = ContextFactory.getGlobal().enterContext();
             cx.putThreadLocal(ECMAEngine.class, this);
+            cx.setOptimizationLevel(this.optimizationLevel);
             Scriptable scope = this.topLevelScope = cx.initStandardObjects(null);
 
             // Add the host class definitions.
@@ -455,6 +832,7 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
             ScriptableObject.defineClass(scope, name.getClass());
             ScriptableObject.defineClass(scope, exec.getClass());
             ScriptableObject.defineClass(scope, XmlHttpRequest.class);
+            ScriptableObject.defineClass(scope, Command.class);
 
             // Create the top-level Bot instance.
             this.bot = HostObjectFactory.newBot(this, scope);
@@ -570,6 +948,63 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
         this.bot.onQuit(name, quitMessage);
     }
 
+    /**
+     * Called when a <CODE>RPL_TOPIC</CODE> or <CODE>RPL_NOTOPIC</CODE> reply
+     * is received from the server.  The channel is the second-to-last
+     * parameter whether or not the server includes the client's nick first.
+     * 
+     * @param msg The message received.
+     * @throws ScriptException If any exceptions occur in the underlying script
+     *         engine.
+     */
+    void onTopicReply(IRCMessage msg) throws ScriptException
+    {
+        if (msg.getParamCount() < 2)
+        {
+            return;
+        }
+
+        String channel = msg.getParam(msg.getParamCount() - 2);
+        String topic = null;
+
+        if (msg.getCommandCode() == IRCCommand.RPL_TOPIC)
+        {
+            topic = msg.getLastParam();
+        }
+
+        this.bot.onTopicReply(channel, topic);
+    }
+
+    /**
+     * Called when a <CODE>RPL_NAMEREPLY</CODE> is received from the server.
+     * 
+     * @param msg The message received.
+     * @throws ScriptException If any exceptions occur in the underlying script
+     *         engine.
+     */
+    void onNamesReply(IRCMessage msg) throws ScriptException
+    {
+        if (msg.getParamCount() >= 2)
+        {
+            this.bot.onNamesReply(msg.getParam(msg.getParamCount() - 2), msg.getLastParam());
+        }
+    }
+
+    /**
+     * Called when a <CODE>RPL_ENDOFNAMES</CODE> is received from the server.
+     * 
+     * @param msg The message received.
+     * @throws ScriptException If any exceptions occur in the underlying script
+     *         engine.
+     */
+    void onEndOfNames(IRCMessage msg) throws ScriptException
+    {
+        if (msg.getParamCount() >= 2)
+        {
+            this.bot.onEndOfNames(msg.getParam(msg.getParamCount() - 2));
+        }
+    }
+
     /**
      * Called when a <CODE>TOPIC</CODE> message is received from the server.
      * 
@@ -702,6 +1137,64 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
      */
     private Set<String> executedFiles;
     
+    /**
+     * Parsed script files and compiled scripts, kept across reloads.
+     */
+    private ScriptCache scriptCache;
+    
+    /**
+     * The Rhino optimization level at which scripts are compiled.
+     */
+    private int optimizationLevel;
+    
+    /**
+     * The thread all script code runs on, or <code>null</code> if scripts
+     * run on whichever thread calls into them.
+     */
+    private volatile ScriptEventLoop eventLoop;
+    
+    /**
+     * The default CPU time budget for each call to an event handler or timer.
+     */
+    public static final long DEFAULT_HANDLER_MILLIS = 5000;
+    
+    /**
+     * The default CPU time budget for running each script.
+     */
+    public static final long DEFAULT_SCRIPT_MILLIS = 30000;
+    
+    /**
+     * The instruction budget for each handler call, or 0 for none.
+     */
+    private long handlerInstructions;
+    
+    /**
+     * The CPU time budget in milliseconds for each handler call, or 0 for
+     * none.
+     */
+    private long handlerMillis;
+    
+    /**
+     * The instruction budget for running each script, or 0 for none.
+     */
+    private long scriptInstructions;
+    
+    /**
+     * The CPU time budget in milliseconds for running each script, or 0 for
+     * none.
+     */
+    private long scriptMillis;
+    
+    /**
+     * Whether handlers that exceed their budget are removed.
+     */
+    private boolean disablingRunaways;
+    
+    /**
+     * For naming event loop threads.
+     */
+    private static final AtomicInteger loopCount = new AtomicInteger();
+    
     /**
      * For executing asynchronous events.
      */
@@ -712,6 +1205,6 @@ public class ECMAEngine implements net.ardvaark.jackbot.scripting.ScriptingEngin
      */
     private TimeoutScheduler timeoutScheduler;
 
-    private ReadWriteLock persistentDataStoreLock = new ReentrantReadWriteLock(true);
-    private HashMap<String, Object> persistentDataStore;
+    private static final ReadWriteLock persistentDataStoreLock = new ReentrantReadWriteLock(true);
+    private static HashMap<String, Object> persistentDataStore;
 }
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.mozilla.javascript.Context;
 
@@ -82,11 +83,39 @@ public class Exec extends HostObject
      */
     public static final String ECMA_CLASS_NAME  = "Exec";
 
+    /**
+     * The events of an <CODE>Exec</CODE>, each with its own handler slot.
+     */
+    enum Event implements HostObject.EventSlot
+    {
+        LINE(HANDLER_ON_LINE),
+        ERROR_LINE(HANDLER_ON_ERROR_LINE),
+        EXEC_COMPLETE(HANDLER_ON_EXEC_COMPLETE);
+
+        private Event(String handlerName)
+        {
+            this.handlerName = handlerName;
+        }
+
+        public String getHandlerName()
+        {
+            return this.handlerName;
+        }
+
+        private final String handlerName;
+    }
+
+    /**
+     * The handler slots of every <CODE>Exec</CODE>.
+     */
+    private static final EventTable EVENTS = new EventTable(Event.class);
+
     /**
      * Default constructor.
      */
     public Exec()
     {
+        super(Exec.EVENTS);
         ECMAEngine engine = (ECMAEngine)Context.getCurrentContext().getThreadLocal(ECMAEngine.class);
         this.setEngine(engine);
     }
@@ -117,10 +146,6 @@ public class Exec extends HostObject
     {
         String[] args = cmdLine.split("\\s+");
         
-        this.addEvent(HANDLER_ON_LINE);
-        this.addEvent(HANDLER_ON_ERROR_LINE);
-        this.addEvent(HANDLER_ON_EXEC_COMPLETE);
-        
         this.commandParts = new ArrayList<String>(args.length);
         
         for (String arg : args)
@@ -167,9 +192,24 @@ public class Exec extends HostObject
         this.in = new BufferedReader(new InputStreamReader(new BufferedInputStream(this.childProcess.getInputStream())));
         this.err = new BufferedReader(new InputStreamReader(new BufferedInputStream(this.childProcess.getErrorStream())));
         
-        this.getEngine().runAsync(new Pump(this.in, HANDLER_ON_LINE));
-        this.getEngine().runAsync(new Pump(this.err, HANDLER_ON_ERROR_LINE));
-        this.getEngine().runAsync(new ProcessCompletionWaiter());
+        // The pumps live as long as the child does, so they get dedicated
+        // threads rather than the pool, where they could be queued behind
+        // or starve other tasks. The waiter pumps stderr itself before
+        // waiting, so each command takes two threads.
+        try
+        {
+            this.getEngine().runDedicated("exec",
+                    new Pump(this.in, Event.LINE),
+                    new ProcessCompletionWaiter(new Pump(this.err, Event.ERROR_LINE)));
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Without its pumps the child could block forever on a full pipe,
+            // so kill it rather than leave it behind.
+            log.warn("Too many native commands running; killing native command \"{0}\".", this.commandParts.get(0));
+            this.childProcess.destroy();
+            throw e;
+        }
     }
     
     /**
@@ -251,7 +291,7 @@ public class Exec extends HostObject
      */
     private class Pump implements Runnable
     {
-        public Pump(BufferedReader reader, String handler)
+        public Pump(BufferedReader reader, Event handler)
         {
             this.reader = reader;
             this.handler = handler;
@@ -287,19 +327,31 @@ public class Exec extends HostObject
         }
         
         private BufferedReader reader;
-        private String handler;
+        private Event handler;
     }
     
+    /**
+     * Pumps <tt>stderr</tt> until it is closed, then waits for the child
+     * process to exit and fires the
+     * {@link #HANDLER_ON_EXEC_COMPLETE onExecComplete} event.
+     */
     private class ProcessCompletionWaiter implements Runnable
     {
+        public ProcessCompletionWaiter(Pump errorPump)
+        {
+            this.errorPump = errorPump;
+        }
+        
         public void run()
         {
+            this.errorPump.run();
+            
             int processResult = waitForCompletion();
             
             try
             {
                 log.trace("Firing {1} handler with process result: {0}", processResult, HANDLER_ON_EXEC_COMPLETE);
-                fireHandler(HANDLER_ON_EXEC_COMPLETE, processResult);
+                fireHandler(Event.EXEC_COMPLETE, processResult);
             }
             catch (ScriptException e)
             {
@@ -310,5 +362,7 @@ public class Exec extends HostObject
                 log.trace("ProcessCompletionWaiter done.");
             }
         }
+        
+        private Pump errorPump;
     }
 }
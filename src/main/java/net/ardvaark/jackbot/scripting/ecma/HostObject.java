@@ -19,8 +19,11 @@ package net.ardvaark.jackbot.scripting.ecma;
 
 import net.ardvaark.jackbot.logging.Log;
 import net.ardvaark.jackbot.scripting.ScriptException;
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.ScriptableObject;
 
 import java.util.HashMap;
@@ -38,11 +41,14 @@ abstract class HostObject extends ScriptableObject
     private static final Log log = Log.getLogger(HostObject.class);
     
     /**
-     * Default constructor.
+     * Constructs a host object with the given events.
+     * 
+     * @param events The events of the host class.
      */
-    protected HostObject()
+    protected HostObject(EventTable events)
     {
-        this.eventHandlers = new HashMap<String, Object>(4);
+        this.events = events;
+        this.handlers = new Object[events.size()];
     }
 
     /**
@@ -97,9 +103,9 @@ abstract class HostObject extends ScriptableObject
 
     /**
      * Gets an ECMAScript property from this object. This overridden version
-     * checks an internal hashtable of event handlers to see if the property
-     * being accessed is a known event handler. If so, it returns the event
-     * handler; otherwise it returns the super-class' version of this method.
+     * checks the events of the host class to see if the property being
+     * accessed is an event handler. If so, it returns the event handler;
+     * otherwise it returns the super-class' version of this method.
      * 
      * @param name The name of the ECMAScript property to fetch.
      * @param start The scope in which the search was started.
@@ -109,27 +115,23 @@ abstract class HostObject extends ScriptableObject
     @Override
     public Object get(String name, Scriptable start)
     {
-        Object ret = null;
+        int slot = this.events.indexOf(name);
 
-        if (this.eventHandlers.containsKey(name))
-        {
-            ret = this.eventHandlers.get(name);
-        }
-        else
+        if (slot >= 0)
         {
-            ret = super.get(name, start);
+            return this.handlers[slot];
         }
 
-        return ret;
+        return super.get(name, start);
     }
 
     /**
-     * Puts an ECMAScript property into this object. This version checks an
-     * internal hashtable of known event handlers. If the property name matches
-     * a known event handler, and it is either <code>null</code> or an
-     * ECMAScript <code>Function</code>, then it is added to that collection.
-     * If it is not, nothing is done. If the name is not of a known event
-     * handler, then this calls the super-class' version of this method.
+     * Puts an ECMAScript property into this object. This version checks the
+     * events of the host class. If the property name matches an event
+     * handler, and it is either <code>null</code> or an ECMAScript
+     * <code>Function</code>, then it is stored in that handler's slot. If it
+     * is not, nothing is done. If the name is not of an event handler, then
+     * this calls the super-class' version of this method.
      * 
      * @param name The name of the property to add.
      * @param start The scope in which the add started.
@@ -138,11 +140,13 @@ abstract class HostObject extends ScriptableObject
     @Override
     public void put(String name, Scriptable start, Object value)
     {
-        if (this.eventHandlers.containsKey(name))
+        int slot = this.events.indexOf(name);
+
+        if (slot >= 0)
         {
-            if (value == null || value != null && value instanceof Function)
+            if (value == null || value instanceof Function)
             {
-                this.eventHandlers.put(name, value);
+                this.handlers[slot] = value;
             }
         }
         else
@@ -152,52 +156,578 @@ abstract class HostObject extends ScriptableObject
     }
 
     /**
-     * Fires the ECMAScript handler with the given name and the given arguments.
-     * Handlers that have been added using the
-     * {@link #get(String, Scriptable) get(String, Scriptable)} method are
-     * obtained from the internal hashtable and called.
+     * Fires an event handler with no arguments.
+     * 
+     * @param event The event.
+     * @throws ScriptException When any other exception occurs.
+     * @see #fireHandler(EventSlot, Object[])
+     */
+    protected void fireHandler(EventSlot event) throws ScriptException
+    {
+        if (this.isHandled(event))
+        {
+            this.fireHandler(event, ScriptRuntime.emptyArgs);
+        }
+    }
+
+    /**
+     * Fires an event handler with one argument.
+     * 
+     * @param event The event.
+     * @param arg1 The argument.
+     * @throws ScriptException When any other exception occurs.
+     * @see #fireHandler(EventSlot, Object[])
+     */
+    protected void fireHandler(EventSlot event, Object arg1) throws ScriptException
+    {
+        if (this.isHandled(event))
+        {
+            this.fireHandler(event, new Object[] { arg1 });
+        }
+    }
+
+    /**
+     * Fires an event handler with two arguments.
+     * 
+     * @param event The event.
+     * @param arg1 The first argument.
+     * @param arg2 The second argument.
+     * @throws ScriptException When any other exception occurs.
+     * @see #fireHandler(EventSlot, Object[])
+     */
+    protected void fireHandler(EventSlot event, Object arg1, Object arg2) throws ScriptException
+    {
+        if (this.isHandled(event))
+        {
+            this.fireHandler(event, new Object[] { arg1, arg2 });
+        }
+    }
+
+    /**
+     * Fires an event handler with three arguments.
+     * 
+     * @param event The event.
+     * @param arg1 The first argument.
+     * @param arg2 The second argument.
+     * @param arg3 The third argument.
+     * @throws ScriptException When any other exception occurs.
+     * @see #fireHandler(EventSlot, Object[])
+     */
+    protected void fireHandler(EventSlot event, Object arg1, Object arg2, Object arg3) throws ScriptException
+    {
+        if (this.isHandled(event))
+        {
+            this.fireHandler(event, new Object[] { arg1, arg2, arg3 });
+        }
+    }
+
+    /**
+     * Fires an event handler with four arguments.
      * 
-     * @param handler The name of the handler to fire.
-     * @param args An array of arguments to pass to the handler.
+     * @param event The event.
+     * @param arg1 The first argument.
+     * @param arg2 The second argument.
+     * @param arg3 The third argument.
+     * @param arg4 The fourth argument.
      * @throws ScriptException When any other exception occurs.
+     * @see #fireHandler(EventSlot, Object[])
+     */
+    protected void fireHandler(EventSlot event, Object arg1, Object arg2, Object arg3, Object arg4) throws ScriptException
+    {
+        if (this.isHandled(event))
+        {
+            this.fireHandler(event, new Object[] { arg1, arg2, arg3, arg4 });
+        }
+    }
+
+    /**
+     * Fires the handlers for the given event with the given arguments: first
+     * the one assigned to the event's property, then the listeners added
+     * with {@link #jsFunction_addEventListener(String, Function)} in the
+     * order they were added.  Each is called straight as a
+     * <code>Function</code>, with this object as <code>this</code>, and
+     * under its own watchdog budget.  A handler that throws does not stop
+     * the ones after it; once they have all run, the first failure is
+     * thrown, and any others are logged.  Callers on hot paths use the
+     * overloads with fixed arguments, which check for handlers before
+     * building the argument array.  If the engine runs its scripts on an
+     * event loop and this is called from another thread, the call is posted
+     * to the loop and this returns at once.
+     * 
+     * @param event The event whose handlers to fire.
+     * @param args An array of arguments to pass to the handlers.
+     * @throws ScriptException If a handler throws.
      */
-    protected void fireHandler(String handler, Object...args) throws ScriptException
+    protected void fireHandler(final EventSlot event, final Object[] args) throws ScriptException
     {
-        Object func = this.eventHandlers.get(handler);
+        if (!this.isHandled(event))
+        {
+            return;
+        }
+
+        ScriptEventLoop loop = this.engine != null ? (ScriptEventLoop) this.engine.getEventLoop() : null;
+
+        if (loop != null && !loop.inEventLoop())
+        {
+            loop.execute(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        fireHandler(event, args);
+                    }
+                    catch (ScriptException e)
+                    {
+                        log.error("Error firing event handler {0}", e, event.getHandlerName());
+                    }
+                }
+            });
+
+            return;
+        }
+
+        int slot = event.ordinal();
+        Object func = this.handlers[slot];
+        Listener[][] allListeners = this.listeners;
+        Listener[] slotListeners = allListeners != null ? allListeners[slot] : null;
+        ScriptException failure = null;
 
         if (func != null)
         {
             try
             {
-                log.trace("Firing handler {0}.{1}", this.getClass().getName(), handler);
-                ScriptableObject.callMethod(this, handler, args);
+                this.call(event.getHandlerName(), (Function) func, args);
+            }
+            catch (RunawayHandler e)
+            {
+                if (this.handlers[slot] == func)
+                {
+                    this.handlers[slot] = null;
+                }
             }
-            catch (Exception e)
+            catch (ScriptException e)
+            {
+                failure = e;
+            }
+        }
+
+        if (slotListeners != null)
+        {
+            for (Listener listener : slotListeners)
             {
-                throw new ScriptException("Caught exception while firing event hander for " + handler, e);
+                long start = System.nanoTime();
+
+                try
+                {
+                    this.call(event.getHandlerName(), listener.function, args);
+                }
+                catch (RunawayHandler e)
+                {
+                    this.removeListener(slot, listener.function);
+                }
+                catch (ScriptException e)
+                {
+                    if (failure == null)
+                    {
+                        failure = e;
+                    }
+                    else
+                    {
+                        log.error("Event listener {0} for {1} failed", e, listener.name, event.getHandlerName());
+                    }
+                }
+                finally
+                {
+                    listener.record(System.nanoTime() - start);
+                }
             }
         }
+
+        if (failure != null)
+        {
+            throw failure;
+        }
     }
 
     /**
-     * Determines if a handler with the given name exists on this object.
-     *
-     * @param handlerName The name of the handler.
-     * @return Returns true if the handler exists on this host object; false otherwise.
+     * Calls one handler under its own watchdog budget.
+     * 
+     * @param handler The handler's name, for logs and the watchdog.
+     * @param func The handler.
+     * @param args The arguments.
+     * @throws RunawayHandler If the handler was stopped by the watchdog and
+     *         should be removed.
+     * @throws ScriptException If the handler throws.
      */
-    protected boolean hasHandler(String handlerName) {
-        return this.eventHandlers.containsKey(handlerName);
+    protected void call(String handler, Function func, Object[] args) throws ScriptException
+    {
+        Context cx = Context.getCurrentContext();
+        WatchdogContextFactory.Budget budget = null;
+
+        if (this.engine != null)
+        {
+            budget = this.engine.openHandlerBudget(cx, this.getClassName() + "." + handler);
+        }
+
+        try
+        {
+            log.trace("Firing handler {0}.{1}", this.getClass().getName(), handler);
+            func.call(cx, ScriptableObject.getTopLevelScope(this), this, args);
+        }
+        catch (WatchdogContextFactory.BudgetExceededError e)
+        {
+            if (e.getBudget() != budget)
+            {
+                throw e;
+            }
+
+            if (this.engine.isDisablingRunaways())
+            {
+                log.error("Stopped and removed a runaway event handler: {0}", e.getMessage());
+                throw new RunawayHandler();
+            }
+
+            log.error("Stopped a runaway event handler: {0}", e.getMessage());
+        }
+        catch (Exception e)
+        {
+            throw new ScriptException("Caught exception while firing event hander for " + handler, e);
+        }
+        finally
+        {
+            WatchdogContextFactory.close(cx, budget);
+        }
     }
 
     /**
-     * Adds an event name to the internal hashtable. This is primarily for
-     * internal use.
+     * Determines whether an event has any handler: an assigned one, or a
+     * listener.
      * 
-     * @param eventName The name of the event to add.
+     * @param event The event, which must be one of this host class' events.
+     * @return <code>true</code> if firing the event would call something.
      */
-    void addEvent(String eventName)
+    protected boolean isHandled(EventSlot event)
     {
-        this.eventHandlers.put(eventName, null);
+        if (!this.events.type.isInstance(event))
+        {
+            throw new IllegalArgumentException(event + " is not an event of " + this.getClassName());
+        }
+
+        int slot = event.ordinal();
+        Listener[][] allListeners = this.listeners;
+
+        return this.handlers[slot] != null || allListeners != null && allListeners[slot] != null;
+    }
+
+    /**
+     * ECMAScript function <code>addEventListener(type, listener)</code>.
+     * Adds a listener for an event, alongside any handler assigned to the
+     * event's property and the other listeners.  The type may be given as
+     * the handler's name, such as <code>"onPrivMsg"</code>, or without the
+     * <code>on</code>, as <code>"privMsg"</code>.  Adding a listener that
+     * is already there does nothing.
+     * 
+     * @param type The event.
+     * @param listener The function to call.
+     */
+    public void jsFunction_addEventListener(String type, Function listener)
+    {
+        int slot = this.slotOf(type);
+
+        if (listener == null)
+        {
+            throw Context.reportRuntimeError("addEventListener needs a function");
+        }
+
+        synchronized (this)
+        {
+            if (this.listeners == null)
+            {
+                this.listeners = new Listener[this.handlers.length][];
+            }
+
+            Listener[] current = this.listeners[slot];
+            int count = current != null ? current.length : 0;
+
+            for (int i = 0; i < count; i++)
+            {
+                if (current[i].function == listener)
+                {
+                    return;
+                }
+            }
+
+            Listener[] updated = new Listener[count + 1];
+
+            if (current != null)
+            {
+                System.arraycopy(current, 0, updated, 0, count);
+            }
+
+            updated[count] = new Listener(listener);
+            this.listeners[slot] = updated;
+        }
+    }
+
+    /**
+     * ECMAScript function <code>removeEventListener(type, listener)</code>.
+     * Removes a listener added with
+     * {@link #jsFunction_addEventListener(String, Function)}.
+     * 
+     * @param type The event.
+     * @param listener The function to remove.
+     */
+    public void jsFunction_removeEventListener(String type, Function listener)
+    {
+        this.removeListener(this.slotOf(type), listener);
+    }
+
+    /**
+     * ECMAScript function <code>getEventListenerStats(type)</code>.  Gets
+     * how long each listener for an event has taken.
+     * 
+     * @param type The event.
+     * @return An array with an object for each listener, in the order they
+     *         run, with the properties <code>name</code>, <code>calls</code>,
+     *         <code>totalMillis</code> and <code>maxMillis</code>.
+     */
+    public Scriptable jsFunction_getEventListenerStats(String type)
+    {
+        int slot = this.slotOf(type);
+        Listener[][] allListeners = this.listeners;
+        Listener[] current = allListeners != null ? allListeners[slot] : null;
+        Context cx = Context.getCurrentContext();
+        Scriptable scope = ScriptableObject.getTopLevelScope(this);
+        Object[] stats = new Object[current != null ? current.length : 0];
+
+        for (int i = 0; i < stats.length; i++)
+        {
+            Listener listener = current[i];
+            Scriptable stat = cx.newObject(scope);
+
+            ScriptableObject.putProperty(stat, "name", listener.name);
+            ScriptableObject.putProperty(stat, "calls", Double.valueOf(listener.calls));
+            ScriptableObject.putProperty(stat, "totalMillis", Double.valueOf(listener.totalNanos / 1000000.0));
+            ScriptableObject.putProperty(stat, "maxMillis", Double.valueOf(listener.maxNanos / 1000000.0));
+            stats[i] = stat;
+        }
+
+        return cx.newArray(scope, stats);
+    }
+
+    /**
+     * Removes a listener by copying the slot's listeners without it, so a
+     * dispatch already walking the old array is not disturbed.
+     * 
+     * @param slot The slot.
+     * @param listener The listener's function.
+     */
+    private synchronized void removeListener(int slot, Function listener)
+    {
+        Listener[] current = this.listeners != null ? this.listeners[slot] : null;
+
+        if (current == null)
+        {
+            return;
+        }
+
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i].function == listener)
+            {
+                if (current.length == 1)
+                {
+                    this.listeners[slot] = null;
+                }
+                else
+                {
+                    Listener[] updated = new Listener[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    this.listeners[slot] = updated;
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the slot of an event named by a script.
+     * 
+     * @param type The handler name, with or without its <code>on</code>.
+     * @return The slot.
+     */
+    private int slotOf(String type)
+    {
+        int slot = this.events.indexOf(type);
+
+        if (slot < 0 && type != null && type.length() > 0)
+        {
+            slot = this.events.indexOf("on" + Character.toUpperCase(type.charAt(0)) + type.substring(1));
+
+            if (slot < 0)
+            {
+                slot = this.events.indexOf("on" + type);
+            }
+        }
+
+        if (slot < 0)
+        {
+            throw Context.reportRuntimeError("Unknown event for " + this.getClassName() + ": " + type);
+        }
+
+        return slot;
+    }
+
+    /**
+     * A listener added by a script, with its timings.
+     */
+    private static final class Listener
+    {
+        Listener(Function function)
+        {
+            this.function = function;
+
+            String functionName = function instanceof BaseFunction ? ((BaseFunction) function).getFunctionName() : null;
+            this.name = functionName != null && functionName.length() > 0 ? functionName : "anonymous";
+        }
+
+        void record(long nanos)
+        {
+            this.calls++;
+            this.totalNanos += nanos;
+
+            if (nanos > this.maxNanos)
+            {
+                this.maxNanos = nanos;
+            }
+        }
+
+        /**
+         * The listener.
+         */
+        final Function function;
+
+        /**
+         * The listener's function name, for logs and stats.
+         */
+        final String name;
+
+        /**
+         * The number of times it has been called.
+         */
+        long calls;
+
+        /**
+         * The total time it has taken, in nanoseconds.
+         */
+        long totalNanos;
+
+        /**
+         * The longest it has taken, in nanoseconds.
+         */
+        long maxNanos;
+    }
+
+    /**
+     * Thrown by {@link HostObject#call(String, Function, Object[])} when
+     * the watchdog has stopped a handler that should now be removed.
+     */
+    static final class RunawayHandler extends ScriptException
+    {
+        private static final long serialVersionUID = 1L;
+
+        RunawayHandler()
+        {
+            super("Runaway event handler");
+        }
+    }
+
+    /**
+     * An event of a host class. Each host class declares its events as an
+     * <code>enum</code> implementing this interface, and a handler slot is
+     * kept for each constant.
+     */
+    interface EventSlot
+    {
+        /**
+         * Gets the ECMAScript property name of the event's handler.
+         * 
+         * @return The handler name.
+         */
+        String getHandlerName();
+
+        /**
+         * Gets the index of the event's handler slot.
+         * 
+         * @return The slot index.
+         */
+        int ordinal();
+    }
+
+    /**
+     * The events of a host class, built once per class from the constants of
+     * its event <code>enum</code>, and shared by all of its instances.
+     */
+    static final class EventTable
+    {
+        /**
+         * Builds the table.
+         * 
+         * @param type The event <code>enum</code> of the host class.
+         */
+        <E extends Enum<E> & EventSlot> EventTable(Class<E> type)
+        {
+            E[] constants = type.getEnumConstants();
+
+            this.type = type;
+            this.slots = new HashMap<String, Integer>(constants.length * 2);
+
+            for (E constant : constants)
+            {
+                this.slots.put(constant.getHandlerName(), constant.ordinal());
+            }
+
+            this.size = constants.length;
+        }
+
+        /**
+         * Gets the slot of the handler with the given name.
+         * 
+         * @param name The handler name.
+         * @return The slot, or -1 if there is no such handler.
+         */
+        int indexOf(String name)
+        {
+            Integer slot = this.slots.get(name);
+            return slot != null ? slot.intValue() : -1;
+        }
+
+        /**
+         * Gets the number of events.
+         * 
+         * @return The number of events.
+         */
+        int size()
+        {
+            return this.size;
+        }
+
+        /**
+         * The event <code>enum</code>.
+         */
+        final Class<?> type;
+
+        /**
+         * The slot of each handler, by name.
+         */
+        private final HashMap<String, Integer> slots;
+
+        /**
+         * The number of events.
+         */
+        private final int size;
     }
 
     /**
@@ -211,7 +741,19 @@ abstract class HostObject extends ScriptableObject
     private HostObject              parent;
 
     /**
-     * The event handlers that this object will handle.
+     * The events of this object's host class.
+     */
+    private final EventTable        events;
+
+    /**
+     * The handler installed for each event, indexed by the event's ordinal.
+     */
+    private final Object[]          handlers;
+
+    /**
+     * The listeners for each event, indexed by the event's ordinal, or
+     * <code>null</code> until a script adds one.  Each slot's array is
+     * replaced, never changed, when a listener is added or removed.
      */
-    private HashMap<String, Object> eventHandlers;
+    private volatile Listener[][]   listeners;
 }
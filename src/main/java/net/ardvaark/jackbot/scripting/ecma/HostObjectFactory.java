@@ -17,11 +17,6 @@
 
 package net.ardvaark.jackbot.scripting.ecma;
 
-import java.util.StringTokenizer;
-
-import net.ardvaark.jackbot.IRC;
-import net.ardvaark.jackbot.IRCMessage;
-import net.ardvaark.jackbot.IRCMessageWaitRestore;
 import net.ardvaark.jackbot.scripting.ScriptException;
 
 import org.mozilla.javascript.Context;
@@ -57,16 +52,11 @@ final class HostObjectFactory
 
             botInstance.setEngine(engine);
 
-            botInstance.addEvent(Bot.HANDLER_ON_JOIN);
-            botInstance.addEvent(Bot.HANDLER_ON_PART);
-            botInstance.addEvent(Bot.HANDLER_ON_KICK);
-            botInstance.addEvent(Bot.HANDLER_ON_QUIT);
-            botInstance.addEvent(Bot.HANDLER_ON_MSG);
-            botInstance.addEvent(Bot.HANDLER_ON_TOPIC);
-            botInstance.addEvent(Bot.HANDLER_ON_PRIVMSG);
-            botInstance.addEvent(Bot.HANDLER_ON_ACTION);
-
             botInstance.channels = cx.newObject(botInstance);
+            botInstance.nicks = new NickIndex();
+            botInstance.splits = new NetsplitTracker(botInstance);
+            botInstance.commands = new CommandRouter();
+            botInstance.users = new UserRegistry();
         }
         catch (Exception e)
         {
@@ -77,7 +67,9 @@ final class HostObjectFactory
     }
 
     /**
-     * Creates a new <CODE>Channel</CODE> object.
+     * Creates a new <CODE>Channel</CODE> object. The channel starts out
+     * unsynced; its names and topic are filled in as the server's replies
+     * to the join are dispatched.
      * 
      * @param channelName The name of the channel.
      * @param bot The parent <CODE>Bot</CODE> object of the channel.
@@ -88,7 +80,6 @@ final class HostObjectFactory
     static final Channel newChannel(String channelName, Bot bot) throws ScriptException
     {
         Channel channelInstance = null;
-        IRCMessageWaitRestore waiter = null;
 
         try
         {
@@ -100,118 +91,14 @@ final class HostObjectFactory
             channelInstance.setEngine(engine);
             channelInstance.setParent(bot);
 
-            channelInstance.addEvent(Channel.HANDLER_ON_JOIN);
-            channelInstance.addEvent(Channel.HANDLER_ON_PART);
-            channelInstance.addEvent(Channel.HANDLER_ON_KICK);
-            channelInstance.addEvent(Channel.HANDLER_ON_QUIT);
-            channelInstance.addEvent(Channel.HANDLER_ON_TOPIC);
-            channelInstance.addEvent(Channel.HANDLER_ON_PRIVMSG);
-            channelInstance.addEvent(Channel.HANDLER_ON_ACTION);
-
             channelInstance.name = channelName;
-            channelInstance.names = cx.newObject(channelInstance);
-
-            waiter = new IRCMessageWaitRestore(engine.getClient());
-            IRCMessage msg = null;
-            String curCmd = null;
-            boolean gotNames = false;
-            boolean gotTopic = false;
-
-            while (!gotNames || !gotTopic)
-            {
-                msg = waiter.nextMsg();
-
-                curCmd = msg.getCommand();
-
-                if (curCmd.equalsIgnoreCase(IRC.RPL_NAMEREPLY))
-                {
-                    String msgChannel = msg.getParam(msg.getParamCount() - 2);
-                    String nicks = msg.getLastParam();
-
-                    if (msgChannel.equalsIgnoreCase(channelName))
-                    {
-                        StringTokenizer tok = new StringTokenizer(nicks, " ");
-                        String curToken = null;
-                        char firstChar;
-                        Name nameInstance = null;
-
-                        while (tok.hasMoreTokens())
-                        {
-                            curToken = tok.nextToken();
-                            firstChar = curToken.charAt(0);
-
-                            if (firstChar == '@' || firstChar == '+')
-                            {
-                                curToken = curToken.substring(1);
-                            }
-
-                            nameInstance = HostObjectFactory.newName(curToken, channelInstance);
-
-                            ScriptableObject.putProperty(channelInstance.names, curToken, nameInstance);
-                        }
-                    }
-                }
-                else if (curCmd.equalsIgnoreCase(IRC.RPL_ENDOFNAMES))
-                {
-                    String msgChannel = msg.getParam(msg.getParamCount() - 2);
-
-                    if (msgChannel.equalsIgnoreCase(channelName))
-                    {
-                        gotNames = true;
-
-                        // Some broken servers will just skip sending the
-                        // RPL_NOTOPIC if no topic is sent. So if the
-                        // RPL_ENDOFNAMES is sent, make this implicit.
-                        gotTopic = true;
-                    }
-                }
-                else if (curCmd.equalsIgnoreCase(IRC.RPL_TOPIC))
-                {
-                    // The bottom version is for RFC-compliant servers.
-                    // This top is for servers that inexplicably
-                    // send <nick> <channel> :<topic> instead of just
-                    // <channel> :topic
-                    if (msg.getParamCount() == 3)
-                    {
-                        String msgChannel = msg.getParam(1);
-                        String channelTopic = msg.getLastParam();
-
-                        if (msgChannel.equalsIgnoreCase(channelName))
-                        {
-                            channelInstance.topic = channelTopic;
-                            gotTopic = true;
-                        }
-                    }
-                    else
-                    {
-                        String msgChannel = msg.getParam(0);
-                        String channelTopic = msg.getLastParam();
-
-                        if (msgChannel.equalsIgnoreCase(channelName))
-                        {
-                            channelInstance.topic = channelTopic;
-                            gotTopic = true;
-                        }
-                    }
-                }
-                else if (curCmd.equalsIgnoreCase(IRC.RPL_NOTOPIC))
-                {
-                    channelInstance.topic = null;
-                    gotTopic = true;
-                }
-            }
+            channelInstance.names = new NameList(channelInstance);
+            channelInstance.nicks = bot.nicks;
         }
         catch (Exception e)
         {
             throw new ScriptException("An exception occurred while create a class of type " + Channel.ECMA_CLASS_NAME, e);
         }
-        finally
-        {
-            if (waiter != null)
-            {
-                waiter.restore();
-            }
-        }
 
         return channelInstance;
     }
@@ -239,9 +126,6 @@ final class HostObjectFactory
             nameInstance.setEngine(engine);
             nameInstance.setParent(channel);
 
-            nameInstance.addEvent(Name.HANDLER_ON_NICK);
-            nameInstance.addEvent(Name.HANDLER_ON_ACTION);
-
             nameInstance.name = name;
         }
         catch (Exception e)
@@ -251,4 +135,42 @@ final class HostObjectFactory
 
         return nameInstance;
     }
+
+    /**
+     * Creates a new <CODE>Command</CODE> object.
+     * 
+     * @param bot The <CODE>Bot</CODE> that received the command.
+     * @param sender The hostmask of the sender of the command.
+     * @param target The target of the command.
+     * @param msg The text of the message that held the command.
+     * @param cmd The full name of the command.
+     * @param paramString The unparsed string of parameters.
+     * @throws ScriptException If any exceptions occur during creation or
+     *         initialization.
+     * @return A new <CODE>Command</CODE> object.
+     */
+    static final Command newCommand(Bot bot, String sender, String target, String msg, String cmd, String paramString) throws ScriptException
+    {
+        Command commandInstance = null;
+
+        try
+        {
+            Context cx = Context.getCurrentContext();
+            Object[] args = {};
+            commandInstance = (Command) cx.newObject(ScriptableObject.getTopLevelScope(bot), Command.ECMA_CLASS_NAME, args);
+
+            commandInstance.bot = bot;
+            commandInstance.sender = sender;
+            commandInstance.target = target;
+            commandInstance.msg = msg;
+            commandInstance.cmd = cmd;
+            commandInstance.paramString = paramString;
+        }
+        catch (Exception e)
+        {
+            throw new ScriptException("An exception occurred while create a class of type " + Command.ECMA_CLASS_NAME, e);
+        }
+
+        return commandInstance;
+    }
 }
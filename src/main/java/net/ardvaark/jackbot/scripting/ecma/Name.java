@@ -48,11 +48,38 @@ public class Name extends HostObject
      */
     public static final String HANDLER_ON_ACTION = "onAction";
 
+    /**
+     * The events of a <CODE>Name</CODE>, each with its own handler slot.
+     */
+    enum Event implements HostObject.EventSlot
+    {
+        NICK(HANDLER_ON_NICK),
+        ACTION(HANDLER_ON_ACTION);
+
+        private Event(String handlerName)
+        {
+            this.handlerName = handlerName;
+        }
+
+        public String getHandlerName()
+        {
+            return this.handlerName;
+        }
+
+        private final String handlerName;
+    }
+
+    /**
+     * The handler slots of every <CODE>Name</CODE>.
+     */
+    private static final EventTable EVENTS = new EventTable(Event.class);
+
     /**
      * Default constructor.
      */
     public Name()
     {
+        super(Name.EVENTS);
     }
 
     /**
@@ -91,9 +118,7 @@ public class Name extends HostObject
     void onNick(String newNick) throws ScriptException
     {
         // Fire the JavaScript handler onNick.
-        Object[] args =
-        { newNick };
-        this.fireHandler(Name.HANDLER_ON_NICK, args);
+        this.fireHandler(Name.Event.NICK, newNick);
 
         // Update the this.name to be the new nick.
         this.name = newNick;
@@ -112,9 +137,7 @@ public class Name extends HostObject
      */
     void onAction(String action) throws ScriptException
     {
-        Object[] args =
-        { action };
-        this.fireHandler(Name.HANDLER_ON_ACTION, args);
+        this.fireHandler(Name.Event.ACTION, action);
     }
 
     /**
@@ -0,0 +1,140 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import net.ardvaark.jackbot.scripting.ScriptException;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * The <code>names</code> collection of a <code>Channel</code>. It holds no
+ * properties of its own; it reads the channel's members, and asks the channel
+ * for a member's <code>Name</code> object only when a script reads it. Nicks
+ * are looked up ignoring case. Scripts cannot change the collection.
+ * 
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+final class NameList extends ScriptableObject
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs the collection for a channel.
+     * 
+     * @param channel The channel.
+     */
+    NameList(Channel channel)
+    {
+        this.channel = channel;
+        this.setParentScope(channel);
+        this.setPrototype(ScriptableObject.getObjectPrototype(channel));
+    }
+
+    /**
+     * Gets the ECMAScript class name for this object.
+     * 
+     * @return The ECMAScript class name for this object.
+     */
+    @Override
+    public String getClassName()
+    {
+        return "Object";
+    }
+
+    /**
+     * Gets the <code>Name</code> for a nick.
+     * 
+     * @param name The nick.
+     * @param start The object the lookup started from.
+     * @return The <code>Name</code>, or {@link Scriptable#NOT_FOUND} if the
+     *         nick is not in the channel.
+     */
+    @Override
+    public Object get(String name, Scriptable start)
+    {
+        try
+        {
+            Name nameInstance = this.channel.getName(name);
+
+            if (nameInstance != null)
+            {
+                return nameInstance;
+            }
+        }
+        catch (ScriptException e)
+        {
+            throw Context.throwAsScriptRuntimeEx(e);
+        }
+
+        return super.get(name, start);
+    }
+
+    /**
+     * Determines whether a nick is in the channel.
+     * 
+     * @param name The nick.
+     * @param start The object the lookup started from.
+     * @return <code>true</code> if the nick is in the channel.
+     */
+    @Override
+    public boolean has(String name, Scriptable start)
+    {
+        return this.channel.hasName(name) || super.has(name, start);
+    }
+
+    /**
+     * Ignores an attempt by a script to add a name.
+     * 
+     * @param name The nick.
+     * @param start The object the assignment started from.
+     * @param value The value.
+     */
+    @Override
+    public void put(String name, Scriptable start, Object value)
+    {
+    }
+
+    /**
+     * Ignores an attempt by a script to remove a name.
+     * 
+     * @param name The nick.
+     */
+    @Override
+    public void delete(String name)
+    {
+    }
+
+    /**
+     * Gets the nicks in the channel, for enumeration.
+     * 
+     * @return The nicks.
+     */
+    @Override
+    public Object[] getIds()
+    {
+        return this.channel.getNicks().toArray();
+    }
+
+    /**
+     * The channel whose names these are.
+     */
+    private final Channel channel;
+}
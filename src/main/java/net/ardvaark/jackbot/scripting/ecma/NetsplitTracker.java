@@ -0,0 +1,413 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import net.ardvaark.jackbot.IRCUtils;
+import net.ardvaark.jackbot.logging.Log;
+import net.ardvaark.jackbot.scripting.ScriptException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Gathers the <code>QUIT</code> storm of a netsplit, and the <code>JOIN</code>
+ * storm of the netjoin that follows it, into batches. A quit is part of a
+ * netsplit when its reason is the names of the two servers that lost each
+ * other, as in <code>hub.example.net leaf.example.net</code>. Its nick is
+ * remembered for a while, and a later join by that nick is part of the
+ * netjoin. Once no more quits or joins have arrived for
+ * {@link #QUIET_MILLIS}, each batch is reported to scripts as a single
+ * <code>onNetsplit</code> or <code>onNetjoin</code> event.
+ * 
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+final class NetsplitTracker
+{
+    private static final Log log = Log.getLogger(NetsplitTracker.class);
+
+    /**
+     * Constructs a tracker.
+     * 
+     * @param bot The bot whose handlers the batches are reported to.
+     */
+    NetsplitTracker(Bot bot)
+    {
+        this.bot = bot;
+        this.splits = new LinkedHashMap<String, Batch>();
+        this.joins = new LinkedHashMap<String, Batch>();
+        this.splitNicks = new HashMap<String, SplitNick>();
+    }
+
+    /**
+     * Determines whether a quit reason is that of a netsplit.
+     * 
+     * @param reason The quit reason.
+     * @return <code>true</code> if the reason names two servers.
+     */
+    static boolean isSplitReason(String reason)
+    {
+        return reason != null && NetsplitTracker.SPLIT_REASON.matcher(reason).matches();
+    }
+
+    /**
+     * Records a quit if it is part of a netsplit.
+     * 
+     * @param mask The mask of the quitter.
+     * @param reason The quit reason.
+     * @param memberships The channels the quitter was in.
+     * @return <code>true</code> if the quit is part of a netsplit.
+     */
+    synchronized boolean onQuit(String mask, String reason, List<Channel> memberships)
+    {
+        if (!NetsplitTracker.isSplitReason(reason))
+        {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        Batch batch = this.splits.get(reason);
+
+        if (batch == null)
+        {
+            this.pruneSplitNicks(now);
+
+            batch = new Batch(reason);
+            this.splits.put(reason, batch);
+            log.info("Netsplit detected: {0}", reason);
+        }
+
+        batch.add(mask, memberships);
+
+        String nick = IRCUtils.extractNickFromMask(mask);
+        this.splitNicks.put(IRCUtils.toLowerCase(nick), new SplitNick(reason, now + NetsplitTracker.REMEMBER_MILLIS));
+        this.touch(now);
+
+        return true;
+    }
+
+    /**
+     * Records a join if it is by a nick that was lost in a netsplit.
+     * 
+     * @param mask The mask of the joiner.
+     * @param channel The channel joined.
+     * @return <code>true</code> if the join is part of a netjoin.
+     */
+    synchronized boolean onJoin(String mask, Channel channel)
+    {
+        if (this.splitNicks.isEmpty())
+        {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        String key = IRCUtils.toLowerCase(IRCUtils.extractNickFromMask(mask));
+        SplitNick splitNick = this.splitNicks.get(key);
+
+        if (splitNick == null)
+        {
+            return false;
+        }
+
+        if (splitNick.expires < now)
+        {
+            this.splitNicks.remove(key);
+            return false;
+        }
+
+        Batch batch = this.joins.get(splitNick.servers);
+
+        if (batch == null)
+        {
+            batch = new Batch(splitNick.servers);
+            this.joins.put(splitNick.servers, batch);
+        }
+
+        batch.add(mask, channel);
+        this.touch(now);
+
+        return true;
+    }
+
+    /**
+     * Notes the time of a quit or join, and makes sure a flush is pending.
+     * 
+     * @param now The current time.
+     */
+    private void touch(long now)
+    {
+        this.lastEvent = now;
+
+        if (!this.flushPending)
+        {
+            this.flushPending = true;
+            this.scheduleFlush(NetsplitTracker.QUIET_MILLIS);
+        }
+    }
+
+    /**
+     * Schedules the next check for finished batches.
+     * 
+     * @param millis The delay.
+     */
+    private void scheduleFlush(long millis)
+    {
+        this.bot.getEngine().scheduleTimeout(this, new Runnable() {
+            public void run()
+            {
+                flush();
+            }
+        }, millis);
+    }
+
+    /**
+     * Reports the batches once the storm has been quiet for
+     * {@link #QUIET_MILLIS}, or checks again later.
+     */
+    private void flush()
+    {
+        List<Batch> finishedSplits;
+        List<Batch> finishedJoins;
+
+        synchronized (this)
+        {
+            long quiet = System.currentTimeMillis() - this.lastEvent;
+
+            if (quiet < NetsplitTracker.QUIET_MILLIS)
+            {
+                this.scheduleFlush(NetsplitTracker.QUIET_MILLIS - quiet);
+                return;
+            }
+
+            this.flushPending = false;
+            finishedSplits = new ArrayList<Batch>(this.splits.values());
+            finishedJoins = new ArrayList<Batch>(this.joins.values());
+            this.splits.clear();
+            this.joins.clear();
+
+            // A user back from the netjoin is no longer lost, so their next
+            // join is an ordinary one.
+            for (Batch batch : finishedJoins)
+            {
+                for (String mask : batch.masks)
+                {
+                    this.splitNicks.remove(IRCUtils.toLowerCase(IRCUtils.extractNickFromMask(mask)));
+                }
+            }
+        }
+
+        for (Batch batch : finishedSplits)
+        {
+            log.info("Netsplit {0}: {1} users quit", batch.servers, batch.masks.size());
+            this.report(batch, Channel.Event.NETSPLIT, Bot.Event.NETSPLIT);
+        }
+
+        for (Batch batch : finishedJoins)
+        {
+            log.info("Netjoin {0}: {1} users returned", batch.servers, batch.masks.size());
+            this.report(batch, Channel.Event.NETJOIN, Bot.Event.NETJOIN);
+        }
+    }
+
+    /**
+     * Fires the handlers for a batch: first each channel's, with the users
+     * of that channel, then the bot's, with every user.
+     * 
+     * @param batch The batch.
+     * @param channelEvent The channel event.
+     * @param botEvent The bot event.
+     */
+    private void report(Batch batch, Channel.Event channelEvent, Bot.Event botEvent)
+    {
+        Context cx = Context.getCurrentContext();
+        int space = batch.servers.indexOf(' ');
+        String server1 = batch.servers.substring(0, space);
+        String server2 = batch.servers.substring(space + 1);
+
+        try
+        {
+            for (Map.Entry<Channel, List<String>> entry : batch.channels.entrySet())
+            {
+                Scriptable masks = cx.newArray(this.bot, entry.getValue().toArray());
+                entry.getKey().fireHandler(channelEvent, server1, server2, masks);
+            }
+
+            Scriptable masks = cx.newArray(this.bot, batch.masks.toArray());
+            this.bot.fireHandler(botEvent, server1, server2, masks);
+        }
+        catch (ScriptException e)
+        {
+            log.error("Error reporting {0} for {1}", e, botEvent.getHandlerName(), batch.servers);
+        }
+    }
+
+    /**
+     * Forgets nicks lost in earlier netsplits that have not come back in
+     * time.
+     * 
+     * @param now The current time.
+     */
+    private void pruneSplitNicks(long now)
+    {
+        Iterator<SplitNick> it = this.splitNicks.values().iterator();
+
+        while (it.hasNext())
+        {
+            if (it.next().expires < now)
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * The quits or joins of one netsplit.
+     */
+    private static final class Batch
+    {
+        Batch(String servers)
+        {
+            this.servers = servers;
+            this.masks = new ArrayList<String>();
+            this.channels = new LinkedHashMap<Channel, List<String>>();
+        }
+
+        void add(String mask, List<Channel> memberships)
+        {
+            this.masks.add(mask);
+
+            for (Channel channel : memberships)
+            {
+                this.channelMasks(channel).add(mask);
+            }
+        }
+
+        void add(String mask, Channel channel)
+        {
+            if (!this.masks.contains(mask))
+            {
+                this.masks.add(mask);
+            }
+
+            this.channelMasks(channel).add(mask);
+        }
+
+        private List<String> channelMasks(Channel channel)
+        {
+            List<String> list = this.channels.get(channel);
+
+            if (list == null)
+            {
+                list = new ArrayList<String>();
+                this.channels.put(channel, list);
+            }
+
+            return list;
+        }
+
+        /**
+         * The two servers, separated by a space.
+         */
+        final String servers;
+
+        /**
+         * The masks of the users, each once.
+         */
+        final List<String> masks;
+
+        /**
+         * The masks of the users in each channel.
+         */
+        final Map<Channel, List<String>> channels;
+    }
+
+    /**
+     * A nick lost in a netsplit.
+     */
+    private static final class SplitNick
+    {
+        SplitNick(String servers, long expires)
+        {
+            this.servers = servers;
+            this.expires = expires;
+        }
+
+        /**
+         * The two servers, separated by a space.
+         */
+        final String servers;
+
+        /**
+         * When a join by the nick stops counting as part of the netjoin.
+         */
+        final long expires;
+    }
+
+    /**
+     * How long the quits or joins must stop for before a batch is reported.
+     */
+    static final long QUIET_MILLIS = 2000;
+
+    /**
+     * How long a nick lost in a netsplit is remembered for the netjoin.
+     */
+    static final long REMEMBER_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * Two server names separated by a single space.
+     */
+    private static final Pattern SPLIT_REASON = Pattern.compile("[\\w-]+(\\.[\\w-]+)+ [\\w-]+(\\.[\\w-]+)+");
+
+    /**
+     * The bot whose handlers the batches are reported to.
+     */
+    private final Bot bot;
+
+    /**
+     * The netsplits being gathered, keyed by their servers.
+     */
+    private final Map<String, Batch> splits;
+
+    /**
+     * The netjoins being gathered, keyed by the servers of their netsplit.
+     */
+    private final Map<String, Batch> joins;
+
+    /**
+     * The nicks lost in netsplits, keyed by the lowercased nick.
+     */
+    private final Map<String, SplitNick> splitNicks;
+
+    /**
+     * When the last quit or join of a storm arrived.
+     */
+    private long lastEvent;
+
+    /**
+     * Whether a flush is scheduled.
+     */
+    private boolean flushPending;
+}
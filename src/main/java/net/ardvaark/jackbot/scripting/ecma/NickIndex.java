@@ -0,0 +1,125 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import net.ardvaark.jackbot.IRCUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of which channels each nick is in, kept alongside the members of
+ * the <code>Channel</code> objects so that a <code>QUIT</code> or
+ * <code>NICK</code> only visits the channels the user is actually in. Nicks
+ * are compared using the RFC 1459 case mapping.
+ * 
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+final class NickIndex
+{
+    /**
+     * Constructs an empty index.
+     */
+    NickIndex()
+    {
+        this.byNick = new HashMap<String, List<Channel>>();
+    }
+
+    /**
+     * Records that a nick is in a channel.
+     * 
+     * @param nick The nick.
+     * @param channel The channel.
+     */
+    void add(String nick, Channel channel)
+    {
+        String key = IRCUtils.toLowerCase(nick);
+        List<Channel> channels = this.byNick.get(key);
+
+        if (channels == null)
+        {
+            channels = new ArrayList<Channel>(2);
+            this.byNick.put(key, channels);
+        }
+
+        if (!channels.contains(channel))
+        {
+            channels.add(channel);
+        }
+    }
+
+    /**
+     * Records that a nick has left a channel.
+     * 
+     * @param nick The nick.
+     * @param channel The channel.
+     */
+    void remove(String nick, Channel channel)
+    {
+        String key = IRCUtils.toLowerCase(nick);
+        List<Channel> channels = this.byNick.get(key);
+
+        if (channels != null && channels.remove(channel) && channels.isEmpty())
+        {
+            this.byNick.remove(key);
+        }
+    }
+
+    /**
+     * Forgets every member of a channel, as when the bot leaves it.
+     * 
+     * @param channel The channel.
+     * @param nicks The nicks in the channel.
+     */
+    void removeChannel(Channel channel, Collection<String> nicks)
+    {
+        for (String nick : nicks)
+        {
+            this.remove(nick, channel);
+        }
+    }
+
+    /**
+     * Gets the channels a nick is in. The list is a copy, so the index may
+     * be changed while it is walked.
+     * 
+     * @param nick The nick.
+     * @return The channels.
+     */
+    List<Channel> get(String nick)
+    {
+        List<Channel> channels = this.byNick.get(IRCUtils.toLowerCase(nick));
+
+        if (channels == null)
+        {
+            return Collections.emptyList();
+        }
+
+        return new ArrayList<Channel>(channels);
+    }
+
+    /**
+     * The channels of each nick, keyed by the lowercased nick.
+     */
+    private final Map<String, List<Channel>> byNick;
+}
@@ -0,0 +1,565 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import net.ardvaark.jackbot.logging.Log;
+import org.apache.commons.io.IOUtils;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Caches the work of loading scripts, so that starting the bot and
+ * reloading its scripts do not parse and compile the same text again.
+ * </p>
+ * <p>
+ * Script files are cached by path. A file whose modification time and
+ * length are unchanged is not read again; one that has changed is read and
+ * hashed, and its parsed DOM is reused if the content turns out to be the
+ * same.
+ * </p>
+ * <p>
+ * Compiled scripts are cached by a SHA-1 hash of their name, their text,
+ * the optimization level, whether instructions are counted, and the Rhino
+ * version. At optimization level 0 and
+ * above, Rhino compiles scripts to Java classes, and if a cache directory is
+ * set, the class files are also written there, so that a restarted bot
+ * loads them instead of compiling again. At level -1 scripts are
+ * interpreted, and are only cached in memory.
+ * </p>
+ * <p>
+ * Only the current version of each script is kept in memory for each
+ * optimization level; when a script changes, the new version replaces the
+ * old one. The directory may be shared by the engines of several networks,
+ * whose scripts of the same name need not match, so a file is only deleted
+ * when the cache replaces its own earlier version, or when a newer version
+ * of the same script is cached and nobody has loaded the file for
+ * {@link #STALE_MILLIS}. Loading a file marks it as used.
+ * </p>
+ * <p>
+ * A cache is used by a single engine, on its thread.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+final class ScriptCache
+{
+    private static final Log    log                       = Log.getLogger(ScriptCache.class);
+
+    /**
+     * The default directory for compiled scripts.
+     */
+    public static final String  DEFAULT_DIRECTORY         = "script-cache";
+
+    /**
+     * The package of the classes generated from compiled scripts.
+     */
+    private static final String CLASS_PREFIX              = "net.ardvaark.jackbot.scripting.ecma.compiled.Script_";
+
+    /**
+     * The extension of the files in the cache directory.
+     */
+    private static final String FILE_EXTENSION            = ".jsc";
+
+    /**
+     * The extension of files being written to the cache directory.
+     */
+    private static final String TEMP_EXTENSION            = ".tmp";
+
+    /**
+     * How long a file must have gone unused before another version of the
+     * same script may delete it, in milliseconds.
+     */
+    private static final long   STALE_MILLIS              = 24L * 60 * 60 * 1000;
+
+    /**
+     * Constructs a cache that writes compiled scripts to
+     * {@link #DEFAULT_DIRECTORY}.
+     */
+    ScriptCache()
+    {
+        this.directory = new File(ScriptCache.DEFAULT_DIRECTORY);
+        this.documents = new HashMap<String, CachedDocument>();
+        this.scripts = new HashMap<String, CachedScript>();
+    }
+
+    /**
+     * Sets the directory in which compiled scripts are kept between runs.
+     *
+     * @param directory The directory, or <code>null</code> to only cache in
+     *        memory.
+     */
+    void setDirectory(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Gets the root element of a script file. A file that is not XML is
+     * wrapped in a <code>&lt;script&gt;</code> element named after the file.
+     *
+     * @param fileName The name of the file.
+     * @return The root element.
+     * @throws Exception If the file cannot be read.
+     */
+    Element getDocument(String fileName) throws Exception
+    {
+        File file = new File(fileName);
+        String path = file.getCanonicalPath();
+        CachedDocument cached = this.documents.get(path);
+        long modified = file.lastModified();
+        long length = file.length();
+
+        if (cached != null && cached.modified == modified && cached.length == length && modified != 0)
+        {
+            log.trace("Script file unchanged: {0}", fileName);
+            return cached.root;
+        }
+
+        byte[] content = ScriptCache.readFile(file);
+        String hash = ScriptCache.sha1(content);
+
+        if (cached != null && cached.hash.equals(hash))
+        {
+            log.trace("Script file touched but unchanged: {0}", fileName);
+        }
+        else
+        {
+            cached = new CachedDocument();
+            cached.hash = hash;
+            cached.root = this.parse(fileName, content);
+        }
+
+        cached.modified = modified;
+        cached.length = length;
+        this.documents.put(path, cached);
+
+        return cached.root;
+    }
+
+    /**
+     * Gets the compiled form of a script, compiling it only if it is not
+     * already cached in memory or on disk.
+     *
+     * @param cx The current context, whose optimization level is used.
+     * @param source The text of the script.
+     * @param name The name of the script, used in error messages.
+     * @return The compiled script.
+     */
+    Script getScript(Context cx, String source, String name)
+    {
+        int level = cx.getOptimizationLevel();
+        String slot = name + '\0' + level;
+        String key = ScriptCache.sha1(ScriptCache.toBytes(slot + '\0' + cx.generateObserverCount + '\0'
+                + cx.getImplementationVersion() + '\0' + source));
+        CachedScript cached = this.scripts.get(slot);
+
+        if (cached != null && cached.key.equals(key))
+        {
+            log.trace("Using cached script: {0}", name);
+            return cached.script;
+        }
+
+        String prefix = ScriptCache.sha1(ScriptCache.toBytes(slot)) + '-';
+        String previous = cached == null ? null : prefix + cached.key + ScriptCache.FILE_EXTENSION;
+        Script script;
+
+        if (level < 0)
+        {
+            script = cx.compileString(source, name, 1, null);
+        }
+        else
+        {
+            script = this.loadCompiled(cx, prefix, key, name);
+
+            if (script == null)
+            {
+                script = this.compile(cx, source, name, prefix, key);
+            }
+        }
+
+        if (cached == null)
+        {
+            cached = new CachedScript();
+            this.scripts.put(slot, cached);
+        }
+
+        cached.key = key;
+        cached.script = script;
+
+        if (this.directory != null)
+        {
+            this.deleteStale(prefix, level < 0 ? null : prefix + key + ScriptCache.FILE_EXTENSION, previous);
+        }
+
+        return script;
+    }
+
+    /**
+     * Compiles a script to classes, saving them to the cache directory.
+     */
+    private Script compile(Context cx, String source, String name, String prefix, String key)
+    {
+        log.trace("Compiling script: {0}", name);
+
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+
+        Object[] classes = new ClassCompiler(env).compileToClassFiles(source, name, 1, ScriptCache.CLASS_PREFIX + key);
+
+        if (this.directory != null)
+        {
+            this.save(prefix + key, classes, name);
+        }
+
+        return ScriptCache.define(cx, classes);
+    }
+
+    /**
+     * Deletes the files of a script's older versions from the cache
+     * directory. The files of one script and optimization level all start
+     * with the same prefix. This cache's own previous version is deleted at
+     * once; any other version, which may belong to another engine using the
+     * same directory, or be left over from an earlier run or an interrupted
+     * write, only once it has gone unused for {@link #STALE_MILLIS}.
+     *
+     * @param prefix The prefix of the script's files.
+     * @param current The name of the file to keep, or <code>null</code>.
+     * @param previous The name of the file of the version this cache held
+     *        before, or <code>null</code>.
+     */
+    private void deleteStale(String prefix, String current, String previous)
+    {
+        File[] files = this.directory.listFiles();
+
+        if (files == null)
+        {
+            return;
+        }
+
+        long staleBefore = System.currentTimeMillis() - ScriptCache.STALE_MILLIS;
+
+        for (File file : files)
+        {
+            String fileName = file.getName();
+
+            if (!fileName.startsWith(prefix) || fileName.equals(current))
+            {
+                continue;
+            }
+
+            if (!fileName.endsWith(ScriptCache.FILE_EXTENSION) && !fileName.endsWith(ScriptCache.TEMP_EXTENSION))
+            {
+                continue;
+            }
+
+            if (fileName.equals(previous) || file.lastModified() < staleBefore)
+            {
+                log.trace("Deleting stale compiled script {0}", file);
+
+                if (!file.delete())
+                {
+                    log.warn("Unable to delete stale compiled script {0}", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a script compiled by an earlier run from the cache directory.
+     *
+     * @return The script, or <code>null</code> if it is not in the cache or
+     *         cannot be loaded.
+     */
+    private Script loadCompiled(Context cx, String prefix, String key, String name)
+    {
+        if (this.directory == null)
+        {
+            return null;
+        }
+
+        File file = new File(this.directory, prefix + key + ScriptCache.FILE_EXTENSION);
+
+        if (!file.isFile())
+        {
+            return null;
+        }
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(ScriptCache.readFile(file)));
+            Object[] classes = new Object[in.readInt() * 2];
+
+            for (int i = 0; i < classes.length; i += 2)
+            {
+                classes[i] = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes[i + 1] = bytes;
+            }
+
+            Script script = ScriptCache.define(cx, classes);
+            log.trace("Loaded compiled script: {0}", name);
+
+            // Mark the file as used, so that other engines leave it alone.
+            file.setLastModified(System.currentTimeMillis());
+            return script;
+        }
+        catch (Exception e)
+        {
+            log.warn("Ignoring unreadable compiled script {0} for {1}", e, file, name);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Writes compiled classes to the cache directory. The file is written
+     * under a temporary name of its own and then renamed, so a crash never
+     * leaves a partial file behind, and engines sharing the directory never
+     * write to the same temporary file.
+     */
+    private void save(String fileName, Object[] classes, String name)
+    {
+        File file = new File(this.directory, fileName + ScriptCache.FILE_EXTENSION);
+        File temp = null;
+
+        try
+        {
+            // Another engine may create the directory at the same time, so
+            // only its absence afterwards is an error.
+            if (!this.directory.mkdirs() && !this.directory.isDirectory())
+            {
+                throw new IOException("Cannot create directory " + this.directory);
+            }
+
+            temp = File.createTempFile(fileName, ScriptCache.TEMP_EXTENSION, this.directory);
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+
+            try
+            {
+                out.writeInt(classes.length / 2);
+
+                for (int i = 0; i < classes.length; i += 2)
+                {
+                    byte[] bytes = (byte[]) classes[i + 1];
+                    out.writeUTF((String) classes[i]);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!temp.renameTo(file))
+            {
+                file.delete();
+
+                if (!temp.renameTo(file))
+                {
+                    throw new IOException("Cannot rename " + temp + " to " + file);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to save compiled script {0}", e, name);
+
+            if (temp != null)
+            {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Defines compiled classes and instantiates the script. The first class
+     * is the script itself.
+     *
+     * @param classes Alternating class names and class file bytes.
+     */
+    private static Script define(Context cx, Object[] classes)
+    {
+        GeneratedClassLoader loader = cx.createClassLoader(cx.getApplicationClassLoader());
+        Class<?> main = null;
+
+        for (int i = 0; i < classes.length; i += 2)
+        {
+            Class<?> cls = loader.defineClass((String) classes[i], (byte[]) classes[i + 1]);
+            loader.linkClass(cls);
+
+            if (main == null)
+            {
+                main = cls;
+            }
+        }
+
+        try
+        {
+            return (Script) main.getDeclaredConstructor().newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException("Unable to instantiate compiled script " + main, e);
+        }
+    }
+
+    /**
+     * Parses a script file, wrapping it in a <code>&lt;script&gt;</code>
+     * element if it is not XML.
+     */
+    private Element parse(String fileName, byte[] content) throws Exception
+    {
+        if (this.docBuilder == null)
+        {
+            this.docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        }
+
+        try
+        {
+            Document doc = this.docBuilder.parse(new ByteArrayInputStream(content), new File(fileName).toURI().toString());
+            return doc.getDocumentElement();
+        }
+        catch (SAXParseException e)
+        {
+            // If we're unable to parse this as an XML file,
+            // let's try wrapping the file in a made-up XML document, so we can cleanly load bare script files
+            // (i.e. with no XML wrapper).
+            Document doc = this.docBuilder.newDocument();
+            Element rootElement = doc.createElement("script");
+            rootElement.setTextContent(new String(content, "UTF-8"));
+            rootElement.setAttribute("name", fileName);
+            return rootElement;
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+
+        try
+        {
+            return IOUtils.toByteArray(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static byte[] toBytes(String s)
+    {
+        try
+        {
+            return s.getBytes("UTF-8");
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sha1(byte[] data)
+    {
+        MessageDigest digest;
+
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] hash = digest.digest(data);
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+
+        for (byte b : hash)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+
+    /**
+     * A parsed script file, and what it looked like when it was parsed.
+     */
+    private static final class CachedDocument
+    {
+        long    modified;
+        long    length;
+        String  hash;
+        Element root;
+    }
+
+    /**
+     * The current version of a compiled script.
+     */
+    private static final class CachedScript
+    {
+        String  key;
+        Script  script;
+    }
+
+    /**
+     * The directory for compiled scripts, or <code>null</code>.
+     */
+    private File                              directory;
+
+    /**
+     * Parsed script files, by canonical path.
+     */
+    private final Map<String, CachedDocument> documents;
+
+    /**
+     * The current version of each compiled script, by name and optimization
+     * level.
+     */
+    private final Map<String, CachedScript>   scripts;
+
+    /**
+     * Reused to parse script files.
+     */
+    private DocumentBuilder                   docBuilder;
+}
@@ -0,0 +1,356 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import net.ardvaark.jackbot.logging.Log;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A single thread on which all of an engine's script code runs, in the
+ * manner of a browser's or Node's event loop. The thread enters one Rhino
+ * <code>Context</code> when it starts and keeps it until it stops, and runs
+ * the tasks posted to it one at a time, in order: IRC messages, timers,
+ * and the callbacks of asynchronous work whose blocking part ran on a
+ * worker thread. Scripts therefore never run on two threads at once.
+ * </p>
+ * <p>
+ * The loop measures how long tasks wait to start and how long they run, and
+ * warns about any task that holds the loop for longer than
+ * {@link #SLOW_TASK_MILLIS}.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+final class ScriptEventLoop implements Executor
+{
+    private static final Log log              = Log.getLogger(ScriptEventLoop.class);
+
+    /**
+     * Tasks that run for longer than this many milliseconds are logged.
+     */
+    public static final long SLOW_TASK_MILLIS = 1000;
+
+    /**
+     * Constructs a loop. It does not run until {@link #start()} is called.
+     *
+     * @param engine The engine whose scripts run on the loop.
+     * @param name The name of the loop's thread.
+     */
+    ScriptEventLoop(ECMAEngine engine, String name)
+    {
+        this.engine = engine;
+        this.queue = new LinkedBlockingQueue<Task>();
+        this.thread = new Thread(new Runnable() {
+            public void run()
+            {
+                loop();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the loop's thread.
+     */
+    void start()
+    {
+        this.thread.start();
+    }
+
+    /**
+     * Stops the loop once the tasks already posted have run, and waits a
+     * few seconds for it to finish.
+     */
+    void shutdown()
+    {
+        this.queue.add(new Task(null));
+
+        if (!this.inEventLoop())
+        {
+            try
+            {
+                this.thread.join(5000);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Posts a task to the loop. Tasks posted after the loop stops are
+     * dropped.
+     *
+     * @param task The task.
+     */
+    public void execute(Runnable task)
+    {
+        if (task == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if (this.stopped)
+        {
+            log.trace("Ignoring task posted after the event loop stopped: {0}", task);
+            return;
+        }
+
+        this.queue.add(new Task(task));
+    }
+
+    /**
+     * Runs a task on the loop and waits for its result. If called on the
+     * loop's own thread, the task is simply run.
+     *
+     * @param task The task.
+     * @return The task's result.
+     * @throws Exception Whatever the task throws.
+     */
+    <T> T invokeAndWait(Callable<T> task) throws Exception
+    {
+        if (this.inEventLoop())
+        {
+            return task.call();
+        }
+
+        FutureTask<T> future = new FutureTask<T>(task);
+        this.execute(future);
+
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof Exception)
+            {
+                throw (Exception) cause;
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Determines whether the caller is running on the loop.
+     *
+     * @return <code>true</code> if the current thread is the loop's thread.
+     */
+    boolean inEventLoop()
+    {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Gets the number of tasks waiting to run.
+     *
+     * @return The queue length.
+     */
+    int getQueueLength()
+    {
+        return this.queue.size();
+    }
+
+    /**
+     * Gets the number of tasks run.
+     *
+     * @return The number of tasks run.
+     */
+    synchronized long getTaskCount()
+    {
+        return this.taskCount;
+    }
+
+    /**
+     * Gets how long, on average, tasks waited before they started.
+     *
+     * @return The average wait in milliseconds.
+     */
+    synchronized double getAverageLatencyMillis()
+    {
+        return this.taskCount == 0 ? 0.0 : this.totalLatencyNanos / 1e6 / this.taskCount;
+    }
+
+    /**
+     * Gets the longest any task waited before it started.
+     *
+     * @return The greatest wait in milliseconds.
+     */
+    synchronized double getMaximumLatencyMillis()
+    {
+        return this.maxLatencyNanos / 1e6;
+    }
+
+    /**
+     * Gets how long, on average, tasks ran.
+     *
+     * @return The average run time in milliseconds.
+     */
+    synchronized double getAverageRunMillis()
+    {
+        return this.taskCount == 0 ? 0.0 : this.totalRunNanos / 1e6 / this.taskCount;
+    }
+
+    /**
+     * Gets the longest any task ran.
+     *
+     * @return The greatest run time in milliseconds.
+     */
+    synchronized double getMaximumRunMillis()
+    {
+        return this.maxRunNanos / 1e6;
+    }
+
+    /**
+     * The loop's thread. Enters the context, runs tasks until the stop
+     * marker is taken, then exits the context.
+     */
+    private void loop()
+    {
+        Context cx = ContextFactory.getGlobal().enterContext();
+        cx.putThreadLocal(ECMAEngine.class, this.engine);
+
+        try
+        {
+            while (true)
+            {
+                Task task = this.queue.take();
+
+                if (task.code == null)
+                {
+                    break;
+                }
+
+                long started = System.nanoTime();
+
+                try
+                {
+                    task.code.run();
+                }
+                catch (RuntimeException e)
+                {
+                    log.error("Caught unexpected exception in script event loop.", e);
+                }
+
+                long finished = System.nanoTime();
+                this.record(started - task.posted, finished - started);
+
+                if (finished - started > TimeUnit.MILLISECONDS.toNanos(ScriptEventLoop.SLOW_TASK_MILLIS))
+                {
+                    log.warn("Script task held the event loop for {0} ms: {1}",
+                            TimeUnit.NANOSECONDS.toMillis(finished - started), task.code);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            log.warn("Script event loop interrupted.");
+        }
+        finally
+        {
+            this.stopped = true;
+            Context.exit();
+            log.trace("Script event loop stopped; {0} tasks left unrun.", this.queue.size());
+        }
+    }
+
+    private synchronized void record(long latencyNanos, long runNanos)
+    {
+        this.taskCount++;
+        this.totalLatencyNanos += latencyNanos;
+        this.maxLatencyNanos = Math.max(this.maxLatencyNanos, latencyNanos);
+        this.totalRunNanos += runNanos;
+        this.maxRunNanos = Math.max(this.maxRunNanos, runNanos);
+    }
+
+    /**
+     * A posted task and when it was posted. A task with no code stops the
+     * loop.
+     */
+    private static final class Task
+    {
+        Task(Runnable code)
+        {
+            this.code = code;
+            this.posted = System.nanoTime();
+        }
+
+        final Runnable code;
+        final long     posted;
+    }
+
+    /**
+     * The engine whose scripts run on the loop.
+     */
+    private final ECMAEngine          engine;
+
+    /**
+     * The tasks waiting to run.
+     */
+    private final BlockingQueue<Task> queue;
+
+    /**
+     * The loop's thread.
+     */
+    private final Thread              thread;
+
+    /**
+     * Set once the loop has stopped taking tasks.
+     */
+    private volatile boolean          stopped;
+
+    /**
+     * The number of tasks run.
+     */
+    private long                      taskCount;
+
+    /**
+     * The total time tasks waited to start, in nanoseconds.
+     */
+    private long                      totalLatencyNanos;
+
+    /**
+     * The longest any task waited to start, in nanoseconds.
+     */
+    private long                      maxLatencyNanos;
+
+    /**
+     * The total time tasks ran, in nanoseconds.
+     */
+    private long                      totalRunNanos;
+
+    /**
+     * The longest any task ran, in nanoseconds.
+     */
+    private long                      maxRunNanos;
+}
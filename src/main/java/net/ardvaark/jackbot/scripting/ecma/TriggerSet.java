@@ -0,0 +1,566 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Function;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The triggers added by scripts with <code>bot.addTrigger()</code>, compiled
+ * so that the text of a <code>PRIVMSG</code> is matched against all of them
+ * at once. Keywords and prefixes share one Aho-Corasick automaton, which
+ * finds every one of them in a single case-insensitive pass over the text.
+ * The regular expressions are joined into one alternation that rules out
+ * most lines in a single search, so each regular expression is only tried
+ * on its own when something matched. A <code>TriggerSet</code> is not
+ * changed once built; a new one is compiled when the triggers change.
+ * 
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+final class TriggerSet
+{
+    /**
+     * Compiles a set of triggers.
+     * 
+     * @param triggers The triggers, in the order their functions are called.
+     */
+    TriggerSet(Trigger[] triggers)
+    {
+        this.triggers = triggers;
+        this.root = new Node(0);
+
+        Map<String, Integer> literalIds = new HashMap<String, Integer>();
+        List<List<Integer>> literalTriggers = new ArrayList<List<Integer>>();
+        List<Integer> regexTriggers = new ArrayList<Integer>();
+        boolean anyKeywords = false;
+        boolean anyBackReferences = false;
+
+        for (int i = 0; i < triggers.length; i++)
+        {
+            Trigger trigger = triggers[i];
+
+            if (trigger.kind == Kind.REGEX)
+            {
+                regexTriggers.add(Integer.valueOf(i));
+                anyBackReferences |= BACK_REFERENCE.matcher(trigger.regex.pattern()).find();
+                continue;
+            }
+
+            anyKeywords |= trigger.kind == Kind.KEYWORD;
+            Integer literal = literalIds.get(trigger.literal);
+
+            if (literal == null)
+            {
+                literal = Integer.valueOf(literalTriggers.size());
+                literalIds.put(trigger.literal, literal);
+                literalTriggers.add(new ArrayList<Integer>());
+                this.insert(trigger.literal, literal.intValue());
+            }
+
+            literalTriggers.get(literal.intValue()).add(Integer.valueOf(i));
+        }
+
+        this.linkFailures();
+        this.literalLengths = new int[literalTriggers.size()];
+        this.literalTriggers = new int[literalTriggers.size()][];
+
+        for (Map.Entry<String, Integer> entry : literalIds.entrySet())
+        {
+            int literal = entry.getValue().intValue();
+            this.literalLengths[literal] = entry.getKey().length();
+            this.literalTriggers[literal] = TriggerSet.toArray(literalTriggers.get(literal));
+        }
+
+        this.anchoredOnly = !anyKeywords;
+        this.regexTriggers = TriggerSet.toArray(regexTriggers);
+
+        if (this.regexTriggers.length > 1 && !anyBackReferences)
+        {
+            StringBuilder combined = new StringBuilder();
+
+            for (int i : this.regexTriggers)
+            {
+                if (combined.length() > 0)
+                {
+                    combined.append('|');
+                }
+
+                Pattern regex = triggers[i].regex;
+                combined.append("(?").append(TriggerSet.flagsOf(regex)).append(':').append(regex.pattern()).append(')');
+            }
+
+            this.combinedRegex = Pattern.compile(combined.toString());
+        }
+        else
+        {
+            this.combinedRegex = null;
+        }
+    }
+
+    /**
+     * Gets a trigger of this set.
+     * 
+     * @param index The trigger's index, as given to the constructor.
+     * @return The trigger.
+     */
+    Trigger get(int index)
+    {
+        return this.triggers[index];
+    }
+
+    /**
+     * Matches some text against every trigger.
+     * 
+     * @param text The text of the message.
+     * @return An array with an entry for each trigger, which is the
+     *         <code>String</code> found by a keyword or prefix, the
+     *         <code>MatchResult</code> of a regular expression, or
+     *         <code>null</code> where the trigger did not match. If no
+     *         trigger matched, <code>null</code> is returned instead.
+     */
+    Object[] match(String text)
+    {
+        Object[] matches = null;
+        Node state = this.root;
+
+        if (this.literalTriggers.length > 0)
+        {
+            for (int i = 0; i < text.length(); i++)
+            {
+                char c = Character.toLowerCase(text.charAt(i));
+                Node next;
+
+                while ((next = state.get(c)) == null && state != this.root)
+                {
+                    state = state.failure;
+                }
+
+                state = next != null ? next : this.root;
+
+                if (this.anchoredOnly && state.depth != i + 1)
+                {
+                    // Only prefixes are wanted, and the text no longer
+                    // starts with any of them.
+                    break;
+                }
+
+                for (int literal : state.literals)
+                {
+                    int start = i + 1 - this.literalLengths[literal];
+
+                    for (int trigger : this.literalTriggers[literal])
+                    {
+                        if (this.triggers[trigger].kind == Kind.KEYWORD || start == 0)
+                        {
+                            if (matches == null)
+                            {
+                                matches = new Object[this.triggers.length];
+                            }
+
+                            if (matches[trigger] == null)
+                            {
+                                matches[trigger] = text.substring(start, i + 1);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        if (this.regexTriggers.length > 0 && (this.combinedRegex == null || this.combinedRegex.matcher(text).find()))
+        {
+            for (int trigger : this.regexTriggers)
+            {
+                Matcher matcher = this.triggers[trigger].regex.matcher(text);
+
+                if (matcher.find())
+                {
+                    if (matches == null)
+                    {
+                        matches = new Object[this.triggers.length];
+                    }
+
+                    matches[trigger] = matcher.toMatchResult();
+                }
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Adds a literal to the automaton's trie.
+     * 
+     * @param literal The lowercased literal.
+     * @param id The literal's id.
+     */
+    private void insert(String literal, int id)
+    {
+        Node node = this.root;
+
+        for (int i = 0; i < literal.length(); i++)
+        {
+            char c = literal.charAt(i);
+            Node next = node.get(c);
+
+            if (next == null)
+            {
+                next = new Node(i + 1);
+                node.put(c, next);
+            }
+
+            node = next;
+        }
+
+        node.literals = TriggerSet.append(node.literals, new int[] { id });
+    }
+
+    /**
+     * Sets the failure link of every node of the trie, breadth first, and
+     * gives each node the literals of the nodes its failure links lead to.
+     */
+    private void linkFailures()
+    {
+        LinkedList<Node> queue = new LinkedList<Node>();
+
+        for (Node child : this.root.next)
+        {
+            child.failure = this.root;
+            queue.add(child);
+        }
+
+        while (!queue.isEmpty())
+        {
+            Node node = queue.removeFirst();
+
+            for (int i = 0; i < node.keys.length; i++)
+            {
+                char c = node.keys[i];
+                Node child = node.next[i];
+                Node failure = node.failure;
+
+                while (failure.get(c) == null && failure != this.root)
+                {
+                    failure = failure.failure;
+                }
+
+                Node target = failure.get(c);
+                child.failure = target != null ? target : this.root;
+                child.literals = TriggerSet.append(child.literals, child.failure.literals);
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Gets the inline flags that a regular expression was compiled with.
+     * 
+     * @param regex The regular expression.
+     * @return The flags, in the form used by <code>(?flags:X)</code>.
+     */
+    private static String flagsOf(Pattern regex)
+    {
+        StringBuilder flags = new StringBuilder();
+
+        if ((regex.flags() & Pattern.CASE_INSENSITIVE) != 0)
+        {
+            flags.append('i');
+        }
+
+        if ((regex.flags() & Pattern.MULTILINE) != 0)
+        {
+            flags.append('m');
+        }
+
+        return flags.toString();
+    }
+
+    /**
+     * Lowercases text one character at a time, as the automaton does, so
+     * that its length does not change.
+     * 
+     * @param text The text.
+     * @return The lowercased text.
+     */
+    static String toLowerCase(String text)
+    {
+        char[] chars = text.toCharArray();
+
+        for (int i = 0; i < chars.length; i++)
+        {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+
+        return new String(chars);
+    }
+
+    private static int[] toArray(List<Integer> list)
+    {
+        int[] array = new int[list.size()];
+
+        for (int i = 0; i < array.length; i++)
+        {
+            array[i] = list.get(i).intValue();
+        }
+
+        return array;
+    }
+
+    private static int[] append(int[] first, int[] second)
+    {
+        if (second.length == 0)
+        {
+            return first;
+        }
+
+        int[] both = new int[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    /**
+     * The kinds of trigger.
+     */
+    enum Kind
+    {
+        /**
+         * Matches a literal anywhere in the text, ignoring case.
+         */
+        KEYWORD,
+
+        /**
+         * Matches a literal at the start of the text, ignoring case.
+         */
+        PREFIX,
+
+        /**
+         * Matches a regular expression anywhere in the text.
+         */
+        REGEX
+    }
+
+    /**
+     * A pattern added by a script, with the function to call when it
+     * matches.
+     */
+    static final class Trigger
+    {
+        /**
+         * Constructs a keyword or prefix trigger.
+         * 
+         * @param kind {@link Kind#KEYWORD} or {@link Kind#PREFIX}.
+         * @param literal The literal to find. It may not be empty.
+         * @param function The function to call.
+         */
+        Trigger(Kind kind, String literal, Function function)
+        {
+            this(kind, TriggerSet.toLowerCase(literal), null, function);
+        }
+
+        /**
+         * Constructs a regular expression trigger.
+         * 
+         * @param regex The regular expression.
+         * @param function The function to call.
+         */
+        Trigger(Pattern regex, Function function)
+        {
+            this(Kind.REGEX, null, regex, function);
+        }
+
+        private Trigger(Kind kind, String literal, Pattern regex, Function function)
+        {
+            this.kind = kind;
+            this.literal = literal;
+            this.regex = regex;
+            this.function = function;
+
+            String functionName = function instanceof BaseFunction ? ((BaseFunction) function).getFunctionName() : null;
+            String pattern = regex != null ? "/" + regex.pattern() + "/" : "\"" + literal + (kind == Kind.PREFIX ? "*\"" : "\"");
+            this.name = "trigger " + pattern + " " + (functionName != null && functionName.length() > 0 ? functionName : "anonymous");
+        }
+
+        /**
+         * Determines whether this trigger has the same pattern and function
+         * as another.
+         * 
+         * @param other The other trigger.
+         * @return <code>true</code> if the two are the same.
+         */
+        boolean sameAs(Trigger other)
+        {
+            if (this.kind != other.kind || this.function != other.function)
+            {
+                return false;
+            }
+
+            if (this.kind == Kind.REGEX)
+            {
+                return this.regex.pattern().equals(other.regex.pattern()) && this.regex.flags() == other.regex.flags();
+            }
+
+            return this.literal.equals(other.literal);
+        }
+
+        /**
+         * The kind of trigger.
+         */
+        final Kind     kind;
+
+        /**
+         * The lowercased literal of a keyword or prefix trigger.
+         */
+        final String   literal;
+
+        /**
+         * The regular expression of a regular expression trigger.
+         */
+        final Pattern  regex;
+
+        /**
+         * The function to call.
+         */
+        final Function function;
+
+        /**
+         * The trigger's pattern and function name, for logs.
+         */
+        final String   name;
+    }
+
+    /**
+     * A node of the automaton. Its transitions are kept sorted by character
+     * for a binary search.
+     */
+    private static final class Node
+    {
+        Node(int depth)
+        {
+            this.depth = depth;
+            this.keys = new char[0];
+            this.next = new Node[0];
+            this.literals = NO_LITERALS;
+        }
+
+        Node get(char c)
+        {
+            int i = Arrays.binarySearch(this.keys, c);
+            return i >= 0 ? this.next[i] : null;
+        }
+
+        void put(char c, Node node)
+        {
+            int i = -Arrays.binarySearch(this.keys, c) - 1;
+            char[] keys = new char[this.keys.length + 1];
+            Node[] next = new Node[this.next.length + 1];
+
+            System.arraycopy(this.keys, 0, keys, 0, i);
+            System.arraycopy(this.next, 0, next, 0, i);
+            keys[i] = c;
+            next[i] = node;
+            System.arraycopy(this.keys, i, keys, i + 1, this.keys.length - i);
+            System.arraycopy(this.next, i, next, i + 1, this.next.length - i);
+
+            this.keys = keys;
+            this.next = next;
+        }
+
+        /**
+         * The length of the text that leads to this node.
+         */
+        final int depth;
+
+        /**
+         * The characters of this node's transitions.
+         */
+        char[]    keys;
+
+        /**
+         * The nodes this node's transitions lead to.
+         */
+        Node[]    next;
+
+        /**
+         * The node for the longest proper suffix of this node's text that is
+         * also in the trie.
+         */
+        Node      failure;
+
+        /**
+         * The ids of the literals that end at this node.
+         */
+        int[]     literals;
+    }
+
+    private static final int[]   NO_LITERALS    = new int[0];
+
+    /**
+     * Finds back references, which would refer to the wrong groups once the
+     * regular expressions are joined together.
+     */
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+
+    /**
+     * The triggers, in the order their functions are called.
+     */
+    private final Trigger[]      triggers;
+
+    /**
+     * The root of the automaton.
+     */
+    private final Node           root;
+
+    /**
+     * The length of each literal, by id.
+     */
+    private final int[]          literalLengths;
+
+    /**
+     * The triggers of each literal, by id.
+     */
+    private final int[][]        literalTriggers;
+
+    /**
+     * Whether all of the literals are prefixes, so a scan can stop as soon
+     * as the text stops matching one.
+     */
+    private final boolean        anchoredOnly;
+
+    /**
+     * The regular expression triggers.
+     */
+    private final int[]          regexTriggers;
+
+    /**
+     * All of the regular expressions joined into one, or <code>null</code>
+     * if there are fewer than two or they cannot be joined.
+     */
+    private final Pattern        combinedRegex;
+}
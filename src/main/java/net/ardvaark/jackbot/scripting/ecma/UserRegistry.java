@@ -0,0 +1,178 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The users known to the bot's scripts, with their masks and levels. Finding
+ * the user for a hostmask means trying each user's mask in turn, so the
+ * result is remembered for each hostmask until the users change.
+ * 
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+final class UserRegistry
+{
+    /**
+     * Constructs an empty registry.
+     */
+    UserRegistry()
+    {
+        this.users = new LinkedHashMap<String, User>();
+        this.cache = new LinkedHashMap<String, User>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, User> eldest)
+            {
+                return this.size() > MAX_CACHED;
+            }
+        };
+    }
+
+    /**
+     * Adds a user, or replaces the user with the same username.
+     * 
+     * @param username The username.
+     * @param mask The user's mask, in which <code>*</code> matches anything.
+     *        It matches any hostmask it is found in, ignoring case.
+     * @param level The user's level.
+     */
+    synchronized void put(String username, String mask, int level)
+    {
+        String regex = mask.replace(".", "\\.").replace("*", ".*");
+        this.users.put(username, new User(username, Pattern.compile(regex, Pattern.CASE_INSENSITIVE), level));
+        this.cache.clear();
+    }
+
+    /**
+     * Removes a user.
+     * 
+     * @param username The username.
+     * @return <code>true</code> if there was such a user.
+     */
+    synchronized boolean remove(String username)
+    {
+        if (this.users.remove(username) == null)
+        {
+            return false;
+        }
+
+        this.cache.clear();
+        return true;
+    }
+
+    /**
+     * Finds the first user, in the order they were added, whose mask
+     * matches a hostmask.
+     * 
+     * @param hostmask The hostmask.
+     * @return The username, or <code>null</code> if no user matches.
+     */
+    synchronized String findUsername(String hostmask)
+    {
+        User user = this.lookup(hostmask);
+        return user != NOBODY ? user.username : null;
+    }
+
+    /**
+     * Gets the level of the user a hostmask belongs to.
+     * 
+     * @param hostmask The hostmask.
+     * @return The level, or -1 if no user matches.
+     */
+    synchronized int getLevel(String hostmask)
+    {
+        return this.lookup(hostmask).level;
+    }
+
+    private User lookup(String hostmask)
+    {
+        User user = this.cache.get(hostmask);
+
+        if (user == null)
+        {
+            user = NOBODY;
+
+            for (User candidate : this.users.values())
+            {
+                if (candidate.mask.matcher(hostmask).find())
+                {
+                    user = candidate;
+                    break;
+                }
+            }
+
+            this.cache.put(hostmask, user);
+        }
+
+        return user;
+    }
+
+    /**
+     * A user.
+     */
+    private static final class User
+    {
+        User(String username, Pattern mask, int level)
+        {
+            this.username = username;
+            this.mask = mask;
+            this.level = level;
+        }
+
+        /**
+         * The username.
+         */
+        final String  username;
+
+        /**
+         * The user's mask, as a regular expression.
+         */
+        final Pattern mask;
+
+        /**
+         * The user's level.
+         */
+        final int     level;
+    }
+
+    /**
+     * The number of hostmasks whose user is remembered.
+     */
+    private static final int  MAX_CACHED = 256;
+
+    /**
+     * Remembered in the cache for hostmasks that match no user.
+     */
+    private static final User NOBODY     = new User(null, null, -1);
+
+    /**
+     * The users, by username, in the order they were added.
+     */
+    private final Map<String, User> users;
+
+    /**
+     * The user of each recently seen hostmask, least recently used first.
+     */
+    private final Map<String, User> cache;
+}
@@ -0,0 +1,248 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.MessageFormat;
+
+/**
+ * <p>
+ * A Rhino context factory that lets the engine put a budget on the code it
+ * runs. Every context it makes counts instructions, compiled scripts
+ * included, and every few thousand instructions Rhino calls back into the
+ * factory. If the innermost budget open on the thread, or any budget
+ * around it, has run out of instructions or of CPU time, the factory
+ * throws a {@link BudgetExceededError}. It is an <code>Error</code>, so
+ * the script cannot catch it; it unwinds the script to whoever opened the
+ * budget.
+ * </p>
+ * <p>
+ * CPU time is the thread's, where the JVM can measure it, so a handler
+ * waiting on I/O is not charged for the wait. Where the JVM cannot, wall
+ * time is used instead.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+final class WatchdogContextFactory extends ContextFactory
+{
+    /**
+     * How many instructions run between checks of the budget.
+     */
+    public static final int OBSERVER_THRESHOLD = 10000;
+
+    /**
+     * Installs the factory as Rhino's global factory, unless another global
+     * factory has already been installed.
+     *
+     * @return <code>true</code> if the global factory is a watchdog.
+     */
+    static synchronized boolean install()
+    {
+        if (!ContextFactory.hasExplicitGlobal())
+        {
+            ContextFactory.initGlobal(new WatchdogContextFactory());
+        }
+
+        return ContextFactory.getGlobal() instanceof WatchdogContextFactory;
+    }
+
+    /**
+     * Opens a budget on the current thread, nested in any budget already
+     * open. Every call must be paired with a call to
+     * {@link #close(Context, Budget)} in a <code>finally</code> block.
+     *
+     * @param cx The current context.
+     * @param what What is being run, for the error message.
+     * @param maxInstructions The instruction limit, or 0 for none.
+     * @param maxMillis The CPU time limit in milliseconds, or 0 for none.
+     * @return The budget, or <code>null</code> if neither limit is set.
+     */
+    static Budget open(Context cx, String what, long maxInstructions, long maxMillis)
+    {
+        if (maxInstructions <= 0 && maxMillis <= 0)
+        {
+            return null;
+        }
+
+        Budget parent = (Budget) cx.getThreadLocal(Budget.class);
+        Budget budget = new Budget(parent, what, maxInstructions, maxMillis * 1000000L);
+        cx.putThreadLocal(Budget.class, budget);
+
+        return budget;
+    }
+
+    /**
+     * Closes a budget, reopening the one around it.
+     *
+     * @param cx The current context.
+     * @param budget The budget returned by
+     *        {@link #open(Context, String, long, long) open()}, which may be
+     *        <code>null</code>.
+     */
+    static void close(Context cx, Budget budget)
+    {
+        if (budget == null)
+        {
+            return;
+        }
+
+        if (budget.parent != null)
+        {
+            cx.putThreadLocal(Budget.class, budget.parent);
+        }
+        else
+        {
+            cx.removeThreadLocal(Budget.class);
+        }
+    }
+
+    /**
+     * Makes a context that counts instructions.
+     *
+     * @return The context.
+     */
+    @Override
+    protected Context makeContext()
+    {
+        Context cx = super.makeContext();
+        cx.setGenerateObserverCount(true);
+        cx.setInstructionObserverThreshold(WatchdogContextFactory.OBSERVER_THRESHOLD);
+
+        return cx;
+    }
+
+    /**
+     * Charges the instructions to every open budget, and stops the script
+     * if one has run out.
+     *
+     * @param cx The current context.
+     * @param instructionCount The number of instructions run since the last
+     *        call.
+     */
+    @Override
+    protected void observeInstructionCount(Context cx, int instructionCount)
+    {
+        Budget budget = (Budget) cx.getThreadLocal(Budget.class);
+
+        if (budget == null)
+        {
+            return;
+        }
+
+        long now = WatchdogContextFactory.now();
+
+        for (Budget b = budget; b != null; b = b.parent)
+        {
+            b.instructions += instructionCount;
+
+            if (b.maxInstructions > 0 && b.instructions > b.maxInstructions)
+            {
+                throw new BudgetExceededError(b, MessageFormat.format("{0} ran more than {1} instructions",
+                        b.what, b.maxInstructions));
+            }
+
+            if (b.maxNanos > 0 && now - b.start > b.maxNanos)
+            {
+                throw new BudgetExceededError(b, MessageFormat.format("{0} ran for more than {1} ms",
+                        b.what, b.maxNanos / 1000000L));
+            }
+        }
+    }
+
+    /**
+     * Gets the current thread's CPU time, or the wall time if that cannot be
+     * measured.
+     *
+     * @return The time in nanoseconds.
+     */
+    private static long now()
+    {
+        if (WatchdogContextFactory.cpuTime)
+        {
+            return WatchdogContextFactory.threads.getCurrentThreadCpuTime();
+        }
+
+        return System.nanoTime();
+    }
+
+    /**
+     * A limit on the instructions and time spent running something.
+     */
+    static final class Budget
+    {
+        Budget(Budget parent, String what, long maxInstructions, long maxNanos)
+        {
+            this.parent = parent;
+            this.what = what;
+            this.maxInstructions = maxInstructions;
+            this.maxNanos = maxNanos;
+            this.start = WatchdogContextFactory.now();
+        }
+
+        final Budget parent;
+        final String what;
+        final long   maxInstructions;
+        final long   maxNanos;
+        final long   start;
+        long         instructions;
+    }
+
+    /**
+     * Thrown into a script that has used up its budget.
+     */
+    static final class BudgetExceededError extends Error
+    {
+        private static final long serialVersionUID = 1L;
+
+        BudgetExceededError(Budget budget, String message)
+        {
+            super(message);
+            this.budget = budget;
+        }
+
+        /**
+         * Gets the budget that ran out. It may belong to a script that
+         * called the one that was running.
+         *
+         * @return The budget.
+         */
+        Budget getBudget()
+        {
+            return this.budget;
+        }
+
+        private final transient Budget budget;
+    }
+
+    /**
+     * For measuring thread CPU time.
+     */
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Whether thread CPU time can be measured.
+     */
+    private static final boolean      cpuTime = WatchdogContextFactory.threads.isCurrentThreadCpuTimeSupported()
+                                                && WatchdogContextFactory.threads.isThreadCpuTimeEnabled();
+}
@@ -28,6 +28,7 @@ import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * A client for doing synchronous and asynchronous HTTP requests from within
@@ -57,6 +58,34 @@ public class XmlHttpRequest extends HostObject
      */
     public static final String HANDLER_ON_READY_STATE_CHANGE = "onReadyStateChange";
     
+    /**
+     * The events of an <tt>XMLHttpRequest</tt>, each with its own handler
+     * slot.  Some scripts assume an all-lowercase event name, so that gets
+     * a slot of its own.
+     */
+    enum Event implements HostObject.EventSlot
+    {
+        READY_STATE_CHANGE(HANDLER_ON_READY_STATE_CHANGE),
+        READY_STATE_CHANGE_LOWERCASE("onreadystatechange");
+        
+        private Event(String handlerName)
+        {
+            this.handlerName = handlerName;
+        }
+        
+        public String getHandlerName()
+        {
+            return this.handlerName;
+        }
+        
+        private final String handlerName;
+    }
+    
+    /**
+     * The handler slots of every <tt>XMLHttpRequest</tt>.
+     */
+    private static final EventTable EVENTS = new EventTable(Event.class);
+    
     /**
      * The undefined value.
      */
@@ -124,7 +153,7 @@ public class XmlHttpRequest extends HostObject
     }
     
     // State
-    private boolean aborted;
+    private volatile boolean aborted;
     private RequestState currentState;
 
     // Request info
@@ -157,6 +186,8 @@ public class XmlHttpRequest extends HostObject
      */
     public XmlHttpRequest()
     {
+        super(XmlHttpRequest.EVENTS);
+        
         ECMAEngine engine = (ECMAEngine)Context.getCurrentContext().getThreadLocal(ECMAEngine.class);
         this.setEngine(engine);
         
@@ -175,9 +206,6 @@ public class XmlHttpRequest extends HostObject
         this.currentState = new UnsentState(); // As per the spec.
         this.requestHeaders = new ArrayList<Header>();
         this.responseHeaders = new HashMap<String, List<Header>>();
-        
-        this.addEvent(HANDLER_ON_READY_STATE_CHANGE);
-        this.addEvent(HANDLER_ON_READY_STATE_CHANGE.toLowerCase()); // Some stupid scripts assume an all-lowercase event name.
     }
     
     /**
@@ -357,8 +385,30 @@ public class XmlHttpRequest extends HostObject
     
     private void fireReadyStateChanged() throws ScriptException
     {
-        this.fireHandler(HANDLER_ON_READY_STATE_CHANGE);
-        this.fireHandler(HANDLER_ON_READY_STATE_CHANGE.toLowerCase());
+        this.fireHandler(Event.READY_STATE_CHANGE);
+        this.fireHandler(Event.READY_STATE_CHANGE_LOWERCASE);
+    }
+    
+    /**
+     * Runs a step of a request where the scripts run: posted to the
+     * engine's event loop if it has one and this is not it, or straight
+     * away otherwise.  The loop runs the steps of a request in the order
+     * they were posted.
+     * 
+     * @param step The step.
+     */
+    private void runStep(Step step)
+    {
+        ScriptEventLoop loop = this.getEngine() != null ? (ScriptEventLoop) this.getEngine().getEventLoop() : null;
+        
+        if (loop != null && !loop.inEventLoop())
+        {
+            loop.execute(step);
+        }
+        else
+        {
+            step.run();
+        }
     }
     
     private synchronized boolean changeState(RequestState newState)
@@ -770,37 +820,63 @@ public class XmlHttpRequest extends HostObject
                             client.executeMethod(HostConfiguration.ANY_HOST_CONFIGURATION, method, state);
                         }
                         
-                        if (!aborted)
+                        if (aborted)
                         {
-                            saveResponseHeaders(method.getResponseHeaders());
-                            changeToHeadersReceivedState(method.getStatusCode(), method.getStatusText());
-
-                            log.trace("Response: {0} {1}", method.getStatusCode(), method.getStatusText());
-
-                            fireReadyStateChanged();
+                            return;
                         }
 
-                        if (!aborted)
-                        {
-                            changeToLoadingState();
-                            fireReadyStateChanged();
-                        }
+                        // The response is read here, but only handed to the
+                        // object by the steps, which run where the scripts
+                        // do.  Each state change is made together with the
+                        // event for it, so a handler always sees the state
+                        // it was fired for.
+                        final Header[] headers = method.getResponseHeaders();
+                        final int statusCode = method.getStatusCode();
+                        final String statusText = method.getStatusText();
 
-                        if (!aborted)
-                        {
-                            responseData = method.getResponseBody();
+                        log.trace("Response: {0} {1}", statusCode, statusText);
 
-                            if (log.isTraceEnabled()) {
-                                String responseBody = new String(responseData, "UTF-8");
-                                log.trace("Response body: {0}", responseBody);
+                        runStep(new Step() {
+                            void apply() throws ScriptException
+                            {
+                                if (!aborted)
+                                {
+                                    saveResponseHeaders(headers);
+                                    changeToHeadersReceivedState(statusCode, statusText);
+                                    fireReadyStateChanged();
+                                }
                             }
+                        });
+
+                        runStep(new Step() {
+                            void apply() throws ScriptException
+                            {
+                                if (!aborted)
+                                {
+                                    changeToLoadingState();
+                                    fireReadyStateChanged();
+                                }
+                            }
+                        });
+
+                        final byte[] body = method.getResponseBody();
+
+                        if (log.isTraceEnabled() && body != null) {
+                            String responseBody = new String(body, "UTF-8");
+                            log.trace("Response body: {0}", responseBody);
                         }
-                        
-                        if (!aborted)
-                        {
-                            changeToDoneState(false);
-                            fireReadyStateChanged();
-                        }
+
+                        runStep(new Step() {
+                            void apply() throws ScriptException
+                            {
+                                if (!aborted)
+                                {
+                                    responseData = body;
+                                    changeToDoneState(false);
+                                    fireReadyStateChanged();
+                                }
+                            }
+                        });
                     }
                     catch (HttpException e)
                     {
@@ -810,10 +886,6 @@ public class XmlHttpRequest extends HostObject
                     {
                         this.handleException(e);
                     }
-                    catch (ScriptException e)
-                    {
-                        this.handleException(e);
-                    }
                 }
                 
                 private void saveResponseHeaders(Header[] headers)
@@ -841,25 +913,18 @@ public class XmlHttpRequest extends HostObject
                 {
                     log.error("An error occurred while executing an " +
                     		"asynchronous HTTP request: {0}", e, storedUri);
-                    responseData = null;
                     
-                    try
-                    {
-                        changeToDoneState(true);
-                        
-                        if (!async) {
-                            throw new ScriptException("An error occurred.", e);
-                        }
-                        else {
-                            fireReadyStateChanged();
+                    runStep(new Step() {
+                        void apply() throws ScriptException
+                        {
+                            responseData = null;
+                            changeToDoneState(true);
+                            
+                            if (async) {
+                                fireReadyStateChanged();
+                            }
                         }
-                    }
-                    catch (ScriptException e2)
-                    {
-                        log.error("An error occurred while switching to the " +
-                        		"error state while handling an error " +
-                        		"in an asynchronous HTTP request: {0}", e2, storedUri);
-                    }
+                    });
                 }
             };
             
@@ -869,7 +934,14 @@ public class XmlHttpRequest extends HostObject
             }
             else
             {
-                getEngine().runAsync(steps);
+                try
+                {
+                    getEngine().runAsync("http", steps);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    throw new ScriptException("Too many asynchronous tasks are pending.", e);
+                }
             }
         }
 
@@ -1155,6 +1227,27 @@ public class XmlHttpRequest extends HostObject
         }
     }
     
+    /**
+     * A change of state made for an asynchronous request, along with the
+     * events for it.
+     */
+    private abstract static class Step implements Runnable
+    {
+        public final void run()
+        {
+            try
+            {
+                this.apply();
+            }
+            catch (ScriptException e)
+            {
+                log.error("An error occurred while firing the events of an HTTP request.", e);
+            }
+        }
+        
+        abstract void apply() throws ScriptException;
+    }
+    
     public static class XmlHttpRequestException extends ScriptException
     {
         private static final long serialVersionUID = 1L;
@@ -5,6 +5,7 @@ import net.ardvaark.jackbot.scripting.ecma.ECMAEngine;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -23,8 +24,21 @@ public abstract class AsyncBase
         this.engine = engine;
     }
     
+    /**
+     * Wraps script code to run on a pool thread. If the engine has an event
+     * loop, the wrapped code posts the script code to the loop instead.
+     */
     protected Runnable wrap(final Runnable code)
     {
+        final Executor loop = this.engine.getEventLoop();
+        
+        if (loop != null)
+        {
+            return new Runnable() { public void run() {
+                loop.execute(code);
+            }};
+        }
+        
         return new Runnable() { public void run() {
             enterContext();
             
@@ -44,6 +58,22 @@ public abstract class AsyncBase
         }};
     }
     
+    /**
+     * Wraps a task that blocks, such as on I/O, to run on a pool thread. If
+     * the engine has an event loop, the task runs outside any script
+     * context, and the host objects post the script handlers it fires to
+     * the loop.
+     */
+    protected Runnable wrapBlocking(final Runnable code)
+    {
+        if (this.engine.getEventLoop() != null)
+        {
+            return code;
+        }
+        
+        return wrap(code);
+    }
+    
     private Context enterContext()
     {
         Context cx = ContextFactory.getGlobal().enterContext();
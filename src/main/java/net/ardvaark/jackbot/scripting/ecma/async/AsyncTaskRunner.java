@@ -1,33 +1,527 @@
 package net.ardvaark.jackbot.scripting.ecma.async;
 
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.ardvaark.jackbot.Configurable;
+import net.ardvaark.jackbot.SharedExecutors;
 import net.ardvaark.jackbot.logging.Log;
 import net.ardvaark.jackbot.scripting.ecma.ECMAEngine;
 
-public class AsyncTaskRunner extends AsyncBase
+import org.w3c.dom.Element;
+
+/**
+ * Runs a script engine's asynchronous tasks: asynchronous
+ * <code>XMLHttpRequest</code>s and the output pumps of <code>Exec</code>.
+ * The executor for ordinary tasks is chosen by the <code>mode</code>
+ * attribute of the engine's <code>&lt;async&gt;</code> element:
+ * <ul>
+ * <li><code>bounded</code> (the default): a pool of this engine's own of at
+ * most <code>threads</code> threads, with at most <code>queue</code> tasks
+ * waiting. A task that does not fit is handled by the
+ * <code>rejection</code> policy: <code>abort</code> fails the call that
+ * submitted it, <code>caller-runs</code> runs it on the submitting thread,
+ * and <code>discard</code> drops it with a warning.</li>
+ * <li><code>virtual</code>: one virtual thread per task, on a JVM that has
+ * them. Falls back to <code>bounded</code> otherwise.</li>
+ * <li><code>shared</code>: the unbounded worker pool shared by every
+ * engine.</li>
+ * </ul>
+ * Tasks that last as long as something outside the engine, such as the
+ * output pumps of a child process, are run by {@link #runDedicated(String,
+ * Runnable...)} instead, each on a thread of its own so that they are never
+ * queued behind, or hold up, the other tasks. At most <code>threads</code>
+ * of them run at once, on virtual threads in <code>virtual</code> mode and
+ * on platform threads otherwise; a group that does not fit is rejected.
+ * Active count, queue wait, and run time are kept for each type of task.
+ */
+public class AsyncTaskRunner extends AsyncBase implements Configurable
 {
     private static final Log log = Log.getLogger(AsyncTaskRunner.class);
-    private ExecutorService pool = Executors.newCachedThreadPool();
+    
+    public static final String MODE_BOUNDED = "bounded";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_SHARED = "shared";
+    
+    public static final String REJECT_ABORT = "abort";
+    public static final String REJECT_CALLER_RUNS = "caller-runs";
+    public static final String REJECT_DISCARD = "discard";
+    
+    public static final int DEFAULT_THREADS = 32;
+    public static final int DEFAULT_QUEUE = 256;
+    
+    private volatile ExecutorService pool;
+    private volatile boolean ownsPool;
+    private String rejection = REJECT_ABORT;
+    private final ConcurrentMap<String, TaskStats> stats = new ConcurrentHashMap<String, TaskStats>();
+    private volatile boolean destroyed;
+    private volatile ExecutorService dedicatedPool;
+    private volatile Semaphore dedicatedSlots;
     
     public AsyncTaskRunner(ECMAEngine engine)
     {
         super(engine);
+        
+        this.pool = newBoundedPool(DEFAULT_THREADS, DEFAULT_QUEUE);
+        this.ownsPool = true;
+        this.dedicatedPool = newDedicatedPool();
+        this.dedicatedSlots = new Semaphore(DEFAULT_THREADS);
+    }
+    
+    public void configure(Element root)
+    {
+        String mode = root.getAttribute("mode");
+        int threads = parseInt(root.getAttribute("threads"), DEFAULT_THREADS);
+        int queue = parseInt(root.getAttribute("queue"), DEFAULT_QUEUE);
+        String reject = root.getAttribute("rejection");
+        
+        if (reject.length() > 0)
+        {
+            if (!reject.equals(REJECT_ABORT) && !reject.equals(REJECT_CALLER_RUNS) && !reject.equals(REJECT_DISCARD))
+            {
+                log.warn("Unknown async rejection policy \"{0}\"; using \"{1}\".", reject, REJECT_ABORT);
+                reject = REJECT_ABORT;
+            }
+            
+            this.rejection = reject;
+        }
+        
+        ExecutorService newPool = null;
+        ExecutorService newDedicatedPool = null;
+        boolean owned = true;
+        
+        if (mode.equals(MODE_SHARED))
+        {
+            newPool = SharedExecutors.getWorkerPool();
+            owned = false;
+        }
+        else if (mode.equals(MODE_VIRTUAL))
+        {
+            newPool = newVirtualThreadPool();
+            
+            if (newPool == null)
+            {
+                log.warn("Virtual threads are not available on this JVM; using a bounded pool.");
+            }
+            else
+            {
+                newDedicatedPool = newVirtualThreadPool();
+            }
+        }
+        else if (mode.length() > 0 && !mode.equals(MODE_BOUNDED))
+        {
+            log.warn("Unknown async mode \"{0}\"; using a bounded pool.", mode);
+        }
+        
+        if (newPool == null)
+        {
+            newPool = newBoundedPool(threads, queue);
+            mode = MODE_BOUNDED;
+        }
+        
+        if (newDedicatedPool == null)
+        {
+            newDedicatedPool = newDedicatedPool();
+        }
+        
+        ExecutorService oldPool;
+        ExecutorService oldDedicatedPool;
+        boolean ownedOld;
+        
+        synchronized (this)
+        {
+            oldPool = this.pool;
+            ownedOld = this.ownsPool;
+            oldDedicatedPool = this.dedicatedPool;
+            this.pool = newPool;
+            this.ownsPool = owned;
+            this.dedicatedPool = newDedicatedPool;
+            this.dedicatedSlots = new Semaphore(threads);
+        }
+        
+        if (ownedOld)
+        {
+            oldPool.shutdown();
+        }
+        
+        // Tasks already running keep their threads, and give their slots
+        // back to the semaphore they took them from.
+        oldDedicatedPool.shutdown();
+        
+        log.info("Async tasks run in {0} mode.", mode);
     }
     
     @Override
     public void destroy()
     {
-        cleanupExecutor(pool);
+        destroyed = true;
+        
+        // The shared pool is used by every other engine, so just stop taking
+        // new work; a pool of our own can be shut down.
+        if (ownsPool)
+        {
+            cleanupExecutor(pool);
+        }
+        
+        // Dedicated tasks end with whatever they are attached to, such as a
+        // child process, and interrupting them would not stop a blocked
+        // read, so they are left to finish rather than waited for.
+        dedicatedPool.shutdown();
+    }
+    
+    public void run(Runnable code)
+    {
+        run(typeOf(code), code);
+    }
+    
+    /**
+     * Runs a task, counting it under the given type.
+     * 
+     * @throws RejectedExecutionException Thrown if the pool is full and the
+     *         rejection policy is <code>abort</code>.
+     */
+    public void run(String type, final Runnable code)
+    {
+        if (destroyed)
+        {
+            log.trace("Ignoring task submitted after destroy: " + code);
+            return;
+        }
+        
+        final TaskStats taskStats = statsFor(type);
+        Runnable task = wrapBlocking(counted(taskStats, code));
+        
+        try
+        {
+            pool.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            taskStats.rejected();
+            
+            if (destroyed)
+            {
+                log.trace("Ignoring task submitted after destroy: " + code);
+            }
+            else if (rejection.equals(REJECT_CALLER_RUNS))
+            {
+                log.trace("Async pool full; running {0} task on the caller.", type);
+                task.run();
+            }
+            else if (rejection.equals(REJECT_DISCARD))
+            {
+                log.warn("Async pool full; discarding {0} task.", type);
+            }
+            else
+            {
+                log.warn("Async pool full; rejecting {0} task.", type);
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * Runs a group of tasks, each on a thread of its own, counting them under
+     * the given type. This is for tasks that run as long as something outside
+     * the engine does, such as the output pumps of a child process, which
+     * must neither wait in the pool's queue nor hold a pool thread for as
+     * long as they run. At most <code>threads</code> such tasks run at once;
+     * a group that does not fit is rejected as a whole, whatever the
+     * rejection policy, so that none of it is left running without the rest.
+     * 
+     * @throws RejectedExecutionException Thrown if there is no room for the
+     *         whole group, or the runner has been destroyed, so that the
+     *         caller can clean up.
+     */
+    public void runDedicated(String type, Runnable... tasks)
+    {
+        if (destroyed)
+        {
+            throw new RejectedExecutionException("Async tasks are no longer accepted.");
+        }
+        
+        TaskStats taskStats = statsFor(type);
+        final Semaphore slots;
+        ExecutorService executor;
+        
+        synchronized (this)
+        {
+            slots = dedicatedSlots;
+            executor = dedicatedPool;
+        }
+        
+        if (!slots.tryAcquire(tasks.length))
+        {
+            taskStats.rejected();
+            log.warn("Too many long-running async tasks; rejecting {0} task.", type);
+            throw new RejectedExecutionException("Too many long-running async tasks.");
+        }
+        
+        int started = 0;
+        
+        try
+        {
+            for (Runnable code : tasks)
+            {
+                final Runnable task = wrapBlocking(counted(taskStats, code));
+                
+                executor.execute(new Runnable() { public void run() {
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        slots.release();
+                    }
+                    }
+                });
+                
+                started++;
+            }
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Only a pool that is shutting down rejects; the tasks that did
+            // start give their own slots back.
+            taskStats.rejected();
+            slots.release(tasks.length - started);
+            throw e;
+        }
+    }
+    
+    /**
+     * Gets the statistics for every type of task run so far, by type.
+     */
+    public Map<String, TaskStats> getStats()
+    {
+        return Collections.unmodifiableMap(new TreeMap<String, TaskStats>(stats));
     }
     
-    public void run(final Runnable code)
+    private TaskStats statsFor(String type)
     {
-        pool.execute(wrap(new Runnable() { public void run() {
-            log.trace("Running task: " + code);
-            code.run();
+        TaskStats taskStats = stats.get(type);
+        
+        if (taskStats == null)
+        {
+            TaskStats created = new TaskStats(type);
+            taskStats = stats.putIfAbsent(type, created);
+            
+            if (taskStats == null)
+            {
+                taskStats = created;
             }
-        }));
+        }
+        
+        return taskStats;
+    }
+    
+    /**
+     * Wraps a task so that its queue wait and run time are counted.
+     */
+    private static Runnable counted(final TaskStats taskStats, final Runnable code)
+    {
+        final long submitted = System.nanoTime();
+        
+        return new Runnable() { public void run() {
+            long started = System.nanoTime();
+            taskStats.started(started - submitted);
+            
+            try
+            {
+                log.trace("Running task: " + code);
+                code.run();
+            }
+            finally
+            {
+                taskStats.finished(System.nanoTime() - started);
+            }
+            }
+        };
+    }
+    
+    private static String typeOf(Runnable code)
+    {
+        String name = code.getClass().getSimpleName();
+        
+        return name.length() > 0 ? name : code.getClass().getName();
+    }
+    
+    private static int parseInt(String value, int defaultValue)
+    {
+        if (value.length() == 0)
+        {
+            return defaultValue;
+        }
+        
+        try
+        {
+            return Math.max(1, Integer.parseInt(value));
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn("Bad number \"{0}\" in async configuration; using {1}.", value, defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    private static ExecutorService newBoundedPool(int threads, int queue)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(queue), daemonThreads("JackBot Async-"));
+        
+        // Idle engines should not hold on to threads.
+        executor.allowCoreThreadTimeOut(true);
+        
+        return executor;
+    }
+    
+    /**
+     * Creates the pool for dedicated tasks on platform threads. It hands
+     * every task straight to a thread, reusing idle ones; the number running
+     * at once is limited by the dedicated slots rather than by the pool.
+     */
+    private static ExecutorService newDedicatedPool()
+    {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), daemonThreads("JackBot Dedicated-"));
+    }
+    
+    private static ThreadFactory daemonThreads(final String prefix)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+    
+    /**
+     * Creates a virtual-thread-per-task executor by reflection, so that the
+     * bot still builds and runs on older JVMs.
+     * 
+     * @return The executor, or <code>null</code> if the JVM has no virtual
+     *         threads.
+     */
+    private static ExecutorService newVirtualThreadPool()
+    {
+        try
+        {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Counters for one type of task.
+     */
+    public static class TaskStats
+    {
+        private final String type;
+        private int active;
+        private long started;
+        private long completed;
+        private long rejected;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private long totalRunNanos;
+        private long maxRunNanos;
+        
+        TaskStats(String type)
+        {
+            this.type = type;
+        }
+        
+        synchronized void started(long waitNanos)
+        {
+            active++;
+            started++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        }
+        
+        synchronized void finished(long runNanos)
+        {
+            active--;
+            completed++;
+            totalRunNanos += runNanos;
+            maxRunNanos = Math.max(maxRunNanos, runNanos);
+        }
+        
+        synchronized void rejected()
+        {
+            rejected++;
+        }
+        
+        public String getType()
+        {
+            return type;
+        }
+        
+        public synchronized int getActiveCount()
+        {
+            return active;
+        }
+        
+        public synchronized long getCompletedCount()
+        {
+            return completed;
+        }
+        
+        public synchronized long getRejectedCount()
+        {
+            return rejected;
+        }
+        
+        public synchronized double getAverageQueueWaitMillis()
+        {
+            return started == 0 ? 0.0 : totalWaitNanos / 1e6 / started;
+        }
+        
+        public synchronized double getMaximumQueueWaitMillis()
+        {
+            return maxWaitNanos / 1e6;
+        }
+        
+        public synchronized double getAverageRunMillis()
+        {
+            return completed == 0 ? 0.0 : totalRunNanos / 1e6 / completed;
+        }
+        
+        public synchronized double getMaximumRunMillis()
+        {
+            return maxRunNanos / 1e6;
+        }
+        
+        @Override
+        public synchronized String toString()
+        {
+            return String.format("%s: %d active, %d completed, %d rejected, wait avg %.1f ms max %.1f ms, run avg %.1f ms max %.1f ms",
+                type, active, completed, rejected,
+                getAverageQueueWaitMillis(), getMaximumQueueWaitMillis(),
+                getAverageRunMillis(), getMaximumRunMillis());
+        }
     }
 }
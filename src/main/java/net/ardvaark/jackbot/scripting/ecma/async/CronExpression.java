@@ -0,0 +1,365 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package net.ardvaark.jackbot.scripting.ecma.async;
+
+import java.text.MessageFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * <p>
+ * A cron-style schedule: five fields separated by whitespace, giving the
+ * minute (0-59), hour (0-23), day of the month (1-31), month (1-12 or
+ * <code>jan</code>-<code>dec</code>), and day of the week (0-7 or
+ * <code>sun</code>-<code>sat</code>, where both 0 and 7 are Sunday).
+ * </p>
+ * <p>
+ * Each field is a comma-separated list of <code>*</code>, a single value, or a
+ * range <code>a-b</code>, any of which may be followed by a step
+ * <code>/n</code>. As in Vixie cron, when both the day of the month and the
+ * day of the week are restricted, a day matching either one matches. The
+ * shorthands <code>@hourly</code>, <code>@daily</code>,
+ * <code>@weekly</code>, <code>@monthly</code>, and <code>@yearly</code> are
+ * also accepted.
+ * </p>
+ *
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public final class CronExpression
+{
+    /**
+     * Parses an expression in the default time zone.
+     *
+     * @param expression The expression.
+     * @throws IllegalArgumentException Thrown if the expression is malformed.
+     */
+    public CronExpression(String expression)
+    {
+        this(expression, TimeZone.getDefault());
+    }
+
+    /**
+     * Parses an expression.
+     *
+     * @param expression The expression.
+     * @param zone The time zone in which the expression is evaluated.
+     * @throws IllegalArgumentException Thrown if the expression is malformed.
+     */
+    public CronExpression(String expression, TimeZone zone)
+    {
+        String expanded = CronExpression.expandShorthand(expression.trim());
+        String[] fields = expanded.split("\\s+");
+
+        if (fields.length != 5)
+        {
+            throw new IllegalArgumentException(MessageFormat.format("Cron expression must have five fields: {0}", expression));
+        }
+
+        this.expression = expression;
+        this.zone = zone;
+        this.minutes = CronExpression.parseField(fields[0], 0, 59, null);
+        this.hours = CronExpression.parseField(fields[1], 0, 23, null);
+        this.daysOfMonth = CronExpression.parseField(fields[2], 1, 31, null);
+        this.months = CronExpression.parseField(fields[3], 1, 12, CronExpression.MONTH_NAMES);
+
+        long dow = CronExpression.parseField(fields[4], 0, 7, CronExpression.DAY_NAMES);
+
+        // Fold Sunday-as-7 onto Sunday-as-0.
+        if ((dow & (1L << 7)) != 0)
+        {
+            dow = (dow | 1L) & ~(1L << 7);
+        }
+
+        this.daysOfWeek = dow;
+        this.domRestricted = !fields[2].startsWith("*");
+        this.dowRestricted = !fields[4].startsWith("*");
+    }
+
+    /**
+     * Gets the first time matching the expression that is strictly after the
+     * given time. Matches fall on whole minutes.
+     *
+     * @param after The time, in milliseconds since the epoch.
+     * @return The next matching time, in milliseconds since the epoch.
+     * @throws IllegalStateException Thrown if nothing matches in the next
+     *         five years, as with <code>0 0 30 2 *</code>.
+     */
+    public long nextAfter(long after)
+    {
+        Calendar cal = Calendar.getInstance(this.zone);
+        cal.setTimeInMillis(after);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.add(Calendar.MINUTE, 1);
+
+        int lastYear = cal.get(Calendar.YEAR) + 5;
+
+        while (cal.get(Calendar.YEAR) <= lastYear)
+        {
+            if (!CronExpression.matches(this.months, cal.get(Calendar.MONTH) + 1))
+            {
+                cal.set(Calendar.DAY_OF_MONTH, 1);
+                cal.set(Calendar.HOUR_OF_DAY, 0);
+                cal.set(Calendar.MINUTE, 0);
+                cal.add(Calendar.MONTH, 1);
+            }
+            else if (!this.matchesDay(cal))
+            {
+                cal.set(Calendar.HOUR_OF_DAY, 0);
+                cal.set(Calendar.MINUTE, 0);
+                cal.add(Calendar.DAY_OF_MONTH, 1);
+            }
+            else if (!CronExpression.matches(this.hours, cal.get(Calendar.HOUR_OF_DAY)))
+            {
+                cal.set(Calendar.MINUTE, 0);
+                cal.add(Calendar.HOUR_OF_DAY, 1);
+            }
+            else if (!CronExpression.matches(this.minutes, cal.get(Calendar.MINUTE)))
+            {
+                cal.add(Calendar.MINUTE, 1);
+            }
+            else
+            {
+                return cal.getTimeInMillis();
+            }
+        }
+
+        throw new IllegalStateException(MessageFormat.format("Cron expression never matches: {0}", this.expression));
+    }
+
+    /**
+     * Gets the expression as it was given.
+     *
+     * @return The expression.
+     */
+    @Override
+    public String toString()
+    {
+        return this.expression;
+    }
+
+    /**
+     * Checks the day of the month and the day of the week, using cron's rule
+     * that either may match when both are restricted.
+     *
+     * @param cal The day.
+     * @return Whether the day matches.
+     */
+    private boolean matchesDay(Calendar cal)
+    {
+        boolean dom = CronExpression.matches(this.daysOfMonth, cal.get(Calendar.DAY_OF_MONTH));
+        boolean dow = CronExpression.matches(this.daysOfWeek, cal.get(Calendar.DAY_OF_WEEK) - 1);
+
+        if (this.domRestricted && this.dowRestricted)
+        {
+            return dom || dow;
+        }
+
+        return dom && dow;
+    }
+
+    private static boolean matches(long bits, int value)
+    {
+        return (bits & (1L << value)) != 0;
+    }
+
+    /**
+     * Replaces an <code>@</code> shorthand with its five fields.
+     *
+     * @param expression The expression.
+     * @return The expanded expression.
+     */
+    private static String expandShorthand(String expression)
+    {
+        if (!expression.startsWith("@"))
+        {
+            return expression;
+        }
+
+        String name = expression.toLowerCase();
+
+        if (name.equals("@hourly"))
+        {
+            return "0 * * * *";
+        }
+        else if (name.equals("@daily") || name.equals("@midnight"))
+        {
+            return "0 0 * * *";
+        }
+        else if (name.equals("@weekly"))
+        {
+            return "0 0 * * 0";
+        }
+        else if (name.equals("@monthly"))
+        {
+            return "0 0 1 * *";
+        }
+        else if (name.equals("@yearly") || name.equals("@annually"))
+        {
+            return "0 0 1 1 *";
+        }
+
+        throw new IllegalArgumentException(MessageFormat.format("Unknown cron shorthand: {0}", expression));
+    }
+
+    /**
+     * Parses one field into a bit set of the values it matches.
+     *
+     * @param field The field.
+     * @param min The smallest legal value.
+     * @param max The largest legal value.
+     * @param names Names for the values from <code>min</code> up, or
+     *        <code>null</code>.
+     * @return The matching values, as a bit set.
+     */
+    private static long parseField(String field, int min, int max, String[] names)
+    {
+        long bits = 0;
+
+        for (String part : field.split(","))
+        {
+            int step = 1;
+            int slash = part.indexOf('/');
+
+            if (slash >= 0)
+            {
+                step = CronExpression.parseValue(part.substring(slash + 1), 1, max, null, field);
+                part = part.substring(0, slash);
+            }
+
+            int lo;
+            int hi;
+
+            if (part.equals("*"))
+            {
+                lo = min;
+                hi = max;
+            }
+            else
+            {
+                int dash = part.indexOf('-');
+
+                if (dash >= 0)
+                {
+                    lo = CronExpression.parseValue(part.substring(0, dash), min, max, names, field);
+                    hi = CronExpression.parseValue(part.substring(dash + 1), min, max, names, field);
+                }
+                else
+                {
+                    lo = CronExpression.parseValue(part, min, max, names, field);
+                    hi = slash >= 0 ? max : lo;
+                }
+
+                if (hi < lo)
+                {
+                    throw new IllegalArgumentException(MessageFormat.format("Bad range in cron field: {0}", field));
+                }
+            }
+
+            for (int i = lo; i <= hi; i += step)
+            {
+                bits |= 1L << i;
+            }
+        }
+
+        return bits;
+    }
+
+    private static int parseValue(String value, int min, int max, String[] names, String field)
+    {
+        if (names != null)
+        {
+            for (int i = 0; i < names.length; i++)
+            {
+                if (names[i].equalsIgnoreCase(value))
+                {
+                    return min + i;
+                }
+            }
+        }
+
+        int n;
+
+        try
+        {
+            n = Integer.parseInt(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException(MessageFormat.format("Bad value \"{0}\" in cron field: {1}", value, field));
+        }
+
+        if (n < min || n > max)
+        {
+            throw new IllegalArgumentException(MessageFormat.format("Value {0} out of range in cron field: {1}", value, field));
+        }
+
+        return n;
+    }
+
+    private static final String[] MONTH_NAMES = { "jan", "feb", "mar", "apr", "may", "jun",
+                                                  "jul", "aug", "sep", "oct", "nov", "dec" };
+
+    private static final String[] DAY_NAMES   = { "sun", "mon", "tue", "wed", "thu", "fri", "sat" };
+
+    /**
+     * The expression as given.
+     */
+    private final String          expression;
+
+    /**
+     * The time zone in which the expression is evaluated.
+     */
+    private final TimeZone        zone;
+
+    /**
+     * The matching minutes, as a bit set.
+     */
+    private final long            minutes;
+
+    /**
+     * The matching hours, as a bit set.
+     */
+    private final long            hours;
+
+    /**
+     * The matching days of the month, as a bit set.
+     */
+    private final long            daysOfMonth;
+
+    /**
+     * The matching months, as a bit set.
+     */
+    private final long            months;
+
+    /**
+     * The matching days of the week, as a bit set with Sunday as 0.
+     */
+    private final long            daysOfWeek;
+
+    /**
+     * Whether the day-of-month field is anything other than <code>*</code>.
+     */
+    private final boolean         domRestricted;
+
+    /**
+     * Whether the day-of-week field is anything other than <code>*</code>.
+     */
+    private final boolean         dowRestricted;
+}
@@ -1,33 +1,44 @@
 package net.ardvaark.jackbot.scripting.ecma.async;
 
 import java.text.MessageFormat;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import net.ardvaark.jackbot.SharedExecutors;
+import net.ardvaark.jackbot.TimingWheel;
 import net.ardvaark.jackbot.logging.Log;
 import net.ardvaark.jackbot.scripting.ecma.ECMAEngine;
 
 public class TimeoutScheduler extends AsyncBase
 {
     private static final Log log = Log.getLogger(TimeoutScheduler.class);
-    private ScheduledExecutorService executor;
-    private Map<Object, ScheduledFuture<?>> scheduledTasks = new HashMap<Object, ScheduledFuture<?>>();
+    private TimingWheel wheel;
+    private ConcurrentMap<Object, Scheduled> scheduledTasks = new ConcurrentHashMap<Object, Scheduled>();
+    private final Random random = new Random();
     
     public TimeoutScheduler(ECMAEngine engine)
     {
         super(engine);
         
-        this.executor = Executors.newScheduledThreadPool(1);
+        this.wheel = SharedExecutors.getTimingWheel();
     }
     
     @Override
     public void destroy()
     {
-        cleanupExecutor(executor);
+        // The wheel is shared with every other engine, so only cancel the
+        // timeouts that belong to this one.
+        Iterator<Scheduled> it = scheduledTasks.values().iterator();
+        
+        while (it.hasNext())
+        {
+            it.next().cancel();
+            it.remove();
+        }
     }
 
     public void cancelTimeout(Object key)
@@ -37,17 +48,11 @@ public class TimeoutScheduler extends AsyncBase
             throw new NullPointerException();
         }
         
-        synchronized (scheduledTasks)
+        Scheduled scheduled = scheduledTasks.remove(key);
+        
+        if (scheduled != null)
         {
-            if (scheduledTasks.containsKey(key))
-            {
-                ScheduledFuture<?> future = scheduledTasks.remove(key);
-                
-                if (!future.isCancelled() && !future.isDone())
-                {
-                    future.cancel(false);
-                }
-            }
+            scheduled.cancel();
         }
     }
     
@@ -58,44 +63,210 @@ public class TimeoutScheduler extends AsyncBase
             throw new NullPointerException();
         }
         
-        Runnable safeCode = wrap(new Runnable(){
-            public void run()
+        Scheduled scheduled = new Scheduled(key, code);
+        
+        if (scheduledTasks.putIfAbsent(key, scheduled) != null)
+        {
+            throw new IllegalArgumentException(MessageFormat.format("Timeout already registered: {0}", key));
+        }
+        
+        log.trace("Scheduling timeout in {1} ms for key: {0}", key, millis);
+        scheduled.timeout = this.wheel.newTimeout(wrap(scheduled), millis, TimeUnit.MILLISECONDS);
+        
+        return key;
+    }
+    
+    /**
+     * Schedules code to run every <code>millis</code> milliseconds until the
+     * key is cancelled. The first run is after one period plus a random
+     * offset of up to <code>jitter</code> milliseconds; the offset is kept
+     * for every later run, so keys with the same period are spread apart
+     * rather than firing together.
+     */
+    public Object scheduleInterval(Object key, Runnable code, long millis, long jitter)
+    {
+        if (millis <= 0)
+        {
+            throw new IllegalArgumentException(MessageFormat.format("Interval must be positive: {0}", millis));
+        }
+        
+        return this.scheduleRecurring(new Recurring(key, code, millis, null, this.offset(jitter)));
+    }
+    
+    /**
+     * Schedules code to run at every time matching a cron expression until
+     * the key is cancelled, each run delayed by the same random offset of up
+     * to <code>jitter</code> milliseconds.
+     */
+    public Object scheduleCron(Object key, Runnable code, CronExpression cron, long jitter)
+    {
+        if (cron == null)
+        {
+            throw new NullPointerException();
+        }
+        
+        return this.scheduleRecurring(new Recurring(key, code, 0, cron, this.offset(jitter)));
+    }
+    
+    private Object scheduleRecurring(Recurring recurring)
+    {
+        if (recurring.key == null || recurring.code == null)
+        {
+            throw new NullPointerException();
+        }
+        
+        if (scheduledTasks.putIfAbsent(recurring.key, recurring) != null)
+        {
+            throw new IllegalArgumentException(MessageFormat.format("Timeout already registered: {0}", recurring.key));
+        }
+        
+        try
+        {
+            recurring.arm(System.currentTimeMillis());
+        }
+        catch (RuntimeException e)
+        {
+            // A cron expression that never matches has no first run, so
+            // free the key rather than leave it held by nothing.
+            scheduledTasks.remove(recurring.key, recurring);
+            throw e;
+        }
+        
+        return recurring.key;
+    }
+    
+    private long offset(long jitter)
+    {
+        if (jitter <= 0)
+        {
+            return 0;
+        }
+        
+        synchronized (this.random)
+        {
+            return (long) (this.random.nextDouble() * jitter);
+        }
+    }
+    
+    /**
+     * A timeout registered under a key. It only runs if it is still the one
+     * registered under that key when it fires, so a timeout that was
+     * cancelled, or replaced after firing, never runs twice.
+     */
+    private class Scheduled implements Runnable
+    {
+        final Object key;
+        final Runnable code;
+        volatile TimingWheel.Timeout timeout;
+        
+        Scheduled(Object key, Runnable code)
+        {
+            this.key = key;
+            this.code = code;
+        }
+        
+        public void run()
+        {
+            if (scheduledTasks.remove(this.key, this))
             {
-                boolean shouldExecute = false;
-                
-                synchronized(scheduledTasks)
-                {
-                    if (scheduledTasks.containsKey(key))
-                    {
-                        ScheduledFuture<?> future = scheduledTasks.remove(key);
-                        
-                        if (!future.isCancelled() && !future.isDone())
-                        {
-                            shouldExecute = true;
-                        }
-                    }
-                }
+                this.code.run();
+            }
+        }
+        
+        void cancel()
+        {
+            // If the timer has not been handed back yet, the removal from
+            // the map is enough to stop it running.
+            TimingWheel.Timeout t = this.timeout;
+            
+            if (t != null)
+            {
+                t.cancel();
+            }
+        }
+    }
+    
+    /**
+     * A timeout that re-arms itself. Each run is planned from the previous
+     * planned time rather than from when the previous run happened to
+     * finish, so the schedule does not drift; runs missed entirely are
+     * skipped rather than fired in a burst. The next run is armed before the
+     * code runs, so code that throws does not end the schedule, and a run
+     * that comes due while the previous one is still going is skipped.
+     */
+    private class Recurring extends Scheduled
+    {
+        private final long period;
+        private final CronExpression cron;
+        private final long offset;
+        private final Runnable wrapped;
+        private final AtomicBoolean running = new AtomicBoolean();
+        private long due;
+        
+        Recurring(Object key, Runnable code, long period, CronExpression cron, long offset)
+        {
+            super(key, code);
+            
+            this.period = period;
+            this.cron = cron;
+            this.offset = offset;
+            this.wrapped = wrap(this);
+        }
+        
+        /**
+         * Plans the next run after the given time and sets its timer. Only
+         * one thread arms at a time: the scheduling thread first, then each
+         * run in turn.
+         */
+        void arm(long now)
+        {
+            if (this.cron != null)
+            {
+                this.due = this.cron.nextAfter(Math.max(this.due, now - this.offset));
+            }
+            else if (this.due == 0)
+            {
+                this.due = now + this.period;
+            }
+            else
+            {
+                this.due += this.period;
                 
-                if (shouldExecute)
+                if (this.due + this.offset <= now)
                 {
-                    code.run();
+                    long missed = (now - this.due - this.offset) / this.period + 1;
+                    log.trace("Skipping {1} missed runs for key: {0}", this.key, missed);
+                    this.due += missed * this.period;
                 }
             }
-        });
+            
+            this.timeout = wheel.newTimeout(this.wrapped, this.due + this.offset - now, TimeUnit.MILLISECONDS);
+        }
         
-        synchronized (scheduledTasks)
+        @Override
+        public void run()
         {
-            if (scheduledTasks.containsKey(key))
+            if (scheduledTasks.get(this.key) != this)
             {
-                throw new IllegalArgumentException(MessageFormat.format("Timeout already registered: {0}", key));
+                return;
             }
             
-            log.trace("Scheduling timeout in {1} ms for key: {0}", key, millis);
-            ScheduledFuture<?> future = this.executor.schedule(safeCode, millis, TimeUnit.MILLISECONDS);
-
-            scheduledTasks.put(key, future);
+            this.arm(System.currentTimeMillis());
+            
+            if (!this.running.compareAndSet(false, true))
+            {
+                log.trace("Previous run still active; skipping key: {0}", this.key);
+                return;
+            }
+            
+            try
+            {
+                this.code.run();
+            }
+            finally
+            {
+                this.running.set(false);
+            }
         }
-        
-        return key;
     }
 }
@@ -0,0 +1,162 @@
+/*
+ * This file is part of JackBot IRC Bot (JackBot).
+ * 
+ * JackBot is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * JackBot is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * JackBot; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+package net.ardvaark.jackbot.scripting.ecma;
+
+import static org.junit.Assert.assertEquals;
+
+import net.ardvaark.jackbot.EventIRCClient;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Tests of <code>XMLHttpRequest</code> when scripts run on an event loop.
+ * 
+ * @since JackBot v2.1
+ * @version $Revision$ $Date$
+ */
+public class XmlHttpRequestTest
+{
+    /**
+     * Each state change of an asynchronous request must reach the handlers
+     * with the state it was fired for, so the completion logic runs once.
+     */
+    @Test(timeout = 20000)
+    public void completesOnceOnEventLoop() throws Exception
+    {
+        this.server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.respondOnce("hello");
+
+        this.engine = new ECMAEngine();
+        this.engine.setClient(new EventIRCClient("jb", "test"));
+        this.engine.configure(XmlHttpRequestTest.element("<script-engine><event-loop enabled='true'/></script-engine>"));
+        this.engine.executeScript(XmlHttpRequestTest.element("<script name='request'><![CDATA["
+                + "var states = []; var completions = 0; var text = null;"
+                + "var xhr = new XMLHttpRequest();"
+                + "xhr.onreadystatechange = function() {"
+                + "    states.push(xhr.readyState);"
+                + "    if (xhr.readyState === 4) { completions++; text = xhr.responseText; }"
+                + "};"
+                + "xhr.open('GET', 'http://127.0.0.1:" + this.server.getLocalPort() + "/');"
+                + "xhr.send();"
+                // Hold the loop while the response arrives, so that every
+                // event of the request is waiting before any handler runs.
+                + "java.lang.Thread.sleep(1000);"
+                + "]]></script>"));
+
+        while (!"4".equals(this.evaluate("String(states[states.length - 1])")))
+        {
+            Thread.sleep(50);
+        }
+
+        // Give any stray events time to arrive.
+        Thread.sleep(500);
+
+        assertEquals("1,1,2,3,4", this.evaluate("states.join(',')"));
+        assertEquals("1", this.evaluate("String(completions)"));
+        assertEquals("hello", this.evaluate("String(text)"));
+    }
+
+    /**
+     * Stops the engine and the server.
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        if (this.engine != null)
+        {
+            this.engine.cleanup();
+        }
+
+        if (this.server != null)
+        {
+            this.server.close();
+        }
+    }
+
+    private String evaluate(String expression) throws Exception
+    {
+        return String.valueOf(this.engine.executeScript(XmlHttpRequestTest.element("<script name='evaluate'><![CDATA[" + expression + "]]></script>")));
+    }
+
+    /**
+     * Answers one request to the server with a plain text body.
+     * 
+     * @param body The body.
+     */
+    private void respondOnce(final String body)
+    {
+        Thread responder = new Thread("XmlHttpRequestTest responder") {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Socket socket = server.accept();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                    String line;
+
+                    while ((line = in.readLine()) != null && line.length() > 0)
+                    {
+                        // Skip the request.
+                    }
+
+                    byte[] content = body.getBytes("UTF-8");
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + content.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                    out.write(content);
+                    out.flush();
+                    socket.close();
+                }
+                catch (Exception e)
+                {
+                    // The test fails waiting for the response.
+                }
+            }
+        };
+
+        responder.setDaemon(true);
+        responder.start();
+    }
+
+    private static Element element(String xml) throws Exception
+    {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+    }
+
+    /**
+     * The engine under test.
+     */
+    private ECMAEngine   engine;
+
+    /**
+     * The server the request is sent to.
+     */
+    private ServerSocket server;
+}